@@ -7,10 +7,14 @@ import com.amazonaws.services.kinesis.model.PutRecordResult;
 import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
 import com.amazonaws.services.kinesis.producer.KinesisProducer;
 import com.amazonaws.services.kinesis.producer.KinesisProducerConfiguration;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import io.airlift.log.Logger;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import org.apache.avro.Schema;
 import org.apache.avro.generic.FilteredRecordWriter;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.io.BinaryEncoder;
@@ -43,6 +47,9 @@ public class AWSKinesisEventStore
         implements EventStore
 {
     private final static Logger LOGGER = Logger.get(AWSKinesisEventStore.class);
+    // the schemas of the events are interned so the writers are shared by the events of the same collection
+    private final static LoadingCache<Schema, DatumWriter> WRITERS = CacheBuilder.newBuilder().weakKeys()
+            .build(CacheLoader.from(schema -> new FilteredRecordWriter(schema, GenericData.get())));
 
     private final AmazonKinesisAsyncClient kinesis;
     private final AWSConfig config;
@@ -195,7 +202,7 @@ public class AWSKinesisEventStore
 
     private ByteBuf getBuffer(Event event)
     {
-        DatumWriter writer = new FilteredRecordWriter(event.properties().getSchema(), GenericData.get());
+        DatumWriter writer = WRITERS.getUnchecked(event.properties().getSchema());
         ByteBuf buffer = DEFAULT.buffer(100);
         buffer.writeByte(2);
 
@@ -6,6 +6,7 @@ import com.google.inject.Scopes;
 import io.airlift.configuration.Config;
 import io.airlift.log.Logger;
 import org.rakam.aws.AWSConfig;
+import org.rakam.collection.CountingEventStore;
 import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.RakamModule;
@@ -19,7 +20,7 @@ public class AWSKinesisModule extends RakamModule {
     protected void setup(Binder binder) {
         configBinder(binder).bindConfig(AWSConfig.class);
         configBinder(binder).bindConfig(PrestoStreamConfig.class);
-        binder.bind(EventStore.class).to(AWSKinesisEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).toProvider(CountingEventStore.provider(AWSKinesisEventStore.class)).in(Scopes.SINGLETON);
     }
 
     @Override
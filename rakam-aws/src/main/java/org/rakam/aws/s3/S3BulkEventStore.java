@@ -10,6 +10,9 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import io.airlift.log.Logger;
 import io.airlift.slice.BasicSliceInput;
 import io.airlift.slice.DynamicSliceOutput;
@@ -41,6 +44,9 @@ import static org.rakam.util.AvroUtil.convertAvroSchema;
 public class S3BulkEventStore
 {
     private final static Logger LOGGER = Logger.get(S3BulkEventStore.class);
+    // the schemas are interned by AvroUtil so the writers are shared by the batches of the same collection
+    private final static LoadingCache<Schema, DatumWriter> WRITERS = CacheBuilder.newBuilder().weakKeys()
+            .build(CacheLoader.from(schema -> new FilteredRecordWriter(schema, GenericData.get())));
     private final Metastore metastore;
     private final AmazonS3Client s3Client;
     private final AWSConfig config;
@@ -72,8 +78,6 @@ public class S3BulkEventStore
 
     public void upload(String project, List<Event> events, int tryCount)
     {
-        GenericData data = GenericData.get();
-
         DynamicSliceOutput buffer = new DynamicSliceOutput(events.size() * 30);
 
         Map<String, List<Event>> map = new HashMap<>();
@@ -92,7 +96,7 @@ public class S3BulkEventStore
                 List<SchemaField> collection = metastore.getCollection(project, entry.getKey());
 
                 Schema avroSchema = convertAvroSchema(collection);
-                DatumWriter writer = new FilteredRecordWriter(avroSchema, data);
+                DatumWriter writer = WRITERS.getUnchecked(avroSchema);
                 encoder = EncoderFactory.get().directBinaryEncoder(buffer, encoder);
 
                 encoder.writeInt(collection.size());
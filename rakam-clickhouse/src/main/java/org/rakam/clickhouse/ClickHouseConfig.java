@@ -1,13 +1,19 @@
 package org.rakam.clickhouse;
 
-import java.net.URI;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import java.net.URI;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class ClickHouseConfig
 {
     private URI address = URI.create("http://127.0.0.1:8123");
     private String hotStoragePrefix;
     private String coldStoragePrefix;
+    private Duration queryTimeout = new Duration(10, MINUTES);
 
     @Config("clickhouse.address")
     public ClickHouseConfig setAddress(URI address)
@@ -44,4 +50,17 @@ public class ClickHouseConfig
         this.coldStoragePrefix = coldStoragePrefix;
         return this;
     }
+
+    @Config("clickhouse.query-timeout")
+    @ConfigDescription("The queries that are not completed in this duration are aborted")
+    public ClickHouseConfig setQueryTimeout(Duration queryTimeout)
+    {
+        this.queryTimeout = queryTimeout;
+        return this;
+    }
+
+    public Duration getQueryTimeout()
+    {
+        return queryTimeout;
+    }
 }
@@ -6,6 +6,7 @@ import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.google.inject.multibindings.Multibinder;
+import com.google.inject.multibindings.OptionalBinder;
 import com.google.inject.name.Names;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.ConfigManager;
@@ -27,8 +28,11 @@ import org.rakam.clickhouse.analysis.ClickHouseFunnelQueryExecutor;
 import org.rakam.clickhouse.analysis.ClickHouseMetastore;
 import org.rakam.clickhouse.analysis.ClickHouseRetentionQueryExecutor;
 import org.rakam.clickhouse.collection.AWSKinesisClickhouseEventStore;
+import org.rakam.clickhouse.collection.ClickHouseCopyEvent;
 import org.rakam.clickhouse.collection.ClickHouseEventStore;
+import org.rakam.collection.CountingEventStore;
 import org.rakam.config.MetadataConfig;
+import org.rakam.plugin.CopyEvent;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.RakamModule;
@@ -65,7 +69,9 @@ public class ClickHouseModule
         binder.bind(char.class).annotatedWith(EscapeIdentifier.class).toInstance('`');
 
         binder.bind(QueryExecutor.class).to(ClickHouseQueryExecutor.class);
-        binder.bind(EventStore.class).to(AWSKinesisClickhouseEventStore.class);
+        binder.bind(EventStore.class).toProvider(CountingEventStore.provider(AWSKinesisClickhouseEventStore.class)).in(Scopes.SINGLETON);
+        OptionalBinder.newOptionalBinder(binder, CopyEvent.class)
+                .setBinding().to(ClickHouseCopyEvent.class).in(Scopes.SINGLETON);
         binder.bind(ContinuousQueryService.class).to(ClickHouseContinuousQueryService.class);
         binder.bind(MaterializedViewService.class).to(ClickHouseMaterializedViewService.class);
         binder.bind(String.class).annotatedWith(TimestampToEpochFunction.class)
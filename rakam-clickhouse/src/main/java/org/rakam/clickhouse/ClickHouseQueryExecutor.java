@@ -1,10 +1,12 @@
 package org.rakam.clickhouse;
 
 import com.facebook.presto.sql.tree.QualifiedName;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.clickhouse.analysis.ClickHouseQueryExecution;
 import org.rakam.collection.SchemaField;
+import org.rakam.report.AggregationFunctionNames;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.QueryResult;
@@ -12,8 +14,10 @@ import org.rakam.report.QuerySampling;
 import org.rakam.util.RakamException;
 
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
@@ -23,8 +27,13 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 
 public class ClickHouseQueryExecutor implements QueryExecutor
 {
+    // the suffixes that change the behavior of the aggregation functions, such as countIf
+    private static final List<String> COMBINATORS = ImmutableList.of("if", "array", "foreach", "state", "merge",
+            "ornull", "ordefault", "resample", "distinct");
+
     private final ClickHouseConfig config;
     private final Metastore metastore;
+    private final AggregationFunctionNames aggregationFunctions = new AggregationFunctionNames(this::getAggregationFunctions);
 
     @Inject
     public ClickHouseQueryExecutor(ClickHouseConfig config, Metastore metastore)
@@ -46,6 +55,35 @@ public class ClickHouseQueryExecutor implements QueryExecutor
         return QueryExecution.completedQueryExecution(sqlQuery, QueryResult.empty());
     }
 
+    @Override
+    public boolean isAggregationFunction(String name)
+    {
+        String function = name.toLowerCase(Locale.ENGLISH);
+        if (aggregationFunctions.contains(function)) {
+            return true;
+        }
+
+        for (String combinator : COMBINATORS) {
+            if (function.length() > combinator.length() && function.endsWith(combinator)
+                    && isAggregationFunction(function.substring(0, function.length() - combinator.length()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> getAggregationFunctions()
+    {
+        QueryResult result = executeRawQuery("SELECT name FROM system.functions WHERE is_aggregate = 1").getResult().join();
+        if (result.isFailed()) {
+            throw new IllegalStateException("Unable to fetch the functions: " + result.getError().message);
+        }
+
+        return result.getResult().stream()
+                .map(row -> row.get(0).toString().toLowerCase(Locale.ENGLISH))
+                .collect(Collectors.toSet());
+    }
+
     @SuppressWarnings("Duplicates")
     @Override
     public String formatTableReference(String project, QualifiedName node, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
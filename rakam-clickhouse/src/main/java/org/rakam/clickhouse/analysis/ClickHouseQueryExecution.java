@@ -1,20 +1,28 @@
 package org.rakam.clickhouse.analysis;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.io.CharStreams;
 import com.google.common.net.HostAndPort;
-import com.google.common.util.concurrent.ListenableFuture;
 import io.airlift.http.client.HttpClientConfig;
 import io.airlift.http.client.Request;
-import io.airlift.http.client.Response;
-import io.airlift.http.client.ResponseHandler;
 import io.airlift.http.client.StringResponseHandler;
 import io.airlift.http.client.jetty.JettyHttpClient;
 import io.airlift.http.client.jetty.JettyIoPool;
 import io.airlift.http.client.jetty.JettyIoPoolConfig;
 import io.airlift.log.Logger;
 import io.airlift.units.Duration;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.Socks4Proxy;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
 import org.rakam.clickhouse.ClickHouseConfig;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
@@ -28,7 +36,6 @@ import javax.ws.rs.core.UriBuilder;
 
 import java.io.DataInput;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
@@ -41,18 +48,17 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import static io.airlift.http.client.StaticBodyGenerator.createStaticBodyGenerator;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
-import static java.lang.String.format;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.ZoneOffset.UTC;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.rakam.report.QueryStats.State.FINISHED;
 import static org.rakam.report.QueryStats.State.RUNNING;
@@ -72,9 +78,21 @@ public class ClickHouseQueryExecution
             ImmutableSet.of());
     private static Pattern CLICKHOUSE_TYPE_PATTERN = Pattern.compile("^([A-Za-z0-9]+)\\(([A-Za-z0-9]+)\\)$");
 
+    private static final HttpClient QUERY_HTTP_CLIENT = createQueryHttpClient();
+    private static final String FORMAT = "JSONCompact";
+    private static final String PROGRESS_HEADER = "X-ClickHouse-Progress";
+    // same with the interval of the stats that are sent to the clients of the running queries
+    private static final int PROGRESS_INTERVAL_MILLIS = 500;
+    // the progress headers are sent in every interval so the connections are not idle while the query is running
+    private static final long IDLE_TIMEOUT_MILLIS = SECONDS.toMillis(60);
+    private static final int MAX_ERROR_LENGTH = 8192;
+    private static final Pattern ERROR_PATTERN = Pattern.compile("(?m)^Code: \\d+, .*?(?=, Stack trace|$)");
+
     private final String query;
     private final String queryId;
     private final ClickHouseConfig config;
+    private final org.eclipse.jetty.client.api.Request request;
+    private volatile Progress progress;
 
     public ClickHouseQueryExecution(ClickHouseConfig config, String query)
     {
@@ -83,15 +101,49 @@ public class ClickHouseQueryExecution
         this.config = config;
         URI uri = UriBuilder
                 .fromUri(config.getAddress())
-                .queryParam("query_id", queryId).build();
-
-        result = convertCompletableFuture(HTTP_CLIENT.executeAsync(
-                Request.builder()
-                        .setUri(uri)
-                        .setMethod("POST")
-                        .setBodyGenerator(createStaticBodyGenerator(query + " format " + QueryResponseHandler.FORMAT, UTF_8))
-                        .build(),
-                new QueryResponseHandler()));
+                .queryParam("query_id", queryId)
+                .queryParam("send_progress_in_http_headers", 1)
+                .queryParam("http_headers_progress_interval_ms", PROGRESS_INTERVAL_MILLIS).build();
+
+        result = new CompletableFuture<>();
+        request = QUERY_HTTP_CLIENT.newRequest(uri)
+                .method(HttpMethod.POST)
+                .content(new StringContentProvider(query + " format " + FORMAT, UTF_8))
+                .timeout(config.getQueryTimeout().toMillis(), MILLISECONDS)
+                .onResponseHeader((response, field) -> {
+                    if (!PROGRESS_HEADER.equalsIgnoreCase(field.getName())) {
+                        return true;
+                    }
+                    try {
+                        progress = JsonHelper.read(field.getValue(), Progress.class);
+                    }
+                    catch (Exception e) {
+                        LOGGER.debug(e, "Unable to parse the progress of the query %s", queryId);
+                    }
+                    // a header is sent at each interval so they're not kept in the response
+                    return false;
+                });
+        request.send(new BufferingResponseListener(Integer.MAX_VALUE)
+        {
+            @Override
+            public void onComplete(Result response)
+            {
+                if (response.isFailed()) {
+                    if (!result.isCancelled()) {
+                        LOGGER.error(response.getFailure());
+                        result.completeExceptionally(new RakamException(response.getFailure().getMessage(), INTERNAL_SERVER_ERROR));
+                    }
+                    return;
+                }
+
+                try {
+                    result.complete(handleResponse(response.getResponse().getStatus(), getContent()));
+                }
+                catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
     }
 
     public static String runStatement(ClickHouseConfig config, String query)
@@ -119,22 +171,14 @@ public class ClickHouseQueryExecution
         if (result.isDone()) {
             return new QueryStats(100, FINISHED, null, null, null, null, null, null);
         }
-        else {
-            String status = runStatement(config, format("select rows_read, bytes_read, total_rows_approx, memory_usage from system.processes where query_id = '%s' format "
-                    + QueryResponseHandler.FORMAT, queryId));
-            if (status.isEmpty()) {
-                if (result.isDone()) {
-                    return currentStats();
-                }
-                else {
-                    return new QueryStats(null, RUNNING, null, null, null, null, null, null);
-                }
-            }
-            ClickHouseQueryResult read = JsonHelper.read(status, ClickHouseQueryResult.class);
-            int percentage = (((Number) read.data.get(0)).intValue() * 100) / ((Number) read.data.get(2)).intValue();
-            return new QueryStats(percentage, RUNNING, null, ((Number) read.data.get(1)).longValue(), ((Number) read.data.get(2)).longValue(),
-                    null, null, null);
+
+        Progress progress = this.progress;
+        if (progress == null) {
+            return new QueryStats(null, RUNNING, null, null, null, null, null, null);
         }
+
+        Integer percentage = progress.totalRows > 0 ? (int) Math.min(100, (progress.readRows * 100) / progress.totalRows) : null;
+        return new QueryStats(percentage, RUNNING, null, progress.readRows, progress.readBytes, null, null, null);
     }
 
     @Override
@@ -224,45 +268,89 @@ public class ClickHouseQueryExecution
     {
         if (!result.isDone()) {
             result.cancel(false);
+            request.abort(new CancellationException());
         }
     }
 
-    private static class QueryResponseHandler
-            implements ResponseHandler<ClickHouseQueryResult, RuntimeException>
+    private static ClickHouseQueryResult handleResponse(int status, byte[] content)
     {
-        private static final String FORMAT = "JSONCompact";
+        if (status != 200) {
+            String message = new String(content, UTF_8).split(", Stack trace:\n", 2)[0];
+            throw new RakamException(message, BAD_GATEWAY);
+        }
 
-        @Override
-        public ClickHouseQueryResult handleException(Request request, Exception exception)
-                throws RuntimeException
-        {
-            LOGGER.error(exception);
-            throw new RakamException(exception.getMessage(), INTERNAL_SERVER_ERROR);
+        // the status is sent with the first progress header so the errors that occur while the query is running
+        // are written at the end of the body
+        String error = getError(content);
+        if (error != null) {
+            throw new RakamException(error, BAD_GATEWAY);
         }
 
-        @Override
-        public ClickHouseQueryResult handle(Request request, Response response)
-                throws RuntimeException
-        {
-            if (response.getStatusCode() != 200) {
-                try {
-                    String message = CharStreams.toString(new InputStreamReader(response.getInputStream()));
-                    message = message.split(", Stack trace:\n", 2)[0];
-                    throw new RakamException(message, BAD_GATEWAY);
-                }
-                catch (IOException e) {
-                    throw new RakamException("An error occurred", BAD_GATEWAY);
-                }
-            }
+        try {
+            return JsonHelper.readSafe(content, ClickHouseQueryResult.class);
+        }
+        catch (IOException e) {
+            LOGGER.error(e, "An error occurred while reading query results");
+            throw new RakamException("An error occurred while reading query results: " + e.getMessage(),
+                    INTERNAL_SERVER_ERROR);
+        }
+    }
 
-            try {
-                return JsonHelper.read(response.getInputStream(), ClickHouseQueryResult.class);
-            }
-            catch (IOException e) {
-                LOGGER.error(e, "An error occurred while reading query results");
-                throw new RakamException("An error occurred while reading query results: " + e.getMessage(),
-                        INTERNAL_SERVER_ERROR);
-            }
+    static String getError(byte[] content)
+    {
+        int offset = Math.max(0, content.length - MAX_ERROR_LENGTH);
+        Matcher matcher = ERROR_PATTERN.matcher(new String(content, offset, content.length - offset, UTF_8));
+
+        String error = null;
+        while (matcher.find()) {
+            error = matcher.group();
+        }
+        return error;
+    }
+
+    private static HttpClient createQueryHttpClient()
+    {
+        QueuedThreadPool executor = new QueuedThreadPool();
+        executor.setName("rakam-clickhouse-query");
+        executor.setDaemon(true);
+
+        HttpClient client = new HttpClient();
+        client.setExecutor(executor);
+        client.setScheduler(new ScheduledExecutorScheduler("rakam-clickhouse-query-scheduler", true));
+        client.setConnectTimeout(SECONDS.toMillis(10));
+        client.setIdleTimeout(IDLE_TIMEOUT_MILLIS);
+        HostAndPort proxy = getSystemSocksProxy();
+        if (proxy != null) {
+            client.getProxyConfiguration().getProxies().add(new Socks4Proxy(proxy.getHostText(), proxy.getPort()));
+        }
+
+        try {
+            client.start();
+        }
+        catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+        return client;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class Progress
+    {
+        public final long readRows;
+        public final long readBytes;
+        public final long totalRows;
+
+        @JsonCreator
+        public Progress(
+                @JsonProperty("read_rows") long readRows,
+                @JsonProperty("read_bytes") long readBytes,
+                @JsonProperty("total_rows") Long totalRows,
+                @JsonProperty("total_rows_to_read") Long totalRowsToRead)
+        {
+            this.readRows = readRows;
+            this.readBytes = readBytes;
+            // the field is renamed in the recent versions of ClickHouse
+            this.totalRows = totalRowsToRead != null ? totalRowsToRead : (totalRows != null ? totalRows : 0);
         }
     }
 
@@ -279,34 +367,6 @@ public class ClickHouseQueryExecution
         return null;
     }
 
-    static <T> CompletableFuture<T> convertCompletableFuture(final ListenableFuture<T> listenableFuture)
-    {
-        CompletableFuture<T> completable = new CompletableFuture<T>()
-        {
-            @Override
-            public boolean cancel(boolean mayInterruptIfRunning)
-            {
-                // propagate cancel to the listenable future
-                boolean result = listenableFuture.cancel(mayInterruptIfRunning);
-                super.cancel(mayInterruptIfRunning);
-                return result;
-            }
-        };
-
-        listenableFuture.addListener(() -> {
-            try {
-                completable.complete(listenableFuture.get());
-            }
-            catch (InterruptedException e) {
-                completable.completeExceptionally(e);
-            }
-            catch (ExecutionException e) {
-                completable.completeExceptionally(e.getCause());
-            }
-        }, Runnable::run);
-        return completable;
-    }
-
     public static List<Object> readRowBinary(DataInput input, List<String> types)
             throws IOException
     {
@@ -0,0 +1,192 @@
+package org.rakam.clickhouse.collection;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.LittleEndianDataOutputStream;
+import com.google.inject.Inject;
+import io.airlift.http.client.BodyGenerator;
+import io.airlift.http.client.HttpClientConfig;
+import io.airlift.http.client.Request;
+import io.airlift.http.client.StringResponseHandler.StringResponse;
+import io.airlift.http.client.jetty.JettyHttpClient;
+import io.airlift.http.client.jetty.JettyIoPool;
+import io.airlift.http.client.jetty.JettyIoPoolConfig;
+import io.airlift.units.Duration;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.RemoteImportConfig;
+import org.rakam.plugin.AbstractCopyEvent;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.RakamException;
+
+import javax.annotation.PreDestroy;
+import javax.ws.rs.core.UriBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.airlift.http.client.StringResponseHandler.createStringResponseHandler;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.clickhouse.analysis.ClickHouseMetastore.toClickHouseType;
+import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.getSystemSocksProxy;
+import static org.rakam.clickhouse.collection.ClickHouseEventStore.writeValue;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Streams the files to ClickHouse with INSERT INTO SELECT FROM input() so that the rows are parsed by the server and
+ * the $date column is derived from _time. The Avro records are written in RowBinary format, the same as the event
+ * store. The map properties are stored as Nested columns which can't be read from CSV or JSON files so they're
+ * skipped for these formats.
+ */
+public class ClickHouseCopyEvent
+        extends AbstractCopyEvent
+{
+    private static final String SUMMARY_HEADER = "X-ClickHouse-Summary";
+
+    private final JettyHttpClient httpClient = new JettyHttpClient(
+            new HttpClientConfig()
+                    .setConnectTimeout(new Duration(10, SECONDS))
+                    // the server doesn't send anything until the whole file is inserted
+                    .setIdleTimeout(new Duration(30, MINUTES))
+                    .setSocksProxy(getSystemSocksProxy()), new JettyIoPool("rakam-clickhouse-copy", new JettyIoPoolConfig()),
+            ImmutableSet.of());
+
+    private final ClickHouseConfig config;
+
+    @Inject
+    public ClickHouseCopyEvent(ClickHouseConfig config, Metastore metastore, ConfigManager configManager, RemoteImportConfig importConfig)
+    {
+        super(metastore, configManager, importConfig);
+        this.config = config;
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        httpClient.close();
+    }
+
+    @Override
+    protected void loadCsv(String project, String collection, List<SchemaField> fields, char separator, InputStream input, LongConsumer counter)
+            throws IOException
+    {
+        for (SchemaField field : fields) {
+            if (field.getType().isMap()) {
+                throw new RakamException(format("Map property %s can't be loaded from CSV files", field.getName()), BAD_REQUEST);
+            }
+        }
+
+        UriBuilder uri = UriBuilder.fromUri(config.getAddress())
+                .queryParam("query", getInputQuery(project, collection, fields, "CSV"))
+                .queryParam("format_csv_delimiter", String.valueOf(separator));
+
+        execute(uri, outputStream -> ByteStreams.copy(input, outputStream), counter);
+    }
+
+    @Override
+    protected void loadJson(String project, String collection, List<SchemaField> fields, InputStream input, LongConsumer counter)
+            throws IOException
+    {
+        List<SchemaField> columns = fields.stream()
+                .filter(field -> !field.getType().isMap())
+                .collect(Collectors.toList());
+
+        UriBuilder uri = UriBuilder.fromUri(config.getAddress())
+                .queryParam("query", getInputQuery(project, collection, columns, "JSONEachRow"))
+                .queryParam("input_format_skip_unknown_fields", "1");
+
+        execute(uri, outputStream -> ByteStreams.copy(input, outputStream), counter);
+    }
+
+    @Override
+    protected void loadRecords(String project, String collection, List<SchemaField> fields, RecordReader reader, LongConsumer counter)
+            throws IOException
+    {
+        String columns = fields.stream()
+                .flatMap(f -> f.getType().isMap() ?
+                        Stream.of(checkTableColumn(f.getName(), '`') + ".Key", checkTableColumn(f.getName(), '`') + ".Value") :
+                        Stream.of(checkTableColumn(f.getName(), '`')))
+                .collect(Collectors.joining(", "));
+
+        UriBuilder uri = UriBuilder.fromUri(config.getAddress())
+                .queryParam("query", format("INSERT INTO %s.%s (`$date`, %s) FORMAT RowBinary",
+                        project, checkCollection(collection, '`'), columns));
+
+        int timeIndex = -1;
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).getName().equals("_time")) {
+                timeIndex = i;
+            }
+        }
+
+        int finalTimeIndex = timeIndex;
+        execute(uri, outputStream -> {
+            LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(new BufferedOutputStream(outputStream, 65536));
+
+            GenericRecord record;
+            while ((record = reader.next()) != null) {
+                Object time = finalTimeIndex == -1 ? null : record.get(finalTimeIndex);
+                writeValue(time == null ? 0 : (int) ((long) time / 86400000), DATE, out);
+
+                for (int i = 0; i < fields.size(); i++) {
+                    writeValue(record.get(i), fields.get(i).getType(), out);
+                }
+            }
+
+            out.flush();
+        }, counter);
+    }
+
+    private void execute(UriBuilder uri, BodyGenerator body, LongConsumer counter)
+    {
+        StringResponse response = httpClient.execute(Request.builder()
+                .setUri(uri.queryParam("date_time_input_format", "best_effort").build())
+                .setMethod("POST")
+                .setBodyGenerator(body)
+                .build(), createStringResponseHandler());
+
+        if (response.getStatusCode() != 200) {
+            throw new RakamException(response.getStatusMessage() + " : " + response.getBody().split("\n", 2)[0], BAD_REQUEST);
+        }
+
+        // the summary is only sent by the recent versions of ClickHouse
+        String summary = response.getHeader(SUMMARY_HEADER);
+        if (summary != null) {
+            Object writtenRows = JsonHelper.read(summary, Map.class).get("written_rows");
+            if (writtenRows != null) {
+                counter.accept(Long.parseLong(writtenRows.toString()));
+            }
+        }
+    }
+
+    private static String getInputQuery(String project, String collection, List<SchemaField> fields, String format)
+    {
+        boolean hasTime = fields.stream().anyMatch(field -> field.getName().equals("_time"));
+
+        String columns = fields.stream()
+                .map(field -> checkTableColumn(field.getName(), '`'))
+                .collect(Collectors.joining(", "));
+        String structure = fields.stream()
+                .map(field -> format("%s %s", checkTableColumn(field.getName(), '`'), toClickHouseType(field.getType())))
+                .collect(Collectors.joining(", "));
+
+        return format("INSERT INTO %s.%s (`$date`, %s) SELECT %s, %s FROM input('%s') FORMAT %s",
+                project, checkCollection(collection, '`'), columns,
+                hasTime ? "toDate(`_time`)" : "today()", columns, checkLiteral(structure), format);
+    }
+}
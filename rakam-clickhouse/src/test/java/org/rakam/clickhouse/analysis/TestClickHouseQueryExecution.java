@@ -0,0 +1,41 @@
+package org.rakam.clickhouse.analysis;
+
+import org.testng.annotations.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestClickHouseQueryExecution
+{
+    @Test
+    public void testErrorAfterPartialResult()
+            throws Exception
+    {
+        String body = "{\n\t\"meta\":\n\t[\n\t\t{\"name\": \"a\", \"type\": \"UInt64\"}\n\t],\n\t\"data\":\n\t[\n\t\t[\"1\"],\n" +
+                "Code: 241, e.displayText() = DB::Exception: Memory limit (for query) exceeded, e.what() = DB::Exception, Stack trace:\n\n" +
+                "0. clickhouse-server(StackTrace::StackTrace()+0x16) [0x35cb3a6]\n";
+
+        assertEquals(ClickHouseQueryExecution.getError(body.getBytes(UTF_8)),
+                "Code: 241, e.displayText() = DB::Exception: Memory limit (for query) exceeded, e.what() = DB::Exception");
+    }
+
+    @Test
+    public void testErrorWithoutStackTrace()
+            throws Exception
+    {
+        String body = "Code: 159, e.displayText() = DB::Exception: Timeout exceeded: elapsed 5.0 seconds\n";
+
+        assertEquals(ClickHouseQueryExecution.getError(body.getBytes(UTF_8)),
+                "Code: 159, e.displayText() = DB::Exception: Timeout exceeded: elapsed 5.0 seconds");
+    }
+
+    @Test
+    public void testSuccessfulResult()
+            throws Exception
+    {
+        String body = "{\n\t\"meta\": [],\n\t\"data\": [[\"Code: 1, not an error\"]],\n\t\"rows\": 1\n}\n";
+
+        assertNull(ClickHouseQueryExecution.getError(body.getBytes(UTF_8)));
+    }
+}
@@ -0,0 +1,135 @@
+package org.rakam.clickhouse.collection;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.RemoteImportConfig;
+import org.rakam.util.RakamException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_STRING;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestClickHouseCopyEvent
+{
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("_time", TIMESTAMP),
+            new SchemaField("url", STRING),
+            new SchemaField("clicks", LONG));
+
+    private HttpServer server;
+    private ClickHouseCopyEvent copyEvent;
+
+    private volatile String query;
+    private volatile byte[] body;
+    private volatile int status;
+    private volatile String response;
+    private volatile String summary;
+
+    @BeforeMethod
+    public void setUp()
+            throws Exception
+    {
+        status = 200;
+        response = "";
+        summary = null;
+
+        // records the requests that are sent to ClickHouse
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), StandardCharsets.UTF_8.name());
+            body = ByteStreams.toByteArray(exchange.getRequestBody());
+
+            if (summary != null) {
+                exchange.getResponseHeaders().add("X-ClickHouse-Summary", summary);
+            }
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(bytes);
+            }
+        });
+        server.start();
+
+        ClickHouseConfig config = new ClickHouseConfig()
+                .setAddress(URI.create("http://127.0.0.1:" + server.getAddress().getPort()));
+        copyEvent = new ClickHouseCopyEvent(config, null, null, new RemoteImportConfig());
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        copyEvent.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void testCsv()
+            throws Exception
+    {
+        summary = "{\"read_rows\":\"2\",\"written_rows\":\"2\"}";
+        String content = "2017-01-01 10:00:00;/home;1\n2017-01-02 10:00:00;/a;2\n";
+        AtomicLong rows = new AtomicLong();
+
+        copyEvent.loadCsv("project", "pageview", FIELDS, ';', new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), rows::addAndGet);
+
+        assertTrue(query.contains("INSERT INTO project.`pageview` (`$date`, `_time`, `url`, `clicks`) " +
+                "SELECT toDate(`_time`), `_time`, `url`, `clicks` FROM input('`_time` DateTime, `url` String, `clicks` Int64') FORMAT CSV"), query);
+        assertTrue(query.contains("format_csv_delimiter=;"), query);
+        assertEquals(new String(body, StandardCharsets.UTF_8), content);
+        assertEquals(rows.get(), 2);
+    }
+
+    @Test
+    public void testJsonSkipsMapProperties()
+            throws Exception
+    {
+        String content = "{\"url\": \"/home\", \"clicks\": 1}\n";
+        AtomicLong rows = new AtomicLong();
+
+        List<SchemaField> fields = ImmutableList.<SchemaField>builder().addAll(FIELDS).add(new SchemaField("tags", MAP_STRING)).build();
+        copyEvent.loadJson("project", "pageview", fields, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), rows::addAndGet);
+
+        assertTrue(query.contains("FORMAT JSONEachRow"), query);
+        assertFalse(query.contains("tags"), query);
+        assertEquals(new String(body, StandardCharsets.UTF_8), content);
+        // the old versions of ClickHouse don't send the summary
+        assertEquals(rows.get(), 0);
+    }
+
+    @Test
+    public void testError()
+            throws Exception
+    {
+        status = 500;
+        response = "Code: 27, e.displayText() = DB::Exception: Cannot parse input\nStack trace:\n";
+
+        try {
+            copyEvent.loadCsv("project", "pageview", FIELDS, ',', new ByteArrayInputStream(new byte[0]), rows -> {});
+        }
+        catch (RakamException e) {
+            assertTrue(e.getMessage().contains("Code: 27"), e.getMessage());
+            assertFalse(e.getMessage().contains("Stack trace"), e.getMessage());
+            return;
+        }
+        throw new AssertionError("The error of ClickHouse is not thrown");
+    }
+}
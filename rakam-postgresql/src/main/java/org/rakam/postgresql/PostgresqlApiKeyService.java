@@ -15,8 +15,12 @@ public class PostgresqlApiKeyService extends JDBCApiKeyService {
         super(connectionPool);
     }
 
+    public PostgresqlApiKeyService(JDBCPoolDataSource connectionPool, long syncIntervalMillis) {
+        super(connectionPool, syncIntervalMillis);
+    }
+
     @Override
-    public void setup() {
+    protected void createTable() {
         try (Connection connection = connectionPool.getConnection()) {
             Statement statement = connection.createStatement();
             statement.execute("CREATE TABLE IF NOT EXISTS api_key (" +
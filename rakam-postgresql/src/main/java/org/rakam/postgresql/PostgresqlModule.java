@@ -10,6 +10,7 @@ import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
+import com.google.inject.multibindings.OptionalBinder;
 import com.google.inject.name.Names;
 import io.airlift.configuration.AbstractConfigurationAwareModule;
 import org.rakam.analysis.ApiKeyService;
@@ -26,19 +27,25 @@ import org.rakam.analysis.TimestampToEpochFunction;
 import org.rakam.analysis.metadata.JDBCQueryMetadata;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.collection.CountingEventStore;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.JDBCConfig;
+import org.rakam.plugin.CopyEvent;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.SystemEvents;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.postgresql.analysis.PostgresqlConfig;
+import org.rakam.postgresql.analysis.PostgresqlCopyEvent;
 import org.rakam.postgresql.analysis.PostgresqlEventStore;
 import org.rakam.postgresql.analysis.PostgresqlFunnelQueryExecutor;
+import org.rakam.postgresql.analysis.PostgresqlInMemoryFunnelQueryExecutor;
+import org.rakam.postgresql.analysis.PostgresqlInMemoryRetentionQueryExecutor;
 import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
 import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.analysis.PostgresqlPartitionManager;
 import org.rakam.postgresql.analysis.PostgresqlRetentionQueryExecutor;
 import org.rakam.postgresql.plugin.user.AbstractPostgresqlUserStorage;
 import org.rakam.postgresql.plugin.user.PostgresqlUserService;
@@ -48,6 +55,7 @@ import org.rakam.postgresql.report.PostgresqlPseudoContinuousQueryService;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.eventexplorer.EventExplorerConfig;
+import org.rakam.report.eventexplorer.OLAPCubeConfig;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.util.ConditionalModule;
@@ -56,9 +64,11 @@ import org.rakam.util.RakamException;
 import javax.inject.Inject;
 
 import java.net.URISyntaxException;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Set;
 
+import static io.airlift.configuration.ConfigBinder.configBinder;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static org.rakam.util.ValidationUtil.checkCollection;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
@@ -90,7 +100,10 @@ public class PostgresqlModule
 
         binder.bind(RealtimeService.class).to(PostgresqlRealtimeService.class);
 
-        binder.bind(EventStore.class).to(PostgresqlEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(PostgresqlPartitionManager.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).toProvider(CountingEventStore.provider(PostgresqlEventStore.class)).in(Scopes.SINGLETON);
+        OptionalBinder.newOptionalBinder(binder, CopyEvent.class)
+                .setBinding().to(PostgresqlCopyEvent.class).in(Scopes.SINGLETON);
         binder.bind(new TypeLiteral<List<AggregationType>>() {}).annotatedWith(RealtimeService.RealtimeAggregations.class).toInstance(ImmutableList.of(AggregationType.COUNT,
                 AggregationType.SUM,
                 AggregationType.MINIMUM,
@@ -109,7 +122,8 @@ public class PostgresqlModule
         }
 
         if (buildConfigObject(EventExplorerConfig.class).isEventExplorerEnabled()) {
-            binder.bind(EventExplorer.class).to(PostgresqlEventExplorer.class);
+            configBinder(binder).bindConfig(OLAPCubeConfig.class);
+            binder.bind(EventExplorer.class).to(PostgresqlEventExplorer.class).in(Scopes.SINGLETON);
         }
 
         if (buildConfigObject(PostgresqlConfig.class).isAutoIndexColumns()) {
@@ -126,11 +140,21 @@ public class PostgresqlModule
         UserPluginConfig userPluginConfig = buildConfigObject(UserPluginConfig.class);
 
         if (userPluginConfig.isFunnelAnalysisEnabled()) {
-            binder.bind(FunnelQueryExecutor.class).to(PostgresqlFunnelQueryExecutor.class);
+            if (userPluginConfig.isFunnelInMemoryEnabled()) {
+                binder.bind(FunnelQueryExecutor.class).to(PostgresqlInMemoryFunnelQueryExecutor.class);
+            }
+            else {
+                binder.bind(FunnelQueryExecutor.class).to(PostgresqlFunnelQueryExecutor.class);
+            }
         }
 
         if (userPluginConfig.isRetentionAnalysisEnabled()) {
-            binder.bind(RetentionQueryExecutor.class).to(PostgresqlRetentionQueryExecutor.class);
+            if (userPluginConfig.isRetentionInMemoryEnabled()) {
+                binder.bind(RetentionQueryExecutor.class).to(PostgresqlInMemoryRetentionQueryExecutor.class).in(Scopes.SINGLETON);
+            }
+            else {
+                binder.bind(RetentionQueryExecutor.class).to(PostgresqlRetentionQueryExecutor.class);
+            }
         }
     }
 
@@ -199,12 +223,14 @@ public class PostgresqlModule
     private static class CollectionFieldIndexerListener
     {
         private final PostgresqlQueryExecutor executor;
+        private final PostgresqlPartitionManager partitionManager;
         boolean postgresql9_5;
 
         @Inject
-        public CollectionFieldIndexerListener(PostgresqlQueryExecutor executor)
+        public CollectionFieldIndexerListener(PostgresqlQueryExecutor executor, PostgresqlPartitionManager partitionManager)
         {
             this.executor = executor;
+            this.partitionManager = partitionManager;
             try {
                 String version = executor.executeRawQuery("SHOW server_version")
                         .getResult().join().getResult().get(0).get(0).toString();
@@ -231,7 +257,20 @@ public class PostgresqlModule
 
         public void onCreateCollectionFields(String project, String collection, List<SchemaField> fields)
         {
+            boolean partitioned = partitionManager.isPartitioned(project, collection);
             for (SchemaField field : fields) {
+                if (partitioned) {
+                    try {
+                        partitionManager.createIndex(project, collection,
+                                String.format("%s_%s_%s_auto_index", project, collection, field.getName()),
+                                field.getName().equals("_time") ? "BRIN" : "BTREE", field.getName());
+                    }
+                    catch (SQLException e) {
+                        throw Throwables.propagate(e);
+                    }
+                    continue;
+                }
+
                 try {
                     executor.executeRawStatement(String.format("CREATE INDEX CONCURRENTLY %s %s ON %s.%s USING %s(%s)",
                             postgresql9_5 ? "IF NOT EXISTS" : "",
@@ -1,16 +1,19 @@
 package org.rakam.postgresql.analysis;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.util.CryptUtil;
 import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -19,26 +22,62 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
-import static java.lang.String.format;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static org.rakam.analysis.ApiKeyService.AccessKeyType.*;
 
+/**
+ * All the api keys are kept in memory and resolved without any database access. The keys are loaded when the
+ * service is set up and the other nodes pick the changes up by comparing a cheap fingerprint of the api_key table
+ * periodically and reloading the keys when it changes. The unknown keys are rejected from memory and trigger an
+ * asynchronous synchronization, the invalid keys are cached negatively so that random keys can't turn into database
+ * load.
+ */
 public class JDBCApiKeyService
         implements ApiKeyService
 {
+    private final static Logger LOGGER = Logger.get(JDBCApiKeyService.class);
+    private static final long SYNC_INTERVAL_MILLIS = 10000;
+    private static final long MISS_SYNC_INTERVAL_MILLIS = 1000;
+
     private final LoadingCache<String, List<Set<String>>> apiKeyCache;
     protected final JDBCPoolDataSource connectionPool;
-    private final LoadingCache<ApiKey, String> apiKeyReverseCache;
+    private final Cache<ApiKey, Boolean> invalidKeys;
+    private final ScheduledExecutorService syncExecutor;
+    // indexed by AccessKeyType.ordinal(), the maps are never modified after they're published
+    private volatile Map<String, String>[] keys;
+    private volatile String fingerprint;
+    private final AtomicLong lastMissSync;
 
     public JDBCApiKeyService(JDBCPoolDataSource connectionPool)
+    {
+        this(connectionPool, SYNC_INTERVAL_MILLIS);
+    }
+
+    protected JDBCApiKeyService(JDBCPoolDataSource connectionPool, long syncIntervalMillis)
     {
         this.connectionPool = connectionPool;
+        this.lastMissSync = new AtomicLong();
+        this.invalidKeys = CacheBuilder.newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .build();
+        this.syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("api-key-sync")
+                .setDaemon(true)
+                .build());
+        this.syncExecutor.scheduleWithFixedDelay(this::trySyncKeys, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
 
         apiKeyCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, List<Set<String>>>()
         {
@@ -51,31 +90,22 @@ public class JDBCApiKeyService
                 }
             }
         });
-
-        apiKeyReverseCache = CacheBuilder.newBuilder().build(new CacheLoader<ApiKey, String>()
-        {
-            @Override
-            public String load(ApiKey apiKey)
-                    throws Exception
-            {
-                try (Connection conn = connectionPool.getConnection()) {
-                    PreparedStatement ps = conn.prepareStatement(format("SELECT lower(project) FROM api_key WHERE %s = ?", apiKey.type.name()));
-                    ps.setString(1, apiKey.key);
-                    ResultSet resultSet = ps.executeQuery();
-                    if (!resultSet.next()) {
-                        throw new RakamException(apiKey.type.getKey() + " is invalid", FORBIDDEN);
-                    }
-                    return resultSet.getString(1);
-                }
-                catch (SQLException e) {
-                    throw Throwables.propagate(e);
-                }
-            }
-        });
     }
 
     @PostConstruct
     public void setup()
+    {
+        createTable();
+        syncKeys(true);
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        syncExecutor.shutdown();
+    }
+
+    protected void createTable()
     {
         try (Connection connection = connectionPool.getConnection()) {
             Statement statement = connection.createStatement();
@@ -117,6 +147,8 @@ public class JDBCApiKeyService
             throw Throwables.propagate(e);
         }
 
+        addKeys(project.toLowerCase(), masterKey, readKey, writeKey);
+
         return ProjectApiKeys.create(masterKey, readKey, writeKey);
     }
 
@@ -129,11 +161,108 @@ public class JDBCApiKeyService
         if (apiKey == null) {
             throw new RakamException(type.getKey() + " is missing", FORBIDDEN);
         }
+
+        Map<String, String>[] snapshot = keys;
+        if (snapshot == null) {
+            // the keys could not be loaded when the service is set up
+            requestSync();
+            throw new RakamException("Api keys are not loaded yet", SERVICE_UNAVAILABLE);
+        }
+
+        String project = snapshot[type.ordinal()].get(apiKey);
+        if (project != null) {
+            return project;
+        }
+
+        // The key may be created in an other node after the last synchronization, the unknown keys trigger
+        // at most one synchronization per second no matter how many different keys are sent. The request
+        // doesn't wait for the synchronization since it's handled in the event loop.
+        ApiKey key = new ApiKey(apiKey, type);
+        if (invalidKeys.getIfPresent(key) == null) {
+            long now = System.currentTimeMillis();
+            long last = lastMissSync.get();
+            if (now - last > MISS_SYNC_INTERVAL_MILLIS && lastMissSync.compareAndSet(last, now)) {
+                // the synchronization invalidates the key if it's found
+                invalidKeys.put(key, Boolean.TRUE);
+                requestSync();
+            }
+        }
+
+        throw new RakamException(type.getKey() + " is invalid", FORBIDDEN);
+    }
+
+    private void requestSync()
+    {
+        try {
+            syncExecutor.execute(this::trySyncKeys);
+        }
+        catch (RejectedExecutionException e) {
+            LOGGER.warn("The api keys are not synchronized since the service is stopped");
+        }
+    }
+
+    private void trySyncKeys()
+    {
         try {
-            return apiKeyReverseCache.getUnchecked(new ApiKey(apiKey, type));
+            syncKeys(false);
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while synchronizing api keys");
+        }
+    }
+
+    private synchronized void syncKeys(boolean force)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            // deletions change the count and insertions change the max id
+            ResultSet stats = conn.createStatement().executeQuery("SELECT count(*), max(id) FROM api_key");
+            stats.next();
+            String newFingerprint = stats.getLong(1) + ":" + stats.getLong(2);
+            if (!force && keys != null && newFingerprint.equals(fingerprint)) {
+                return;
+            }
+
+            Map<String, String>[] newKeys = Arrays.stream(AccessKeyType.values())
+                    .map(type -> new HashMap<String, String>()).toArray(Map[]::new);
+            Map<String, String> projects = new HashMap<>();
+
+            ResultSet resultSet = conn.createStatement()
+                    .executeQuery("SELECT lower(project), master_key, read_key, write_key FROM api_key");
+            while (resultSet.next()) {
+                String project = projects.computeIfAbsent(resultSet.getString(1), p -> p);
+                putKey(newKeys, MASTER_KEY, resultSet.getString(2), project);
+                putKey(newKeys, READ_KEY, resultSet.getString(3), project);
+                putKey(newKeys, WRITE_KEY, resultSet.getString(4), project);
+            }
+
+            keys = newKeys;
+            fingerprint = newFingerprint;
+            // the keys that are created after they're cached as invalid
+            invalidKeys.invalidateAll();
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private synchronized void addKeys(String project, String masterKey, String readKey, String writeKey)
+    {
+        Map<String, String>[] snapshot = keys;
+        if (snapshot == null) {
+            return;
         }
-        catch (UncheckedExecutionException e) {
-            throw Throwables.propagate(e.getCause());
+
+        Map<String, String>[] newKeys = Arrays.stream(snapshot).map(HashMap::new).toArray(Map[]::new);
+        putKey(newKeys, MASTER_KEY, masterKey, project);
+        putKey(newKeys, READ_KEY, readKey, project);
+        putKey(newKeys, WRITE_KEY, writeKey, project);
+        keys = newKeys;
+    }
+
+    private static void putKey(Map<String, String>[] keys, AccessKeyType type, String key, String project)
+    {
+        if (key != null) {
+            keys[type.ordinal()].put(key, project);
         }
     }
 
@@ -149,6 +278,10 @@ public class JDBCApiKeyService
         catch (SQLException e) {
             throw Throwables.propagate(e);
         }
+
+        if (keys != null) {
+            syncKeys(true);
+        }
     }
 
     @Override
@@ -162,6 +295,10 @@ public class JDBCApiKeyService
         catch (SQLException e) {
             throw Throwables.propagate(e);
         }
+
+        if (keys != null) {
+            syncKeys(true);
+        }
     }
 
     private List<Set<String>> getKeys(Connection conn, String project)
@@ -204,6 +341,9 @@ public class JDBCApiKeyService
     public void clearCache()
     {
         apiKeyCache.cleanUp();
+        invalidKeys.invalidateAll();
+        lastMissSync.set(0);
+        syncKeys(true);
     }
 
     public static final class ApiKey
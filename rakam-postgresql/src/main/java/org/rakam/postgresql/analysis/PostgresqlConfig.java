@@ -1,10 +1,14 @@
 package org.rakam.postgresql.analysis;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 
 public class PostgresqlConfig {
 
     private boolean autoIndexColumns = true;
+    private boolean partitionByTime = true;
+    private int partitionPremakeMonths = 2;
+    private int partitionRetentionMonths;
 
     @Config("postgresql.auto-index-columns")
     public PostgresqlConfig setAutoIndexColumns(boolean indexColumns)
@@ -16,4 +20,43 @@ public class PostgresqlConfig {
     public boolean isAutoIndexColumns() {
         return autoIndexColumns;
     }
+
+    @Config("postgresql.partition-by-time")
+    @ConfigDescription("Creates the collections as monthly range partitions of _time if the server supports declarative partitioning (Postgresql 11+)")
+    public PostgresqlConfig setPartitionByTime(boolean partitionByTime)
+    {
+        this.partitionByTime = partitionByTime;
+        return this;
+    }
+
+    public boolean isPartitionByTime()
+    {
+        return partitionByTime;
+    }
+
+    @Config("postgresql.partition.premake-months")
+    @ConfigDescription("Number of upcoming monthly partitions that are created in advance")
+    public PostgresqlConfig setPartitionPremakeMonths(int partitionPremakeMonths)
+    {
+        this.partitionPremakeMonths = partitionPremakeMonths;
+        return this;
+    }
+
+    public int getPartitionPremakeMonths()
+    {
+        return partitionPremakeMonths;
+    }
+
+    @Config("postgresql.partition.retention-months")
+    @ConfigDescription("The monthly partitions older than this value are dropped, 0 keeps the data forever in which case the events of the past months are stored in the default partition")
+    public PostgresqlConfig setPartitionRetentionMonths(int partitionRetentionMonths)
+    {
+        this.partitionRetentionMonths = partitionRetentionMonths;
+        return this;
+    }
+
+    public int getPartitionRetentionMonths()
+    {
+        return partitionRetentionMonths;
+    }
 }
@@ -0,0 +1,257 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.base.Throwables;
+import com.google.inject.name.Named;
+import org.apache.avro.generic.GenericRecord;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.RemoteImportConfig;
+import org.rakam.plugin.AbstractCopyEvent;
+import org.rakam.util.JsonHelper;
+
+import javax.inject.Inject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static org.rakam.postgresql.analysis.PostgresqlEventStore.toPostgresqlPrimitiveTypeName;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Loads the files with COPY FROM STDIN. The JSON objects are copied to a temporary table as jsonb values and
+ * inserted into the collection with a single INSERT INTO SELECT statement, the Avro records are written to COPY in
+ * CSV format. The rows that are not in the partition of their month are stored in the default partition until the
+ * partition is created.
+ */
+public class PostgresqlCopyEvent
+        extends AbstractCopyEvent
+{
+    private static final int CSV_BUFFER_SIZE = 1 << 16;
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private final JDBCPoolDataSource connectionPool;
+
+    @Inject
+    public PostgresqlCopyEvent(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, Metastore metastore,
+            ConfigManager configManager, RemoteImportConfig importConfig)
+    {
+        super(metastore, configManager, importConfig);
+        this.connectionPool = connectionPool;
+    }
+
+    @Override
+    protected void loadCsv(String project, String collection, List<SchemaField> fields, char separator, InputStream input, LongConsumer counter)
+            throws IOException
+    {
+        try (Connection connection = connectionPool.getConnection()) {
+            CopyManager copyManager = new CopyManager(connection.unwrap(BaseConnection.class));
+            long rows = copyManager.copyIn(format("COPY %s.%s (%s) FROM STDIN WITH (FORMAT csv, DELIMITER '%s')",
+                    project, checkCollection(collection), getColumns(fields), checkLiteral(String.valueOf(separator))), input);
+            counter.accept(rows);
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    protected void loadJson(String project, String collection, List<SchemaField> fields, InputStream input, LongConsumer counter)
+            throws IOException
+    {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TEMPORARY TABLE \"$copy\" (data jsonb) ON COMMIT DROP");
+
+                // the quote and delimiter characters can't be in a JSON document so each line is copied as it is
+                CopyManager copyManager = new CopyManager(connection.unwrap(BaseConnection.class));
+                copyManager.copyIn("COPY \"$copy\" (data) FROM STDIN WITH (FORMAT csv, QUOTE e'\\x01', DELIMITER e'\\x02')", input);
+
+                int rows = statement.executeUpdate(format("INSERT INTO %s.%s (%s) SELECT %s FROM \"$copy\"",
+                        project, checkCollection(collection), getColumns(fields),
+                        fields.stream().map(PostgresqlCopyEvent::getJsonExpression).collect(Collectors.joining(", "))));
+
+                connection.commit();
+                counter.accept(rows);
+            }
+            catch (Throwable e) {
+                connection.rollback();
+                throw e;
+            }
+            finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    protected void loadRecords(String project, String collection, List<SchemaField> fields, RecordReader reader, LongConsumer counter)
+            throws IOException
+    {
+        try (Connection connection = connectionPool.getConnection()) {
+            CopyManager copyManager = new CopyManager(connection.unwrap(BaseConnection.class));
+            CopyIn copyIn = copyManager.copyIn(format("COPY %s.%s (%s) FROM STDIN WITH (FORMAT csv)",
+                    project, checkCollection(collection), getColumns(fields)));
+
+            try {
+                StringBuilder buffer = new StringBuilder(CSV_BUFFER_SIZE);
+                long rows = 0;
+                GenericRecord record;
+                while ((record = reader.next()) != null) {
+                    for (int i = 0; i < fields.size(); i++) {
+                        if (i > 0) {
+                            buffer.append(',');
+                        }
+                        appendCsvValue(buffer, record.get(i), fields.get(i).getType());
+                    }
+                    buffer.append('\n');
+
+                    if (buffer.length() >= CSV_BUFFER_SIZE) {
+                        writeToCopy(copyIn, buffer);
+                    }
+                    if (++rows % PROGRESS_INTERVAL == 0) {
+                        counter.accept(PROGRESS_INTERVAL);
+                    }
+                }
+
+                writeToCopy(copyIn, buffer);
+                copyIn.endCopy();
+                counter.accept(rows % PROGRESS_INTERVAL);
+            }
+            finally {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static void writeToCopy(CopyIn copyIn, StringBuilder buffer)
+            throws SQLException
+    {
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        buffer.setLength(0);
+    }
+
+    private static String getColumns(List<SchemaField> fields)
+    {
+        return fields.stream().map(field -> checkTableColumn(field.getName())).collect(Collectors.joining(", "));
+    }
+
+    private static String getJsonExpression(SchemaField field)
+    {
+        String value = format("data->'%s'", checkLiteral(field.getName()));
+        String text = format("data->>'%s'", checkLiteral(field.getName()));
+
+        FieldType type = field.getType();
+        switch (type) {
+            case STRING:
+                return text;
+            case INTEGER:
+            case LONG:
+                // the numbers may have decimal part such as 1.0
+                return format("(%s)::numeric::%s", text, toPostgresqlPrimitiveTypeName(type));
+            case TIMESTAMP:
+                // the numbers are milliseconds since epoch, the same as the event collection API
+                return format("CASE WHEN jsonb_typeof(%1$s) = 'number' THEN to_timestamp((%2$s)::float8 / 1000) AT TIME ZONE 'UTC' " +
+                        "ELSE (%2$s)::timestamptz AT TIME ZONE 'UTC' END", value, text);
+            case BINARY:
+                return format("decode(%s, 'base64')", text);
+            default:
+                if (type.isArray()) {
+                    return format("CASE WHEN jsonb_typeof(%1$s) = 'array' THEN ARRAY(SELECT jsonb_array_elements_text(%1$s))::%2$s[] END",
+                            value, toPostgresqlPrimitiveTypeName(type.getArrayElementType()));
+                }
+                if (type.isMap()) {
+                    return format("CASE WHEN jsonb_typeof(%1$s) = 'object' THEN %1$s END", value);
+                }
+                return format("(%s)::%s", text, toPostgresqlPrimitiveTypeName(type));
+        }
+    }
+
+    private static void appendCsvValue(StringBuilder buffer, Object value, FieldType type)
+    {
+        if (value == null) {
+            return;
+        }
+
+        switch (type) {
+            case STRING:
+                appendQuoted(buffer, value.toString());
+                break;
+            case TIMESTAMP:
+                buffer.append(Instant.ofEpochMilli(((Number) value).longValue()).toString());
+                break;
+            case DATE:
+                buffer.append(LocalDate.ofEpochDay(((Number) value).intValue()).toString());
+                break;
+            case TIME:
+                buffer.append(LocalTime.ofSecondOfDay(((Number) value).intValue()).toString());
+                break;
+            case BINARY:
+                StringBuilder hex = new StringBuilder("\\x");
+                for (byte b : (byte[]) value) {
+                    hex.append(String.format("%02x", b));
+                }
+                buffer.append(hex);
+                break;
+            default:
+                if (type.isArray()) {
+                    StringBuilder array = new StringBuilder("{");
+                    List list = (List) value;
+                    for (int i = 0; i < list.size(); i++) {
+                        if (i > 0) {
+                            array.append(',');
+                        }
+                        Object item = list.get(i);
+                        if (item == null) {
+                            array.append("NULL");
+                        }
+                        else {
+                            StringBuilder element = new StringBuilder();
+                            appendCsvValue(element, item, type.getArrayElementType());
+                            array.append('"').append(element.toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                        }
+                    }
+                    appendQuoted(buffer, array.append('}').toString());
+                }
+                else if (type.isMap()) {
+                    appendQuoted(buffer, JsonHelper.encode(value));
+                }
+                else {
+                    buffer.append(value);
+                }
+        }
+    }
+
+    private static void appendQuoted(StringBuilder buffer, String value)
+    {
+        buffer.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+}
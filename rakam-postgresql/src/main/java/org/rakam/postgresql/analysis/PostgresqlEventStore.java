@@ -1,6 +1,7 @@
 package org.rakam.postgresql.analysis;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import io.airlift.log.Logger;
@@ -51,19 +52,27 @@ public class PostgresqlEventStore
 
     private final Set<String> sourceFields;
     private final JDBCPoolDataSource connectionPool;
+    private final PostgresqlPartitionManager partitionManager;
     public static final Calendar UTC_CALENDAR = Calendar.getInstance(TimeZone.getTimeZone(ZoneId.of("UTC")));
 
+    public PostgresqlEventStore(JDBCPoolDataSource connectionPool, FieldDependency fieldDependency)
+    {
+        this(connectionPool, fieldDependency, new PostgresqlPartitionManager(connectionPool, new PostgresqlConfig()));
+    }
+
     @Inject
-    public PostgresqlEventStore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, FieldDependency fieldDependency)
+    public PostgresqlEventStore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, FieldDependency fieldDependency, PostgresqlPartitionManager partitionManager)
     {
         this.connectionPool = connectionPool;
         this.sourceFields = fieldDependency.dependentFields.keySet();
+        this.partitionManager = partitionManager;
     }
 
     @Override
     public void store(Event event)
     {
         GenericRecord record = event.properties();
+        partitionManager.ensurePartitions(event.project(), event.collection(), ImmutableList.of(event));
         try (Connection connection = connectionPool.getConnection()) {
             Schema schema = event.properties().getSchema();
             PreparedStatement ps = connection.prepareStatement(getQuery(event.project(), event.collection(), schema));
@@ -81,6 +90,10 @@ public class PostgresqlEventStore
         Map<String, List<Event>> groupedByCollection = events.stream()
                 .collect(Collectors.groupingBy(Event::collection));
 
+        for (Map.Entry<String, List<Event>> entry : groupedByCollection.entrySet()) {
+            partitionManager.ensurePartitions(entry.getValue().get(0).project(), entry.getKey(), entry.getValue());
+        }
+
         Map<String, Integer> successfulCollections = new HashMap<>(groupedByCollection.size());
         try (Connection connection = connectionPool.getConnection()) {
             for (Map.Entry<String, List<Event>> entry : groupedByCollection.entrySet()) {
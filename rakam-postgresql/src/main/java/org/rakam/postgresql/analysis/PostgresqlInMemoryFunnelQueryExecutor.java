@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rakam.postgresql.analysis;
+
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.google.common.base.Throwables;
+import org.rakam.analysis.InMemoryFunnelQueryExecutor;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.util.ValidationUtil;
+
+import javax.inject.Inject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.facebook.presto.sql.RakamExpressionFormatter.formatIdentifier;
+import static java.lang.String.format;
+import static org.rakam.postgresql.analysis.PostgresqlEventStore.UTC_CALENDAR;
+import static org.rakam.util.DateTimeUtils.TIMESTAMP_FORMATTER;
+
+/**
+ * Streams the events of the funnel steps with a cursor, Postgresql only filters the events and the funnel
+ * is computed by {@link InMemoryFunnelQueryExecutor}.
+ */
+public class PostgresqlInMemoryFunnelQueryExecutor
+        extends InMemoryFunnelQueryExecutor
+{
+    private static final int FETCH_SIZE = 10000;
+
+    private final PostgresqlQueryExecutor executor;
+
+    @Inject
+    public PostgresqlInMemoryFunnelQueryExecutor(Metastore metastore, PostgresqlQueryExecutor executor, UserPluginConfig config)
+    {
+        super(metastore, config.getFunnelInMemoryMaxEvents());
+        this.executor = executor;
+    }
+
+    @Override
+    public void scan(String project, List<FunnelStep> steps, Optional<String> dimension, Map<String, List<SchemaField>> collections, Instant start, Instant end, FunnelEventConsumer consumer)
+    {
+        String startTimestamp = TIMESTAMP_FORMATTER.format(start);
+        String endTimestamp = TIMESTAMP_FORMATTER.format(end);
+
+        String query = IntStream.range(0, steps.size())
+                .mapToObj(i -> convertStep(project, i, steps.get(i), dimension,
+                        testDeviceIdExists(steps.get(i), collections), startTimestamp, endTimestamp))
+                .collect(Collectors.joining(" UNION ALL "));
+
+        try (Connection connection = executor.getConnection()) {
+            // Postgresql only uses a cursor for the result set when the connection is not in auto-commit mode
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.setFetchSize(FETCH_SIZE);
+                ResultSet resultSet = statement.executeQuery(query);
+                while (resultSet.next()) {
+                    Timestamp time = resultSet.getTimestamp(4, UTC_CALENDAR);
+                    consumer.accept(resultSet.getString(1), resultSet.getString(2), resultSet.getInt(3), time.getTime());
+                }
+            }
+            finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private String convertStep(String project, int idx, FunnelStep funnelStep, Optional<String> dimension, boolean deviceIdExists, String start, String end)
+    {
+        String table = project + "." + ValidationUtil.checkCollection(funnelStep.getCollection());
+        String alias = "step" + idx;
+        Optional<String> filterExp = funnelStep.getExpression().map(value -> RakamSqlFormatter.formatExpression(value,
+                name -> name.getParts().stream().map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")),
+                name -> formatIdentifier(alias, '"') + "." + name.getParts().stream()
+                        .map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")), '"'));
+
+        String connector = deviceIdExists ? format("coalesce(cast(%s._user as varchar), %s._device_id)", alias, alias) : format("cast(%s._user as varchar)", alias);
+
+        return format("SELECT %s, %s, %d, %s._time FROM %s %s WHERE %s._time between timestamp '%s' and timestamp '%s' AND %s IS NOT NULL %s",
+                dimension.map(ValidationUtil::checkTableColumn).map(v -> format("cast(%s.%s as varchar)", alias, v)).orElse("null"),
+                connector, idx, alias, table, alias, alias, start, end, connector,
+                filterExp.map(v -> "AND (" + v + ")").orElse(""));
+    }
+}
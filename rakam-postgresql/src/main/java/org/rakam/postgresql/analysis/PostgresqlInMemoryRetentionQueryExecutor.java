@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rakam.postgresql.analysis;
+
+import com.facebook.presto.sql.tree.Expression;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import org.rakam.analysis.InMemoryRetentionQueryExecutor;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+
+import javax.inject.Inject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Optional;
+
+import static com.facebook.presto.sql.RakamSqlFormatter.formatExpression;
+import static java.lang.String.format;
+import static org.rakam.util.DateTimeUtils.TIMESTAMP_FORMATTER;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Postgresql only returns the distinct active users of the days, the retention is calculated by
+ * {@link InMemoryRetentionQueryExecutor}.
+ */
+public class PostgresqlInMemoryRetentionQueryExecutor
+        extends InMemoryRetentionQueryExecutor
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlInMemoryRetentionQueryExecutor.class);
+    private static final int FETCH_SIZE = 10000;
+
+    private final PostgresqlQueryExecutor executor;
+
+    @Inject
+    public PostgresqlInMemoryRetentionQueryExecutor(Metastore metastore, PostgresqlQueryExecutor executor)
+    {
+        super(metastore);
+        this.executor = executor;
+    }
+
+    @Override
+    public void scan(String project, String collection, boolean deviceIdExists, Optional<Expression> filter, Optional<String> dimension,
+            LocalDate startDate, LocalDate endDate, ZoneId zoneId, UserSetConsumer consumer)
+    {
+        String connector = deviceIdExists ? format("coalesce(cast(%s as varchar), _device_id)", CONNECTOR_FIELD) : format("cast(%s as varchar)", CONNECTOR_FIELD);
+        // the timestamps are stored in UTC
+        String day = format("cast(_time at time zone 'UTC' at time zone %s as date)", getTimeZone(zoneId));
+
+        String query = format("select distinct %s, %s, %s from %s where _time >= timestamp '%s' and _time < timestamp '%s' and %s is not null %s",
+                dimension.map(v -> format("cast(%s as varchar)", checkTableColumn(v, "dimension", '"'))).orElse("null"),
+                connector, day,
+                project + "." + checkCollection(collection),
+                TIMESTAMP_FORMATTER.format(startDate.atStartOfDay(zoneId)),
+                TIMESTAMP_FORMATTER.format(endDate.plusDays(1).atStartOfDay(zoneId)),
+                connector,
+                filter.map(v -> "and " + formatExpression(v, reference -> {
+                    throw new UnsupportedOperationException();
+                }, '"')).orElse(""));
+
+        try (Connection connection = executor.getConnection()) {
+            // Postgresql only uses a cursor for the result set when the connection is not in auto-commit mode
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.setFetchSize(FETCH_SIZE);
+                // the distinct tuples are calculated before the first row is returned so the statement is cancelled
+                consumer.setCancelHandler(() -> {
+                    try {
+                        statement.cancel();
+                    }
+                    catch (SQLException e) {
+                        LOGGER.warn(e, "Unable to cancel the retention scan");
+                    }
+                });
+                ResultSet resultSet = statement.executeQuery(query);
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getString(1), resultSet.getString(2), resultSet.getDate(3).toLocalDate());
+                }
+            }
+            finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static String getTimeZone(ZoneId zoneId)
+    {
+        if (zoneId instanceof ZoneOffset) {
+            // the POSIX-style offsets in Postgresql have the opposite sign so the offset is passed as an interval
+            return format("interval '%d seconds'", ((ZoneOffset) zoneId).getTotalSeconds());
+        }
+        return "'" + zoneId.getId() + "'";
+    }
+}
@@ -72,6 +72,7 @@ public class PostgresqlMaterializedViewService extends MaterializedViewService {
             throw new RakamException("Couldn't created table: " + result.getError().toString(), BAD_REQUEST);
         }
         database.createMaterializedView(project, materializedView);
+        notifyChange(project);
         return CompletableFuture.completedFuture(null);
     }
 
@@ -79,6 +80,7 @@ public class PostgresqlMaterializedViewService extends MaterializedViewService {
     public CompletableFuture<QueryResult> delete(String project, String name) {
         MaterializedView materializedView = database.getMaterializedView(project, name);
         database.deleteMaterializedView(project, name);
+        notifyChange(project);
         return queryExecutor.executeRawStatement(format("DROP MATERIALIZED VIEW \"%s\".\"%s%s\"",
                 project, MATERIALIZED_VIEW_PREFIX, materializedView.tableName)).getResult();
     }
@@ -54,12 +54,19 @@ public class PostgresqlMetastore
     private LoadingCache<ProjectCollection, List<SchemaField>> schemaCache;
     private LoadingCache<String, Set<String>> collectionCache;
     private final JDBCPoolDataSource connectionPool;
+    private final PostgresqlPartitionManager partitionManager;
+
+    public PostgresqlMetastore(JDBCPoolDataSource connectionPool, EventBus eventBus)
+    {
+        this(connectionPool, eventBus, new PostgresqlPartitionManager(connectionPool, new PostgresqlConfig()));
+    }
 
     @Inject
-    public PostgresqlMetastore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, EventBus eventBus)
+    public PostgresqlMetastore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, EventBus eventBus, PostgresqlPartitionManager partitionManager)
     {
         super(eventBus);
         this.connectionPool = connectionPool;
+        this.partitionManager = partitionManager;
 
         schemaCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, List<SchemaField>>()
         {
@@ -89,7 +96,7 @@ public class PostgresqlMetastore
                                             "FROM pg_catalog.pg_class c\n" +
                                             "    JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace\n" +
                                             "    LEFT JOIN pg_inherits i ON (i.inhrelid = c.oid)\n" +
-                                            "    WHERE n.nspname = '%s' and c.relkind IN ('r', '') and i.inhrelid is null\n" +
+                                            "    WHERE n.nspname = '%s' and c.relkind IN ('r', 'p', '') and i.inhrelid is null\n" +
                                             "    AND n.nspname <> 'pg_catalog'\n" +
                                             "    AND n.nspname <> 'information_schema'\n" +
                                             "    AND n.nspname !~ '^pg_toast'",
@@ -193,7 +200,7 @@ public class PostgresqlMetastore
                         "    JOIN pg_type t ON (a.atttypid = t.oid)\n" +
                         "    WHERE n.nspname = '%s' and c.relname = '%s' " +
                         "    AND a.attname != '$server_time'\n" +
-                        "    AND c.relkind IN ('r', '') and i.inhrelid IS NULL\n" +
+                        "    AND c.relkind IN ('r', 'p', '') and i.inhrelid IS NULL\n" +
                         "    AND n.nspname <> 'pg_catalog'\n" +
                         "    AND n.nspname <> 'information_schema'\n" +
                         "    AND n.nspname !~ '^pg_toast'     \n" +
@@ -227,7 +234,7 @@ public class PostgresqlMetastore
                         "    LEFT JOIN pg_inherits i ON (i.inhrelid = c.oid)\n" +
                         "    JOIN pg_attribute a ON (a.attrelid=c.oid)\n" +
                         "    JOIN pg_type t ON (a.atttypid = t.oid)\n" +
-                        "    WHERE n.nspname = '%s' and c.relkind IN ('r', '') and i.inhrelid is null\n" +
+                        "    WHERE n.nspname = '%s' and c.relkind IN ('r', 'p', '') and i.inhrelid is null\n" +
                         "    AND n.nspname <> 'pg_catalog'\n" +
                         "    AND n.nspname <> 'information_schema'\n" +
                         "    AND n.nspname !~ '^pg_toast'     \n" +
@@ -257,6 +264,7 @@ public class PostgresqlMetastore
         List<SchemaField> currentFields = new ArrayList<>();
         String query;
         Runnable task;
+        boolean partitioned = false;
 
         if (collection.equals("_users")) {
             throw new RakamException("_users is reserved and cannot be used as collection name", BAD_REQUEST);
@@ -264,12 +272,14 @@ public class PostgresqlMetastore
 
         try (Connection connection = connectionPool.getConnection()) {
             connection.setAutoCommit(false);
-            ResultSet columns = connection.getMetaData().getColumns("", project, collection.replaceAll("%", "\\\\%").replaceAll("_", "\\\\_"), null);
+            // the JDBC metadata doesn't return the columns of partitioned tables
+            List<SchemaField> columns = getSchema(connection, project, collection);
             HashSet<String> strings = new HashSet<>();
-            while (columns.next()) {
-                String colName = columns.getString("COLUMN_NAME");
-                strings.add(colName);
-                currentFields.add(new SchemaField(colName, fromSql(columns.getInt("DATA_TYPE"), columns.getString("TYPE_NAME"))));
+            if (columns != null) {
+                for (SchemaField column : columns) {
+                    strings.add(column.getName());
+                    currentFields.add(column);
+                }
             }
 
             List<SchemaField> schemaFields = fields.stream().filter(f -> !strings.contains(f.getName())).collect(Collectors.toList());
@@ -294,7 +304,9 @@ public class PostgresqlMetastore
                 if (queryEnd.isEmpty()) {
                     return currentFields;
                 }
-                query = format("CREATE TABLE \"%s\".%s (%s)", project, checkCollection(collection), queryEnd);
+                partitioned = partitionManager.canPartition(collection, schemaFields);
+                query = format("CREATE TABLE \"%s\".%s (%s)%s", project, checkCollection(collection), queryEnd,
+                        partitioned ? " PARTITION BY RANGE (_time)" : "");
                 task = () -> super.onCreateCollection(project, collection, schemaFields);
             }
             else {
@@ -313,6 +325,9 @@ public class PostgresqlMetastore
             }
 
             connection.createStatement().execute(query);
+            if (partitioned) {
+                partitionManager.createPartitions(connection, project, collection);
+            }
             connection.commit();
             connection.setAutoCommit(true);
             schemaCache.put(new ProjectCollection(project, collection), currentFields);
@@ -339,8 +354,9 @@ public class PostgresqlMetastore
         return currentFields;
     }
 
+    // the estimated row counts of the tables, it's used until the project is counted by the ingestion counter
     @Override
-    public Map<String, Stats> getStats(Collection<String> projects)
+    protected Map<String, Stats> getStoredStats(Collection<String> projects)
     {
         if (projects.isEmpty()) {
             return ImmutableMap.of();
@@ -0,0 +1,450 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.ProjectCollection;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Maintains the collections that are created as monthly range partitions of _time. The partitions of the upcoming
+ * months are created in advance, the partitions of the past months in the retention are created before their events
+ * are stored and the partitions that are older than the retention are dropped. The events that don't have _time or
+ * are out of the retention window are stored in the default partition.
+ */
+public class PostgresqlPartitionManager
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlPartitionManager.class);
+
+    private static final DateTimeFormatter SUFFIX_FORMAT = DateTimeFormatter.ofPattern("uuuuMM");
+    private static final String DEFAULT_SUFFIX = "default";
+    private static final String DUPLICATE_TABLE = "42P07";
+    // partition and index names must fit in the 63 byte identifier limit of Postgresql
+    private static final int MAX_COLLECTION_LENGTH = 46;
+    private static final String TIME_COLUMN = "_time";
+
+    private final JDBCPoolDataSource connectionPool;
+    private final PostgresqlConfig config;
+    private final LoadingCache<ProjectCollection, Optional<Set<YearMonth>>> partitions;
+    private ScheduledExecutorService maintenanceExecutor;
+    private volatile Boolean supported;
+
+    @Inject
+    public PostgresqlPartitionManager(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, PostgresqlConfig config)
+    {
+        this.connectionPool = connectionPool;
+        this.config = config;
+        this.partitions = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, Optional<Set<YearMonth>>>()
+        {
+            @Override
+            public Optional<Set<YearMonth>> load(ProjectCollection key)
+                    throws Exception
+            {
+                if (!isSupported()) {
+                    return Optional.empty();
+                }
+                return Optional.ofNullable(loadPartitions(key).get(key));
+            }
+        });
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        if (!isSupported()) {
+            return;
+        }
+
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("postgresql-partition-maintenance")
+                .setDaemon(true)
+                .build());
+        maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                maintain();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while maintaining the partitions of the collections");
+            }
+        }, 0, 1, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdownNow();
+        }
+    }
+
+    public boolean canPartition(String collection, Collection<SchemaField> fields)
+    {
+        return collection.getBytes(UTF_8).length <= MAX_COLLECTION_LENGTH
+                && fields.stream().anyMatch(f -> f.getName().equals(TIME_COLUMN) && f.getType() == FieldType.TIMESTAMP)
+                && isSupported();
+    }
+
+    public boolean isPartitioned(String project, String collection)
+    {
+        return getPartitions(project, collection).isPresent();
+    }
+
+    /**
+     * Creates the default partition, the partitions of the upcoming months and the BRIN index of the partitioned
+     * collection in the transaction of the connection.
+     */
+    public void createPartitions(Connection connection, String project, String collection)
+            throws SQLException
+    {
+        Statement statement = connection.createStatement();
+        statement.execute(format("CREATE TABLE %s PARTITION OF %s DEFAULT",
+                getTable(project, collection, DEFAULT_SUFFIX), getTable(project, collection, null)));
+
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        for (int i = 0; i <= config.getPartitionPremakeMonths(); i++) {
+            YearMonth month = now.plusMonths(i);
+            statement.execute(format("CREATE TABLE %s PARTITION OF %s FOR VALUES FROM (%s) TO (%s)",
+                    getTable(project, collection, month.format(SUFFIX_FORMAT)), getTable(project, collection, null),
+                    getLowerBound(month), getLowerBound(month.plusMonths(1))));
+        }
+
+        // the name is the same with the auto index of _time so that it's not created twice
+        statement.execute(format("CREATE INDEX %s ON %s USING BRIN(%s)",
+                checkCollection(format("%s_%s_%s_auto_index", project, collection, TIME_COLUMN)),
+                getTable(project, collection, null), TIME_COLUMN));
+    }
+
+    /**
+     * Creates the partitions of the months of the events if they don't exist and the months are in the retention
+     * window, see {@link #isInPartitionWindow}. The other events are stored in the default partition, their partitions
+     * are created by the maintenance task when the months enter the window.
+     */
+    public void ensurePartitions(String project, String collection, Collection<Event> events)
+    {
+        Optional<Set<YearMonth>> existing = getPartitions(project, collection);
+        if (!existing.isPresent()) {
+            return;
+        }
+
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        Set<YearMonth> missing = null;
+        for (Event event : events) {
+            Object time = event.properties().get(TIME_COLUMN);
+            // the negative timestamps are stored as null
+            if (!(time instanceof Number) || ((Number) time).longValue() < 0) {
+                continue;
+            }
+
+            YearMonth month = YearMonth.from(Instant.ofEpochMilli(((Number) time).longValue()).atZone(ZoneOffset.UTC));
+            if (!existing.get().contains(month)
+                    && isInPartitionWindow(month, now, config.getPartitionPremakeMonths(), config.getPartitionRetentionMonths())) {
+                if (missing == null) {
+                    missing = new HashSet<>();
+                }
+                missing.add(month);
+            }
+        }
+
+        if (missing != null) {
+            for (YearMonth month : missing) {
+                createPartition(project, collection, month);
+                existing.get().add(month);
+            }
+        }
+    }
+
+    /**
+     * The months that have their own partitions, the upcoming months and the past months in the retention.
+     * The past months are not partitioned if there is no retention since creating a partition locks the collection
+     * and moves the events of the month from the default partition.
+     */
+    static boolean isInPartitionWindow(YearMonth month, YearMonth now, int premakeMonths, int retentionMonths)
+    {
+        YearMonth first = retentionMonths > 0 ? now.minusMonths(retentionMonths) : now;
+        return !month.isBefore(first) && !month.isAfter(now.plusMonths(premakeMonths));
+    }
+
+    /**
+     * The index of a partitioned collection can't be created concurrently so it's created on the parent table
+     * without building it, then it's built concurrently on each partition and the partition indexes are attached to it.
+     * The parent index is valid only after the indexes of all the partitions are attached.
+     */
+    public void createIndex(String project, String collection, String name, String method, String column)
+            throws SQLException
+    {
+        // the partitions are read from the catalog since an other node may have created new ones
+        ProjectCollection key = new ProjectCollection(project, collection);
+        Set<YearMonth> months = loadPartitions(key).get(key);
+        if (months == null) {
+            throw new IllegalStateException(format("%s.%s is not partitioned", project, collection));
+        }
+
+        String index = checkCollection(name);
+        try (Connection connection = connectionPool.getConnection();
+                Statement statement = connection.createStatement()) {
+            if (Boolean.TRUE.equals(isValidIndex(statement, project, index))) {
+                return;
+            }
+
+            statement.execute(format("CREATE INDEX IF NOT EXISTS %s ON ONLY %s USING %s(%s)",
+                    index, getTable(project, collection, null), method, checkTableColumn(column)));
+
+            Set<String> suffixes = new HashSet<>();
+            suffixes.add(DEFAULT_SUFFIX);
+            months.forEach(month -> suffixes.add(month.format(SUFFIX_FORMAT)));
+
+            for (String suffix : suffixes) {
+                String partitionIndex = checkCollection(format("%s$%s_%08x", collection, suffix, name.hashCode()));
+                // the indexes that are created concurrently are left invalid if the creation fails
+                if (Boolean.FALSE.equals(isValidIndex(statement, project, partitionIndex))) {
+                    statement.execute(format("DROP INDEX CONCURRENTLY %s", getIndex(project, partitionIndex)));
+                }
+                statement.execute(format("CREATE INDEX CONCURRENTLY IF NOT EXISTS %s ON %s USING %s(%s)",
+                        partitionIndex, getTable(project, collection, suffix), method, checkTableColumn(column)));
+                // attaching an index that is already attached is a no-op
+                statement.execute(format("ALTER INDEX %s ATTACH PARTITION %s",
+                        getIndex(project, index), getIndex(project, partitionIndex)));
+            }
+
+            if (!Boolean.TRUE.equals(isValidIndex(statement, project, index))) {
+                throw new IllegalStateException(format("The index %s of %s.%s is not valid, the indexes of some partitions are not attached",
+                        index, project, collection));
+            }
+        }
+    }
+
+    private static Boolean isValidIndex(Statement statement, String project, String index)
+            throws SQLException
+    {
+        try (ResultSet resultSet = statement.executeQuery(format("SELECT indisvalid FROM pg_catalog.pg_index WHERE indexrelid = to_regclass('%s')",
+                getIndex(project, index).replaceAll("'", "''")))) {
+            return resultSet.next() ? resultSet.getBoolean(1) : null;
+        }
+    }
+
+    /**
+     * Creates the partitions of the upcoming months and drops the partitions that are older than the retention.
+     */
+    public void maintain()
+    {
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        Optional<YearMonth> expiration = config.getPartitionRetentionMonths() > 0 ?
+                Optional.of(now.minusMonths(config.getPartitionRetentionMonths())) : Optional.empty();
+
+        Map<ProjectCollection, Set<YearMonth>> collections;
+        try {
+            collections = loadPartitions(null);
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+
+        for (Map.Entry<ProjectCollection, Set<YearMonth>> entry : collections.entrySet()) {
+            ProjectCollection key = entry.getKey();
+            Set<YearMonth> months = entry.getValue();
+
+            for (int i = 0; i <= config.getPartitionPremakeMonths(); i++) {
+                YearMonth month = now.plusMonths(i);
+                if (!months.contains(month)) {
+                    createPartition(key.project, key.collection, month);
+                    months.add(month);
+                }
+            }
+
+            if (expiration.isPresent()) {
+                for (YearMonth month : new HashSet<>(months)) {
+                    if (month.isBefore(expiration.get())) {
+                        dropPartition(key.project, key.collection, month);
+                        months.remove(month);
+                    }
+                }
+            }
+
+            partitions.put(key, Optional.of(months));
+        }
+    }
+
+    private void createPartition(String project, String collection, YearMonth month)
+    {
+        String parent = getTable(project, collection, null);
+        String partition = getTable(project, collection, month.format(SUFFIX_FORMAT));
+
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                // the events of the month might be stored in the default partition before the partition is created,
+                // they're moved to the new partition before it's attached. the inserts wait until it's attached.
+                statement.execute(format("LOCK TABLE %s IN SHARE ROW EXCLUSIVE MODE", parent));
+                statement.execute(format("CREATE TABLE %s (LIKE %s INCLUDING DEFAULTS)", partition, parent));
+                statement.execute(format("WITH moved AS (DELETE FROM %s WHERE %s >= %s AND %s < %s RETURNING *) INSERT INTO %s SELECT * FROM moved",
+                        getTable(project, collection, DEFAULT_SUFFIX),
+                        TIME_COLUMN, getLowerBound(month), TIME_COLUMN, getLowerBound(month.plusMonths(1)), partition));
+                statement.execute(format("ALTER TABLE %s ATTACH PARTITION %s FOR VALUES FROM (%s) TO (%s)",
+                        parent, partition, getLowerBound(month), getLowerBound(month.plusMonths(1))));
+                connection.commit();
+            }
+            catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+            finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            // the partition is created by an other node
+            if (!DUPLICATE_TABLE.equals(e.getSQLState())) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private void dropPartition(String project, String collection, YearMonth month)
+    {
+        try (Connection connection = connectionPool.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute(format("DROP TABLE IF EXISTS %s",
+                    getTable(project, collection, month.format(SUFFIX_FORMAT))));
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+        LOGGER.info("Dropped the partition %s of %s.%s", month, project, collection);
+    }
+
+    private Optional<Set<YearMonth>> getPartitions(String project, String collection)
+    {
+        try {
+            return partitions.get(new ProjectCollection(project, collection));
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    // only the partitioned tables that have a default partition are created by this class
+    private Map<ProjectCollection, Set<YearMonth>> loadPartitions(ProjectCollection filter)
+            throws SQLException
+    {
+        try (Connection connection = connectionPool.getConnection()) {
+            PreparedStatement ps = connection.prepareStatement("SELECT n.nspname, p.relname, c.relname\n" +
+                    "FROM pg_catalog.pg_inherits i\n" +
+                    "    JOIN pg_catalog.pg_class c ON (c.oid = i.inhrelid)\n" +
+                    "    JOIN pg_catalog.pg_class p ON (p.oid = i.inhparent)\n" +
+                    "    JOIN pg_catalog.pg_namespace n ON (n.oid = p.relnamespace)\n" +
+                    "    WHERE p.relkind = 'p'" +
+                    (filter != null ? " AND n.nspname = ? AND p.relname = ?" : ""));
+            if (filter != null) {
+                ps.setString(1, filter.project);
+                ps.setString(2, filter.collection);
+            }
+
+            ResultSet resultSet = ps.executeQuery();
+            Map<ProjectCollection, Set<YearMonth>> months = new HashMap<>();
+            Set<ProjectCollection> partitioned = new HashSet<>();
+            while (resultSet.next()) {
+                ProjectCollection key = new ProjectCollection(resultSet.getString(1), resultSet.getString(2));
+                String partition = resultSet.getString(3);
+                if (!partition.startsWith(key.collection + "$")) {
+                    continue;
+                }
+
+                String suffix = partition.substring(key.collection.length() + 1);
+                if (suffix.equals(DEFAULT_SUFFIX)) {
+                    partitioned.add(key);
+                    continue;
+                }
+
+                try {
+                    YearMonth month = YearMonth.parse(suffix, SUFFIX_FORMAT);
+                    months.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(month);
+                }
+                catch (DateTimeParseException e) {
+                    continue;
+                }
+            }
+
+            Map<ProjectCollection, Set<YearMonth>> map = new HashMap<>();
+            for (ProjectCollection key : partitioned) {
+                map.put(key, months.getOrDefault(key, ConcurrentHashMap.newKeySet()));
+            }
+            return map;
+        }
+    }
+
+    private boolean isSupported()
+    {
+        Boolean value = supported;
+        if (value == null) {
+            if (!config.isPartitionByTime()) {
+                value = false;
+            }
+            else {
+                // default partitions and partitioned indexes came in 11 version
+                try (Connection connection = connectionPool.getConnection()) {
+                    ResultSet resultSet = connection.createStatement().executeQuery("SHOW server_version_num");
+                    value = resultSet.next() && resultSet.getInt(1) >= 110000;
+                }
+                catch (SQLException e) {
+                    LOGGER.warn(e, "Unable to get the version of Postgresql, the collections will not be partitioned");
+                    value = false;
+                }
+            }
+            supported = value;
+        }
+        return value;
+    }
+
+    private static String getLowerBound(YearMonth month)
+    {
+        return format("'%s'", month.atDay(1));
+    }
+
+    private static String getIndex(String project, String index)
+    {
+        return format("\"%s\".%s", project, index);
+    }
+
+    private static String getTable(String project, String collection, String suffix)
+    {
+        return format("\"%s\".%s", project, checkCollection(suffix == null ? collection : collection + "$" + suffix));
+    }
+}
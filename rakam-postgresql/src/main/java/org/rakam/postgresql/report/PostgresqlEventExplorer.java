@@ -17,10 +17,12 @@ import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.metadata.Metastore;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.report.eventexplorer.AbstractEventExplorer;
+import org.rakam.report.eventexplorer.OLAPCubeConfig;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.util.RakamException;
 
@@ -60,11 +62,17 @@ public class PostgresqlEventExplorer
             .build();
     private final QueryExecutorService executorService;
 
+    public PostgresqlEventExplorer(QueryExecutorService service, MaterializedViewService materializedViewService,
+            ContinuousQueryService continuousQueryService, Metastore metastore)
+    {
+        this(service, materializedViewService, continuousQueryService, metastore, new OLAPCubeConfig());
+    }
+
     @Inject
     public PostgresqlEventExplorer(QueryExecutorService service, MaterializedViewService materializedViewService,
-            ContinuousQueryService continuousQueryService)
+            ContinuousQueryService continuousQueryService, Metastore metastore, OLAPCubeConfig cubeConfig)
     {
-        super(service, materializedViewService, continuousQueryService, timestampMapping);
+        super(service, materializedViewService, continuousQueryService, metastore, cubeConfig, timestampMapping);
         this.executorService = service;
     }
 
@@ -11,6 +11,7 @@ import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
+import org.rakam.report.QueryResultConsumer;
 import org.rakam.report.QueryStats;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.LogUtil;
@@ -37,6 +38,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 
 import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
 import static org.rakam.postgresql.analysis.PostgresqlEventStore.UTC_CALENDAR;
 import static org.rakam.postgresql.report.PostgresqlQueryExecutor.QUERY_EXECUTOR;
 import static org.rakam.report.QueryResult.EXECUTION_TIME;
@@ -49,12 +51,23 @@ public class PostgresqlQueryExecution
         implements QueryExecution
 {
     private final static Logger LOGGER = Logger.get(PostgresqlQueryExecution.class);
+    private static final int PAGE_SIZE = 10000;
 
     private final CompletableFuture<QueryResult> result;
     private final String query;
     private Statement statement;
 
     public PostgresqlQueryExecution(ConnectionFactory connectionPool, String sqlQuery, boolean update)
+    {
+        this(connectionPool, sqlQuery, update, null);
+    }
+
+    public PostgresqlQueryExecution(ConnectionFactory connectionPool, String sqlQuery, QueryResultConsumer consumer)
+    {
+        this(connectionPool, sqlQuery, false, requireNonNull(consumer, "consumer is null"));
+    }
+
+    private PostgresqlQueryExecution(ConnectionFactory connectionPool, String sqlQuery, boolean update, QueryResultConsumer consumer)
     {
         this.query = sqlQuery;
 
@@ -70,6 +83,21 @@ public class PostgresqlQueryExecution
                     queryResult = new QueryResult(ImmutableList.of(new SchemaField("result", FieldType.BOOLEAN)),
                             ImmutableList.of(ImmutableList.of(true)));
                 }
+                else if (consumer != null) {
+                    long beforeExecuted = System.currentTimeMillis();
+                    // Postgresql only uses a cursor for the result set when the connection is not in auto-commit mode
+                    connection.setAutoCommit(false);
+                    try {
+                        statement.setFetchSize(PAGE_SIZE);
+                        ResultSet resultSet = statement.executeQuery(sqlQuery);
+                        queryResult = streamResultSet(resultSet, consumer, beforeExecuted);
+                    }
+                    finally {
+                        statement = null;
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                }
                 else {
                     long beforeExecuted = System.currentTimeMillis();
                     ResultSet resultSet = statement.executeQuery(sqlQuery);
@@ -138,128 +166,176 @@ public class PostgresqlQueryExecution
 
     private QueryResult resultSetToQueryResult(ResultSet resultSet, long executionTimeInMillis)
     {
-        List<SchemaField> columns;
-        List<List<Object>> data;
         try {
             ResultSetMetaData metaData = resultSet.getMetaData();
             int columnCount = metaData.getColumnCount();
+            List<SchemaField> columns = getColumns(metaData);
 
-            columns = new ArrayList<>(columnCount);
-            for (int i = 1; i < columnCount + 1; i++) {
-                FieldType type;
-                try {
-                    type = fromSql(metaData.getColumnType(i), metaData.getColumnTypeName(i));
-                }
-                catch (UnsupportedOperationException e) {
-                    LOGGER.warn(e.getMessage());
-                    columns.add(null);
-                    continue;
-                }
+            ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
+            while (resultSet.next()) {
+                builder.add(getRow(resultSet, columns, columnCount));
+            }
+            List<List<Object>> data = builder.build();
 
-                columns.add(new SchemaField(metaData.getColumnName(i), type));
+            return new QueryResult(getMetadata(columns, metaData), data, ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis, QUERY, query));
+        }
+        catch (SQLException e) {
+            QueryError error = new QueryError(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, null);
+            return QueryResult.errorResult(error);
+        }
+    }
+
+    private QueryResult streamResultSet(ResultSet resultSet, QueryResultConsumer consumer, long startTime)
+            throws SQLException
+    {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        List<SchemaField> columns = getColumns(metaData);
+        List<SchemaField> metadata = getMetadata(columns, metaData);
+
+        consumer.metadata(metadata);
+
+        List<List<Object>> page = new ArrayList<>(PAGE_SIZE);
+        while (resultSet.next()) {
+            page.add(getRow(resultSet, columns, columnCount));
+            if (page.size() == PAGE_SIZE) {
+                consumer.page(page);
+                page = new ArrayList<>(PAGE_SIZE);
             }
+        }
 
-            ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
-            while (resultSet.next()) {
-                List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
-                for (int i = 0; i < columnCount; i++) {
-                    Object object;
-                    SchemaField schemaField = columns.get(i);
-                    if (schemaField == null) {
-                        continue;
+        if (!page.isEmpty()) {
+            consumer.page(page);
+        }
+
+        return new QueryResult(metadata, ImmutableList.of(),
+                ImmutableMap.of(EXECUTION_TIME, System.currentTimeMillis() - startTime, QUERY, query));
+    }
+
+    private static List<SchemaField> getColumns(ResultSetMetaData metaData)
+            throws SQLException
+    {
+        int columnCount = metaData.getColumnCount();
+
+        List<SchemaField> columns = new ArrayList<>(columnCount);
+        for (int i = 1; i < columnCount + 1; i++) {
+            FieldType type;
+            try {
+                type = fromSql(metaData.getColumnType(i), metaData.getColumnTypeName(i));
+            }
+            catch (UnsupportedOperationException e) {
+                LOGGER.warn(e.getMessage());
+                columns.add(null);
+                continue;
+            }
+
+            columns.add(new SchemaField(metaData.getColumnName(i), type));
+        }
+
+        return columns;
+    }
+
+    private static List<SchemaField> getMetadata(List<SchemaField> columns, ResultSetMetaData metaData)
+            throws SQLException
+    {
+        // the values of the unsupported columns are always null
+        List<SchemaField> metadata = new ArrayList<>(columns);
+        for (int i = 0; i < metadata.size(); i++) {
+            if (metadata.get(i) == null) {
+                metadata.set(i, new SchemaField(metaData.getColumnName(i + 1), FieldType.STRING));
+            }
+        }
+        return metadata;
+    }
+
+    private static List<Object> getRow(ResultSet resultSet, List<SchemaField> columns, int columnCount)
+            throws SQLException
+    {
+        List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
+        for (int i = 0; i < columnCount; i++) {
+            Object object;
+            SchemaField schemaField = columns.get(i);
+            if (schemaField == null) {
+                continue;
+            }
+            FieldType type = schemaField.getType();
+            switch (type) {
+                case STRING:
+                    object = resultSet.getString(i + 1);
+                    break;
+                case LONG:
+                    object = resultSet.getLong(i + 1);
+                    break;
+                case INTEGER:
+                    object = resultSet.getInt(i + 1);
+                    break;
+                case DECIMAL:
+                    BigDecimal bigDecimal = resultSet.getBigDecimal(i + 1);
+                    object = bigDecimal != null ? bigDecimal.doubleValue() : null;
+                    break;
+                case DOUBLE:
+                    object = resultSet.getDouble(i + 1);
+                    break;
+                case BOOLEAN:
+                    object = resultSet.getBoolean(i + 1);
+                    break;
+                case TIMESTAMP:
+                    Timestamp timestamp = resultSet.getTimestamp(i + 1, UTC_CALENDAR);
+                    object = timestamp != null ? timestamp.toInstant() : null;
+                    break;
+                case DATE:
+                    Date date = resultSet.getDate(i + 1, UTC_CALENDAR);
+                    object = date != null ? date.toLocalDate() : null;
+                    break;
+                case TIME:
+                    Time time = resultSet.getTime(i + 1, UTC_CALENDAR);
+                    object = time != null ? time.toLocalTime() : null;
+                    break;
+                case BINARY:
+                    InputStream binaryStream = resultSet.getBinaryStream(i + 1);
+                    if (binaryStream != null) {
+                        try {
+                            object = ByteStreams.toByteArray(binaryStream);
+                        }
+                        catch (IOException e) {
+                            LOGGER.error("Error while de-serializing BINARY type", e);
+                            object = null;
+                        }
                     }
-                    FieldType type = schemaField.getType();
-                    switch (type) {
-                        case STRING:
-                            object = resultSet.getString(i + 1);
-                            break;
-                        case LONG:
-                            object = resultSet.getLong(i + 1);
-                            break;
-                        case INTEGER:
-                            object = resultSet.getInt(i + 1);
-                            break;
-                        case DECIMAL:
-                            BigDecimal bigDecimal = resultSet.getBigDecimal(i + 1);
-                            object = bigDecimal != null ? bigDecimal.doubleValue() : null;
-                            break;
-                        case DOUBLE:
-                            object = resultSet.getDouble(i + 1);
-                            break;
-                        case BOOLEAN:
-                            object = resultSet.getBoolean(i + 1);
-                            break;
-                        case TIMESTAMP:
-                            Timestamp timestamp = resultSet.getTimestamp(i + 1, UTC_CALENDAR);
-                            object = timestamp != null ? timestamp.toInstant() : null;
-                            break;
-                        case DATE:
-                            Date date = resultSet.getDate(i + 1, UTC_CALENDAR);
-                            object = date != null ? date.toLocalDate() : null;
-                            break;
-                        case TIME:
-                            Time time = resultSet.getTime(i + 1, UTC_CALENDAR);
-                            object = time != null ? time.toLocalTime() : null;
-                            break;
-                        case BINARY:
-                            InputStream binaryStream = resultSet.getBinaryStream(i + 1);
-                            if (binaryStream != null) {
-                                try {
-                                    object = ByteStreams.toByteArray(binaryStream);
-                                }
-                                catch (IOException e) {
-                                    LOGGER.error("Error while de-serializing BINARY type", e);
-                                    object = null;
-                                }
-                            }
-                            else {
-                                object = null;
-                            }
-                            break;
-                        default:
-                            if (type.isArray()) {
-                                Array array = resultSet.getArray(i + 1);
-                                object = array == null ? null : array.getArray();
-                            }
-                            else if (type.isMap()) {
-                                PGobject pgObject = (PGobject) resultSet.getObject(i + 1);
-                                if (pgObject == null) {
-                                    object = null;
-                                }
-                                else {
-                                    if (pgObject.getType().equals("jsonb")) {
-                                        object = JsonHelper.read(pgObject.getValue());
-                                    }
-                                    else {
-                                        throw new UnsupportedOperationException("Postgresql type is not supported");
-                                    }
-                                }
+                    else {
+                        object = null;
+                    }
+                    break;
+                default:
+                    if (type.isArray()) {
+                        Array array = resultSet.getArray(i + 1);
+                        object = array == null ? null : array.getArray();
+                    }
+                    else if (type.isMap()) {
+                        PGobject pgObject = (PGobject) resultSet.getObject(i + 1);
+                        if (pgObject == null) {
+                            object = null;
+                        }
+                        else {
+                            if (pgObject.getType().equals("jsonb")) {
+                                object = JsonHelper.read(pgObject.getValue());
                             }
                             else {
-                                throw new IllegalStateException();
+                                throw new UnsupportedOperationException("Postgresql type is not supported");
                             }
+                        }
                     }
-
-                    if (resultSet.wasNull()) {
-                        object = null;
+                    else {
+                        throw new IllegalStateException();
                     }
-
-                    rowBuilder.set(i, object);
-                }
-                builder.add(rowBuilder);
             }
-            data = builder.build();
 
-            for (int i = 0; i < columns.size(); i++) {
-                if (columns.get(i) == null) {
-                    columns.set(i, new SchemaField(metaData.getColumnName(i + 1), FieldType.STRING));
-                }
+            if (resultSet.wasNull()) {
+                object = null;
             }
-            return new QueryResult(columns, data, ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis, QUERY, query));
-        }
-        catch (SQLException e) {
-            QueryError error = new QueryError(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, null);
-            return QueryResult.errorResult(error);
+
+            rowBuilder.set(i, object);
         }
+        return rowBuilder;
     }
 }
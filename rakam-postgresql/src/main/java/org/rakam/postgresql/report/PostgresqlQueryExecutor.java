@@ -5,6 +5,8 @@ import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.Statement;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.name.Named;
 import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
 import io.airlift.log.Logger;
@@ -15,8 +17,10 @@ import org.rakam.analysis.datasource.JDBCSchemaConfig;
 import org.rakam.analysis.datasource.SupportedCustomDatabase;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.SchemaField;
+import org.rakam.report.AggregationFunctionNames;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResultConsumer;
 import org.rakam.report.QuerySampling;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
@@ -25,10 +29,12 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -56,6 +62,7 @@ public class PostgresqlQueryExecutor
     private final boolean userServiceIsPostgresql;
     private final CustomDataSourceService customDataSource;
     private SqlParser sqlParser = new SqlParser();
+    private final AggregationFunctionNames aggregationFunctions = new AggregationFunctionNames(this::getAggregationFunctions);
 
     @Inject
     public PostgresqlQueryExecutor(
@@ -97,12 +104,49 @@ public class PostgresqlQueryExecutor
         return new PostgresqlQueryExecution(connectionPool::getConnection, query, false);
     }
 
+    @Override
+    public boolean canStreamRawQuery(Map<String, String> sessionParameters)
+    {
+        return sessionParameters.get("remotedb") == null;
+    }
+
+    @Override
+    public QueryExecution streamRawQuery(String query, Map<String, String> sessionParameters, QueryResultConsumer consumer)
+    {
+        if (!canStreamRawQuery(sessionParameters)) {
+            return QueryExecutor.super.streamRawQuery(query, sessionParameters, consumer);
+        }
+        return new PostgresqlQueryExecution(connectionPool::getConnection, query, consumer);
+    }
+
     @Override
     public QueryExecution executeRawStatement(String query)
     {
         return new PostgresqlQueryExecution(connectionPool::getConnection, query, true);
     }
 
+    @Override
+    public boolean isAggregationFunction(String name)
+    {
+        return aggregationFunctions.contains(name);
+    }
+
+    private Set<String> getAggregationFunctions()
+    {
+        try (Connection connection = connectionPool.getConnection()) {
+            ResultSet resultSet = connection.createStatement().executeQuery("SELECT DISTINCT proname FROM pg_proc " +
+                    "JOIN pg_aggregate ON (pg_aggregate.aggfnoid = pg_proc.oid)");
+            ImmutableSet.Builder<String> names = ImmutableSet.builder();
+            while (resultSet.next()) {
+                names.add(resultSet.getString(1));
+            }
+            return names.build();
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
     @Override
     public String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
     {
@@ -1,19 +1,34 @@
 package org.rakam.analysis;
 
 import org.rakam.TestingEnvironment;
+import org.rakam.analysis.ApiKeyService.AccessKeyType;
+import org.rakam.analysis.ApiKeyService.ProjectApiKeys;
 import org.rakam.postgresql.PostgresqlApiKeyService;
+import org.rakam.util.RakamException;
 import org.testng.annotations.AfterMethod;
-import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.concurrent.Callable;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class TestPostgresqlApiKeyService extends TestApiKeyService
 {
+    private static final String OTHER_PROJECT = "test_postgresql_api_key_service";
+
+    private JDBCPoolDataSource apiKeyServiceDataSource;
     private PostgresqlApiKeyService apiKeyService;
 
     @BeforeSuite
     public void setup() {
         TestingEnvironment testingEnvironment = new TestingEnvironment();
-        JDBCPoolDataSource apiKeyServiceDataSource = JDBCPoolDataSource
+        apiKeyServiceDataSource = JDBCPoolDataSource
                 .getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
 
         apiKeyService = new PostgresqlApiKeyService(apiKeyServiceDataSource);
@@ -29,7 +44,99 @@ public class TestPostgresqlApiKeyService extends TestApiKeyService
 
     @AfterMethod
     public void tearDownMethod() throws Exception {
+        apiKeyService.revokeAllKeys(OTHER_PROJECT);
         apiKeyService.clearCache();
     }
 
+    @Test
+    public void testKeyCreatedAfterStartup() throws Exception {
+        // the key is created by an other node
+        String readKey = insertKey(OTHER_PROJECT);
+
+        assertInvalid(apiKeyService, readKey);
+        // the miss triggers a synchronization in the background
+        waitUntil(() -> isValid(apiKeyService, readKey));
+        assertEquals(apiKeyService.getProjectOfApiKey(readKey, AccessKeyType.READ_KEY), OTHER_PROJECT);
+    }
+
+    @Test
+    public void testKeyRevokedByOtherNode() throws Exception {
+        PostgresqlApiKeyService node = new PostgresqlApiKeyService(apiKeyServiceDataSource, 100);
+        node.setup();
+        try {
+            ProjectApiKeys apiKeys = apiKeyService.createApiKeys(OTHER_PROJECT);
+            waitUntil(() -> isValid(node, apiKeys.readKey()));
+
+            apiKeyService.revokeApiKeys(OTHER_PROJECT, apiKeys.masterKey());
+            assertInvalid(apiKeyService, apiKeys.readKey());
+
+            // the revoked keys are removed by the periodic synchronization
+            waitUntil(() -> !isValid(node, apiKeys.readKey()));
+        }
+        finally {
+            node.destroy();
+        }
+    }
+
+    @Test
+    public void testUnknownKeysAreThrottled() throws Exception {
+        assertInvalid(apiKeyService, "invalidKey0");
+        // the synchronization of the first miss runs before the key is created
+        Thread.sleep(200);
+
+        // the synchronization is triggered at most once a second
+        String readKey = insertKey(OTHER_PROJECT);
+        for (int i = 1; i < 100; i++) {
+            assertInvalid(apiKeyService, "invalidKey" + i);
+        }
+        assertInvalid(apiKeyService, readKey);
+        Thread.sleep(500);
+        assertInvalid(apiKeyService, readKey);
+
+        Thread.sleep(1000);
+        assertInvalid(apiKeyService, readKey);
+        waitUntil(() -> isValid(apiKeyService, readKey));
+    }
+
+    private String insertKey(String project) throws Exception {
+        String readKey = "read_" + System.nanoTime();
+        try (Connection connection = apiKeyServiceDataSource.getConnection()) {
+            PreparedStatement ps = connection.prepareStatement("INSERT INTO api_key " +
+                    "(master_key, read_key, write_key, project) VALUES (?, ?, ?, ?)");
+            ps.setString(1, "master_" + System.nanoTime());
+            ps.setString(2, readKey);
+            ps.setString(3, "write_" + System.nanoTime());
+            ps.setString(4, project);
+            ps.executeUpdate();
+        }
+        return readKey;
+    }
+
+    private static boolean isValid(ApiKeyService service, String readKey) {
+        try {
+            service.getProjectOfApiKey(readKey, AccessKeyType.READ_KEY);
+            return true;
+        }
+        catch (RakamException e) {
+            return false;
+        }
+    }
+
+    private static void assertInvalid(ApiKeyService service, String readKey) {
+        try {
+            service.getProjectOfApiKey(readKey, AccessKeyType.READ_KEY);
+            fail();
+        }
+        catch (RakamException e) {
+            assertEquals(e.getStatusCode(), FORBIDDEN);
+        }
+    }
+
+    private static void waitUntil(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.call()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition is not satisfied in time");
+            Thread.sleep(20);
+        }
+    }
 }
@@ -51,7 +51,8 @@ public class TestPostgresqlEventExplorer
         eventExplorer = new PostgresqlEventExplorer(
                 new QueryExecutorService(queryExecutor, metastore, materializedViewService, Clock.systemUTC(), '"'),
                 materializedViewService,
-                continuousQueryService);
+                continuousQueryService,
+                metastore);
         super.setup();
     }
 
@@ -0,0 +1,53 @@
+package org.rakam.analysis;
+
+import com.google.common.eventbus.EventBus;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.datasource.CustomDataSourceService;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.plugin.EventStore;
+import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.postgresql.analysis.PostgresqlEventStore;
+import org.rakam.postgresql.analysis.PostgresqlInMemoryFunnelQueryExecutor;
+import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.testng.annotations.BeforeSuite;
+
+public class TestPostgresqlInMemoryFunnelQueryExecutor extends TestFunnelQueryExecutor {
+
+    private TestingEnvironment testingPostgresqlServer;
+    private PostgresqlMetastore metastore;
+    private PostgresqlEventStore eventStore;
+    private PostgresqlInMemoryFunnelQueryExecutor funnelQueryExecutor;
+
+    @BeforeSuite
+    @Override
+    public void setup() throws Exception {
+        testingPostgresqlServer = new TestingEnvironment();
+
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingPostgresqlServer.getPostgresqlConfig());
+
+        FieldDependencyBuilder.FieldDependency build = new FieldDependencyBuilder().build();
+        metastore = new PostgresqlMetastore(dataSource, new EventBus());
+
+        PostgresqlQueryExecutor queryExecutor = new PostgresqlQueryExecutor(dataSource, metastore, new CustomDataSourceService(dataSource), false);
+        eventStore = new PostgresqlEventStore(dataSource, build);
+        funnelQueryExecutor = new PostgresqlInMemoryFunnelQueryExecutor(metastore, queryExecutor, new UserPluginConfig());
+        super.setup();
+    }
+
+    @Override
+    public EventStore getEventStore() {
+        return eventStore;
+    }
+
+    @Override
+    public Metastore getMetastore() {
+        return metastore;
+    }
+
+    @Override
+    public FunnelQueryExecutor getFunnelQueryExecutor() {
+        return funnelQueryExecutor;
+    }
+}
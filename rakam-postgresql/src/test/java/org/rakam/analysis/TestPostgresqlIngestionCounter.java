@@ -0,0 +1,184 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.metadata.IngestionCounter;
+import org.rakam.analysis.metadata.Metastore.Stats;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestPostgresqlIngestionCounter
+{
+    private static final String PROJECT = "ingestion_counter_test";
+    private JDBCPoolDataSource dataSource;
+    private MutableClock clock;
+    private IngestionCounter counter;
+
+    @BeforeMethod
+    public void setUp()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+
+        clock = new MutableClock(LocalDate.of(2017, 3, 15));
+        counter = new IngestionCounter(dataSource, clock);
+        counter.setup();
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        counter.onDeleteProject(new ProjectDeletedEvent(PROJECT));
+        counter.destroy();
+    }
+
+    @Test
+    public void testFlushAndAggregation()
+    {
+        clock.set(LocalDate.of(2017, 2, 27));
+        counter.increment(PROJECT, "pageview", 5);
+        counter.flush();
+
+        clock.set(LocalDate.of(2017, 3, 1));
+        counter.increment(PROJECT, "pageview", 3);
+        counter.increment(PROJECT, "click", 2);
+        counter.flush();
+
+        clock.set(LocalDate.of(2017, 3, 2));
+        counter.increment(PROJECT, "pageview", 4);
+        counter.flush();
+        counter.increment(PROJECT, "pageview", 1);
+
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 15, 10, 5);
+
+        // the counts that are not flushed are included only once
+        counter.flush();
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 15, 10, 5);
+
+        clock.set(LocalDate.of(2017, 4, 1));
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 15, 0, 0);
+    }
+
+    @Test
+    public void testSeedOnce()
+    {
+        AtomicInteger seedCalls = new AtomicInteger();
+        Function<Collection<String>, Map<String, Stats>> seed = projects -> {
+            seedCalls.incrementAndGet();
+            return ImmutableMap.of(PROJECT, new Stats(100L, 20L, 5L));
+        };
+
+        counter.setSeed(seed);
+
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 100, 20, 5);
+        assertEquals(seedCalls.get(), 1);
+
+        counter.increment(PROJECT, "pageview", 2);
+        counter.flush();
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 102, 22, 7);
+        assertEquals(seedCalls.get(), 1);
+
+        // the marker row is found by the other nodes
+        IngestionCounter otherNode = new IngestionCounter(dataSource, clock);
+        otherNode.setSeed(seed);
+        assertStats(otherNode.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 102, 22, 7);
+        assertEquals(seedCalls.get(), 1);
+
+        clock.set(LocalDate.of(2017, 3, 16));
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 102, 22, 0);
+    }
+
+    @Test
+    public void testFlushBeforeGetStats()
+    {
+        // the stored events include the events that are counted before the seed
+        AtomicLong stored = new AtomicLong(100);
+        AtomicInteger seedCalls = new AtomicInteger();
+        counter.setSeed(projects -> {
+            seedCalls.incrementAndGet();
+            return ImmutableMap.of(PROJECT, new Stats(stored.get(), stored.get(), stored.get()));
+        });
+
+        stored.addAndGet(3);
+        counter.increment(PROJECT, "pageview", 3);
+        counter.flush();
+        assertEquals(seedCalls.get(), 1);
+
+        stored.addAndGet(2);
+        counter.increment(PROJECT, "pageview", 2);
+        counter.flush();
+        assertEquals(seedCalls.get(), 1);
+
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 105, 105, 105);
+        assertEquals(seedCalls.get(), 1);
+    }
+
+    @Test
+    public void testSeedWithoutPeriods()
+    {
+        // the stats of the metastore may only have the total count
+        counter.setSeed(projects -> ImmutableMap.of(PROJECT, new Stats(50L, null, null)));
+
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 50, 0, 0);
+        counter.setSeed(projects -> ImmutableMap.of(PROJECT, new Stats(1000L, null, null)));
+        assertStats(counter.getStats(ImmutableList.of(PROJECT)).get(PROJECT), 50, 0, 0);
+    }
+
+    private static void assertStats(Stats stats, long all, long monthly, long daily)
+    {
+        assertEquals(stats.allEvents.longValue(), all);
+        assertEquals(stats.monthlyEvents.longValue(), monthly);
+        assertEquals(stats.dailyEvents.longValue(), daily);
+    }
+
+    private static class MutableClock
+            extends Clock
+    {
+        private Instant instant;
+
+        public MutableClock(LocalDate date)
+        {
+            set(date);
+        }
+
+        public void set(LocalDate date)
+        {
+            this.instant = date.atStartOfDay(ZoneOffset.UTC).toInstant();
+        }
+
+        @Override
+        public ZoneId getZone()
+        {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant()
+        {
+            return instant;
+        }
+    }
+}
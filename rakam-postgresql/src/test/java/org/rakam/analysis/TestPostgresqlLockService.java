@@ -0,0 +1,128 @@
+package org.rakam.analysis;
+
+import org.rakam.TestingEnvironment;
+import org.rakam.util.lock.LockService.Lock;
+import org.rakam.util.lock.PostgresqlLockService;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlLockService
+{
+    private static final Duration LEASE = Duration.ofMillis(600);
+
+    private JDBCPoolDataSource dataSource;
+    private PostgresqlLockService node1;
+    private PostgresqlLockService node2;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+
+        node1 = new PostgresqlLockService(dataSource, LEASE);
+        node2 = new PostgresqlLockService(dataSource, LEASE);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        node1.destroy();
+        node2.destroy();
+        try (Handle handle = new DBI(dataSource).open()) {
+            handle.createStatement("DELETE FROM lock_leases").execute();
+        }
+    }
+
+    @Test
+    public void testContention()
+    {
+        Lock lock = node1.tryLock("contention");
+        assertNotNull(lock);
+        assertNull(node2.tryLock("contention"));
+        // the lease is not reentrant
+        assertNull(node1.tryLock("contention"));
+
+        lock.release();
+        Lock other = node2.tryLock("contention");
+        assertNotNull(other);
+        assertNull(node1.tryLock("contention"));
+        other.release();
+    }
+
+    @Test
+    public void testRenewal()
+            throws Exception
+    {
+        Lock lock = node1.tryLock("renewal");
+        assertNotNull(lock);
+
+        // the lease is renewed several times while it's held
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(LEASE.toMillis() / 2);
+            assertTrue(lock.isHeld());
+            assertNull(node2.tryLock("renewal"));
+        }
+
+        lock.release();
+        assertFalse(lock.isHeld());
+    }
+
+    @Test
+    public void testExpiredLeaseTakeover()
+            throws Exception
+    {
+        Lock lock = node1.tryLock("expired");
+        assertNotNull(lock);
+
+        // the node is stopped so the lease is not renewed anymore
+        node1.destroy();
+        Thread.sleep(LEASE.toMillis() * 2);
+
+        assertFalse(lock.isHeld());
+        Lock other = node2.tryLock("expired");
+        assertNotNull(other);
+        assertTrue(other.isHeld());
+        other.release();
+    }
+
+    @Test
+    public void testReleaseByNonOwner()
+            throws Exception
+    {
+        Lock lock = node1.tryLock("non_owner");
+        assertNotNull(lock);
+
+        // the lease expires while the renewals are delayed
+        try (Handle handle = new DBI(dataSource).open()) {
+            handle.createStatement("UPDATE lock_leases SET expires_at = 0 WHERE name = 'non_owner'").execute();
+        }
+        Lock other = node2.tryLock("non_owner");
+        assertNotNull(other);
+
+        // the failed renewal is exposed to the holder and the lease is not renewed anymore
+        long deadline = System.currentTimeMillis() + LEASE.toMillis() * 2;
+        while (lock.isHeld()) {
+            assertTrue(System.currentTimeMillis() < deadline, "the lost lease is not detected");
+            Thread.sleep(20);
+        }
+
+        // the previous owner can't release the lease of the new owner
+        lock.release();
+        assertTrue(other.isHeld());
+        assertNull(node1.tryLock("non_owner"));
+
+        other.release();
+        assertNotNull(node1.tryLock("non_owner"));
+    }
+}
@@ -0,0 +1,248 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import io.airlift.units.Duration;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.datasource.CustomDataSourceService;
+import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
+import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryExecutorService;
+import org.rakam.report.QueryResult;
+import org.rakam.report.SharedScanConfig;
+import org.rakam.report.SharedScanQueryExecutor;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.time.Clock;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.report.QueryExecutorService.DEFAULT_QUERY_RESULT_COUNT;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlSharedScanQueryExecutor
+{
+    private static final String PROJECT = "shared_scan_test";
+    private static final String SHARED_QUERIES = "sharedScanQueries";
+
+    private PostgresqlMetastore metastore;
+    private QueryExecutorService executorService;
+    private SharedScanQueryExecutor sharedScanExecutor;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig(), "set time zone 'UTC'");
+
+        metastore = new PostgresqlMetastore(dataSource, new EventBus());
+        PostgresqlQueryExecutor queryExecutor = new PostgresqlQueryExecutor(dataSource, metastore, new CustomDataSourceService(dataSource), false);
+        executorService = new QueryExecutorService(queryExecutor, metastore,
+                new PostgresqlMaterializedViewService(queryExecutor, new InMemoryQueryMetadataStore()), Clock.systemUTC(), '"');
+
+        // the window is long enough for the queries of a test to be in the same batch
+        SharedScanConfig config = new SharedScanConfig()
+                .setEnabled(true)
+                .setWindow(new Duration(300, MILLISECONDS));
+        sharedScanExecutor = new SharedScanQueryExecutor(executorService, queryExecutor, config);
+
+        // the queries are not merged until the aggregation functions are fetched
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!queryExecutor.isAggregationFunction("count")) {
+            assertTrue(System.currentTimeMillis() < deadline, "the aggregation functions are not fetched");
+            Thread.sleep(20);
+        }
+
+        metastore.createProject(PROJECT);
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("CREATE TABLE " + PROJECT + ".pageview (url text, clicks bigint, duration double precision)");
+            connection.createStatement().execute("INSERT INTO " + PROJECT + ".pageview VALUES " +
+                    "('/a', 1, 1.0), ('/a', 2, 1.0), ('/b', 10, NULL), ('/c', 5, 2.5), ('/c', 7, 3.5), (NULL, NULL, 4.0)");
+        }
+    }
+
+    @AfterClass
+    public void tearDown()
+    {
+        sharedScanExecutor.shutdown();
+        metastore.deleteProject(PROJECT);
+    }
+
+    @Test
+    public void testMergedQueriesMatchSeparateQueries()
+    {
+        List<String> queries = ImmutableList.of(
+                "SELECT url, sum(clicks) AS clicks FROM pageview GROUP BY url ORDER BY clicks DESC NULLS LAST LIMIT 2",
+                "SELECT url, avg(duration) AS duration, count(*) AS total FROM pageview GROUP BY 1 ORDER BY 2 ASC NULLS FIRST",
+                "SELECT url, count(*) AS total FROM pageview GROUP BY url ORDER BY total DESC NULLS LAST, 1 ASC NULLS FIRST",
+                "SELECT url, max(clicks) AS top FROM pageview GROUP BY url");
+
+        List<QueryResult> results = executeShared(queries);
+
+        for (int i = 0; i < queries.size(); i++) {
+            QueryResult result = results.get(i);
+            QueryResult expected = executorService.executeQuery(PROJECT, queries.get(i)).getResult().join();
+            assertFalse(result.isFailed(), queries.get(i));
+            assertEquals(result.getMetadata(), expected.getMetadata(), queries.get(i));
+
+            if (queries.get(i).contains("ORDER BY")) {
+                assertEquals(result.getResult(), expected.getResult(), queries.get(i));
+            }
+            else {
+                assertEquals(ImmutableSet.copyOf(result.getResult()), ImmutableSet.copyOf(expected.getResult()), queries.get(i));
+            }
+        }
+
+        assertEquals(results.get(0).getProperties().get(SHARED_QUERIES), 4);
+        assertEquals(results.get(1).getProperties().get(SHARED_QUERIES), 4);
+        // the text sort keys are sorted by the database
+        assertNull(results.get(2).getProperties().get(SHARED_QUERIES));
+        assertEquals(results.get(3).getProperties().get(SHARED_QUERIES), 4);
+    }
+
+    @Test
+    public void testAggregationWithoutGroupBy()
+    {
+        List<QueryResult> results = executeShared(ImmutableList.of(
+                "SELECT count(*) AS total FROM pageview",
+                "SELECT max(clicks) + 1 AS clicks FROM pageview"));
+
+        assertEquals(results.get(0).getResult(), ImmutableList.of(ImmutableList.of(6L)));
+        assertEquals(results.get(1).getResult(), ImmutableList.of(ImmutableList.of(11L)));
+        assertEquals(results.get(0).getProperties().get(SHARED_QUERIES), 2);
+    }
+
+    @Test
+    public void testScalarFunctionsAreNotMerged()
+    {
+        // the scalar functions return a row for each row of the table
+        List<QueryResult> results = executeShared(ImmutableList.of(
+                "SELECT lower(url) AS url FROM pageview",
+                "SELECT upper(url) AS url FROM pageview"));
+
+        for (QueryResult result : results) {
+            assertFalse(result.isFailed());
+            assertEquals(result.getResult().size(), 6);
+            assertNull(result.getProperties().get(SHARED_QUERIES));
+        }
+    }
+
+    @Test
+    public void testImplicitNullOrderingIsNotMerged()
+    {
+        List<QueryResult> results = executeShared(ImmutableList.of(
+                "SELECT url, avg(duration) AS duration FROM pageview GROUP BY 1 ORDER BY 2 DESC",
+                "SELECT url, count(*) AS total FROM pageview GROUP BY 1"));
+
+        // Postgresql places the NULL values first for the descending order
+        assertNull(results.get(0).getResult().get(0).get(1));
+        assertNull(results.get(0).getProperties().get(SHARED_QUERIES));
+    }
+
+    @Test
+    public void testFallbackWhenMergedQueryFails()
+    {
+        List<QueryResult> results = executeShared(ImmutableList.of(
+                "SELECT count(*) AS total FROM pageview",
+                "SELECT sum(missing) AS missing FROM pageview"));
+
+        assertFalse(results.get(0).isFailed());
+        assertEquals(results.get(0).getResult(), ImmutableList.of(ImmutableList.of(6L)));
+        assertNull(results.get(0).getProperties().get(SHARED_QUERIES));
+        assertTrue(results.get(1).isFailed());
+        assertTrue(results.get(1).getError().message.contains("missing"), results.get(1).getError().message);
+    }
+
+    @Test
+    public void testFallbackWhenMergedResultReachesLimit()
+    {
+        List<String> queries = ImmutableList.of(
+                "SELECT url, sum(clicks) AS clicks FROM pageview GROUP BY url ORDER BY clicks DESC NULLS LAST",
+                "SELECT url, count(*) AS total FROM pageview GROUP BY url");
+
+        List<QueryExecution> executions = queries.stream()
+                .map(query -> sharedScanExecutor.executeQuery(PROJECT, query, Optional.empty(), "collection", 2))
+                .collect(Collectors.toList());
+
+        for (int i = 0; i < queries.size(); i++) {
+            QueryResult result = executions.get(i).getResult().join();
+            assertFalse(result.isFailed());
+            assertEquals(result.getResult().size(), 2);
+            assertNull(result.getProperties().get(SHARED_QUERIES));
+        }
+        assertEquals(executions.get(0).getResult().join().getResult(),
+                executorService.executeQuery(PROJECT, queries.get(0), Optional.empty(), "collection", 2).getResult().join().getResult());
+    }
+
+    @Test
+    public void testMissingProject()
+    {
+        List<QueryExecution> executions = ImmutableList.of("SELECT count(*) AS total FROM pageview", "SELECT max(clicks) AS top FROM pageview").stream()
+                .map(query -> sharedScanExecutor.executeQuery("missing_project", query, Optional.empty(), "collection", DEFAULT_QUERY_RESULT_COUNT))
+                .collect(Collectors.toList());
+
+        for (QueryExecution execution : executions) {
+            // the error is returned as the result instead of failing the future
+            QueryResult result = execution.getResult().join();
+            assertTrue(result.isFailed());
+            assertEquals(result.getError().message, "Project does not exist");
+        }
+    }
+
+    @Test
+    public void testKillMember()
+    {
+        // the predicates keep the batches of the killed queries apart from the other tests
+        QueryExecution killed = sharedScanExecutor.executeQuery(PROJECT, "SELECT count(*) AS total FROM pageview WHERE clicks > 0",
+                Optional.empty(), "collection", DEFAULT_QUERY_RESULT_COUNT);
+        QueryExecution other = sharedScanExecutor.executeQuery(PROJECT, "SELECT max(clicks) AS top FROM pageview WHERE clicks > 0",
+                Optional.empty(), "collection", DEFAULT_QUERY_RESULT_COUNT);
+
+        killed.kill();
+
+        assertTrue(killed.getResult().join().isFailed());
+        QueryResult result = other.getResult().join();
+        assertFalse(result.isFailed());
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of(10L)));
+        // the remaining query is executed alone
+        assertNull(result.getProperties().get(SHARED_QUERIES));
+    }
+
+    @Test
+    public void testKillAllMembers()
+    {
+        List<QueryExecution> executions = ImmutableList.of("SELECT count(*) AS total FROM pageview WHERE clicks > 1", "SELECT max(clicks) AS top FROM pageview WHERE clicks > 1").stream()
+                .map(query -> sharedScanExecutor.executeQuery(PROJECT, query, Optional.empty(), "collection", DEFAULT_QUERY_RESULT_COUNT))
+                .collect(Collectors.toList());
+
+        executions.forEach(QueryExecution::kill);
+
+        for (QueryExecution execution : executions) {
+            assertTrue(execution.isFinished());
+            assertEquals(execution.getResult().join().getError().message, "Query is killed");
+        }
+    }
+
+    private List<QueryResult> executeShared(List<String> queries)
+    {
+        List<QueryExecution> executions = queries.stream()
+                .map(query -> sharedScanExecutor.executeQuery(PROJECT, query, Optional.empty(), "collection", DEFAULT_QUERY_RESULT_COUNT))
+                .collect(Collectors.toList());
+
+        return executions.stream()
+                .map(execution -> execution.getResult().join())
+                .collect(Collectors.toList());
+    }
+}
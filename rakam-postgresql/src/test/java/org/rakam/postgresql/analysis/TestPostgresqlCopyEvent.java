@@ -0,0 +1,182 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.collection.CopySchemaSampler;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.RemoteImportConfig;
+import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.postgresql.PostgresqlConfigManager;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.rakam.plugin.EventStore.CopyType.CSV;
+import static org.rakam.plugin.EventStore.CopyType.JSON;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlCopyEvent
+{
+    private static final String COLLECTION = "pageview";
+
+    private JDBCPoolDataSource dataSource;
+    private PostgresqlMetastore metastore;
+    private PostgresqlCopyEvent copyEvent;
+    private String project;
+    private Path file;
+
+    @BeforeClass
+    public void setUpClass()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig(), "set time zone 'UTC'");
+
+        metastore = new PostgresqlMetastore(dataSource, new EventBus());
+        PostgresqlConfigManager configManager = new PostgresqlConfigManager(dataSource);
+        configManager.setup();
+        copyEvent = new PostgresqlCopyEvent(dataSource, metastore, configManager, new RemoteImportConfig().setAllowLocalFiles(true));
+    }
+
+    @BeforeMethod
+    public void setUp()
+            throws IOException
+    {
+        // the type of _user is set once for each project
+        project = "copy_test_" + System.nanoTime();
+        metastore.createProject(project);
+        file = Files.createTempFile("copy", ".data");
+    }
+
+    @AfterMethod
+    public void tearDown()
+            throws IOException
+    {
+        metastore.deleteProject(project);
+        Files.delete(file);
+    }
+
+    @Test
+    public void testCsv()
+            throws Exception
+    {
+        QueryResult result = copy(CSV, "_time,url,_user\n" +
+                "2017-01-01T10:00:00Z,/home,1\n" +
+                "2017-01-02T10:00:00Z,\"/a,b\",2\n");
+
+        assertFalse(result.isFailed());
+        assertEquals(result.getResult().get(0).get(0), 2L);
+
+        Map<String, FieldType> types = getTypes();
+        assertEquals(types.get("_time"), FieldType.TIMESTAMP);
+        assertEquals(types.get("url"), FieldType.STRING);
+        assertEquals(types.get("_user"), FieldType.STRING);
+
+        assertEquals(query("SELECT url FROM %s.%s ORDER BY _time"), ImmutableList.of("/home", "/a,b"));
+    }
+
+    @Test
+    public void testJson()
+            throws Exception
+    {
+        QueryResult result = copy(JSON, "{\"_time\": \"2017-01-01T10:00:00Z\", \"clicks\": 3, \"duration\": 2, \"_user\": 10}\n" +
+                "{\"_time\": 1483351200000, \"clicks\": 4, \"duration\": 2.5, \"tags\": [\"a\", \"b\"]}\n");
+
+        assertFalse(result.isFailed());
+        assertEquals(result.getResult().get(0).get(0), 2L);
+
+        Map<String, FieldType> types = getTypes();
+        assertEquals(types.get("_time"), FieldType.TIMESTAMP);
+        assertEquals(types.get("clicks"), FieldType.LONG);
+        assertEquals(types.get("duration"), FieldType.DOUBLE);
+        assertEquals(types.get("tags"), FieldType.ARRAY_STRING);
+        // the numeric _user of the first collection sets the user type of the project
+        assertEquals(types.get("_user"), FieldType.LONG);
+
+        assertEquals(query("SELECT clicks || ':' || duration || ':' || coalesce(_user::text, '') FROM %s.%s ORDER BY _time"),
+                ImmutableList.of("3:2:10", "4:2.5:"));
+    }
+
+    @Test
+    public void testJsonUnknownPropertyAfterSample()
+            throws Exception
+    {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < CopySchemaSampler.SAMPLE_SIZE; i++) {
+            content.append("{\"url\": \"/home\"}\n");
+        }
+        content.append("{\"url\": \"/home\", \"referrer\": \"/a\"}\n");
+
+        QueryResult result = copy(JSON, content.toString());
+
+        assertTrue(result.isFailed());
+        assertTrue(result.getError().message.contains("'referrer'"), result.getError().message);
+        // the rows are inserted in a single transaction
+        assertEquals(query("SELECT count(*)::text FROM %s.%s"), ImmutableList.of("0"));
+    }
+
+    @Test
+    public void testJsonFractionAfterSample()
+            throws Exception
+    {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < CopySchemaSampler.SAMPLE_SIZE; i++) {
+            content.append("{\"clicks\": 1}\n");
+        }
+        content.append("{\"clicks\": 1.5}\n");
+
+        QueryResult result = copy(JSON, content.toString());
+
+        assertTrue(result.isFailed());
+        assertTrue(result.getError().message.contains("fraction"), result.getError().message);
+    }
+
+    private QueryResult copy(CopyType type, String content)
+            throws IOException
+    {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        List<URL> urls = ImmutableList.of(file.toUri().toURL());
+        return copyEvent.copy(project, COLLECTION, urls, type, null, ImmutableMap.of()).getResult().join();
+    }
+
+    private Map<String, FieldType> getTypes()
+    {
+        return metastore.getCollection(project, COLLECTION).stream()
+                .collect(Collectors.toMap(SchemaField::getName, SchemaField::getType));
+    }
+
+    private List<String> query(String query)
+            throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery(String.format(query, project, COLLECTION))) {
+            ImmutableList.Builder<String> values = ImmutableList.builder();
+            while (resultSet.next()) {
+                values.add(resultSet.getString(1));
+            }
+            return values.build();
+        }
+    }
+}
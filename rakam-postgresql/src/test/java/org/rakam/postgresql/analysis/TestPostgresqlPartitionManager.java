@@ -0,0 +1,206 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.avro.generic.GenericData;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlPartitionManager
+{
+    private static final String PROJECT = "partition_test";
+    private static final String COLLECTION = "pageview";
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("_time", TIMESTAMP),
+            new SchemaField("url", STRING));
+
+    private JDBCPoolDataSource dataSource;
+    private PostgresqlPartitionManager partitionManager;
+
+    @BeforeClass
+    public void setUpClass()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SHOW server_version_num")) {
+            resultSet.next();
+            if (resultSet.getInt(1) < 110000) {
+                throw new SkipException("Declarative partitioning requires Postgresql 11");
+            }
+        }
+    }
+
+    @BeforeMethod
+    public void setUp()
+            throws Exception
+    {
+        partitionManager = new PostgresqlPartitionManager(dataSource, new PostgresqlConfig()
+                .setPartitionPremakeMonths(1)
+                .setPartitionRetentionMonths(3));
+
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("DROP SCHEMA IF EXISTS " + PROJECT + " CASCADE");
+            statement.execute("CREATE SCHEMA " + PROJECT);
+            statement.execute("CREATE TABLE " + PROJECT + "." + COLLECTION + " (_time timestamp, url text) PARTITION BY RANGE (_time)");
+            partitionManager.createPartitions(connection, PROJECT, COLLECTION);
+        }
+    }
+
+    @Test
+    public void testPartitionWindow()
+    {
+        YearMonth now = YearMonth.of(2018, 5);
+
+        assertTrue(isInWindow(now, now, 2, 0));
+        assertTrue(isInWindow(YearMonth.of(2018, 7), now, 2, 0));
+        assertFalse(isInWindow(YearMonth.of(2018, 8), now, 2, 0));
+        // the past months are not partitioned without retention
+        assertFalse(isInWindow(YearMonth.of(2018, 4), now, 2, 0));
+
+        assertTrue(isInWindow(YearMonth.of(2018, 2), now, 2, 3));
+        assertFalse(isInWindow(YearMonth.of(2018, 1), now, 2, 3));
+        assertFalse(isInWindow(YearMonth.of(1970, 1), now, 2, 3));
+    }
+
+    @Test
+    public void testCreatePartitions()
+            throws Exception
+    {
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        assertEquals(getPartitions(), ImmutableSet.of("default", suffix(now), suffix(now.plusMonths(1))));
+        assertTrue(partitionManager.isPartitioned(PROJECT, COLLECTION));
+    }
+
+    @Test
+    public void testPastMonthInRetention()
+            throws Exception
+    {
+        YearMonth month = YearMonth.now(ZoneOffset.UTC).minusMonths(2);
+        partitionManager.ensurePartitions(PROJECT, COLLECTION, ImmutableList.of(event(month)));
+
+        assertTrue(getPartitions().contains(suffix(month)));
+    }
+
+    @Test
+    public void testMonthsOutOfWindowAreStoredInDefaultPartition()
+            throws Exception
+    {
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        Set<String> partitions = getPartitions();
+
+        partitionManager.ensurePartitions(PROJECT, COLLECTION, ImmutableList.of(
+                event(YearMonth.of(1990, 1)), event(now.minusMonths(4)), event(now.plusMonths(5))));
+
+        assertEquals(getPartitions(), partitions);
+
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO " + PROJECT + "." + COLLECTION + " VALUES ('1990-01-15', 'a')");
+            try (ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM " + PROJECT + ".\"" + COLLECTION + "$default\"")) {
+                resultSet.next();
+                assertEquals(resultSet.getLong(1), 1);
+            }
+        }
+    }
+
+    @Test
+    public void testCreateIndex()
+            throws Exception
+    {
+        String index = "pageview_url_auto_index";
+        partitionManager.createIndex(PROJECT, COLLECTION, index, "BTREE", "url");
+        // the existing index is not created again
+        partitionManager.createIndex(PROJECT, COLLECTION, index, "BTREE", "url");
+
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery("SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass('" + PROJECT + "." + index + "')")) {
+                assertTrue(resultSet.next());
+                assertTrue(resultSet.getBoolean(1));
+            }
+
+            try (ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM pg_inherits WHERE inhparent = to_regclass('" + PROJECT + "." + index + "')")) {
+                resultSet.next();
+                assertEquals(resultSet.getInt(1), getPartitions().size());
+            }
+        }
+    }
+
+    @Test
+    public void testNewPartitionsInheritTheIndex()
+            throws Exception
+    {
+        String index = "pageview_url_auto_index";
+        partitionManager.createIndex(PROJECT, COLLECTION, index, "BTREE", "url");
+
+        partitionManager.ensurePartitions(PROJECT, COLLECTION, ImmutableList.of(event(YearMonth.now(ZoneOffset.UTC).minusMonths(1))));
+
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM pg_inherits WHERE inhparent = to_regclass('" + PROJECT + "." + index + "')")) {
+            resultSet.next();
+            assertEquals(resultSet.getInt(1), getPartitions().size());
+        }
+    }
+
+    private static boolean isInWindow(YearMonth month, YearMonth now, int premake, int retention)
+    {
+        return PostgresqlPartitionManager.isInPartitionWindow(month, now, premake, retention);
+    }
+
+    private Set<String> getPartitions()
+            throws SQLException
+    {
+        Set<String> partitions = new HashSet<>();
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT c.relname FROM pg_inherits i " +
+                        "JOIN pg_class c ON (c.oid = i.inhrelid) WHERE i.inhparent = to_regclass('" + PROJECT + "." + COLLECTION + "')")) {
+            while (resultSet.next()) {
+                partitions.add(resultSet.getString(1).substring(COLLECTION.length() + 1));
+            }
+        }
+        return partitions;
+    }
+
+    private static String suffix(YearMonth month)
+    {
+        return String.format("%04d%02d", month.getYear(), month.getMonthValue());
+    }
+
+    private static Event event(YearMonth month)
+    {
+        GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(FIELDS));
+        record.put("_time", month.atDay(10).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli());
+        record.put("url", "http://rakam.io");
+        return new Event(PROJECT, COLLECTION, null, FIELDS, record);
+    }
+}
@@ -0,0 +1,333 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.net.HostAndPort;
+import io.airlift.log.Logger;
+import kafka.api.FetchRequest;
+import kafka.api.FetchRequestBuilder;
+import kafka.common.ErrorMapping;
+import kafka.javaapi.FetchResponse;
+import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.message.MessageAndOffset;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.kafka.collection.KafkaStream.KafkaSubscription;
+import org.rakam.plugin.stream.StreamEventEncoder;
+import org.rakam.presto.stream.AvroRecordBatch;
+import org.rakam.presto.stream.ExpressionCompiler.BatchFilter;
+import org.rakam.util.AvroUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Tails the topic of a collection and fans the decoded records out to the stream subscribers of the collection.
+ * There is only one tailer for each collection no matter how many subscribers it has, so the messages are fetched
+ * and decoded once and the records are encoded once for the subscribers that want all the columns. The filters of
+ * the subscribers are evaluated on the records of each fetch as a batch.
+ * <p>
+ * The tailer starts from the latest offsets, the events that are stored before the subscription are not sent.
+ */
+public class KafkaCollectionTailer
+        implements Runnable
+{
+    private final static Logger LOGGER = Logger.get(KafkaCollectionTailer.class);
+    private static final int FETCH_SIZE = 1024 * 1024;
+    private static final int MAX_WAIT_MILLIS = 500;
+    private static final long RETRY_INTERVAL_MILLIS = 1000;
+    private static final long SCHEMA_REFRESH_INTERVAL_MILLIS = 10000;
+
+    private final String project;
+    private final String collection;
+    private final String topic;
+    private final KafkaOffsetManager offsetManager;
+    private final KafkaConfig config;
+    private final Metastore metastore;
+    private final Set<String> sourceFields;
+    private final List<Listener> listeners;
+
+    // the fields below are only accessed by the tailer thread except the initial schema
+    private final Map<HostAndPort, SimpleConsumer> consumers;
+    private final Map<Integer, Long> offsets;
+    private Map<Integer, HostAndPort> leaders;
+    private volatile List<SchemaField> fields;
+    private Schema schema;
+    private List<GenericDatumReader<Object>> readers;
+    private long schemaLoadedAt;
+    private BinaryDecoder decoder;
+    private volatile boolean running;
+
+    public KafkaCollectionTailer(String project, String collection, KafkaOffsetManager offsetManager, KafkaConfig config, Metastore metastore, Set<String> sourceFields)
+    {
+        this.project = project;
+        this.collection = collection;
+        this.topic = project + "_" + collection;
+        this.offsetManager = offsetManager;
+        this.config = config;
+        this.metastore = metastore;
+        this.sourceFields = sourceFields;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.consumers = new HashMap<>();
+        this.offsets = new HashMap<>();
+        this.running = true;
+        loadSchema();
+    }
+
+    /**
+     * The fields of the records in order, the filters of the subscribers should be compiled against these fields.
+     * The new fields are only appended so the positions of the fields don't change.
+     */
+    public List<SchemaField> getFields()
+    {
+        return fields;
+    }
+
+    public void add(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void remove(KafkaSubscription subscription)
+    {
+        listeners.removeIf(listener -> listener.subscription == subscription);
+    }
+
+    public boolean isEmpty()
+    {
+        return listeners.isEmpty();
+    }
+
+    public void stop()
+    {
+        running = false;
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            while (running) {
+                try {
+                    if (leaders == null) {
+                        leaders = offsetManager.getPartitionLeaders(topic);
+                        for (Map.Entry<Integer, HostAndPort> entry : leaders.entrySet()) {
+                            if (!offsets.containsKey(entry.getKey())) {
+                                offsets.put(entry.getKey(), offsetManager.getLatestOffset(entry.getValue(), topic, entry.getKey()));
+                            }
+                        }
+                    }
+
+                    if (leaders.isEmpty()) {
+                        // the topic is not created yet
+                        leaders = null;
+                        Thread.sleep(RETRY_INTERVAL_MILLIS);
+                        continue;
+                    }
+
+                    for (Map.Entry<Integer, HostAndPort> entry : leaders.entrySet()) {
+                        fetch(entry.getKey(), entry.getValue());
+                    }
+                }
+                catch (InterruptedException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    LOGGER.warn(e, "Error while tailing topic %s", topic);
+                    // the leaders may be changed
+                    leaders = null;
+                    closeConsumers();
+                    Thread.sleep(RETRY_INTERVAL_MILLIS);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            closeConsumers();
+        }
+    }
+
+    private void fetch(int partition, HostAndPort leader)
+    {
+        long offset = offsets.get(partition);
+        FetchRequest request = new FetchRequestBuilder()
+                .clientId("rakam-stream-" + topic)
+                .addFetch(topic, partition, offset, FETCH_SIZE)
+                .maxWait(MAX_WAIT_MILLIS)
+                .minBytes(1)
+                .build();
+
+        FetchResponse response = getConsumer(leader).fetch(request);
+        if (response.hasError()) {
+            short errorCode = response.errorCode(topic, partition);
+            if (errorCode == ErrorMapping.OffsetOutOfRangeCode()) {
+                offsets.put(partition, offsetManager.getLatestOffset(leader, topic, partition));
+                return;
+            }
+            throw new IllegalStateException(format("Fetch from %s failed with error code %d", leader, errorCode));
+        }
+
+        List<GenericRecord> records = new ArrayList<>();
+        for (MessageAndOffset messageAndOffset : response.messageSet(topic, partition)) {
+            // the compressed message sets may contain the messages before the requested offset
+            if (messageAndOffset.offset() < offset) {
+                continue;
+            }
+            offset = messageAndOffset.nextOffset();
+
+            if (listeners.isEmpty()) {
+                continue;
+            }
+
+            GenericRecord record;
+            try {
+                record = decode(messageAndOffset.message().payload());
+            }
+            catch (IOException | RuntimeException e) {
+                LOGGER.warn(e, "Unable to decode message %d of %s", messageAndOffset.offset(), topic);
+                continue;
+            }
+            records.add(record);
+        }
+
+        if (!records.isEmpty()) {
+            dispatch(records);
+        }
+        offsets.put(partition, offset);
+    }
+
+    private GenericRecord decode(ByteBuffer payload)
+            throws IOException
+    {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+
+        GenericRecord record = decode(bytes);
+        if (!decoder.isEnd() && System.currentTimeMillis() - schemaLoadedAt > SCHEMA_REFRESH_INTERVAL_MILLIS) {
+            // the message has the fields that are added after the schema is loaded
+            loadSchema();
+            record = decode(bytes);
+        }
+        return record;
+    }
+
+    private GenericRecord decode(byte[] bytes)
+            throws IOException
+    {
+        decoder = DecoderFactory.get().binaryDecoder(bytes, decoder);
+        GenericData.Record record = new GenericData.Record(schema);
+        for (int i = 0; i < readers.size(); i++) {
+            if (decoder.isEnd()) {
+                // the message is written before the rest of the fields are added
+                break;
+            }
+            record.put(i, readers.get(i).read(null, decoder));
+        }
+        return record;
+    }
+
+    private void dispatch(List<GenericRecord> records)
+    {
+        // the fields are extracted from the records once for the filters of all the subscribers
+        AvroRecordBatch batch = new AvroRecordBatch(records);
+        String[] encoded = new String[records.size()];
+        int[] selectedPositions = new int[records.size()];
+
+        for (Listener listener : listeners) {
+            try {
+                int selected;
+                if (listener.filter == null) {
+                    for (int i = 0; i < selectedPositions.length; i++) {
+                        selectedPositions[i] = i;
+                    }
+                    selected = selectedPositions.length;
+                }
+                else {
+                    selected = listener.filter.filter(batch, selectedPositions);
+                }
+
+                for (int i = 0; i < selected; i++) {
+                    int position = selectedPositions[i];
+                    GenericRecord record = batch.getRecord(position);
+                    if (listener.columns == null) {
+                        if (encoded[position] == null) {
+                            encoded[position] = StreamEventEncoder.encode(collection, record, null);
+                        }
+                        listener.subscription.offer(encoded[position]);
+                    }
+                    else {
+                        listener.subscription.offer(StreamEventEncoder.encode(collection, record, listener.columns));
+                    }
+                }
+            }
+            catch (Exception e) {
+                LOGGER.warn(e, "Error while sending records of %s to the subscriber", topic);
+            }
+        }
+    }
+
+    private void loadSchema()
+    {
+        List<SchemaField> fields = metastore.getCollection(project, collection).stream()
+                .filter(field -> !sourceFields.contains(field.getName()))
+                .collect(Collectors.toList());
+
+        this.schema = AvroUtil.convertAvroSchema(fields);
+        this.readers = schema.getFields().stream()
+                .map(field -> new GenericDatumReader<Object>(field.schema()))
+                .collect(Collectors.toList());
+        this.schemaLoadedAt = System.currentTimeMillis();
+        this.fields = fields;
+    }
+
+    private SimpleConsumer getConsumer(HostAndPort leader)
+    {
+        return consumers.computeIfAbsent(leader, host -> new SimpleConsumer(host.getHostText(),
+                host.getPort(),
+                (int) config.getKafkaConnectTimeout().toMillis() + MAX_WAIT_MILLIS,
+                (int) config.getKafkaBufferSize().toBytes(),
+                "rakam-stream-" + topic));
+    }
+
+    private void closeConsumers()
+    {
+        for (SimpleConsumer consumer : consumers.values()) {
+            try {
+                consumer.close();
+            }
+            catch (Exception e) {
+                LOGGER.warn(e, "Error while closing consumer of %s", topic);
+            }
+        }
+        consumers.clear();
+    }
+
+    public static class Listener
+    {
+        public final KafkaSubscription subscription;
+        public final BatchFilter filter;
+        public final Set<String> columns;
+
+        public Listener(KafkaSubscription subscription, BatchFilter filter, Set<String> columns)
+        {
+            this.subscription = subscription;
+            this.filter = filter;
+            this.columns = columns;
+        }
+    }
+}
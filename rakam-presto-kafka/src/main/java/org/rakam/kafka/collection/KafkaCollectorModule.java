@@ -1,8 +1,13 @@
 package org.rakam.kafka.collection;
 
+import com.facebook.presto.metadata.Metadata;
+import com.facebook.presto.metadata.MetadataManager;
+import com.facebook.presto.transaction.TransactionManager;
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
+import com.google.inject.Scopes;
 import com.google.inject.name.Names;
+import org.rakam.collection.CountingEventStore;
 import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.stream.EventStream;
@@ -20,8 +25,12 @@ public class KafkaCollectorModule extends RakamModule  {
                 .annotatedWith(Names.named("event.store.kafka"))
                 .prefixedWith("event.store.kafka")
                 .to(KafkaConfig.class);
-        binder.bind(EventStore.class).to(KafkaEventStore.class);
+        binder.bind(EventStore.class).toProvider(CountingEventStore.provider(KafkaEventStore.class)).in(Scopes.SINGLETON);
         binder.bind(EventStream.class).to(KafkaStream.class);
+
+        // used by the expression compiler of the stream filters
+        binder.bind(TransactionManager.class).toInstance(TransactionManager.createTestTransactionManager());
+        binder.bind(Metadata.class).toInstance(MetadataManager.createTestMetadataManager());
     }
 
     @Override
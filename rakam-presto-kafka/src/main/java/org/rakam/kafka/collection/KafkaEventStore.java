@@ -1,5 +1,8 @@
 package org.rakam.kafka.collection;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Sets;
 import com.google.common.net.HostAndPort;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -13,6 +16,7 @@ import kafka.common.FailedToSendMessageException;
 import kafka.javaapi.producer.Producer;
 import kafka.producer.KeyedMessage;
 import kafka.producer.ProducerConfig;
+import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.SourceFilteredRecordWriter;
@@ -49,6 +53,8 @@ public class KafkaEventStore implements SyncEventStore, LeaderSelectorListener {
 
     private final Producer<byte[], byte[]> producer;
     private final Set<String> sourceFields;
+    // the schemas of the events are interned so the writers are shared by the events of the same collection
+    private final LoadingCache<Schema, GenericDatumWriter> writers;
     private ScheduledExecutorService executorService;
 
     @Inject
@@ -57,6 +63,8 @@ public class KafkaEventStore implements SyncEventStore, LeaderSelectorListener {
         this.sourceFields = Sets.union(fieldDependency.dependentFields.keySet(),
                 fieldDependency.constantFields.stream().map(SchemaField::getName)
                         .collect(Collectors.toSet()));
+        this.writers = CacheBuilder.newBuilder().weakKeys().build(CacheLoader.from(schema ->
+                new SourceFilteredRecordWriter(schema, GenericData.get(), sourceFields)));
 
         Properties props = new Properties();
         props.put("metadata.broker.list", config.getNodes().stream().map(HostAndPort::toString).collect(Collectors.joining(",")));
@@ -81,7 +89,7 @@ public class KafkaEventStore implements SyncEventStore, LeaderSelectorListener {
 
     @Override
     public void store(Event event) {
-        GenericDatumWriter writer = new SourceFilteredRecordWriter(event.properties().getSchema(), GenericData.get(), sourceFields);
+        GenericDatumWriter writer = writers.getUnchecked(event.properties().getSchema());
         ByteBuf buffer = Unpooled.buffer(100);
 
         BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(
@@ -1,5 +1,6 @@
 package org.rakam.kafka.collection;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.net.HostAndPort;
 import com.google.inject.Singleton;
@@ -46,6 +47,31 @@ public class KafkaOffsetManager {
                 .map(col -> project+"_"+col.toLowerCase()).collect(Collectors.toList()));
     }
 
+    public Map<Integer, HostAndPort> getPartitionLeaders(String topic) {
+        ArrayList<HostAndPort> nodes = new ArrayList<>(config.getNodes());
+        Collections.shuffle(nodes);
+
+        SimpleConsumer simpleConsumer = consumerManager.getConsumer(nodes.get(0));
+        TopicMetadataResponse topicMetadataResponse = simpleConsumer.send(new TopicMetadataRequest(ImmutableList.of(topic)));
+
+        ImmutableMap.Builder<Integer, HostAndPort> builder = ImmutableMap.builder();
+        for (TopicMetadata metadata : topicMetadataResponse.topicsMetadata()) {
+            for (PartitionMetadata part : metadata.partitionsMetadata()) {
+                Broker leader = part.leader();
+                if (leader == null) { // Leader election going on...
+                    LOGGER.warn(format("No leader for partition %s/%s found!", metadata.topic(), part.partitionId()));
+                } else {
+                    builder.put(part.partitionId(), HostAndPort.fromParts(leader.host(), leader.port()));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    public long getLatestOffset(HostAndPort leader, String topic, int partitionId) {
+        return findAllOffsets(consumerManager.getConsumer(leader), topic, partitionId)[0];
+    }
+
     private Map<String, Long> getTopicOffsets(List<String> topics) {
         ArrayList<HostAndPort> nodes = new ArrayList<>(config.getNodes());
         Collections.shuffle(nodes);
@@ -1,158 +1,204 @@
 package org.rakam.kafka.collection;
 
-import org.rakam.collection.SchemaField;
+import com.facebook.presto.spi.type.Type;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Expression;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.SchemaField;
+import org.rakam.kafka.collection.KafkaCollectionTailer.Listener;
 import org.rakam.plugin.stream.CollectionStreamQuery;
 import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.stream.StreamResponse;
-import org.rakam.presto.analysis.PrestoConfig;
-import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.presto.stream.ExpressionCompiler;
+import org.rakam.presto.stream.ExpressionCompiler.BatchFilter;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
-import static java.lang.String.format;
+import static org.rakam.presto.analysis.PrestoMetastore.toType;
 
+/**
+ * Streams the events by tailing the Kafka topics of the collections. The topic of a collection is consumed by a single
+ * {@link KafkaCollectionTailer} that is shared by all the subscribers of the collection and it's stopped when the last
+ * subscriber leaves.
+ */
+@Singleton
 public class KafkaStream implements EventStream {
+    private static final int MAXIMUM_QUEUE_CAPACITY = 1000;
 
     private final KafkaOffsetManager offsetManager;
-    private final PrestoQueryExecutor prestoExecutor;
-    private final PrestoConfig prestoConfig;
+    private final KafkaConfig config;
     private final Metastore metastore;
+    private final ExpressionCompiler expressionCompiler;
+    private final Set<String> sourceFields;
+    private final Map<String, KafkaCollectionTailer> tailers;
+    private final ExecutorService executor;
+    private final SqlParser sqlParser = new SqlParser();
 
     @Inject
-    public KafkaStream(KafkaOffsetManager offsetManager, Metastore metastore, PrestoQueryExecutor prestoExecutor, PrestoConfig prestoConfig) {
+    public KafkaStream(KafkaOffsetManager offsetManager, @Named("event.store.kafka") KafkaConfig config, Metastore metastore, ExpressionCompiler expressionCompiler, FieldDependencyBuilder.FieldDependency fieldDependency) {
         this.offsetManager = offsetManager;
-        this.prestoExecutor = prestoExecutor;
-        this.prestoConfig = prestoConfig;
+        this.config = config;
         this.metastore = metastore;
+        this.expressionCompiler = expressionCompiler;
+        // the source fields are not written to Kafka, see KafkaEventStore
+        this.sourceFields = ImmutableSet.copyOf(Sets.union(fieldDependency.dependentFields.keySet(),
+                fieldDependency.constantFields.stream().map(SchemaField::getName)
+                        .collect(Collectors.toSet())));
+        this.tailers = new ConcurrentHashMap<>();
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("kafka-stream-tailer-%d")
+                .setDaemon(true)
+                .build());
     }
 
     @Override
     public EventStreamer subscribe(String project, List<CollectionStreamQuery> collections, List<String> columns, StreamResponse response) {
-        return new KafkaEventSupplier(project, collections, columns, response);
+        KafkaSubscription subscription = new KafkaSubscription();
+        Set<String> columnSet = columns == null ? null : ImmutableSet.copyOf(columns);
+
+        for (CollectionStreamQuery query : collections) {
+            Expression expression;
+            synchronized (sqlParser) {
+                expression = query.getFilter() == null ? null : sqlParser.createExpression(query.getFilter());
+            }
+
+            tailers.compute(project + "_" + query.getCollection(), (topic, tailer) -> {
+                if (tailer == null) {
+                    tailer = new KafkaCollectionTailer(project, query.getCollection(), offsetManager, config, metastore, sourceFields);
+                    executor.execute(tailer);
+                }
+
+                // the filter is compiled against the fields of the tailer so that the field positions match
+                BatchFilter filter = null;
+                if (expression != null) {
+                    List<Map.Entry<String, Type>> fields = tailer.getFields().stream()
+                            .map(f -> new SimpleImmutableEntry<>(f.getName(), toType(f.getType())))
+                            .collect(Collectors.toList());
+                    filter = expressionCompiler.generateBatch(expression, fields);
+                }
+
+                tailer.add(new Listener(subscription, filter, columnSet));
+                return tailer;
+            });
+        }
+
+        return new KafkaEventSupplier(project, collections, subscription, response);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        tailers.values().forEach(KafkaCollectionTailer::stop);
+        executor.shutdownNow();
     }
 
     public class KafkaEventSupplier implements EventStreamer {
-        private final StreamResponse response;
-        private Map<String, Long> lastOffsets;
-        private final List<CollectionStreamQuery> collections;
-        private final Set<String> collectionNames;
         private final String project;
-        private final List<SchemaField> columns;
-
-        private Map<String, List<SchemaField>> metadata;
-
-        public KafkaEventSupplier(String project, List<CollectionStreamQuery> collections, List<String> columns, StreamResponse response) {
-            this.collectionNames = collections.stream().map(c -> c.getCollection()).collect(Collectors.toSet());
+        private final List<CollectionStreamQuery> collections;
+        private final KafkaSubscription subscription;
+        private final StreamResponse response;
 
-            this.lastOffsets = offsetManager.getOffset(project, collectionNames);
-            this.collections = collections;
+        public KafkaEventSupplier(String project, List<CollectionStreamQuery> collections, KafkaSubscription subscription, StreamResponse response) {
             this.project = project;
-            List<SchemaField> sample = getMetadata().get(collections.get(0));
-
-            if (columns != null) {
-                this.columns = columns.stream().map(colName -> sample.stream()
-                        .filter(field -> field.getName().equals(colName)).findFirst().get())
-                        .collect(Collectors.toList());
-            } else {
-                this.columns = null;
-            }
-
+            this.collections = collections;
+            this.subscription = subscription;
             this.response = response;
         }
 
-        private Map<String, List<SchemaField>> getMetadata() {
-            if (metadata == null) {
-                metadata = metastore.getCollections(project).entrySet().stream()
-                        .filter(entry -> collectionNames.contains(entry.getKey()))
-                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-            }
-            return metadata;
-        }
-
         @Override
         public void sync() {
-            Map<String, Long> offsets = offsetManager.getOffset(project, collectionNames);
-
-            String query = collections.stream().map(e -> {
-                String select;
-
-                List<SchemaField> cols = columns != null ? columns : getMetadata().get(e.getCollection());
-                select = String.format("'{\"_collection\": \"%s\",'||'", e.getCollection()) + cols.stream()
-                        .map(field -> {
-                            switch (field.getType()) {
-                                case LONG:
-                                case DOUBLE:
-                                case INTEGER:
-                                case DECIMAL:
-                                case BOOLEAN:
-                                    return format("\"%1$s\": '||COALESCE(cast(%1$s as varchar), 'null')||'", field.getName());
-                                default:
-                                    return format("\"%1$s\": \"'||COALESCE(replace(try_cast(%1$s as varchar), '\n', '\\n'), 'null')||'\"", field.getName());
-                            }
-
-                        })
-                        .collect(Collectors.joining(", ")) + " }'";
-
-
-                long offsetNow = offsets.get(project + "_" + e.getCollection().toLowerCase());
-                long offsetBefore = this.lastOffsets.get(project + "_" + e.getCollection().toLowerCase());
-                if (offsetBefore == offsetNow) {
-                    return null;
-                }
-                return format("select %s from %s where _offset > %d and _offset <= %d %s",
-                        select,
-                        prestoConfig.getHotStorageConnector() + "." + project + "." + e.getCollection(),
-                        offsetBefore,
-                        offsetNow,
-                        e.getFilter() == null ? "" : " AND " + e.getFilter().toString());
-
-            }).filter(d -> d != null).collect(Collectors.joining(" union all "));
+            long dropped = subscription.getAndResetDropped();
+            if (dropped > 0) {
+                response.send("dropped", Long.toString(dropped));
+            }
 
-            if (query.isEmpty())
+            String message = subscription.poll();
+            if (message == null) {
                 return;
+            }
+
+            StringBuilder builder = new StringBuilder("[");
+            boolean isFirst = true;
+            while (message != null) {
+                if (!isFirst) {
+                    builder.append(",");
+                }
+                builder.append(message);
+                isFirst = false;
+                message = subscription.poll();
+            }
+            builder.append("]");
 
-            prestoExecutor.executeRawQuery(query + " limit 1000").getResult()
-                    .thenAccept(r -> {
-                        lastOffsets = offsets;
-                        response.send("data", "[" + r.getResult().stream()
-                                .map(s -> (String) s.get(0)).collect(Collectors.joining(",")) + "]");
-                    });
+            response.send("data", builder.toString());
         }
 
         @Override
         public void shutdown() {
+            for (CollectionStreamQuery query : collections) {
+                tailers.computeIfPresent(project + "_" + query.getCollection(), (topic, tailer) -> {
+                    tailer.remove(subscription);
+                    if (tailer.isEmpty()) {
+                        tailer.stop();
+                        return null;
+                    }
+                    return tailer;
+                });
+            }
+        }
+    }
+
+    public static class KafkaSubscription {
+        // The tailer threads produce and the subscriber's sync task is the only consumer.
+        private final Queue<String> messageQueue;
+        private final AtomicInteger size;
+        private final AtomicLong dropped;
 
+        public KafkaSubscription() {
+            this.messageQueue = new ConcurrentLinkedQueue<>();
+            this.size = new AtomicInteger();
+            this.dropped = new AtomicLong();
         }
 
-    }
+        public boolean offer(String encodedEvent) {
+            if (size.incrementAndGet() > MAXIMUM_QUEUE_CAPACITY) {
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+                return false;
+            }
 
-//    private Object convertPrestoValue(FieldType type, Object o) {
-//        switch (type) {
-//            case DATE:
-//                return format("date '%s'", o);
-//            case TIME:
-//                return format("time '%s'", o);
-//            case TIMESTAMP:
-//                return format("time '%s'", o);
-//            case STRING:
-//                return format("'%s'", o);
-//            case LONG:
-//                return format("%d", o);
-//            case DOUBLE:
-//                return format("%f", o);
-//            case BOOLEAN:
-//                return format("%b", o);
-//            case ARRAY_STRING:
-//                return format("ARRAY [%s]", com.google.common.base.Joiner.on(", ").join(((ArrayNode) o)));
-//            default:
-//                throw new IllegalStateException();
-//
-//        }
-//    }
+            messageQueue.offer(encodedEvent);
+            return true;
+        }
 
+        public String poll() {
+            String message = messageQueue.poll();
+            if (message != null) {
+                size.decrementAndGet();
+            }
+            return message;
+        }
+
+        public long getAndResetDropped() {
+            return dropped.getAndSet(0);
+        }
+    }
 }
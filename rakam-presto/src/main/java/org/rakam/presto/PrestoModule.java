@@ -58,6 +58,7 @@ import org.rakam.presto.plugin.EventExplorerListener;
 import org.rakam.presto.plugin.user.PrestoExternalUserStorageAdapter;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.eventexplorer.EventExplorerConfig;
+import org.rakam.report.eventexplorer.OLAPCubeConfig;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.util.ConditionalModule;
@@ -138,7 +139,8 @@ public class PrestoModule extends RakamModule {
 
         if (buildConfigObject(EventExplorerConfig.class).isEventExplorerEnabled()) {
             binder.bind(EventExplorerListener.class).asEagerSingleton();
-            binder.bind(EventExplorer.class).to(PrestoEventExplorer.class);
+            configBinder(binder).bindConfig(OLAPCubeConfig.class);
+            binder.bind(EventExplorer.class).to(PrestoEventExplorer.class).in(Scopes.SINGLETON);
         }
         UserPluginConfig userPluginConfig = buildConfigObject(UserPluginConfig.class);
 
@@ -16,8 +16,10 @@ package org.rakam.presto.analysis;
 import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.metadata.Metastore;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.eventexplorer.AbstractEventExplorer;
+import org.rakam.report.eventexplorer.OLAPCubeConfig;
 import org.rakam.report.realtime.AggregationType;
 
 import javax.inject.Inject;
@@ -41,10 +43,15 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
             .put(YEAR, "date_trunc('year', %s)")
             .build();
 
+    public PrestoEventExplorer(QueryExecutorService executor, ContinuousQueryService continuousQueryService,
+                               MaterializedViewService materializedViewService, Metastore metastore) {
+        this(executor, continuousQueryService, materializedViewService, metastore, new OLAPCubeConfig());
+    }
+
     @Inject
     public PrestoEventExplorer(QueryExecutorService executor, ContinuousQueryService continuousQueryService,
-                               MaterializedViewService materializedViewService) {
-        super(executor, materializedViewService, continuousQueryService, timestampMapping);
+                               MaterializedViewService materializedViewService, Metastore metastore, OLAPCubeConfig cubeConfig) {
+        super(executor, materializedViewService, continuousQueryService, metastore, cubeConfig, timestampMapping);
     }
 
     @Override
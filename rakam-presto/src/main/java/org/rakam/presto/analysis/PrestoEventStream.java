@@ -1,9 +1,13 @@
 package org.rakam.presto.analysis;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.airlift.http.client.HttpClient;
 import io.airlift.http.client.JsonBodyGenerator;
 import io.airlift.http.client.Request;
-import io.airlift.http.client.StringResponseHandler;
+import io.airlift.http.client.StringResponseHandler.StringResponse;
 import io.airlift.json.JsonCodec;
 import io.airlift.log.Logger;
 import org.rakam.aws.kinesis.AWSKinesisModule;
@@ -18,10 +22,13 @@ import javax.ws.rs.core.UriBuilder;
 
 import java.net.URI;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.net.MediaType.JSON_UTF_8;
 import static io.airlift.http.client.Request.Builder.*;
+import static io.airlift.http.client.StringResponseHandler.createStringResponseHandler;
+import static java.lang.String.format;
 import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
 
 public class PrestoEventStream
@@ -46,62 +53,128 @@ public class PrestoEventStream
     @Override
     public EventStreamer subscribe(String project, List<CollectionStreamQuery> collections, List<String> columns, StreamResponse response)
     {
-
         StreamQuery query = new StreamQuery(project, collections);
 
-        URI uri = UriBuilder.fromUri(prestoAddress)
-                .port(streamingPort)
-                .path("connector/streamer")
-                .build();
-
         Request request = preparePost()
-                .setUri(uri)
+                .setUri(streamerUri(null))
                 .setHeader(CONTENT_TYPE, JSON_UTF_8.toString())
                 .setBodyGenerator(JsonBodyGenerator.jsonBodyGenerator(queryCodec, query))
                 .build();
 
-        String ticket = httpClient.execute(request, StringResponseHandler.createStringResponseHandler()).getBody();
+        // sync and shutdown are called from the event loop of the HTTP server so none of the requests to the
+        // streamer should block the caller.
+        ListenableFuture<StringResponse> ticket = httpClient.executeAsync(request, createStringResponseHandler());
 
         return new EventStreamer()
         {
-            private AtomicInteger failed = new AtomicInteger();
+            private final AtomicInteger failed = new AtomicInteger();
+            // there is at most one fetch request at a time, the ticks are skipped while the streamer is responding
+            private final AtomicBoolean fetching = new AtomicBoolean();
+            private volatile boolean closed;
 
             @Override
-            public synchronized void sync()
+            public void sync()
             {
-                try {
-                    URI uri = UriBuilder.fromUri(prestoAddress)
-                            .port(streamingPort)
-                            .path("connector/streamer")
-                            .queryParam("ticket", ticket)
-                            .build();
-
-                    Request request = prepareGet().setUri(uri).build();
-                    String data = httpClient.execute(request, StringResponseHandler.createStringResponseHandler()).getBody();
+                if (closed || !ticket.isDone() || !fetching.compareAndSet(false, true)) {
+                    return;
+                }
 
-                    response.send("data", data);
+                String ticketId;
+                try {
+                    ticketId = getTicket();
                 }
                 catch (Exception e) {
-                    if (failed.incrementAndGet() > 5) {
-                        LOGGER.error(e, "Error while streaming records to client");
-                        shutdown();
-                    }
+                    LOGGER.error(e, "Unable to subscribe to the streamer");
+                    closed = true;
+                    response.end();
+                    return;
                 }
+
+                Request request = prepareGet().setUri(streamerUri(ticketId)).build();
+                Futures.addCallback(httpClient.executeAsync(request, createStringResponseHandler()), new FutureCallback<StringResponse>()
+                {
+                    @Override
+                    public void onSuccess(StringResponse result)
+                    {
+                        fetching.set(false);
+                        if (result.getStatusCode() != 200) {
+                            onFailure(new IllegalStateException(format("Streamer returned %d: %s", result.getStatusCode(), result.getBody())));
+                            return;
+                        }
+
+                        failed.set(0);
+                        if (!closed && !response.isClosed()) {
+                            response.send("data", result.getBody());
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e)
+                    {
+                        fetching.set(false);
+                        if (failed.incrementAndGet() > 5) {
+                            LOGGER.error(e, "Error while streaming records to client");
+                            shutdown();
+                            response.end();
+                        }
+                    }
+                });
             }
 
             @Override
             public void shutdown()
             {
-                URI uri = UriBuilder.fromUri(prestoAddress)
-                        .port(streamingPort)
-                        .path("connector/streamer")
-                        .queryParam("ticket", ticket)
-                        .build();
-
-                Request request = prepareDelete().setUri(uri).build();
-                httpClient.execute(request, StringResponseHandler.createStringResponseHandler());
+                if (closed) {
+                    return;
+                }
+                closed = true;
+
+                ticket.addListener(() -> {
+                    String ticketId;
+                    try {
+                        ticketId = getTicket();
+                    }
+                    catch (Exception e) {
+                        return;
+                    }
+
+                    Request request = prepareDelete().setUri(streamerUri(ticketId)).build();
+                    Futures.addCallback(httpClient.executeAsync(request, createStringResponseHandler()), new FutureCallback<StringResponse>()
+                    {
+                        @Override
+                        public void onSuccess(StringResponse result)
+                        {
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e)
+                        {
+                            LOGGER.warn(e, "Unable to unsubscribe from the streamer");
+                        }
+                    });
+                }, MoreExecutors.directExecutor());
+            }
+
+            private String getTicket()
+                    throws Exception
+            {
+                StringResponse result = ticket.get();
+                if (result.getStatusCode() != 200) {
+                    throw new IllegalStateException(format("Streamer returned %d: %s", result.getStatusCode(), result.getBody()));
+                }
+                return result.getBody();
             }
         };
     }
-}
 
+    private URI streamerUri(String ticket)
+    {
+        UriBuilder builder = UriBuilder.fromUri(prestoAddress)
+                .port(streamingPort)
+                .path("connector/streamer");
+        if (ticket != null) {
+            builder.queryParam("ticket", ticket);
+        }
+        return builder.build();
+    }
+}
@@ -111,6 +111,7 @@ public class PrestoMaterializedViewService
             }
             else {
                 database.createMaterializedView(project, materializedView);
+                notifyChange(project);
             }
         });
     }
@@ -120,6 +121,7 @@ public class PrestoMaterializedViewService
     {
         MaterializedView materializedView = database.getMaterializedView(project, name);
         database.deleteMaterializedView(project, name);
+        notifyChange(project);
         String reference = queryExecutor.formatTableReference(project, QualifiedName.of("materialized", materializedView.tableName), Optional.empty(), ImmutableMap.of(), "collection");
         return queryExecutor.executeRawQuery(format("DROP TABLE %s",
                 reference)).getResult().thenApply(result -> {
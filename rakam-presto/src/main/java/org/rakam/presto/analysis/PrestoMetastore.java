@@ -375,8 +375,9 @@ public class PrestoMetastore
         super.onDeleteProject(project);
     }
 
+    // the row counts of the Raptor shards, it's used until the project is counted by the ingestion counter
     @Override
-    public Map<String, Stats> getStats(Collection<String> projects)
+    protected Map<String, Stats> getStoredStats(Collection<String> projects)
     {
         if (projects.isEmpty()) {
             return ImmutableMap.of();
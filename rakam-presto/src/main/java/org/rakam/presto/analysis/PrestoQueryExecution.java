@@ -19,6 +19,7 @@ import com.facebook.presto.jdbc.internal.guava.net.HostAndPort;
 import com.facebook.presto.jdbc.internal.guava.net.HttpHeaders;
 import com.facebook.presto.jdbc.internal.spi.type.StandardTypes;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -27,6 +28,7 @@ import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
+import org.rakam.report.QueryResultConsumer;
 import org.rakam.report.QueryStats;
 import org.rakam.util.LogUtil;
 import org.rakam.util.RakamException;
@@ -98,11 +100,22 @@ public class PrestoQueryExecution
 
     private StatementClient client;
     private final Instant startTime;
+    private final QueryResultConsumer consumer;
 
     public PrestoQueryExecution(ClientSession session, String query)
+    {
+        this(session, query, null);
+    }
+
+    /**
+     * If the consumer is not null, the rows are handed to it as they're fetched from Presto and
+     * the result doesn't include the rows.
+     */
+    public PrestoQueryExecution(ClientSession session, String query, QueryResultConsumer consumer)
     {
         this.startTime = Instant.now();
         this.query = query;
+        this.consumer = consumer;
         try {
             QUERY_EXECUTOR.execute(new QueryTracker(session));
         }
@@ -305,6 +318,8 @@ public class PrestoQueryExecution
                 }
             }
             catch (Exception e) {
+                // the consumer may fail while the query is still running
+                client.close();
                 QueryError queryError = QueryError.create(e.getMessage());
                 LogUtil.logQueryError(query, queryError, PrestoQueryExecutor.class);
                 result.complete(QueryResult.errorResult(queryError, query));
@@ -327,6 +342,10 @@ public class PrestoQueryExecution
                                             .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
                         })
                         .collect(Collectors.toList());
+
+                if (consumer != null) {
+                    consumer.metadata(columns);
+                }
             }
 
             if (result.getData() == null) {
@@ -370,6 +389,11 @@ public class PrestoQueryExecution
 
                 data.add(Arrays.asList(row));
             }
+
+            if (consumer != null && !data.isEmpty()) {
+                consumer.page(ImmutableList.copyOf(data));
+                data.clear();
+            }
         }
     }
 }
@@ -24,8 +24,11 @@ import org.rakam.presto.PrestoModule.UserConfig;
 import org.rakam.analysis.datasource.CustomDataSource;
 import org.rakam.analysis.datasource.JDBCSchemaConfig;
 import org.rakam.analysis.datasource.SupportedCustomDatabase;
+import org.rakam.report.AggregationFunctionNames;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryResultConsumer;
 import org.rakam.report.QuerySampling;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
@@ -39,6 +42,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -67,6 +71,7 @@ public class PrestoQueryExecutor
     private final JDBCConfig userJdbcConfig;
     private ClientSession defaultSession;
     private SqlParser sqlParser = new SqlParser();
+    private final AggregationFunctionNames aggregationFunctions = new AggregationFunctionNames(this::getAggregationFunctions);
 
     @Inject
     public PrestoQueryExecutor(
@@ -98,6 +103,26 @@ public class PrestoQueryExecutor
         return internalExecuteRawQuery(query, defaultSession);
     }
 
+    @Override
+    public boolean isAggregationFunction(String name)
+    {
+        return aggregationFunctions.contains(name);
+    }
+
+    private Set<String> getAggregationFunctions()
+    {
+        QueryResult result = executeRawQuery("SHOW FUNCTIONS").getResult().join();
+        if (result.isFailed()) {
+            throw new IllegalStateException("Unable to fetch the functions: " + result.getError().message);
+        }
+
+        // the columns are Function, Return Type, Argument Types, Function Type, ...
+        return result.getResult().stream()
+                .filter(row -> "aggregate".equals(row.get(3)))
+                .map(row -> row.get(0).toString().toLowerCase(Locale.ENGLISH))
+                .collect(Collectors.toSet());
+    }
+
     @Override
     public QueryExecution executeRawQuery(String query, Map<String, String> sessionProperties)
     {
@@ -112,7 +137,12 @@ public class PrestoQueryExecutor
 
     public QueryExecution executeRawStatement(String query, Map<String, String> sessionProperties, String catalog)
     {
-        return internalExecuteRawQuery(query, new ClientSession(
+        return internalExecuteRawQuery(query, createSession(sessionProperties, catalog));
+    }
+
+    private ClientSession createSession(Map<String, String> sessionProperties, String catalog)
+    {
+        return new ClientSession(
                 prestoConfig.getAddress(),
                 "rakam",
                 "api-server",
@@ -121,7 +151,7 @@ public class PrestoQueryExecutor
                 TimeZone.getDefault().getID(),
                 Locale.ENGLISH,
                 sessionProperties,
-                null, false, new Duration(1, TimeUnit.MINUTES)));
+                null, false, new Duration(1, TimeUnit.MINUTES));
     }
 
     public QueryExecution executeRawQuery(String query, Map<String, String> sessionProperties, String catalog)
@@ -194,6 +224,22 @@ public class PrestoQueryExecutor
         return new PostgresqlQueryExecution(() -> source.getDataSource().openConnection(convert), builder.toString(), false);
     }
 
+    @Override
+    public boolean canStreamRawQuery(Map<String, String> sessionProperties)
+    {
+        return !sessionProperties.containsKey("external.source_options");
+    }
+
+    @Override
+    public QueryExecution streamRawQuery(String query, Map<String, String> sessionProperties, QueryResultConsumer consumer)
+    {
+        if (!canStreamRawQuery(sessionProperties)) {
+            return QueryExecutor.super.streamRawQuery(query, sessionProperties, consumer);
+        }
+
+        return new PrestoQueryExecution(createSession(sessionProperties, null), query, consumer);
+    }
+
     public PrestoQueryExecution internalExecuteRawQuery(String query, ClientSession clientSession)
     {
         return new PrestoQueryExecution(clientSession, query);
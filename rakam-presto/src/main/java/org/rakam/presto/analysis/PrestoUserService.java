@@ -2,18 +2,19 @@ package org.rakam.presto.analysis;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.Event;
-import org.rakam.collection.FieldType;
 import org.rakam.plugin.ContinuousQuery;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.plugin.user.UserStorage;
+import org.rakam.plugin.user.UserTimeline;
 import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.util.JsonHelper;
@@ -23,10 +24,9 @@ import javax.inject.Inject;
 
 import java.time.Instant;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -37,9 +37,10 @@ import static java.lang.String.format;
 import static org.apache.avro.Schema.Type.LONG;
 import static org.apache.avro.Schema.Type.NULL;
 import static org.apache.avro.Schema.Type.STRING;
-import static org.rakam.collection.FieldType.BINARY;
 import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
 import static org.rakam.util.ValidationUtil.checkProject;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
 
 public class PrestoUserService
         extends AbstractUserService
@@ -52,6 +53,8 @@ public class PrestoUserService
             new Schema.Field("merged_at", Schema.createUnion(of(Schema.create(NULL), Schema.create(LONG))), null, null)
     ));
 
+    private static final Set<String> DEFAULT_EVENT_COLUMNS = ImmutableSet.of("_time", "_session_id");
+
     private final Metastore metastore;
     private final PrestoConfig prestoConfig;
     private final PrestoQueryExecutor executor;
@@ -81,53 +84,17 @@ public class PrestoUserService
         checkNotNull(user);
         checkArgument(limit <= 1000, "Maximum 1000 events can be fetched at once.");
 
-        AtomicReference<FieldType> userType = new AtomicReference<>();
-        String sqlQuery = metastore.getCollections(project).entrySet().stream()
-                .filter(entry -> entry.getValue().stream().anyMatch(field -> field.getName().equals("_user")))
-                .filter(entry -> entry.getValue().stream().anyMatch(field -> field.getName().equals("_time")))
-                .map(entry ->
-                        format("select '%s' as collection, '{", entry.getKey()) + entry.getValue().stream()
-                                .filter(field -> {
-                                    if (field.getName().equals("_user")) {
-                                        userType.set(field.getType());
-                                        return false;
-                                    }
-                                    return true;
-                                })
-                                .filter(field -> properties.isPresent() ? properties.get().contains(field.getName())
-                                        : (field.getName().equals("_time") || field.getName().equals("_session_id")))
-                                .filter(field -> field.getType() != BINARY)
-                                .map(field -> {
-                                    if (field.getType().isNumeric()) {
-                                        return format("\"%1$s\": '|| COALESCE(cast(%1$s as varchar), 'null')||'", field.getName());
-                                    }
-                                    if (field.getType().isArray() || field.getType().isMap()) {
-                                        return format("\"%1$s\": '|| json_format(try_cast(%1$s as json)) ||'", field.getName());
-                                    }
-                                    return format("\"%1$s\": \"'|| COALESCE(replace(try_cast(%1$s as varchar), '\n', '\\n'), 'null')||'\"", field.getName());
-                                })
-                                .collect(Collectors.joining(", ")) +
-                                format(" }' as json, _time from %s where _user = %s %s",
-                                        "\"" + prestoConfig.getColdStorageConnector() + "\"" + ".\"" + project + "\"." + checkCollection(entry.getKey()),
-                                        userType.get().isNumeric() ? user : "'" + user + "'",
-                                        beforeThisTime == null ? "" : format("and _time < from_iso8601_timestamp('%s')", beforeThisTime.toString())))
-                .collect(Collectors.joining(" union all "));
-
-        if (sqlQuery.isEmpty()) {
-            return CompletableFuture.completedFuture(ImmutableList.of());
-        }
+        UserTimeline timeline = new UserTimeline(executor, (collection, fields, columns, queryLimit, cursor) -> {
+            boolean numericUser = fields.stream().anyMatch(field -> field.getName().equals("_user") && field.getType().isNumeric());
+            return format("select %s from %s where _user = %s %s order by _time desc limit %d",
+                    columns.stream().map(field -> checkTableColumn(field.getName())).collect(Collectors.joining(", ")),
+                    "\"" + prestoConfig.getColdStorageConnector() + "\"" + ".\"" + project + "\"." + checkCollection(collection),
+                    numericUser ? Long.parseLong(user) : "'" + checkLiteral(user) + "'",
+                    cursor == null ? "" : format("and _time < from_iso8601_timestamp('%s')", cursor.toString()),
+                    queryLimit);
+        });
 
-        return executor.executeRawQuery(format("select collection, json from (%s) order by _time desc limit %d", sqlQuery, limit))
-                .getResult()
-                .thenApply(result -> {
-                    if (result.isFailed()) {
-                        throw new RakamException(result.getError().message, INTERNAL_SERVER_ERROR);
-                    }
-                    List<CollectionEvent> collect = (List<CollectionEvent>) result.getResult().stream()
-                            .map(row -> new CollectionEvent((String) row.get(0), JsonHelper.read(row.get(1).toString(), Map.class)))
-                            .collect(Collectors.toList());
-                    return collect;
-                });
+        return timeline.getEvents(metastore.getCollections(project), properties, DEFAULT_EVENT_COLUMNS, limit, beforeThisTime);
     }
 
     @Override
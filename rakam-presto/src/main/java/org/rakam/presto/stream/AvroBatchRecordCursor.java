@@ -0,0 +1,140 @@
+package org.rakam.presto.stream;
+
+import com.facebook.presto.spi.RecordCursor;
+import com.facebook.presto.spi.block.Block;
+import com.facebook.presto.spi.type.Type;
+import io.airlift.slice.Slice;
+
+import java.util.List;
+
+/**
+ * Iterates over the positions of an {@link AvroRecordBatch}. The fields that have primitive types are read from the
+ * shared blocks of the batch, the others are read from the records the same way as {@link AvroRecordCursor}.
+ */
+public class AvroBatchRecordCursor
+        implements RecordCursor
+{
+    private final AvroRecordBatch batch;
+    private final List<Type> types;
+    private final int[] projections;
+    private final Block[] blocks;
+    private int position = -1;
+
+    public AvroBatchRecordCursor(AvroRecordBatch batch, List<Type> types, int[] projections)
+    {
+        this.batch = batch;
+        this.types = types;
+        this.projections = projections;
+        this.blocks = new Block[types.size()];
+    }
+
+    public int getPosition()
+    {
+        return position;
+    }
+
+    @Override
+    public long getTotalBytes()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getCompletedBytes()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getReadTimeNanos()
+    {
+        return 0;
+    }
+
+    @Override
+    public Type getType(int field)
+    {
+        return types.get(field);
+    }
+
+    @Override
+    public boolean advanceNextPosition()
+    {
+        return ++position < batch.getPositionCount();
+    }
+
+    @Override
+    public boolean getBoolean(int field)
+    {
+        Block block = getBlock(field);
+        if (block == null) {
+            return (Boolean) getObject(field);
+        }
+        return types.get(field).getBoolean(block, position);
+    }
+
+    @Override
+    public long getLong(int field)
+    {
+        Block block = getBlock(field);
+        if (block == null) {
+            return AvroRecordCursor.getLong(types.get(field), getObject(field));
+        }
+        return types.get(field).getLong(block, position);
+    }
+
+    @Override
+    public double getDouble(int field)
+    {
+        Block block = getBlock(field);
+        if (block == null) {
+            return ((Number) getObject(field)).doubleValue();
+        }
+        return types.get(field).getDouble(block, position);
+    }
+
+    @Override
+    public Slice getSlice(int field)
+    {
+        Block block = getBlock(field);
+        if (block == null) {
+            return AvroRecordCursor.getSlice(types.get(field), getObject(field));
+        }
+        return types.get(field).getSlice(block, position);
+    }
+
+    @Override
+    public Object getObject(int field)
+    {
+        return batch.getRecord(position).get(projections[field]);
+    }
+
+    @Override
+    public boolean isNull(int field)
+    {
+        Block block = getBlock(field);
+        if (block == null) {
+            return getObject(field) == null;
+        }
+        return block.isNull(position);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    private Block getBlock(int field)
+    {
+        Block block = blocks[field];
+        if (block == null) {
+            Type type = types.get(field);
+            if (!AvroRecordBatch.isSupported(type)) {
+                return null;
+            }
+            block = batch.getBlock(projections[field], type);
+            blocks[field] = block;
+        }
+        return block;
+    }
+}
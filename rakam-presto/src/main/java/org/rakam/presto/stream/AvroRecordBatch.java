@@ -0,0 +1,91 @@
+package org.rakam.presto.stream;
+
+import com.facebook.presto.spi.block.Block;
+import com.facebook.presto.spi.block.BlockBuilder;
+import com.facebook.presto.spi.block.BlockBuilderStatus;
+import com.facebook.presto.spi.type.DecimalType;
+import com.facebook.presto.spi.type.Type;
+import io.airlift.slice.Slice;
+import org.apache.avro.generic.GenericRecord;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of records of a collection in columnar form. The fields are extracted into blocks when a filter reads
+ * them for the first time, so the filters of all the subscribers of the collection share the same blocks instead of
+ * reading the records one by one. The batch is not thread-safe.
+ */
+public class AvroRecordBatch
+{
+    private final List<GenericRecord> records;
+    private final Map<Integer, Block> blocks;
+
+    public AvroRecordBatch(List<GenericRecord> records)
+    {
+        this.records = records;
+        this.blocks = new HashMap<>();
+    }
+
+    public int getPositionCount()
+    {
+        return records.size();
+    }
+
+    public GenericRecord getRecord(int position)
+    {
+        return records.get(position);
+    }
+
+    /**
+     * Returns the values of the field as a block, the type must be supported by {@link #isSupported(Type)}.
+     */
+    public Block getBlock(int field, Type type)
+    {
+        Block block = blocks.get(field);
+        if (block == null) {
+            block = buildBlock(field, type);
+            blocks.put(field, block);
+        }
+        return block;
+    }
+
+    public static boolean isSupported(Type type)
+    {
+        Class<?> javaType = type.getJavaType();
+        // the decimal values are stored as double in the records
+        return !(type instanceof DecimalType) &&
+                (javaType == long.class || javaType == double.class || javaType == boolean.class || javaType == Slice.class);
+    }
+
+    private Block buildBlock(int field, Type type)
+    {
+        BlockBuilder builder = type.createBlockBuilder(new BlockBuilderStatus(), records.size());
+        Class<?> javaType = type.getJavaType();
+
+        for (GenericRecord record : records) {
+            Object value = record.get(field);
+            if (value == null) {
+                builder.appendNull();
+            }
+            else if (javaType == long.class) {
+                type.writeLong(builder, AvroRecordCursor.getLong(type, value));
+            }
+            else if (javaType == double.class) {
+                type.writeDouble(builder, ((Number) value).doubleValue());
+            }
+            else if (javaType == boolean.class) {
+                type.writeBoolean(builder, (Boolean) value);
+            }
+            else if (javaType == Slice.class) {
+                type.writeSlice(builder, AvroRecordCursor.getSlice(type, value));
+            }
+            else {
+                throw new IllegalArgumentException("Unsupported type " + type);
+            }
+        }
+
+        return builder.build();
+    }
+}
@@ -11,14 +11,20 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package org.rakam.analysis.stream;
+package org.rakam.presto.stream;
 
 import com.facebook.presto.spi.RecordCursor;
+import com.facebook.presto.spi.type.DecimalType;
+import com.facebook.presto.spi.type.Decimals;
 import com.facebook.presto.spi.type.Type;
 import io.airlift.slice.Slice;
 import io.airlift.slice.Slices;
 import org.apache.avro.generic.GenericRecord;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class AvroRecordCursor
@@ -85,19 +91,19 @@ public class AvroRecordCursor
     @Override
     public long getLong(int field)
     {
-        return (Long) record.get(projections[field]);
+        return getLong(types.get(field), record.get(projections[field]));
     }
 
     @Override
     public double getDouble(int field)
     {
-        return (Double) record.get(projections[field]);
+        return ((Number) record.get(projections[field])).doubleValue();
     }
 
     @Override
     public Slice getSlice(int field)
     {
-        return Slices.utf8Slice((String) record.get(projections[field]));
+        return getSlice(types.get(field), record.get(projections[field]));
     }
 
     @Override
@@ -117,4 +123,31 @@ public class AvroRecordCursor
     {
 
     }
+
+    // the int fields such as date are stored as Integer and the decimal fields are stored as Double in the records
+    static long getLong(Type type, Object value)
+    {
+        if (type instanceof DecimalType) {
+            return getUnscaledValue((DecimalType) type, value).longValueExact();
+        }
+        return ((Number) value).longValue();
+    }
+
+    static Slice getSlice(Type type, Object value)
+    {
+        if (type instanceof DecimalType) {
+            return Decimals.encodeUnscaledValue(getUnscaledValue((DecimalType) type, value));
+        }
+        if (value instanceof ByteBuffer) {
+            return Slices.wrappedBuffer(((ByteBuffer) value).duplicate());
+        }
+        return Slices.utf8Slice(value.toString());
+    }
+
+    private static BigInteger getUnscaledValue(DecimalType type, Object value)
+    {
+        return BigDecimal.valueOf(((Number) value).doubleValue())
+                .setScale(type.getScale(), RoundingMode.HALF_UP)
+                .unscaledValue();
+    }
 }
@@ -1,4 +1,4 @@
-package org.rakam.analysis.stream;
+package org.rakam.presto.stream;
 
 import com.facebook.presto.Session;
 import com.facebook.presto.bytecode.Access;
@@ -105,6 +105,32 @@ public class ExpressionCompiler
         };
     }
 
+    /**
+     * Compiles the filter for the batches of records. The fields that are referenced by the filter are extracted
+     * from the batch once and shared with the other filters that are evaluated on the same batch.
+     */
+    public BatchFilter generateBatch(Expression expression, List<Map.Entry<String, Type>> columns)
+    {
+        FilterContext filterContext = analyze(expression, columns);
+
+        ImmutableList<Type> types = copyOf(filterContext.sourceTypes.values());
+        int[] projections = filterContext.projections;
+        Filter filter = filterContext.filter;
+
+        ConnectorSession connectorSession = session.toConnectorSession();
+
+        return (batch, selectedPositions) -> {
+            AvroBatchRecordCursor cursor = new AvroBatchRecordCursor(batch, types, projections);
+            int selected = 0;
+            while (cursor.advanceNextPosition()) {
+                if (filter.filter(connectorSession, cursor)) {
+                    selectedPositions[selected++] = cursor.getPosition();
+                }
+            }
+            return selected;
+        };
+    }
+
     private static class FilterContext
     {
         public final Map<Integer, Type> sourceTypes;
@@ -131,15 +157,19 @@ public class ExpressionCompiler
             @Override
             protected Void visitSymbolReference(SymbolReference node, Void context)
             {
+                Symbol symbol = new Symbol(node.getName().toString());
+                if (sourceLayout.containsKey(symbol)) {
+                    return null;
+                }
+
                 projectionExpressions.add(node);
                 int idx = sourceLayout.size();
-                sourceLayout.put(new Symbol(node.getName().toString()), idx);
+                sourceLayout.put(symbol, idx);
 
-                int index = 0;
                 for (int i = 0; i < columns.size(); i++) {
                     Map.Entry<String, Type> entry = columns.get(i);
                     if (entry.getKey().equals(node.getName())) {
-                        sourceTypes.put(index++, entry.getValue());
+                        sourceTypes.put(idx, entry.getValue());
                         projectionProxies[idx] = i;
                         break;
                     }
@@ -219,4 +249,13 @@ public class ExpressionCompiler
     {
         boolean filter(ConnectorSession session, RecordCursor cursor);
     }
+
+    public interface BatchFilter
+    {
+        /**
+         * Writes the positions of the matching records to selectedPositions in order and returns the number of them.
+         * The array must be at least as large as the batch.
+         */
+        int filter(AvroRecordBatch batch, int[] selectedPositions);
+    }
 }
@@ -63,7 +63,7 @@ public class TestPrestoEventExplorer
                 prestoQueryExecutor, metastore, queryMetadataStore);
         QueryExecutorService queryExecutorService = new QueryExecutorService(prestoQueryExecutor, metastore, materializedViewService, Clock.systemUTC(), '"');
 
-        eventExplorer = new PrestoEventExplorer(queryExecutorService, continuousQueryService, materializedViewService);
+        eventExplorer = new PrestoEventExplorer(queryExecutorService, continuousQueryService, materializedViewService, metastore);
         setupInline();
         super.setup();
         new EventExplorerListener(continuousQueryService).onCreateProject(new ProjectCreatedEvent(PROJECT_NAME));
@@ -0,0 +1,246 @@
+package org.rakam.presto.stream;
+
+import com.facebook.presto.metadata.MetadataManager;
+import com.facebook.presto.spi.type.Type;
+import com.facebook.presto.sql.analyzer.FeaturesConfig;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.transaction.TransactionManager;
+import com.google.common.collect.ImmutableList;
+import io.airlift.slice.Slice;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.time.LocalDate;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.DECIMAL;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.presto.analysis.PrestoMetastore.toType;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestExpressionCompiler
+{
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("a", LONG),
+            new SchemaField("b", STRING),
+            new SchemaField("c", DOUBLE),
+            new SchemaField("d", BOOLEAN),
+            new SchemaField("signup", DATE),
+            new SchemaField("amount", DECIMAL),
+            new SchemaField("tags", ARRAY_STRING));
+
+    private static final Schema SCHEMA = AvroUtil.convertAvroSchema(FIELDS);
+    private static final List<Map.Entry<String, Type>> COLUMNS = FIELDS.stream()
+            .map(field -> new SimpleImmutableEntry<>(field.getName(), toType(field.getType())))
+            .collect(Collectors.toList());
+
+    private final SqlParser sqlParser = new SqlParser();
+    private ExpressionCompiler compiler;
+
+    @BeforeClass
+    public void setUp()
+    {
+        compiler = new ExpressionCompiler(MetadataManager.createTestMetadataManager(),
+                TransactionManager.createTestTransactionManager(), new FeaturesConfig());
+    }
+
+    @Test
+    public void testTwoColumnFilter()
+    {
+        List<GenericRecord> records = ImmutableList.of(
+                record(2L, "x", null, null, null, null, null),
+                record(2L, "y", null, null, null, null, null),
+                record(1L, "x", null, null, null, null, null),
+                record(3L, "x", null, null, null, null, null));
+
+        assertFilter("a > 1 AND b = 'x'", records, 0, 3);
+    }
+
+    @Test
+    public void testColumnReferencedTwice()
+    {
+        List<GenericRecord> records = ImmutableList.of(
+                record(1L, null, null, null, null, null, null),
+                record(2L, null, null, null, null, null, null),
+                record(5L, null, null, null, null, null, null),
+                record(4L, null, null, null, null, null, null));
+
+        assertFilter("a > 1 AND a < 5", records, 1, 3);
+        assertFilter("a = 1 OR (b IS NULL AND a = 5)", records, 0, 2);
+    }
+
+    @Test
+    public void testNullValues()
+    {
+        List<GenericRecord> records = ImmutableList.of(
+                record(null, "x", null, null, null, null, null),
+                record(2L, null, 1.5, true, null, null, null),
+                record(null, null, null, false, null, null, null));
+
+        assertFilter("a IS NULL", records, 0, 2);
+        assertFilter("a > 1", records, 1);
+        assertFilter("b IS NOT NULL OR c > 1", records, 0, 1);
+        assertFilter("NOT d", records, 2);
+    }
+
+    @Test
+    public void testUnsupportedTypeFallback()
+    {
+        assertFalse(AvroRecordBatch.isSupported(toType(DECIMAL)));
+        assertFalse(AvroRecordBatch.isSupported(toType(ARRAY_STRING)));
+
+        List<GenericRecord> records = ImmutableList.of(
+                record(null, null, null, null, null, 5.0, null),
+                record(null, null, null, null, null, 12.0, ImmutableList.of(new Utf8("a"))),
+                record(null, null, null, null, null, null, ImmutableList.of()));
+
+        // the decimal values are read from the records and converted to the decimal type
+        assertFilter("amount > 10", records, 1);
+        assertFilter("amount IS NULL", records, 2);
+        assertFilter("tags IS NULL", records, 0);
+        assertFilter("tags IS NOT NULL AND a IS NULL", records, 1, 2);
+    }
+
+    @Test
+    public void testBatchMatchesPerRecord()
+    {
+        Random random = new Random(1);
+        List<GenericRecord> records = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            records.add(record(
+                    random.nextInt(10) == 0 ? null : (long) random.nextInt(20),
+                    random.nextInt(10) == 0 ? null : "value" + random.nextInt(5),
+                    random.nextInt(10) == 0 ? null : random.nextDouble() * 10,
+                    random.nextInt(10) == 0 ? null : random.nextBoolean(),
+                    random.nextInt(10) == 0 ? null : (int) LocalDate.of(2017, 1, 1).toEpochDay() + random.nextInt(10),
+                    random.nextInt(10) == 0 ? null : (double) random.nextInt(100),
+                    null));
+        }
+
+        List<String> expressions = ImmutableList.of(
+                "a > 10",
+                "a > 5 AND b = 'value1'",
+                "a BETWEEN 3 AND 8 OR c < 2.5",
+                "a + 1 > c",
+                "b LIKE 'value%' AND NOT d",
+                "d AND c IS NULL",
+                "signup >= DATE '2017-01-05'",
+                "amount > 50 AND a < 10",
+                "coalesce(a, 0) = 0 OR b IS NULL");
+
+        AvroRecordBatch batch = new AvroRecordBatch(records);
+        for (String expression : expressions) {
+            // the filters share the blocks of the same batch
+            assertEquals(filterBatch(expression, batch), filter(expression, records), expression);
+        }
+    }
+
+    @Test
+    public void testBatchCursorMatchesRecordCursor()
+    {
+        List<GenericRecord> records = ImmutableList.of(
+                record(1L, "x", 1.5, true, 17000, 10.0, ImmutableList.of(new Utf8("a"))),
+                record(null, null, null, null, null, null, null),
+                record(-3L, "", 0.0, false, 0, 2.4, ImmutableList.of()));
+
+        List<Type> types = COLUMNS.stream().map(Map.Entry::getValue).collect(Collectors.toList());
+        int[] projections = new int[types.size()];
+        Arrays.setAll(projections, i -> i);
+
+        AvroBatchRecordCursor batchCursor = new AvroBatchRecordCursor(new AvroRecordBatch(records), types, projections);
+        AvroRecordCursor recordCursor = new AvroRecordCursor(types, projections);
+
+        for (GenericRecord record : records) {
+            assertTrue(batchCursor.advanceNextPosition());
+            recordCursor.setRecord(record);
+
+            for (int field = 0; field < types.size(); field++) {
+                assertEquals(batchCursor.isNull(field), recordCursor.isNull(field));
+                if (recordCursor.isNull(field)) {
+                    continue;
+                }
+
+                Class<?> javaType = types.get(field).getJavaType();
+                if (javaType == long.class) {
+                    assertEquals(batchCursor.getLong(field), recordCursor.getLong(field));
+                }
+                else if (javaType == double.class) {
+                    assertEquals(batchCursor.getDouble(field), recordCursor.getDouble(field));
+                }
+                else if (javaType == boolean.class) {
+                    assertEquals(batchCursor.getBoolean(field), recordCursor.getBoolean(field));
+                }
+                else if (javaType == Slice.class) {
+                    assertEquals(batchCursor.getSlice(field), recordCursor.getSlice(field));
+                }
+                else {
+                    assertEquals(batchCursor.getObject(field), recordCursor.getObject(field));
+                }
+            }
+        }
+        assertFalse(batchCursor.advanceNextPosition());
+    }
+
+    private void assertFilter(String expression, List<GenericRecord> records, Integer... expectedPositions)
+    {
+        List<Integer> expected = Arrays.asList(expectedPositions);
+        assertEquals(filter(expression, records), expected, expression);
+        assertEquals(filterBatch(expression, new AvroRecordBatch(records)), expected, expression);
+    }
+
+    private List<Integer> filter(String expression, List<GenericRecord> records)
+    {
+        Predicate<GenericRecord> predicate = compiler.generate(sqlParser.createExpression(expression), COLUMNS);
+
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            if (predicate.test(records.get(i))) {
+                positions.add(i);
+            }
+        }
+        return positions;
+    }
+
+    private List<Integer> filterBatch(String expression, AvroRecordBatch batch)
+    {
+        ExpressionCompiler.BatchFilter filter = compiler.generateBatch(sqlParser.createExpression(expression), COLUMNS);
+
+        int[] selectedPositions = new int[batch.getPositionCount()];
+        int selected = filter.filter(batch, selectedPositions);
+        return Arrays.stream(selectedPositions, 0, selected).boxed().collect(Collectors.toList());
+    }
+
+    private static GenericRecord record(Long a, String b, Double c, Boolean d, Integer signup, Double amount, List<Utf8> tags)
+    {
+        GenericData.Record record = new GenericData.Record(SCHEMA);
+        record.put("a", a);
+        // the decoded records have Utf8 instead of String
+        record.put("b", b == null ? null : new Utf8(b));
+        record.put("c", c);
+        record.put("d", d);
+        record.put("signup", signup);
+        record.put("amount", amount);
+        record.put("tags", tags);
+        return record;
+    }
+}
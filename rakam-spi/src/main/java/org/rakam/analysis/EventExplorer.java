@@ -173,9 +173,7 @@ public interface EventExplorer
                 @ApiParam("tableName") String tableName)
         {
             checkCollection(tableName);
-            if (measures.isEmpty()) {
-                throw new RakamException("There must be at least one measure", BAD_REQUEST);
-            }
+            // the tables always have the row counts so the measures are optional
             if(collections.isEmpty()) {
                 throw new RakamException("There must be at least one collection", BAD_REQUEST);
             }
@@ -0,0 +1,454 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
+import org.rakam.util.RakamException;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.String.format;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.report.QueryResult.EXECUTION_TIME;
+import static org.rakam.report.QueryStats.State.FINISHED;
+import static org.rakam.report.QueryStats.State.RUNNING;
+
+/**
+ * Computes the funnels in-process instead of generating a single SQL query. The backend only scans the
+ * (dimension, user, step, time) tuples of the steps with the filters and the date range pushed down and
+ * the tuples are partitioned by the user so that the partitions can be processed in parallel.
+ * <p>
+ * The users are dictionary encoded in their partitions and the users that reached each step are kept in
+ * a bitmap so the result is just the cardinality of the bitmaps. The result has the same format with
+ * {@link AbstractFunnelQueryExecutor}.
+ */
+public abstract class InMemoryFunnelQueryExecutor
+        implements FunnelQueryExecutor
+{
+    private final static Logger LOGGER = Logger.get(InMemoryFunnelQueryExecutor.class);
+
+    protected static final String CONNECTOR_FIELD = "_user";
+    // the step is packed into the lowest bits of the event time so that the events of a user are sorted with a single long array
+    private static final int STEP_BITS = 6;
+    private static final int MAXIMUM_STEPS = 1 << STEP_BITS;
+    private static final int MAXIMUM_DIMENSIONS = 15;
+    // the scans block on the backend so they don't run on the common pool that processes the partitions
+    private static final ExecutorService SCAN_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("funnel-scan-%d")
+            .setDaemon(true)
+            .build());
+
+    private final Metastore metastore;
+    private final int partitionCount;
+    private final long maximumEvents;
+
+    public InMemoryFunnelQueryExecutor(Metastore metastore, long maximumEvents)
+    {
+        this.metastore = metastore;
+        this.maximumEvents = maximumEvents;
+        this.partitionCount = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Scans the events of the steps that are between the given timestamps and passes them to the consumer.
+     * The implementations should stream the events rather than materializing them since the consumer
+     * already keeps them in a compact form.
+     */
+    public abstract void scan(String project, List<FunnelStep> steps, Optional<String> dimension, Map<String, List<SchemaField>> collections, Instant start, Instant end, FunnelEventConsumer consumer);
+
+    @Override
+    public QueryExecution query(String project,
+            List<FunnelStep> steps,
+            Optional<String> dimension, LocalDate startDate,
+            LocalDate endDate, Optional<FunnelWindow> window, ZoneId zoneId)
+    {
+        if (dimension.isPresent() && CONNECTOR_FIELD.equals(dimension.get())) {
+            throw new RakamException("Dimension and connector field cannot be equal", HttpResponseStatus.BAD_REQUEST);
+        }
+        if (steps.size() > MAXIMUM_STEPS) {
+            throw new RakamException(format("Funnel can have at most %d steps", MAXIMUM_STEPS), HttpResponseStatus.BAD_REQUEST);
+        }
+
+        Map<String, List<SchemaField>> collections = metastore.getCollections(project);
+        for (FunnelStep step : steps) {
+            if (!collections.containsKey(step.getCollection())) {
+                throw new RakamException(format("Collection %s does not exist.", step.getCollection()), HttpResponseStatus.BAD_REQUEST);
+            }
+        }
+
+        Instant start = startDate.atStartOfDay(zoneId).toInstant();
+        Instant end = endDate.plusDays(1).atStartOfDay(zoneId).toInstant();
+        long windowMillis = window.map(InMemoryFunnelQueryExecutor::toMillis).orElse(Long.MAX_VALUE);
+
+        FunnelEventConsumer consumer = new FunnelEventConsumer(partitionCount, maximumEvents);
+        return new InMemoryFunnelQueryExecution(consumer, () -> {
+            long startedAt = System.currentTimeMillis();
+            scan(project, steps, dimension, collections, start, end, consumer);
+
+            long[][][] counts = Arrays.stream(consumer.partitions).parallel()
+                    .map(partition -> partition.compute(steps.size(), windowMillis, consumer.dimensions.size()))
+                    .toArray(long[][][]::new);
+
+            // the partitions are disjoint since the users are partitioned so the counts are just summed
+            long[][] total = new long[consumer.dimensions.size()][steps.size()];
+            for (long[][] partitionCounts : counts) {
+                for (int dim = 0; dim < total.length; dim++) {
+                    for (int step = 0; step < steps.size(); step++) {
+                        total[dim][step] += partitionCounts[dim][step];
+                    }
+                }
+            }
+
+            QueryResult result = dimension.isPresent() ?
+                    toResultWithDimension(consumer.dimensions, total, steps.size()) :
+                    toResult(total, steps.size());
+            result.setProperty(EXECUTION_TIME, System.currentTimeMillis() - startedAt);
+            return result;
+        });
+    }
+
+    private static long toMillis(FunnelWindow window)
+    {
+        switch (window.type) {
+            case DAY:
+                return TimeUnit.DAYS.toMillis(window.value);
+            case WEEK:
+                return TimeUnit.DAYS.toMillis(window.value * 7L);
+            case MONTH:
+                return TimeUnit.DAYS.toMillis(window.value * 30L);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private static QueryResult toResult(long[][] total, int stepCount)
+    {
+        List<List<Object>> result = IntStream.range(0, stepCount)
+                .mapToObj(i -> Arrays.<Object>asList("Step " + (i + 1), total.length == 0 ? 0L : total[0][i]))
+                .collect(Collectors.toList());
+
+        return new QueryResult(ImmutableList.of(
+                new SchemaField("step", STRING),
+                new SchemaField("count", LONG)), result);
+    }
+
+    private static QueryResult toResultWithDimension(List<String> dimensions, long[][] total, int stepCount)
+    {
+        // the dimensions that have the most users in the first step are returned and the rest is grouped as Others
+        List<Integer> ranked = IntStream.range(0, dimensions.size()).boxed()
+                .sorted(Comparator.comparingLong((Integer dim) -> total[dim][0]).reversed())
+                .collect(Collectors.toList());
+
+        List<List<Object>> result = new ArrayList<>();
+        long[] others = null;
+        for (int i = 0; i < ranked.size(); i++) {
+            int dim = ranked.get(i);
+            if (i < MAXIMUM_DIMENSIONS) {
+                for (int step = 0; step < stepCount; step++) {
+                    result.add(Arrays.asList("Step " + (step + 1), dimensions.get(dim), total[dim][step]));
+                }
+            }
+            else {
+                if (others == null) {
+                    others = new long[stepCount];
+                }
+                for (int step = 0; step < stepCount; step++) {
+                    others[step] += total[dim][step];
+                }
+            }
+        }
+
+        if (others != null) {
+            for (int step = 0; step < stepCount; step++) {
+                result.add(Arrays.asList("Step " + (step + 1), "Others", others[step]));
+            }
+        }
+
+        return new QueryResult(ImmutableList.of(
+                new SchemaField("step", STRING),
+                new SchemaField("dimension", STRING),
+                new SchemaField("count", LONG)), result);
+    }
+
+    protected static boolean testDeviceIdExists(FunnelStep step, Map<String, List<SchemaField>> collections)
+    {
+        return collections.get(step.getCollection()).stream().anyMatch(e -> e.getName().equals("_device_id"));
+    }
+
+    /**
+     * Collects the scanned events into the partitions, it's not thread-safe so the scan should be done
+     * by a single thread.
+     */
+    public static class FunnelEventConsumer
+    {
+        private final Partition[] partitions;
+        private final long maximumEvents;
+        private final List<String> dimensions;
+        private final Map<String, Integer> dimensionIds;
+        private long events;
+        private volatile boolean cancelled;
+
+        private FunnelEventConsumer(int partitionCount, long maximumEvents)
+        {
+            this.maximumEvents = maximumEvents;
+            this.partitions = new Partition[partitionCount];
+            for (int i = 0; i < partitionCount; i++) {
+                partitions[i] = new Partition();
+            }
+            this.dimensions = new ArrayList<>();
+            this.dimensionIds = new HashMap<>();
+        }
+
+        /**
+         * @param dimension the value of the dimension, it's ignored when the funnel doesn't have a dimension
+         * @param user the connector value of the event, the events without the connector value should be skipped
+         * @param step the index of the funnel step, starting from zero
+         * @param time the event time in milliseconds
+         */
+        public void accept(String dimension, String user, int step, long time)
+        {
+            if (cancelled) {
+                throw new CancellationException("Query is killed");
+            }
+            if (++events > maximumEvents) {
+                throw new RakamException(format("The funnel has more than %d events, please narrow the date range or the filters", maximumEvents),
+                        HttpResponseStatus.BAD_REQUEST);
+            }
+
+            Integer dimensionId = dimensionIds.get(dimension);
+            if (dimensionId == null) {
+                dimensionId = dimensions.size();
+                dimensions.add(dimension);
+                dimensionIds.put(dimension, dimensionId);
+            }
+
+            int hash = user.hashCode();
+            partitions[((hash ^ (hash >>> 16)) & 0x7fffffff) % partitions.length].add(dimensionId, user, step, time);
+        }
+    }
+
+    private static class Partition
+    {
+        // the group of an event is the pair of the dimension and the user as in the SQL implementation
+        private final Map<GroupKey, Integer> groupIds = new HashMap<>();
+        private int[] groupDimensions = new int[16];
+        private int[] groups = new int[1024];
+        private long[] events = new long[1024];
+        private int size;
+
+        public void add(int dimension, String user, int step, long time)
+        {
+            Integer group = groupIds.get(new GroupKey(dimension, user));
+            if (group == null) {
+                group = groupIds.size();
+                groupIds.put(new GroupKey(dimension, user), group);
+                if (group == groupDimensions.length) {
+                    groupDimensions = Arrays.copyOf(groupDimensions, group * 2);
+                }
+                groupDimensions[group] = dimension;
+            }
+
+            if (size == groups.length) {
+                groups = Arrays.copyOf(groups, size * 2);
+                events = Arrays.copyOf(events, size * 2);
+            }
+            groups[size] = group;
+            events[size] = (time << STEP_BITS) | step;
+            size++;
+        }
+
+        public long[][] compute(int stepCount, long windowMillis, int dimensionCount)
+        {
+            int groupCount = groupIds.size();
+            // the dictionary is not needed anymore, let it be collected while the partition is processed
+            groupIds.clear();
+
+            // lay out the events of each group contiguously
+            int[] offsets = new int[groupCount + 1];
+            for (int i = 0; i < size; i++) {
+                offsets[groups[i] + 1]++;
+            }
+            for (int i = 0; i < groupCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            long[] sorted = new long[size];
+            int[] positions = Arrays.copyOf(offsets, groupCount);
+            for (int i = 0; i < size; i++) {
+                sorted[positions[groups[i]]++] = events[i];
+            }
+            groups = null;
+            events = null;
+
+            BitSet[] reached = new BitSet[stepCount];
+            for (int step = 0; step < stepCount; step++) {
+                reached[step] = new BitSet(groupCount);
+            }
+
+            long[] stepStarts = new long[stepCount];
+            for (int group = 0; group < groupCount; group++) {
+                Arrays.sort(sorted, offsets[group], offsets[group + 1]);
+                int level = getLevel(sorted, offsets[group], offsets[group + 1], stepStarts, windowMillis);
+                for (int step = 0; step < level; step++) {
+                    reached[step].set(group);
+                }
+            }
+
+            long[][] counts = new long[dimensionCount][stepCount];
+            for (int step = 0; step < stepCount; step++) {
+                BitSet bitmap = reached[step];
+                for (int group = bitmap.nextSetBit(0); group >= 0; group = bitmap.nextSetBit(group + 1)) {
+                    counts[groupDimensions[group]][step]++;
+                }
+            }
+            return counts;
+        }
+
+        /**
+         * Finds the deepest step that the user reached in order within the window. The latest start time is kept
+         * for each step because a later start always leaves more room for the following steps.
+         */
+        private static int getLevel(long[] events, int from, int to, long[] stepStarts, long windowMillis)
+        {
+            Arrays.fill(stepStarts, Long.MIN_VALUE);
+            int level = 0;
+            for (int i = from; i < to; i++) {
+                int step = (int) (events[i] & (MAXIMUM_STEPS - 1));
+                long time = events[i] >> STEP_BITS;
+                if (step == 0) {
+                    stepStarts[0] = time;
+                }
+                else {
+                    long previous = stepStarts[step - 1];
+                    if (previous == Long.MIN_VALUE || time - previous > windowMillis) {
+                        continue;
+                    }
+                    stepStarts[step] = Math.max(stepStarts[step], previous);
+                }
+                level = Math.max(level, step + 1);
+            }
+            return level;
+        }
+    }
+
+    private static class GroupKey
+    {
+        private final int dimension;
+        private final String user;
+
+        public GroupKey(int dimension, String user)
+        {
+            this.dimension = dimension;
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            GroupKey groupKey = (GroupKey) o;
+            return dimension == groupKey.dimension && user.equals(groupKey.user);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * dimension + user.hashCode();
+        }
+    }
+
+    private class InMemoryFunnelQueryExecution
+            implements QueryExecution
+    {
+        private final CompletableFuture<QueryResult> result;
+        private final FunnelEventConsumer consumer;
+
+        public InMemoryFunnelQueryExecution(FunnelEventConsumer consumer, Supplier<QueryResult> task)
+        {
+            this.consumer = consumer;
+            this.result = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return task.get();
+                }
+                catch (RakamException e) {
+                    return QueryResult.errorResult(new QueryError(e.getMessage(), null, null, null, null));
+                }
+                catch (CancellationException e) {
+                    return QueryResult.errorResult(new QueryError("Query is killed", null, null, null, null));
+                }
+                catch (Exception e) {
+                    LOGGER.error(e, "Error while computing funnel");
+                    return QueryResult.errorResult(new QueryError(e.getMessage(), null, null, null, null));
+                }
+            }, SCAN_EXECUTOR);
+        }
+
+        @Override
+        public QueryStats currentStats()
+        {
+            return new QueryStats(result.isDone() ? FINISHED : RUNNING);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return result;
+        }
+
+        @Override
+        public void kill()
+        {
+            consumer.cancelled = true;
+        }
+    }
+}
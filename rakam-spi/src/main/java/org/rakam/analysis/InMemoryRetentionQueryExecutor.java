@@ -0,0 +1,602 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rakam.analysis;
+
+import com.facebook.presto.sql.tree.Expression;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
+import org.rakam.util.RakamException;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.INTEGER;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.report.QueryResult.EXECUTION_TIME;
+import static org.rakam.report.QueryStats.State.FINISHED;
+import static org.rakam.report.QueryStats.State.RUNNING;
+import static org.rakam.util.ValidationUtil.checkArgument;
+
+/**
+ * Answers the retention queries from the daily sets of the active users of the collections. The sets are
+ * {@link CalculatedUserSet}s of a single day: the backend is only asked for the distinct (dimension, user, day)
+ * tuples of the days that are not calculated yet so a retention matrix over a range that is already queried
+ * is computed by intersecting the cached sets.
+ * <p>
+ * The users are dictionary encoded per project so the sets of different collections can be intersected and
+ * the sets are kept as sorted id arrays. The recent days are not cached since the events of these days may
+ * still be collected. The dictionary can't drop the users that are referenced by the cached sets so when it grows
+ * over {@link #MAXIMUM_DICTIONARY_SIZE}, the dictionary and the sets of the project are discarded together.
+ */
+public abstract class InMemoryRetentionQueryExecutor
+        implements RetentionQueryExecutor
+{
+    private final static Logger LOGGER = Logger.get(InMemoryRetentionQueryExecutor.class);
+
+    // the same limit with generate_timeline function of the SQL implementations
+    private static final int MAXIMUM_LEAD = 15;
+    // the late events are usually collected in a day, the days before that are considered complete
+    private static final int MUTABLE_DAYS = 2;
+    private static final int MAXIMUM_DICTIONARY_SIZE = 10_000_000;
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("retention-scan-%d")
+            .setDaemon(true)
+            .build());
+
+    private final Metastore metastore;
+    private final Cache<String, ProjectUserSets> projects;
+
+    public InMemoryRetentionQueryExecutor(Metastore metastore)
+    {
+        this.metastore = metastore;
+        this.projects = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.DAYS)
+                .build();
+    }
+
+    /**
+     * Scans the distinct active (dimension, user, day) tuples of the collection that are between the given days
+     * in the time zone and passes them to the consumer.
+     */
+    public abstract void scan(String project, String collection, boolean deviceIdExists, Optional<Expression> filter, Optional<String> dimension,
+            LocalDate startDate, LocalDate endDate, ZoneId zoneId, UserSetConsumer consumer);
+
+    @Override
+    public QueryExecution query(String project,
+            Optional<RetentionAction> firstAction,
+            Optional<RetentionAction> returningAction,
+            DateUnit dateUnit,
+            Optional<String> dimension,
+            Optional<Integer> period,
+            LocalDate startDate,
+            LocalDate endDate,
+            ZoneId zoneId,
+            boolean approximate)
+    {
+        period.ifPresent(e -> checkArgument(e >= 0, "Period must be 0 or a positive value"));
+        if (dimension.isPresent() && CONNECTOR_FIELD.equals(dimension.get())) {
+            throw new RakamException("Dimension and connector field cannot be equal", HttpResponseStatus.BAD_REQUEST);
+        }
+        if (startDate.isAfter(endDate)) {
+            throw new RakamException("startDate must be before endDate.", HttpResponseStatus.BAD_REQUEST);
+        }
+
+        Map<String, List<SchemaField>> collections = metastore.getCollections(project);
+        List<String> firstCollections = getCollections(firstAction, collections);
+        List<String> returningCollections = getCollections(returningAction, collections);
+        int maximumLead = Math.min(period.orElse(MAXIMUM_LEAD), MAXIMUM_LEAD);
+
+        ScanState state = new ScanState();
+        CompletableFuture<QueryResult> result = CompletableFuture.supplyAsync(() -> {
+            long startedAt = System.currentTimeMillis();
+            ProjectUserSets userSets = null;
+            try {
+                userSets = projects.get(project, ProjectUserSets::new);
+
+                List<LocalDate> buckets = getBuckets(dateUnit, startDate, endDate);
+                Map<String, List<int[]>> first = getBucketSets(state, userSets, project, firstCollections, collections,
+                        firstAction.flatMap(RetentionAction::filter), dimension, dateUnit, buckets, startDate, endDate, zoneId);
+                Map<String, List<int[]>> returning = Objects.equals(firstAction, returningAction) ? first :
+                        getBucketSets(state, userSets, project, returningCollections, collections,
+                                returningAction.flatMap(RetentionAction::filter), dimension, dateUnit, buckets, startDate, endDate, zoneId);
+
+                QueryResult queryResult = dimension.isPresent() ?
+                        calculateByDimension(first, returning, buckets.size(), maximumLead) :
+                        calculateByDate(first.get(null), returning.get(null), buckets, maximumLead);
+                queryResult.setProperty(EXECUTION_TIME, System.currentTimeMillis() - startedAt);
+                return queryResult;
+            }
+            catch (ExecutionException e) {
+                LOGGER.error(e.getCause(), "Error while calculating user sets");
+                return QueryResult.errorResult(new QueryError(e.getCause().getMessage(), null, null, null, null));
+            }
+            catch (Exception e) {
+                if (state.killed) {
+                    return QueryResult.errorResult(new QueryError("Query is killed", null, null, null, null));
+                }
+                LOGGER.error(e, "Error while calculating retention");
+                return QueryResult.errorResult(new QueryError(e.getMessage(), null, null, null, null));
+            }
+            finally {
+                // the running queries keep using the discarded dictionary, the next queries start from scratch
+                if (userSets != null && userSets.dictionary.size() > MAXIMUM_DICTIONARY_SIZE) {
+                    projects.asMap().remove(project, userSets);
+                }
+            }
+        }, EXECUTOR);
+
+        return new QueryExecution()
+        {
+            @Override
+            public QueryStats currentStats()
+            {
+                return new QueryStats(result.isDone() ? FINISHED : RUNNING);
+            }
+
+            @Override
+            public boolean isFinished()
+            {
+                return result.isDone();
+            }
+
+            @Override
+            public CompletableFuture<QueryResult> getResult()
+            {
+                return result;
+            }
+
+            @Override
+            public void kill()
+            {
+                state.kill();
+            }
+        };
+    }
+
+    public void invalidate(String project)
+    {
+        projects.invalidate(project);
+    }
+
+    private static List<String> getCollections(Optional<RetentionAction> action, Map<String, List<SchemaField>> collections)
+    {
+        if (action.isPresent()) {
+            if (!collections.containsKey(action.get().collection())) {
+                throw new RakamException(format("Collection %s does not exist.", action.get().collection()), HttpResponseStatus.BAD_REQUEST);
+            }
+            return ImmutableList.of(action.get().collection());
+        }
+
+        return collections.entrySet().stream()
+                .filter(entry -> entry.getValue().stream().anyMatch(e -> e.getName().equals(CONNECTOR_FIELD)))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static LocalDate truncate(DateUnit dateUnit, LocalDate date)
+    {
+        switch (dateUnit) {
+            case DAY:
+                return date;
+            case WEEK:
+                return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case MONTH:
+                return date.withDayOfMonth(1);
+            default:
+                throw new UnsupportedOperationException(dateUnit + " is not supported.");
+        }
+    }
+
+    private static List<LocalDate> getBuckets(DateUnit dateUnit, LocalDate startDate, LocalDate endDate)
+    {
+        List<LocalDate> buckets = new ArrayList<>();
+        LocalDate end = truncate(dateUnit, endDate);
+        for (LocalDate date = truncate(dateUnit, startDate); !date.isAfter(end); date = date.plus(1, dateUnit.getTemporalUnit())) {
+            buckets.add(date);
+        }
+        return buckets;
+    }
+
+    /**
+     * Returns the sets of the users for each bucket and dimension value, the key is null if there is no dimension.
+     */
+    private Map<String, List<int[]>> getBucketSets(ScanState state, ProjectUserSets userSets, String project, List<String> collectionNames,
+            Map<String, List<SchemaField>> collections, Optional<Expression> filter, Optional<String> dimension,
+            DateUnit dateUnit, List<LocalDate> buckets, LocalDate startDate, LocalDate endDate, ZoneId zoneId)
+            throws ExecutionException
+    {
+        LocalDate immutableUntil = LocalDate.now(zoneId).minusDays(MUTABLE_DAYS);
+
+        Map<String, Map<LocalDate, UserSetBuilder>> builders = new HashMap<>();
+        for (String collection : collectionNames) {
+            UserSetKey key = new UserSetKey(collection, filter.map(Expression::toString), dimension, zoneId);
+            ConcurrentMap<LocalDate, Map<String, int[]>> days = userSets.sets.get(key, ConcurrentHashMap::new);
+
+            LocalDate missingStart = null;
+            LocalDate missingEnd = null;
+            for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
+                if (!days.containsKey(date)) {
+                    missingStart = missingStart == null ? date : missingStart;
+                    missingEnd = date;
+                }
+            }
+
+            Map<LocalDate, Map<String, int[]>> scanned = ImmutableMap.of();
+            if (missingStart != null) {
+                boolean deviceIdExists = collections.get(collection).stream().anyMatch(e -> e.getName().equals("_device_id"));
+                UserSetConsumer consumer = new UserSetConsumer(userSets);
+                state.start(consumer);
+                try {
+                    scan(project, collection, deviceIdExists, filter, dimension, missingStart, missingEnd, zoneId, consumer);
+                }
+                finally {
+                    state.finish(consumer);
+                }
+                scanned = consumer.build(missingStart, missingEnd);
+                for (Map.Entry<LocalDate, Map<String, int[]>> entry : scanned.entrySet()) {
+                    if (entry.getKey().isBefore(immutableUntil)) {
+                        days.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
+                Map<String, int[]> sets = days.get(date);
+                if (sets == null) {
+                    sets = scanned.get(date);
+                }
+                checkState(sets != null, "The user set of %s is not calculated", date);
+
+                LocalDate bucket = truncate(dateUnit, date);
+                for (Map.Entry<String, int[]> entry : sets.entrySet()) {
+                    builders.computeIfAbsent(entry.getKey(), k -> new HashMap<>())
+                            .computeIfAbsent(bucket, k -> new UserSetBuilder())
+                            .addAll(entry.getValue());
+                }
+            }
+        }
+
+        Map<String, List<int[]>> result = new HashMap<>();
+        for (Map.Entry<String, Map<LocalDate, UserSetBuilder>> entry : builders.entrySet()) {
+            List<int[]> sets = new ArrayList<>(buckets.size());
+            for (LocalDate bucket : buckets) {
+                UserSetBuilder builder = entry.getValue().get(bucket);
+                sets.add(builder == null ? new int[0] : builder.build());
+            }
+            result.put(entry.getKey(), sets);
+        }
+        return result;
+    }
+
+    private static QueryResult calculateByDate(List<int[]> first, List<int[]> returning, List<LocalDate> buckets, int maximumLead)
+    {
+        List<List<Object>> rows = new ArrayList<>();
+        if (first != null && returning != null) {
+            for (int bucket = 0; bucket < buckets.size(); bucket++) {
+                int[] cohort = first.get(bucket);
+                if (cohort.length == 0) {
+                    continue;
+                }
+                BitSet cohortSet = toBitSet(cohort);
+                for (int lead = 0; lead <= maximumLead && bucket + lead < buckets.size(); lead++) {
+                    long count = countIntersection(cohortSet, returning.get(bucket + lead));
+                    if (count > 0) {
+                        rows.add(Arrays.asList(buckets.get(bucket), lead == 0 ? null : ((long) lead - 1), count));
+                    }
+                }
+            }
+        }
+
+        return new QueryResult(ImmutableList.of(
+                new SchemaField("dimension", DATE),
+                new SchemaField("lead", INTEGER),
+                new SchemaField("value", INTEGER)), rows);
+    }
+
+    /**
+     * The cohort of a user is the first bucket that the user performed the first action with the dimension value.
+     */
+    private static QueryResult calculateByDimension(Map<String, List<int[]>> first, Map<String, List<int[]>> returning, int bucketCount, int maximumLead)
+    {
+        Map<String, long[]> counts = new TreeMap<>(Comparator.nullsLast(Comparator.<String>naturalOrder()));
+        for (Map.Entry<String, List<int[]>> entry : first.entrySet()) {
+            List<int[]> returningSets = returning.get(entry.getKey());
+            if (returningSets == null) {
+                continue;
+            }
+
+            long[] leads = new long[maximumLead + 1];
+            BitSet seen = new BitSet();
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                BitSet cohort = new BitSet();
+                for (int user : entry.getValue().get(bucket)) {
+                    if (!seen.get(user)) {
+                        cohort.set(user);
+                    }
+                }
+                if (cohort.isEmpty()) {
+                    continue;
+                }
+                seen.or(cohort);
+
+                for (int lead = 0; lead <= maximumLead && bucket + lead < bucketCount; lead++) {
+                    leads[lead] += countIntersection(cohort, returningSets.get(bucket + lead));
+                }
+            }
+            counts.put(entry.getKey(), leads);
+        }
+
+        List<List<Object>> rows = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            long[] leads = entry.getValue();
+            for (int lead = 0; lead < leads.length; lead++) {
+                if (leads[lead] > 0) {
+                    rows.add(Arrays.asList(entry.getKey(), lead == 0 ? null : ((long) lead - 1), leads[lead]));
+                }
+            }
+        }
+
+        return new QueryResult(ImmutableList.of(
+                new SchemaField("dimension", STRING),
+                new SchemaField("lead", INTEGER),
+                new SchemaField("value", INTEGER)), rows);
+    }
+
+    private static BitSet toBitSet(int[] users)
+    {
+        BitSet set = new BitSet(users.length == 0 ? 0 : users[users.length - 1] + 1);
+        for (int user : users) {
+            set.set(user);
+        }
+        return set;
+    }
+
+    private static long countIntersection(BitSet set, int[] users)
+    {
+        long count = 0;
+        for (int user : users) {
+            if (set.get(user)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class ProjectUserSets
+    {
+        private final Map<String, Integer> dictionary;
+        private final AtomicInteger nextId;
+        private final Cache<UserSetKey, ConcurrentMap<LocalDate, Map<String, int[]>>> sets;
+
+        public ProjectUserSets()
+        {
+            this.dictionary = new ConcurrentHashMap<>();
+            this.nextId = new AtomicInteger();
+            // the days may be stored later, expire the sets so that the late events are eventually included
+            this.sets = CacheBuilder.newBuilder()
+                    .maximumSize(100)
+                    .expireAfterWrite(6, TimeUnit.HOURS)
+                    .build();
+        }
+    }
+
+    private static class ScanState
+    {
+        private final Set<UserSetConsumer> consumers = ConcurrentHashMap.newKeySet();
+        private volatile boolean killed;
+
+        public void start(UserSetConsumer consumer)
+        {
+            consumers.add(consumer);
+            // the query may be killed before the scan is started
+            if (killed) {
+                consumer.cancel();
+            }
+        }
+
+        public void finish(UserSetConsumer consumer)
+        {
+            consumers.remove(consumer);
+        }
+
+        public void kill()
+        {
+            killed = true;
+            consumers.forEach(UserSetConsumer::cancel);
+        }
+    }
+
+    /**
+     * Collects the scanned tuples, it's not thread-safe so the scan should be done by a single thread.
+     * The scan is stopped with a {@link CancellationException} when the query is killed, the implementations
+     * that block before returning the first tuple should also register a cancel handler.
+     */
+    public static class UserSetConsumer
+    {
+        private final ProjectUserSets userSets;
+        private final Map<LocalDate, Map<String, UserSetBuilder>> builders;
+        private volatile boolean cancelled;
+        private volatile Runnable cancelHandler;
+
+        private UserSetConsumer(ProjectUserSets userSets)
+        {
+            this.userSets = userSets;
+            this.builders = new HashMap<>();
+        }
+
+        /**
+         * The handler is called from another thread when the query is killed while the scan is running.
+         */
+        public void setCancelHandler(Runnable cancelHandler)
+        {
+            this.cancelHandler = cancelHandler;
+            if (cancelled) {
+                cancelHandler.run();
+            }
+        }
+
+        private void cancel()
+        {
+            cancelled = true;
+            Runnable handler = cancelHandler;
+            if (handler != null) {
+                handler.run();
+            }
+        }
+
+        /**
+         * @param dimension the value of the dimension, it's ignored when the query doesn't have a dimension
+         * @param user the connector value of the event, the events without the connector value should be skipped
+         * @param date the day of the event in the time zone of the query
+         */
+        public void accept(String dimension, String user, LocalDate date)
+        {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            // the dictionary is shared by the concurrent queries of the project
+            int id = userSets.dictionary.computeIfAbsent(user, k -> userSets.nextId.getAndIncrement());
+
+            builders.computeIfAbsent(date, k -> new HashMap<>())
+                    .computeIfAbsent(dimension, k -> new UserSetBuilder())
+                    .add(id);
+        }
+
+        private Map<LocalDate, Map<String, int[]>> build(LocalDate startDate, LocalDate endDate)
+        {
+            Map<LocalDate, Map<String, int[]>> days = new HashMap<>();
+            // the days that don't have any event have empty sets so that they're not scanned again
+            for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
+                Map<String, UserSetBuilder> dayBuilders = builders.get(date);
+                Map<String, int[]> sets = new HashMap<>();
+                if (dayBuilders != null) {
+                    for (Map.Entry<String, UserSetBuilder> entry : dayBuilders.entrySet()) {
+                        sets.put(entry.getKey(), entry.getValue().build());
+                    }
+                }
+                days.put(date, sets);
+            }
+            return days;
+        }
+    }
+
+    private static class UserSetBuilder
+    {
+        private int[] users = new int[16];
+        private int size;
+
+        public void add(int user)
+        {
+            if (size == users.length) {
+                users = Arrays.copyOf(users, size * 2);
+            }
+            users[size++] = user;
+        }
+
+        public void addAll(int[] values)
+        {
+            if (size + values.length > users.length) {
+                users = Arrays.copyOf(users, Math.max(size + values.length, size * 2));
+            }
+            System.arraycopy(values, 0, users, size, values.length);
+            size += values.length;
+        }
+
+        public int[] build()
+        {
+            Arrays.sort(users, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || users[unique - 1] != users[i]) {
+                    users[unique++] = users[i];
+                }
+            }
+            return Arrays.copyOf(users, unique);
+        }
+    }
+
+    private static class UserSetKey
+    {
+        private final String collection;
+        private final Optional<String> filter;
+        private final Optional<String> dimension;
+        private final ZoneId zoneId;
+
+        public UserSetKey(String collection, Optional<String> filter, Optional<String> dimension, ZoneId zoneId)
+        {
+            this.collection = collection;
+            this.filter = filter;
+            this.dimension = dimension;
+            this.zoneId = zoneId;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            UserSetKey that = (UserSetKey) o;
+            return collection.equals(that.collection) && filter.equals(that.filter)
+                    && dimension.equals(that.dimension) && zoneId.equals(that.zoneId);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(collection, filter, dimension, zoneId);
+        }
+    }
+}
@@ -17,6 +17,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -28,6 +30,7 @@ public abstract class MaterializedViewService {
     private final QueryMetadataStore database;
     private final QueryExecutor queryExecutor;
     private final char escapeIdentifier;
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
 
     public MaterializedViewService(QueryMetadataStore database, QueryExecutor queryExecutor, char escapeIdentifier) {
         this.database = database;
@@ -39,6 +42,17 @@ public abstract class MaterializedViewService {
 
     public abstract CompletableFuture<QueryResult> delete(String project, String name);
 
+    /**
+     * The listener is called with the project when a materialized view of the project is created or deleted.
+     */
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+
+    protected void notifyChange(String project) {
+        changeListeners.forEach(listener -> listener.accept(project));
+    }
+
     public Map<String, List<SchemaField>> getSchemas(String project, Optional<List<String>> names) {
         Map<String, CompletableFuture<List<SchemaField>>> futures = new HashMap<>();
 
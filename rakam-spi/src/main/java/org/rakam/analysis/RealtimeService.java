@@ -23,6 +23,7 @@ import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -93,12 +94,20 @@ public abstract class RealtimeService
                         IntStream.range(0, report.dimensions.size()).mapToObj(i -> ", " + (i + 2)).collect(Collectors.joining("")) : "")
                 .toString();
 
+        // the definition is kept along with the query so that the in-memory aggregators can be built from it
+        Map<String, Object> options = new HashMap<>();
+        options.put("realtime", true);
+        options.put("aggregation", report.measures);
+        options.put("collections", report.collections);
+        options.put("dimensions", report.dimensions == null ? ImmutableList.of() : report.dimensions);
+        if (report.filter != null) {
+            options.put("filter", report.filter);
+        }
+
         ContinuousQuery query = new ContinuousQuery(report.table_name, report.name,
                 sqlQuery,
                 ImmutableList.of(),
-                ImmutableMap.of(
-                        "realtime", true,
-                        "aggregation", report.measures));
+                options);
 
         return service.create(project, query, false).getResult()
                 .thenApply(SuccessMessage::map);
@@ -1,6 +1,7 @@
 package org.rakam.analysis.metadata;
 
 import com.google.common.eventbus.EventBus;
+import com.google.inject.Inject;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.SystemEvents;
@@ -25,12 +26,20 @@ public abstract class AbstractMetastore
         implements Metastore
 {
     private final EventBus eventBus;
+    private IngestionCounter ingestionCounter;
 
     public AbstractMetastore(EventBus eventBus)
     {
         this.eventBus = eventBus;
     }
 
+    @Inject(optional = true)
+    public void setIngestionCounter(IngestionCounter ingestionCounter)
+    {
+        this.ingestionCounter = ingestionCounter;
+        ingestionCounter.setSeed(this::getStoredStats);
+    }
+
     protected void onCreateProject(String project)
     {
         eventBus.post(new ProjectCreatedEvent(project));
@@ -64,6 +73,18 @@ public abstract class AbstractMetastore
 
     @Override
     public Map<String, Stats> getStats(Collection<String> projects)
+    {
+        if (ingestionCounter != null) {
+            return ingestionCounter.getStats(projects);
+        }
+        return getStoredStats(projects);
+    }
+
+    /**
+     * Computes the stats from the stored data, it's used for the projects that are not counted by
+     * {@link IngestionCounter} yet.
+     */
+    protected Map<String, Stats> getStoredStats(Collection<String> projects)
     {
         return projects.stream().collect(Collectors.toMap(e -> e, e -> new Stats()));
     }
@@ -0,0 +1,418 @@
+package org.rakam.analysis.metadata;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.Metastore.Stats;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.String.format;
+
+/**
+ * Counts the collected events per project, collection and day. The counters are kept in memory and added to the rows
+ * of the ingestion_stats table periodically, each node adds its own counts to the same rows so the table has the
+ * totals of the cluster. The events that are stored before the project is counted are seeded from the stats of the
+ * metastore before the first counts of the project are added to the table or its stats are requested.
+ */
+@Singleton
+public class IngestionCounter
+{
+    private final static Logger LOGGER = Logger.get(IngestionCounter.class);
+    private static final long FLUSH_INTERVAL_SECONDS = 30;
+    // not a valid collection name, the row of the first day marks the project as seeded
+    private static final String SEED_COLLECTION = "";
+    private static final long SEED_DAY = 0;
+
+    private final DBI dbi;
+    private final Clock clock;
+    private final Map<CounterKey, AtomicLong> counters;
+    private final Set<String> seededProjects;
+    private volatile Function<Collection<String>, Map<String, Stats>> seed;
+    private ScheduledExecutorService flushExecutor;
+
+    @Inject
+    public IngestionCounter(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, Clock clock)
+    {
+        this.dbi = new DBI(dataSource);
+        this.clock = clock;
+        this.counters = new ConcurrentHashMap<>();
+        this.seededProjects = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Sets the source of the stats of the events that are stored before the projects are counted.
+     */
+    public void setSeed(Function<Collection<String>, Map<String, Stats>> seed)
+    {
+        this.seed = seed;
+    }
+
+    @PostConstruct
+    public void setup()
+    {
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("CREATE TABLE IF NOT EXISTS ingestion_stats (" +
+                    "  project VARCHAR(255) NOT NULL," +
+                    "  collection VARCHAR(255) NOT NULL," +
+                    "  epoch_day INT NOT NULL," +
+                    "  events BIGINT NOT NULL," +
+                    "  PRIMARY KEY (project, collection, epoch_day)" +
+                    "  )")
+                    .execute();
+        }
+
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ingestion-counter-flush")
+                .setDaemon(true)
+                .build());
+        flushExecutor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+        }
+        flush();
+    }
+
+    public void increment(String project, String collection, long count)
+    {
+        if (count <= 0) {
+            return;
+        }
+
+        counters.computeIfAbsent(new CounterKey(project, collection, LocalDate.now(clock).toEpochDay()),
+                k -> new AtomicLong()).addAndGet(count);
+    }
+
+    public Map<String, Stats> getStats(Collection<String> projects)
+    {
+        if (projects.isEmpty()) {
+            return ImmutableMap.of();
+        }
+
+        LocalDate today = LocalDate.now(clock);
+        long todayIndex = today.toEpochDay();
+        long monthIndex = today.withDayOfMonth(1).toEpochDay();
+
+        Map<String, Stats> map = new HashMap<>();
+        for (String project : projects) {
+            map.put(project, new Stats(0L, 0L, 0L));
+        }
+
+        List<String> projectList = new ArrayList<>(projects);
+        try (Handle handle = dbi.open()) {
+            seed(handle, projectList);
+
+            Query<Map<String, Object>> query = handle.createQuery(format("SELECT project, sum(events), " +
+                            "sum(CASE WHEN epoch_day >= :month THEN events ELSE 0 END), " +
+                            "sum(CASE WHEN epoch_day = :today THEN events ELSE 0 END) " +
+                            "FROM ingestion_stats WHERE project IN (%s) GROUP BY project", parameters(projectList.size())))
+                    .bind("month", monthIndex)
+                    .bind("today", todayIndex);
+            bindProjects(query, projectList);
+
+            query.map((index, r, ctx) -> {
+                Stats stats = map.get(r.getString(1));
+                stats.allEvents = r.getLong(2);
+                stats.monthlyEvents = r.getLong(3);
+                stats.dailyEvents = r.getLong(4);
+                return null;
+            }).list();
+        }
+
+        // the counts of this node that are not flushed yet
+        for (Map.Entry<CounterKey, AtomicLong> entry : counters.entrySet()) {
+            Stats stats = map.get(entry.getKey().project);
+            if (stats == null) {
+                continue;
+            }
+
+            long value = entry.getValue().get();
+            stats.allEvents += value;
+            if (entry.getKey().epochDay >= monthIndex) {
+                stats.monthlyEvents += value;
+            }
+            if (entry.getKey().epochDay == todayIndex) {
+                stats.dailyEvents += value;
+            }
+        }
+
+        return map;
+    }
+
+    private void seed(Handle handle, Collection<String> projects)
+    {
+        List<String> unseeded = projects.stream()
+                .filter(project -> !seededProjects.contains(project))
+                .distinct()
+                .collect(Collectors.toList());
+        if (unseeded.isEmpty()) {
+            return;
+        }
+
+        // the marker row is inserted by the node that seeds the project, the other rows may be inserted by the flushes
+        Query<Map<String, Object>> query = handle.createQuery(format("SELECT project FROM ingestion_stats " +
+                "WHERE collection = :collection AND epoch_day = :day AND project IN (%s)", parameters(unseeded.size())))
+                .bind("collection", SEED_COLLECTION)
+                .bind("day", SEED_DAY);
+        bindProjects(query, unseeded);
+        List<String> marked = query.map((index, r, ctx) -> r.getString(1)).list();
+        seededProjects.addAll(marked);
+        unseeded.removeAll(marked);
+        if (unseeded.isEmpty()) {
+            return;
+        }
+
+        // the events are counted after they're stored so the pending counts are already in the stats of the metastore
+        Function<Collection<String>, Map<String, Stats>> seed = this.seed;
+        Map<CounterKey, Long> pending = seed == null ? ImmutableMap.of() : drain(key -> unseeded.contains(key.project));
+        Map<String, Stats> stats;
+        try {
+            stats = seed == null ? ImmutableMap.of() : seed.apply(unseeded);
+        }
+        catch (RuntimeException e) {
+            restore(pending);
+            throw e;
+        }
+
+        LocalDate today = LocalDate.now(clock);
+        for (String project : unseeded) {
+            Stats projectStats = stats.getOrDefault(project, new Stats());
+            long daily = Optional.ofNullable(projectStats.dailyEvents).orElse(0L);
+            long monthly = Math.max(daily, Optional.ofNullable(projectStats.monthlyEvents).orElse(daily));
+            long all = Math.max(monthly, Optional.ofNullable(projectStats.allEvents).orElse(monthly));
+
+            boolean inserted;
+            try {
+                // the marker row is inserted first so that only one of the nodes seeds the project
+                inserted = insert(handle, new CounterKey(project, SEED_COLLECTION, SEED_DAY), all - monthly);
+                if (inserted) {
+                    add(handle, new CounterKey(project, SEED_COLLECTION, today.withDayOfMonth(1).toEpochDay()), monthly - daily);
+                    add(handle, new CounterKey(project, SEED_COLLECTION, today.toEpochDay()), daily);
+                }
+            }
+            catch (RuntimeException e) {
+                restore(Maps.filterKeys(pending, key -> !seededProjects.contains(key.project)));
+                throw e;
+            }
+
+            if (!inserted || !stats.containsKey(project)) {
+                // the project is seeded by an other node or its stored events are not known
+                restore(Maps.filterKeys(pending, key -> key.project.equals(project)));
+            }
+            seededProjects.add(project);
+        }
+    }
+
+    private Map<CounterKey, Long> drain(Predicate<CounterKey> predicate)
+    {
+        Map<CounterKey, Long> values = new HashMap<>();
+        for (Map.Entry<CounterKey, AtomicLong> entry : counters.entrySet()) {
+            if (predicate.test(entry.getKey())) {
+                long value = entry.getValue().getAndSet(0);
+                if (value > 0) {
+                    values.put(entry.getKey(), value);
+                }
+            }
+        }
+        return values;
+    }
+
+    private void restore(Map<CounterKey, Long> values)
+    {
+        values.forEach((key, value) -> counters.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(value));
+    }
+
+    private static String parameters(int size)
+    {
+        return IntStream.range(0, size).mapToObj(i -> ":project" + i).collect(Collectors.joining(", "));
+    }
+
+    private static void bindProjects(Query<?> query, List<String> projects)
+    {
+        for (int i = 0; i < projects.size(); i++) {
+            query.bind("project" + i, projects.get(i));
+        }
+    }
+
+    @Subscribe
+    public void onDeleteProject(ProjectDeletedEvent event)
+    {
+        counters.keySet().removeIf(key -> key.project.equals(event.project));
+        seededProjects.remove(event.project);
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("DELETE FROM ingestion_stats WHERE project = :project")
+                    .bind("project", event.project)
+                    .execute();
+        }
+    }
+
+    public synchronized void flush()
+    {
+        long today = LocalDate.now(clock).toEpochDay();
+
+        Set<String> projects = counters.keySet().stream().map(key -> key.project).collect(Collectors.toSet());
+        if (projects.isEmpty()) {
+            return;
+        }
+
+        try (Handle handle = dbi.open()) {
+            // the stored events of the projects are seeded before their first counts are added
+            seed(handle, projects);
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while seeding the ingestion counters");
+        }
+
+        Map<CounterKey, Long> deltas = new HashMap<>();
+        for (Map.Entry<CounterKey, AtomicLong> entry : counters.entrySet()) {
+            // the projects that could not be seeded will be retried in the next flush
+            if (!seededProjects.contains(entry.getKey().project)) {
+                continue;
+            }
+
+            // the counters of the previous days are not incremented anymore
+            if (entry.getKey().epochDay < today) {
+                counters.remove(entry.getKey(), entry.getValue());
+            }
+
+            long value = entry.getValue().getAndSet(0);
+            if (value > 0) {
+                deltas.put(entry.getKey(), value);
+            }
+        }
+
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        try (Handle handle = dbi.open()) {
+            Iterator<Map.Entry<CounterKey, Long>> iterator = deltas.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<CounterKey, Long> entry = iterator.next();
+                add(handle, entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while flushing the ingestion counters");
+            // will be retried in the next flush
+            restore(deltas);
+        }
+    }
+
+    private void add(Handle handle, CounterKey key, long value)
+    {
+        if (update(handle, key, value) > 0) {
+            return;
+        }
+
+        // the row is inserted by an other node
+        if (!insert(handle, key, value)) {
+            update(handle, key, value);
+        }
+    }
+
+    private boolean insert(Handle handle, CounterKey key, long value)
+    {
+        try {
+            handle.createStatement("INSERT INTO ingestion_stats (project, collection, epoch_day, events) " +
+                    "VALUES (:project, :collection, :day, :events)")
+                    .bind("project", key.project)
+                    .bind("collection", key.collection)
+                    .bind("day", key.epochDay)
+                    .bind("events", value)
+                    .execute();
+            return true;
+        }
+        catch (UnableToExecuteStatementException e) {
+            if (e.getCause() instanceof SQLException && ((SQLException) e.getCause()).getSQLState() != null
+                    && ((SQLException) e.getCause()).getSQLState().startsWith("23")) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private int update(Handle handle, CounterKey key, long value)
+    {
+        return handle.createStatement("UPDATE ingestion_stats SET events = events + :events " +
+                "WHERE project = :project AND collection = :collection AND epoch_day = :day")
+                .bind("events", value)
+                .bind("project", key.project)
+                .bind("collection", key.collection)
+                .bind("day", key.epochDay)
+                .execute();
+    }
+
+    private static class CounterKey
+    {
+        private final String project;
+        private final String collection;
+        private final long epochDay;
+
+        public CounterKey(String project, String collection, long epochDay)
+        {
+            this.project = project;
+            this.collection = collection;
+            this.epochDay = epochDay;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CounterKey)) {
+                return false;
+            }
+            CounterKey that = (CounterKey) o;
+            return epochDay == that.epochDay && project.equals(that.project) && collection.equals(that.collection);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, collection, epochDay);
+        }
+    }
+}
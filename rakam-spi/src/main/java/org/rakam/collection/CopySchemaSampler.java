@@ -0,0 +1,330 @@
+package org.rakam.collection;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
+import org.rakam.util.DateTimeUtils;
+import org.rakam.util.RakamException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.lang.String.format;
+import static org.rakam.collection.FieldType.ARRAY_DOUBLE;
+import static org.rakam.collection.FieldType.ARRAY_LONG;
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_DOUBLE;
+import static org.rakam.collection.FieldType.MAP_LONG;
+import static org.rakam.collection.FieldType.MAP_STRING;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+
+/**
+ * Finds the columns of the files that are loaded directly into the storage engine so that the schema of the
+ * collection can be extended before the file is loaded. The types are inferred from the first records, the numbers are
+ * LONG unless one of the sampled values has a fraction. The records after the sample are checked against the schema
+ * while the file is loaded since the storage engines would drop the unknown properties silently.
+ */
+public final class CopySchemaSampler
+{
+    public static final int SAMPLE_SIZE = 1000;
+    public static final int MAX_SAMPLE_BYTES = 8 * 1024 * 1024;
+
+    // the stream is reset after sampling so the parser must not close it
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+
+    private CopySchemaSampler()
+            throws InstantiationException
+    {
+        throw new InstantiationException("The class is not created for instantiation");
+    }
+
+    /**
+     * Reads the first line of the CSV stream, the stream is positioned at the first row after the call.
+     */
+    public static List<String> readCsvHeader(InputStream stream, char separator)
+            throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = stream.read()) != -1 && b != '\n') {
+            if (line.size() > MAX_SAMPLE_BYTES) {
+                throw new RakamException("The header of the CSV file is too long", BAD_REQUEST);
+            }
+            line.write(b);
+        }
+
+        String header = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        if (header.endsWith("\r")) {
+            header = header.substring(0, header.length() - 1);
+        }
+
+        List<String> columns = new ArrayList<>();
+        StringBuilder column = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < header.length(); i++) {
+            char c = header.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < header.length() && header.charAt(i + 1) == '"') {
+                    column.append('"');
+                    i++;
+                }
+                else {
+                    quoted = !quoted;
+                }
+            }
+            else if (c == separator && !quoted) {
+                columns.add(SchemaField.stripName(column.toString(), "header name"));
+                column.setLength(0);
+            }
+            else {
+                column.append(c);
+            }
+        }
+        columns.add(SchemaField.stripName(column.toString(), "header name"));
+
+        return columns;
+    }
+
+    /**
+     * Infers the types of the properties in the first records of the line-separated JSON stream. The stream must
+     * support mark so that it can be reset to the first record after the sampling.
+     */
+    public static Set<SchemaField> sampleJson(InputStream stream)
+            throws IOException
+    {
+        Map<String, FieldType> types = new HashMap<>();
+
+        stream.mark(MAX_SAMPLE_BYTES);
+        try {
+            MappingIterator<ObjectNode> iterator = MAPPER.readerFor(ObjectNode.class)
+                    .readValues(ByteStreams.limit(stream, MAX_SAMPLE_BYTES));
+            for (int i = 0; i < SAMPLE_SIZE && iterator.hasNext(); i++) {
+                Iterator<Map.Entry<String, JsonNode>> fields = iterator.next().fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    FieldType type = getType(field.getKey(), field.getValue());
+                    if (type != null) {
+                        types.merge(field.getKey(), type, CopySchemaSampler::widen);
+                    }
+                }
+            }
+        }
+        catch (JsonProcessingException | RuntimeException e) {
+            // the last record may be truncated by the limit of the sample
+            if (types.isEmpty()) {
+                throw new RakamException("The file is not line-separated JSON: " + e.getMessage(), BAD_REQUEST);
+            }
+        }
+        finally {
+            stream.reset();
+        }
+
+        Set<SchemaField> fields = new HashSet<>();
+        types.forEach((name, type) -> fields.add(new SchemaField(name, type)));
+        return fields;
+    }
+
+    /**
+     * Wraps the line-separated JSON stream so that the records fail the load if they have a property that is not
+     * in the fields or a fraction in an integer property.
+     */
+    public static InputStream checkJson(InputStream stream, List<SchemaField> fields)
+    {
+        Map<String, FieldType> types = new HashMap<>();
+        for (SchemaField field : fields) {
+            types.put(field.getName(), field.getType());
+        }
+
+        return new JsonLineChecker(stream, types);
+    }
+
+    // the integer numbers of the first records may have fractions in the next records
+    private static FieldType widen(FieldType existing, FieldType type)
+    {
+        if (existing == LONG && type == DOUBLE || existing == ARRAY_LONG && type == ARRAY_DOUBLE || existing == MAP_LONG && type == MAP_DOUBLE) {
+            return type;
+        }
+        return existing;
+    }
+
+    private static FieldType getType(String name, JsonNode node)
+    {
+        if (name.equals("_time")) {
+            return TIMESTAMP;
+        }
+
+        return getType(node);
+    }
+
+    private static FieldType getType(JsonNode node)
+    {
+        if (node.isTextual()) {
+            String value = node.textValue();
+            try {
+                DateTimeUtils.parseDate(value);
+                return DATE;
+            }
+            catch (Exception e) {
+            }
+
+            try {
+                DateTimeUtils.parseTimestamp(value);
+                return TIMESTAMP;
+            }
+            catch (Exception e) {
+            }
+
+            return STRING;
+        }
+        if (node.isNumber()) {
+            return node.isIntegralNumber() ? LONG : DOUBLE;
+        }
+        if (node.isBoolean()) {
+            return BOOLEAN;
+        }
+        if (node.isArray()) {
+            if (node.size() == 0) {
+                return null;
+            }
+            FieldType type = getType(node.get(0));
+            if (type == null || type.isArray() || type.isMap()) {
+                return ARRAY_STRING;
+            }
+            return type.convertToArrayType();
+        }
+        if (node.isObject()) {
+            if (node.size() == 0) {
+                return null;
+            }
+            FieldType type = getType(node.elements().next());
+            if (type == null || type.isArray() || type.isMap()) {
+                return MAP_STRING;
+            }
+            return type.convertToMapValueType();
+        }
+
+        return null;
+    }
+
+    private static class JsonLineChecker
+            extends FilterInputStream
+    {
+        private final Map<String, FieldType> types;
+        private final ByteArrayOutputStream line;
+        private long lineNumber;
+
+        public JsonLineChecker(InputStream in, Map<String, FieldType> types)
+        {
+            super(in);
+            this.types = types;
+            this.line = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            int b = in.read();
+            if (b == -1) {
+                checkLine();
+            }
+            else if (b == '\n') {
+                checkLine();
+            }
+            else {
+                line.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            int result = in.read(b, off, len);
+            if (result == -1) {
+                checkLine();
+                return result;
+            }
+
+            int start = off;
+            for (int i = off; i < off + result; i++) {
+                if (b[i] == '\n') {
+                    line.write(b, start, i - start);
+                    checkLine();
+                    start = i + 1;
+                }
+            }
+            line.write(b, start, off + result - start);
+            return result;
+        }
+
+        @Override
+        public long skip(long n)
+                throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        private void checkLine()
+                throws IOException
+        {
+            lineNumber++;
+            if (line.size() == 0) {
+                return;
+            }
+
+            try (JsonParser parser = MAPPER.getFactory().createParser(line.toByteArray())) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new RakamException(format("The line %d is not a JSON object", lineNumber), BAD_REQUEST);
+                }
+
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+
+                    FieldType type = types.get(name);
+                    if (type == null) {
+                        throw new RakamException(format("The property '%s' at line %d is not in the first %d records, " +
+                                "add it to the collection before loading the file", name, lineNumber, SAMPLE_SIZE), BAD_REQUEST);
+                    }
+                    if (value == JsonToken.VALUE_NUMBER_FLOAT && (type == LONG || type == FieldType.INTEGER)) {
+                        throw new RakamException(format("The property '%s' at line %d has a fraction but its type is %s",
+                                name, lineNumber, type), BAD_REQUEST);
+                    }
+                    parser.skipChildren();
+                }
+            }
+            finally {
+                line.reset();
+            }
+        }
+    }
+}
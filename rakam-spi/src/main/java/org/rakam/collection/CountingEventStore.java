@@ -0,0 +1,120 @@
+package org.rakam.collection;
+
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import org.rakam.analysis.metadata.IngestionCounter;
+import org.rakam.plugin.EventStore;
+import org.rakam.util.ProjectCollection;
+
+import javax.inject.Inject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Adds the events that are stored successfully by the underlying event store to the ingestion counters. The modules
+ * bind {@link EventStore} to {@link #provider(Class)} so that every writer of the event store is counted.
+ */
+public class CountingEventStore
+        implements EventStore
+{
+    private final EventStore delegate;
+    private final IngestionCounter counter;
+
+    public CountingEventStore(EventStore delegate, IngestionCounter counter)
+    {
+        this.delegate = delegate;
+        this.counter = counter;
+    }
+
+    public static Provider<EventStore> provider(Class<? extends EventStore> implementation)
+    {
+        return new CountingEventStoreProvider(implementation);
+    }
+
+    @Override
+    public void store(Event event)
+    {
+        delegate.store(event);
+        counter.increment(event.project(), event.collection(), 1);
+    }
+
+    @Override
+    public int[] storeBatch(List<Event> events)
+    {
+        int[] failedIndexes = delegate.storeBatch(events);
+        count(events, failedIndexes);
+        return failedIndexes;
+    }
+
+    @Override
+    public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
+    {
+        return delegate.storeBatchAsync(events).thenApply(failedIndexes -> {
+            count(events, failedIndexes);
+            return failedIndexes;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(Event event)
+    {
+        return delegate.storeAsync(event)
+                .thenRun(() -> counter.increment(event.project(), event.collection(), 1));
+    }
+
+    @Override
+    public void storeBulk(List<Event> events)
+    {
+        delegate.storeBulk(events);
+        count(events, SUCCESSFUL_BATCH);
+    }
+
+    private void count(List<Event> events, int[] failedIndexes)
+    {
+        boolean[] failed = new boolean[events.size()];
+        if (failedIndexes != null) {
+            for (int index : failedIndexes) {
+                failed[index] = true;
+            }
+        }
+
+        Map<ProjectCollection, Long> counts = new HashMap<>();
+        for (int i = 0; i < events.size(); i++) {
+            if (!failed[i]) {
+                Event event = events.get(i);
+                counts.merge(new ProjectCollection(event.project(), event.collection()), 1L, Long::sum);
+            }
+        }
+
+        counts.forEach((key, value) -> counter.increment(key.project, key.collection, value));
+    }
+
+    private static class CountingEventStoreProvider
+            implements Provider<EventStore>
+    {
+        private final Class<? extends EventStore> implementation;
+        private Injector injector;
+        private IngestionCounter counter;
+
+        public CountingEventStoreProvider(Class<? extends EventStore> implementation)
+        {
+            this.implementation = implementation;
+        }
+
+        @Inject
+        public void setDependencies(Injector injector, IngestionCounter counter)
+        {
+            this.injector = injector;
+            this.counter = counter;
+        }
+
+        @Override
+        public EventStore get()
+        {
+            return new CountingEventStore(injector.getInstance(implementation), counter);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package org.rakam.collection;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.apache.commons.compress.compressors.snappy.FramedSnappyCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.rakam.plugin.EventStore.CompressionType;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
+import org.rakam.util.RakamException;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static org.rakam.collection.FieldType.LONG;
+
+/**
+ * Imports remote files in parallel. Each file is fetched, decompressed and passed to the loader as a stream, the
+ * loader reports the number of rows it loads so that the stats of the execution has the progress of each file.
+ * The rows that are loaded before a failure or kill are not rolled back. The manifests are also fetched by the
+ * import task so that the request thread only validates the urls.
+ */
+public class RemoteFileImport
+        implements QueryExecution
+{
+    private final static Logger LOGGER = Logger.get(RemoteFileImport.class);
+
+    public static final String MANIFEST_EXTENSION = ".manifest";
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    // the imports share the threads, the files of the other imports wait in the queue
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(PARALLELISM, PARALLELISM,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("remote-event-import-%d").setDaemon(true).build());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final List<URL> urls;
+    private final boolean allowLocalFiles;
+    private volatile List<FileProgress> files;
+    private final CompressionType compression;
+    private final FileLoader loader;
+    private final CompletableFuture<QueryResult> result;
+    private final long startTime;
+    private volatile boolean killed;
+
+    public RemoteFileImport(List<URL> urls, boolean allowLocalFiles, CompressionType compression, FileLoader loader)
+    {
+        for (URL url : urls) {
+            checkProtocol(url, allowLocalFiles);
+        }
+
+        this.urls = ImmutableList.copyOf(urls);
+        this.allowLocalFiles = allowLocalFiles;
+        this.files = ImmutableList.of();
+        this.compression = compression;
+        this.loader = loader;
+        this.result = new CompletableFuture<>();
+        this.startTime = System.currentTimeMillis();
+
+        EXECUTOR.execute(() -> {
+            try {
+                List<FileProgress> resolved = resolve(this.urls, this.allowLocalFiles).stream()
+                        .map(FileProgress::new).collect(Collectors.toList());
+                if (resolved.isEmpty()) {
+                    throw new RakamException("No file matches the urls", BAD_REQUEST);
+                }
+                this.files = resolved;
+            }
+            catch (Throwable e) {
+                result.complete(QueryResult.errorResult(QueryError.create(e.getMessage())));
+                return;
+            }
+
+            if (!result.isDone()) {
+                start(this.files);
+            }
+        });
+    }
+
+    private void start(List<FileProgress> files)
+    {
+        Queue<FileProgress> queue = new ConcurrentLinkedQueue<>(files);
+        int workers = Math.min(PARALLELISM, files.size());
+        AtomicInteger runningWorkers = new AtomicInteger(workers);
+
+        for (int i = 0; i < workers; i++) {
+            EXECUTOR.execute(() -> {
+                try {
+                    FileProgress file;
+                    while (!result.isDone() && (file = queue.poll()) != null) {
+                        importFile(file);
+                    }
+                }
+                catch (Throwable e) {
+                    killed = true;
+                    result.complete(QueryResult.errorResult(QueryError.create(e.getMessage())));
+                }
+
+                if (runningWorkers.decrementAndGet() == 0) {
+                    long rows = files.stream().mapToLong(file -> file.rows).sum();
+                    result.complete(new QueryResult(ImmutableList.of(new SchemaField("rows", LONG)),
+                            ImmutableList.<List<Object>>of(ImmutableList.of(rows))));
+                }
+            });
+        }
+    }
+
+    private void importFile(FileProgress file)
+            throws IOException
+    {
+        file.state = QueryStats.State.RUNNING;
+
+        try (InputStream input = new ProgressInputStream(openStream(file.url), file);
+                InputStream stream = decompress(input, compression)) {
+            loader.load(file.url, stream, rows -> {
+                checkKilled();
+                file.rows += rows;
+            });
+            file.state = QueryStats.State.FINISHED;
+        }
+        catch (Throwable e) {
+            file.state = QueryStats.State.FAILED;
+            LOGGER.warn(e, "Error while importing %s", file.url);
+            throw new RakamException(String.format("Error while importing %s: %s", file.url, e.getMessage()), BAD_REQUEST);
+        }
+    }
+
+    private static InputStream openStream(URL url)
+            throws IOException
+    {
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return conn.getInputStream();
+    }
+
+    private void checkKilled()
+    {
+        if (killed) {
+            throw new IllegalStateException("The import is killed");
+        }
+    }
+
+    private static InputStream decompress(InputStream input, CompressionType compression)
+            throws IOException
+    {
+        if (compression == null) {
+            return input;
+        }
+
+        switch (compression) {
+            case GZIP:
+                return new GZIPInputStream(input, 65536);
+            case ZSTD:
+                return new ZstdCompressorInputStream(input);
+            case SNAPPY:
+                return new FramedSnappyCompressorInputStream(input);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Expands the urls of the manifest files (text files that have an url on each line, relative to the manifest) and
+     * the wildcards in the file names of local files. The entries of a manifest must use the protocol of the manifest,
+     * local files are rejected unless they are allowed explicitly.
+     */
+    public static List<URL> resolve(List<URL> urls, boolean allowLocalFiles)
+    {
+        List<URL> resolved = new ArrayList<>();
+        for (URL url : urls) {
+            checkProtocol(url, allowLocalFiles);
+            try {
+                if (url.getPath().endsWith(MANIFEST_EXTENSION)) {
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(openStream(url), StandardCharsets.UTF_8))) {
+                        List<URL> entries = new ArrayList<>();
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            line = line.trim();
+                            if (!line.isEmpty() && !line.startsWith("#")) {
+                                URL entry = new URL(url, line);
+                                if (!entry.getProtocol().equals(url.getProtocol())) {
+                                    throw new RakamException(String.format("The entry %s of the manifest %s must use the protocol of the manifest",
+                                            entry, url), BAD_REQUEST);
+                                }
+                                entries.add(entry);
+                            }
+                        }
+                        resolved.addAll(resolve(entries, allowLocalFiles));
+                    }
+                }
+                else if (url.getProtocol().equals("file") && isGlob(url.getPath())) {
+                    Path path = Paths.get(url.getPath());
+                    List<URL> matches = new ArrayList<>();
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path.getParent(), path.getFileName().toString())) {
+                        for (Path match : stream) {
+                            if (Files.isRegularFile(match)) {
+                                matches.add(match.toUri().toURL());
+                            }
+                        }
+                    }
+                    matches.sort((first, second) -> first.toString().compareTo(second.toString()));
+                    resolved.addAll(matches);
+                }
+                else {
+                    resolved.add(url);
+                }
+            }
+            catch (MalformedURLException e) {
+                throw new RakamException(String.format("Invalid url in %s: %s", url, e.getMessage()), BAD_REQUEST);
+            }
+            catch (IOException e) {
+                throw new RakamException(String.format("Unable to read %s: %s", url, e.getMessage()), BAD_REQUEST);
+            }
+        }
+        return resolved;
+    }
+
+    private static void checkProtocol(URL url, boolean allowLocalFiles)
+    {
+        switch (url.getProtocol()) {
+            case "http":
+            case "https":
+                return;
+            case "file":
+                if (allowLocalFiles) {
+                    return;
+                }
+                throw new RakamException("Local files are not allowed, set import.allow-local-files to import them", BAD_REQUEST);
+            default:
+                throw new RakamException(String.format("Unsupported protocol: %s", url.getProtocol()), BAD_REQUEST);
+        }
+    }
+
+    private static boolean isGlob(String path)
+    {
+        return path.indexOf('*') > -1 || path.indexOf('?') > -1 || path.indexOf('{') > -1 || path.indexOf('[') > -1;
+    }
+
+    @Override
+    public QueryStats currentStats()
+    {
+        List<FileProgress> files = this.files;
+        long finishedFiles = files.stream().filter(file -> file.state.isDone()).count();
+        long rows = files.stream().mapToLong(file -> file.rows).sum();
+        long bytes = files.stream().mapToLong(file -> file.bytes).sum();
+        QueryStats.State state = result.isDone() ? (result.join().isFailed() ? QueryStats.State.FAILED : QueryStats.State.FINISHED) : QueryStats.State.RUNNING;
+
+        return new ImportStats(files.isEmpty() ? 0 : (int) (finishedFiles * 100 / files.size()), state, rows, bytes,
+                System.currentTimeMillis() - startTime, ImmutableList.copyOf(files));
+    }
+
+    @Override
+    public boolean isFinished()
+    {
+        return result.isDone();
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> getResult()
+    {
+        return result;
+    }
+
+    @Override
+    public void kill()
+    {
+        killed = true;
+        result.complete(QueryResult.errorResult(QueryError.create("The import is killed")));
+    }
+
+    public interface FileLoader
+    {
+        /**
+         * Loads the rows in the decompressed stream of the file, the loaded rows must be passed to the counter
+         * periodically. The counter throws an exception if the import is killed.
+         */
+        void load(URL url, InputStream stream, LongConsumer counter)
+                throws IOException;
+    }
+
+    /**
+     * Tracks the bytes that are read from the file and stops the loader when the import is killed.
+     */
+    private class ProgressInputStream
+            extends FilterInputStream
+    {
+        private final FileProgress file;
+
+        public ProgressInputStream(InputStream in, FileProgress file)
+        {
+            super(in);
+            this.file = file;
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            checkKilled();
+            int result = in.read();
+            if (result != -1) {
+                file.bytes++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            checkKilled();
+            int result = in.read(b, off, len);
+            if (result != -1) {
+                file.bytes += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n)
+                throws IOException
+        {
+            long result = in.skip(n);
+            file.bytes += result;
+            return result;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+
+    public static class ImportStats
+            extends QueryStats
+    {
+        public final List<FileProgress> files;
+
+        public ImportStats(Integer percentage, State state, Long processedRows, Long processedBytes, Long wallTime, List<FileProgress> files)
+        {
+            super(percentage, state, null, processedRows, processedBytes, null, null, wallTime);
+            this.files = files;
+        }
+    }
+
+    public static class FileProgress
+    {
+        public final URL url;
+        public volatile QueryStats.State state;
+        public volatile long rows;
+        public volatile long bytes;
+
+        public FileProgress(URL url)
+        {
+            this.url = url;
+            this.state = QueryStats.State.QUEUED;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.rakam.config;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+
+public class RemoteImportConfig
+{
+    private boolean allowLocalFiles;
+
+    public boolean isAllowLocalFiles()
+    {
+        return allowLocalFiles;
+    }
+
+    @Config("import.allow-local-files")
+    @ConfigDescription("Allow the remote import endpoints to read the file:// urls from the file system of the server")
+    public RemoteImportConfig setAllowLocalFiles(boolean allowLocalFiles)
+    {
+        this.allowLocalFiles = allowLocalFiles;
+        return this;
+    }
+}
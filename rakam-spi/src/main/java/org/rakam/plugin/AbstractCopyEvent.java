@@ -0,0 +1,238 @@
+package org.rakam.plugin;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.LittleEndianDataInputStream;
+import com.google.inject.Inject;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.metadata.IngestionCounter;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.CopySchemaSampler;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.RemoteFileImport;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.RemoteImportConfig;
+import org.rakam.plugin.EventStore.CompressionType;
+import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.report.QueryExecution;
+import org.rakam.util.AvroUtil;
+import org.rakam.util.RakamException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static org.rakam.analysis.InternalConfig.USER_TYPE;
+import static org.rakam.util.ValidationUtil.checkCollection;
+
+/**
+ * Loads the files directly into the storage engine without converting the rows to events. The schema of the
+ * collection is extended before a file is loaded using the header of the CSV files and the first records of the
+ * JSON files, the JSON files must be line-separated. Avro files are decoded with the schema of the collection and
+ * the records are passed to the storage engine in its own format. The event mappers are not applied to the rows,
+ * the loaded rows are added to the ingestion counters.
+ */
+public abstract class AbstractCopyEvent
+        implements CopyEvent
+{
+    private final Metastore metastore;
+    private final ConfigManager configManager;
+    private final RemoteImportConfig importConfig;
+    private IngestionCounter ingestionCounter;
+
+    public AbstractCopyEvent(Metastore metastore, ConfigManager configManager, RemoteImportConfig importConfig)
+    {
+        this.metastore = metastore;
+        this.configManager = configManager;
+        this.importConfig = importConfig;
+    }
+
+    @Inject(optional = true)
+    public void setIngestionCounter(IngestionCounter ingestionCounter)
+    {
+        this.ingestionCounter = ingestionCounter;
+    }
+
+    @Override
+    public QueryExecution copy(String project, String collection, List<URL> urls, CopyType type, CompressionType compressionType, Map<String, String> options)
+    {
+        checkCollection(collection);
+        if (type == null) {
+            throw new RakamException("source type is missing", BAD_REQUEST);
+        }
+        if (urls == null || urls.isEmpty()) {
+            throw new RakamException("urls is required", BAD_REQUEST);
+        }
+
+        Map<String, String> sourceOptions = Optional.ofNullable(options).orElse(ImmutableMap.of());
+        return new RemoteFileImport(urls, importConfig.isAllowLocalFiles(), compressionType, (url, stream, fileCounter) -> {
+            LongConsumer counter = ingestionCounter == null ? fileCounter : rows -> {
+                fileCounter.accept(rows);
+                ingestionCounter.increment(project, collection, rows);
+            };
+            BufferedInputStream input = new BufferedInputStream(stream, 65536);
+            switch (type) {
+                case CSV:
+                    copyCsv(project, collection, input, sourceOptions, counter);
+                    break;
+                case JSON:
+                    Set<SchemaField> sample = CopySchemaSampler.sampleJson(input);
+                    List<SchemaField> fields = getOrCreateFields(project, collection, sample);
+                    loadJson(project, collection, fields, CopySchemaSampler.checkJson(input, fields), counter);
+                    break;
+                case AVRO:
+                    copyAvro(project, collection, input, counter);
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        });
+    }
+
+    private void copyCsv(String project, String collection, InputStream input, Map<String, String> options, LongConsumer counter)
+            throws IOException
+    {
+        char separator = ',';
+        String separatorOption = options.get("column_separator");
+        if (separatorOption != null) {
+            if (separatorOption.length() != 1) {
+                throw new RakamException("Invalid column separator", BAD_REQUEST);
+            }
+            separator = separatorOption.charAt(0);
+        }
+
+        boolean useHeader = !"false".equalsIgnoreCase(options.get("use_header"));
+
+        List<SchemaField> fields;
+        if (useHeader) {
+            List<String> columns = CopySchemaSampler.readCsvHeader(input, separator);
+            Set<SchemaField> newFields = columns.stream()
+                    .map(column -> new SchemaField(column, column.equals("_time") ? FieldType.TIMESTAMP : FieldType.STRING))
+                    .collect(Collectors.toSet());
+            List<SchemaField> schema = getOrCreateFields(project, collection, newFields);
+
+            fields = new ArrayList<>(columns.size());
+            for (String column : columns) {
+                fields.add(schema.stream().filter(field -> field.getName().equals(column)).findAny().get());
+            }
+        }
+        else {
+            fields = metastore.getCollection(project, collection);
+            if (fields.isEmpty()) {
+                throw new RakamException("The collection doesn't exist, the header of the CSV file is required to create it", BAD_REQUEST);
+            }
+        }
+
+        loadCsv(project, collection, fields, separator, input, counter);
+    }
+
+    private void copyAvro(String project, String collection, InputStream input, LongConsumer counter)
+            throws IOException
+    {
+        List<SchemaField> fields = metastore.getCollection(project, collection);
+        if (fields.isEmpty()) {
+            throw new RakamException("The collection doesn't exist", BAD_REQUEST);
+        }
+
+        // the format of the bulk API: the length of the schema, the schema, the number of records and the records
+        LittleEndianDataInputStream header = new LittleEndianDataInputStream(input);
+        byte[] schemaBytes = new byte[header.readInt()];
+        header.readFully(schemaBytes);
+        Schema writerSchema = AvroUtil.parseSchema(new String(schemaBytes, StandardCharsets.UTF_8));
+        int records = header.readInt();
+
+        GenericDatumReader<GenericRecord> reader = AvroUtil.getReader(writerSchema, AvroUtil.convertAvroSchema(fields));
+        BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(input, null);
+
+        loadRecords(project, collection, fields, new RecordReader()
+        {
+            private int position;
+
+            @Override
+            public GenericRecord next()
+                    throws IOException
+            {
+                if (position >= records) {
+                    return null;
+                }
+                position++;
+                return reader.read(null, decoder);
+            }
+        }, counter);
+    }
+
+    private List<SchemaField> getOrCreateFields(String project, String collection, Set<SchemaField> fields)
+    {
+        List<SchemaField> schema = metastore.getCollection(project, collection);
+        Set<String> existingFields = schema.stream().map(SchemaField::getName).collect(Collectors.toSet());
+        Set<SchemaField> newFields = fields.stream()
+                .filter(field -> !existingFields.contains(field.getName()))
+                .map(field -> field.getName().equals("_user") ? new SchemaField("_user", getUserType(project, field.getType())) : field)
+                .collect(Collectors.toSet());
+        if (schema.isEmpty() && !newFields.isEmpty() && newFields.stream().noneMatch(field -> field.getName().equals("_user"))) {
+            // the same as the event collection API, the collections have the _user column
+            newFields.add(new SchemaField("_user", getUserType(project, FieldType.STRING)));
+        }
+
+        if (newFields.isEmpty()) {
+            if (schema.isEmpty()) {
+                throw new RakamException("The file doesn't have any property", BAD_REQUEST);
+            }
+            return schema;
+        }
+
+        return metastore.getOrCreateCollectionFieldList(project, collection, newFields);
+    }
+
+    // the type of _user must be consistent between the collections of the project
+    private FieldType getUserType(String project, FieldType sampledType)
+    {
+        if (sampledType.isArray() || sampledType.isMap()) {
+            throw new RakamException("_user field must be numeric or string.", BAD_REQUEST);
+        }
+        return configManager.setConfigOnce(project, USER_TYPE.name(),
+                sampledType.isNumeric() ? (sampledType != FieldType.INTEGER ? FieldType.LONG : FieldType.INTEGER) : FieldType.STRING);
+    }
+
+    /**
+     * Loads the CSV rows, the header is already consumed and the columns are in the order of the fields.
+     */
+    protected abstract void loadCsv(String project, String collection, List<SchemaField> fields, char separator, InputStream input, LongConsumer counter)
+            throws IOException;
+
+    /**
+     * Loads the line-separated JSON objects, the fields are the columns of the collection including the properties of
+     * the sampled objects.
+     */
+    protected abstract void loadJson(String project, String collection, List<SchemaField> fields, InputStream input, LongConsumer counter)
+            throws IOException;
+
+    /**
+     * Loads the records that are decoded with the schema of the collection.
+     */
+    protected abstract void loadRecords(String project, String collection, List<SchemaField> fields, RecordReader reader, LongConsumer counter)
+            throws IOException;
+
+    public interface RecordReader
+    {
+        /**
+         * Returns null after the last record.
+         */
+        GenericRecord next()
+                throws IOException;
+    }
+}
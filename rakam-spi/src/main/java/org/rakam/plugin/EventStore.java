@@ -59,7 +59,7 @@ public interface EventStore
 
     enum CompressionType
     {
-        GZIP;
+        GZIP, ZSTD, SNAPPY;
 
         @JsonCreator
         public static CompressionType get(String name)
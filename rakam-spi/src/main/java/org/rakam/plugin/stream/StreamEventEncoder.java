@@ -0,0 +1,156 @@
+package org.rakam.plugin.stream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
+import com.fasterxml.jackson.core.util.BufferRecycler;
+import com.google.common.base.Throwables;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.collection.Event;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serializes events into the JSON fragments that are pushed to the event stream subscribers.
+ * The encoding is done once per event and the resulting fragment is shared by all the subscribers
+ * whose filters match the event.
+ */
+public final class StreamEventEncoder
+{
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private StreamEventEncoder()
+            throws InstantiationException
+    {
+        throw new InstantiationException("The class is not created for instantiation");
+    }
+
+    public static String encode(Event event)
+    {
+        SegmentedStringWriter writer = new SegmentedStringWriter(new BufferRecycler());
+        try (JsonGenerator generator = FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("project", event.project());
+            generator.writeStringField("collection", event.collection());
+            generator.writeFieldName("properties");
+            writeRecord(generator, event.properties());
+            generator.writeEndObject();
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        return writer.getAndClear();
+    }
+
+    /**
+     * Encodes the record as a flat JSON object that has a <code>_collection</code> attribute, only the given
+     * columns are written if the columns is not null.
+     */
+    public static String encode(String collection, GenericRecord record, Set<String> columns)
+    {
+        SegmentedStringWriter writer = new SegmentedStringWriter(new BufferRecycler());
+        try (JsonGenerator generator = FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("_collection", collection);
+            writeFields(generator, record, columns);
+            generator.writeEndObject();
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        return writer.getAndClear();
+    }
+
+    private static void writeRecord(JsonGenerator generator, GenericRecord record)
+            throws IOException
+    {
+        generator.writeStartObject();
+        writeFields(generator, record, null);
+        generator.writeEndObject();
+    }
+
+    private static void writeFields(JsonGenerator generator, GenericRecord record, Set<String> columns)
+            throws IOException
+    {
+        List<Schema.Field> fields = record.getSchema().getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            Object value = record.get(i);
+            if (value == null) {
+                continue;
+            }
+            String name = fields.get(i).name();
+            if (columns != null && !columns.contains(name)) {
+                continue;
+            }
+            generator.writeFieldName(name);
+            writeValue(generator, value);
+        }
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value)
+            throws IOException
+    {
+        if (value == null) {
+            generator.writeNull();
+        }
+        else if (value instanceof CharSequence) {
+            generator.writeString(value.toString());
+        }
+        else if (value instanceof Integer) {
+            generator.writeNumber((Integer) value);
+        }
+        else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        }
+        else if (value instanceof Double) {
+            double number = (Double) value;
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                generator.writeNull();
+            }
+            else {
+                generator.writeNumber(number);
+            }
+        }
+        else if (value instanceof Float) {
+            generator.writeNumber((Float) value);
+        }
+        else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            generator.writeBinary(bytes);
+        }
+        else if (value instanceof GenericRecord) {
+            writeRecord(generator, (GenericRecord) value);
+        }
+        else if (value instanceof Collection) {
+            generator.writeStartArray();
+            for (Object item : (Collection) value) {
+                writeValue(generator, item);
+            }
+            generator.writeEndArray();
+        }
+        else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                generator.writeFieldName(entry.getKey().toString());
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+        else {
+            generator.writeString(value.toString());
+        }
+    }
+}
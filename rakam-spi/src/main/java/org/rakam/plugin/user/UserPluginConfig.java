@@ -16,7 +16,10 @@ public class UserPluginConfig {
     private boolean enableUserMapping = false;
     private String identifierColumn;
     private boolean funnelAnalysisEnabled = true;
+    private boolean funnelInMemoryEnabled;
+    private long funnelInMemoryMaxEvents = 50_000_000;
     private boolean retentionAnalysisEnabled = true;
+    private boolean retentionInMemoryEnabled;
     private Iterable<String> actions;
     private boolean automationEnabled;
     private boolean abTestingEnabled;
@@ -77,6 +80,24 @@ public class UserPluginConfig {
         return funnelAnalysisEnabled;
     }
 
+    @Config("user.funnel-analysis.in-memory.enabled")
+    public void setFunnelInMemoryEnabled(boolean funnelInMemoryEnabled) {
+        this.funnelInMemoryEnabled = funnelInMemoryEnabled;
+    }
+
+    public boolean isFunnelInMemoryEnabled() {
+        return funnelInMemoryEnabled;
+    }
+
+    @Config("user.funnel-analysis.in-memory.max-events")
+    public void setFunnelInMemoryMaxEvents(long funnelInMemoryMaxEvents) {
+        this.funnelInMemoryMaxEvents = funnelInMemoryMaxEvents;
+    }
+
+    public long getFunnelInMemoryMaxEvents() {
+        return funnelInMemoryMaxEvents;
+    }
+
     @Config("automation.enabled")
     public void setAutomationEnabled(boolean automationEnabled) {
         this.automationEnabled = automationEnabled;
@@ -102,6 +123,15 @@ public class UserPluginConfig {
         return retentionAnalysisEnabled;
     }
 
+    @Config("user.retention-analysis.in-memory.enabled")
+    public void setRetentionInMemoryEnabled(boolean retentionInMemoryEnabled) {
+        this.retentionInMemoryEnabled = retentionInMemoryEnabled;
+    }
+
+    public boolean isRetentionInMemoryEnabled() {
+        return retentionInMemoryEnabled;
+    }
+
     @Config("plugin.user.storage.hide-columns")
     public void setHiddenColumns(String hiddenColumns) {
         this.hiddenColumns = ImmutableList.copyOf(Splitter.on(',').omitEmptyStrings().trimResults().split(hiddenColumns));
@@ -0,0 +1,155 @@
+package org.rakam.plugin.user;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.user.AbstractUserService.CollectionEvent;
+import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResult;
+import org.rakam.util.RakamException;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static org.rakam.collection.FieldType.BINARY;
+
+/**
+ * Fetches the latest events of a user by running a top-N query for each collection in parallel and merging the
+ * sorted results by _time. The queries only read the rows of the user that are older than the cursor so they can use
+ * the sort order / indexes of the collections instead of sorting the union of all collections.
+ */
+public class UserTimeline
+{
+    private final QueryExecutor executor;
+    private final CollectionQueryBuilder queryBuilder;
+
+    public UserTimeline(QueryExecutor executor, CollectionQueryBuilder queryBuilder)
+    {
+        this.executor = executor;
+        this.queryBuilder = queryBuilder;
+    }
+
+    /**
+     * @param defaultColumns the columns that are returned when the properties are not set, all the columns if null
+     * @param beforeThisTime the _time of the last event in the previous page, null for the first page
+     */
+    public CompletableFuture<List<CollectionEvent>> getEvents(Map<String, List<SchemaField>> collections,
+            Optional<List<String>> properties, Set<String> defaultColumns, int limit, Instant beforeThisTime)
+    {
+        List<String> collectionNames = new ArrayList<>();
+        List<CompletableFuture<QueryResult>> results = new ArrayList<>();
+
+        for (Map.Entry<String, List<SchemaField>> entry : collections.entrySet()) {
+            List<SchemaField> fields = entry.getValue();
+            if (!fields.stream().anyMatch(field -> field.getName().equals("_user"))
+                    || !fields.stream().anyMatch(field -> field.getName().equals("_time"))) {
+                continue;
+            }
+
+            List<SchemaField> columns = fields.stream()
+                    .filter(field -> !field.getName().equals("_user") && field.getType() != BINARY)
+                    .filter(field -> field.getName().equals("_time") || (properties.isPresent()
+                            ? properties.get().contains(field.getName())
+                            : defaultColumns == null || defaultColumns.contains(field.getName())))
+                    .collect(Collectors.toList());
+
+            String query = queryBuilder.build(entry.getKey(), fields, columns, limit, beforeThisTime);
+            collectionNames.add(entry.getKey());
+            results.add(executor.executeRawQuery(query).getResult());
+        }
+
+        if (results.isEmpty()) {
+            return CompletableFuture.completedFuture(ImmutableList.of());
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()]))
+                .thenApply(v -> {
+                    List<CollectionCursor> cursors = new ArrayList<>(results.size());
+                    for (int i = 0; i < results.size(); i++) {
+                        QueryResult result = results.get(i).join();
+                        if (result.isFailed()) {
+                            throw new RakamException(result.getError().message, INTERNAL_SERVER_ERROR);
+                        }
+                        cursors.add(new CollectionCursor(collectionNames.get(i), result));
+                    }
+                    return merge(cursors, limit);
+                });
+    }
+
+    private static List<CollectionEvent> merge(List<CollectionCursor> cursors, int limit)
+    {
+        PriorityQueue<CollectionCursor> queue = new PriorityQueue<>(cursors.size(),
+                Comparator.comparing(CollectionCursor::time, Comparator.nullsLast(Comparator.reverseOrder())));
+        for (CollectionCursor cursor : cursors) {
+            if (cursor.hasNext()) {
+                queue.add(cursor);
+            }
+        }
+
+        List<CollectionEvent> events = new ArrayList<>(limit);
+        while (events.size() < limit && !queue.isEmpty()) {
+            CollectionCursor cursor = queue.poll();
+            events.add(cursor.next());
+            if (cursor.hasNext()) {
+                queue.add(cursor);
+            }
+        }
+
+        return events;
+    }
+
+    public interface CollectionQueryBuilder
+    {
+        /**
+         * Returns the query that selects the columns of the user's events in the collection that are older than
+         * beforeThisTime (if it's not null), ordered by _time descending and limited to the given number of rows.
+         */
+        String build(String collection, List<SchemaField> fields, List<SchemaField> columns, int limit, Instant beforeThisTime);
+    }
+
+    private static class CollectionCursor
+    {
+        private final String collection;
+        private final List<String> columnNames;
+        private final List<List<Object>> rows;
+        private final int timeIndex;
+        private int position;
+
+        public CollectionCursor(String collection, QueryResult result)
+        {
+            this.collection = collection;
+            this.columnNames = result.getMetadata().stream().map(SchemaField::getName).collect(Collectors.toList());
+            this.rows = result.getResult();
+            this.timeIndex = columnNames.indexOf("_time");
+        }
+
+        public boolean hasNext()
+        {
+            return position < rows.size();
+        }
+
+        public Instant time()
+        {
+            return timeIndex == -1 ? null : (Instant) rows.get(position).get(timeIndex);
+        }
+
+        public CollectionEvent next()
+        {
+            List<Object> row = rows.get(position++);
+            Map<String, Object> properties = new LinkedHashMap<>(columnNames.size());
+            for (int i = 0; i < columnNames.size(); i++) {
+                properties.put(columnNames.get(i), row.get(i));
+            }
+            return new CollectionEvent(collection, properties);
+        }
+    }
+}
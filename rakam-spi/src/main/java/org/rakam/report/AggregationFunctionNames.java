@@ -0,0 +1,80 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * The names of the aggregation functions of a database, see {@link QueryExecutor#isAggregationFunction(String)}. The
+ * names are fetched in the background when they're needed for the first time since the callers may run in the event
+ * loop, the functions are not known until the names are fetched and a failed fetch is retried after a delay.
+ */
+public class AggregationFunctionNames
+{
+    private final static Logger LOGGER = Logger.get(AggregationFunctionNames.class);
+    private static final long RETRY_INTERVAL_MILLIS = 60000;
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("aggregation-function-loader")
+            .setDaemon(true)
+            .build());
+
+    private final Supplier<Set<String>> loader;
+    private final AtomicBoolean loading;
+    private volatile Set<String> names;
+    private volatile long lastAttempt;
+
+    public AggregationFunctionNames(Supplier<Set<String>> loader)
+    {
+        this.loader = loader;
+        this.loading = new AtomicBoolean();
+    }
+
+    /**
+     * Returns false if the names are not fetched yet.
+     */
+    public boolean contains(String name)
+    {
+        Set<String> names = this.names;
+        if (names == null) {
+            load();
+            return false;
+        }
+        return names.contains(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    public boolean isLoaded()
+    {
+        return names != null;
+    }
+
+    public void load()
+    {
+        if (names != null || System.currentTimeMillis() - lastAttempt < RETRY_INTERVAL_MILLIS || !loading.compareAndSet(false, true)) {
+            return;
+        }
+        lastAttempt = System.currentTimeMillis();
+
+        LOADER.execute(() -> {
+            try {
+                ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+                for (String name : loader.get()) {
+                    builder.add(name.toLowerCase(Locale.ENGLISH));
+                }
+                names = builder.build();
+            }
+            catch (Exception e) {
+                LOGGER.warn(e, "Unable to fetch the aggregation functions, the queries are not merged until they're fetched");
+            }
+            finally {
+                loading.set(false);
+            }
+        });
+    }
+}
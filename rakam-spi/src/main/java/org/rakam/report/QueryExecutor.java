@@ -1,9 +1,11 @@
 package org.rakam.report;
 
 import com.facebook.presto.sql.tree.QualifiedName;
+import com.google.common.collect.ImmutableList;
 
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface QueryExecutor
 {
@@ -19,5 +21,59 @@ public interface QueryExecutor
 
     QueryExecution executeRawStatement(String sqlQuery);
 
+    /**
+     * Hands the rows of the query to the consumer in pages, the result of the execution only has the metadata and
+     * the properties. The executors that can't fetch the result incrementally hand the whole result as a single page.
+     */
+    default QueryExecution streamRawQuery(String sqlQuery, Map<String, String> sessionParameters, QueryResultConsumer consumer) {
+        QueryExecution execution = executeRawQuery(sqlQuery, sessionParameters);
+        CompletableFuture<QueryResult> result = execution.getResult().thenApply(queryResult -> {
+            if (queryResult.isFailed()) {
+                return queryResult;
+            }
+            consumer.metadata(queryResult.getMetadata());
+            consumer.page(queryResult.getResult());
+            return new QueryResult(queryResult.getMetadata(), ImmutableList.of(), queryResult.getProperties());
+        });
+
+        return new QueryExecution() {
+            @Override
+            public QueryStats currentStats() {
+                return execution.currentStats();
+            }
+
+            @Override
+            public boolean isFinished() {
+                return result.isDone();
+            }
+
+            @Override
+            public CompletableFuture<QueryResult> getResult() {
+                return result;
+            }
+
+            @Override
+            public void kill() {
+                execution.kill();
+            }
+        };
+    }
+
+    /**
+     * Returns true if {@link #streamRawQuery} fetches the result of the query incrementally. The results of the
+     * executors that hand the whole result as a single page are limited.
+     */
+    default boolean canStreamRawQuery(Map<String, String> sessionParameters) {
+        return false;
+    }
+
+    /**
+     * Returns true if the database has an aggregation function with the name. The executors that don't know the
+     * functions of the database return false.
+     */
+    default boolean isAggregationFunction(String name) {
+        return false;
+    }
+
     String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema);
 }
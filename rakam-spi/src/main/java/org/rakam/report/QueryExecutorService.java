@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -58,6 +59,23 @@ public class QueryExecutorService
     }
 
     public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, int limit)
+    {
+        return executeQuery(project, sqlQuery, sample, defaultSchema, sessionParameters -> limit, executor::executeRawQuery);
+    }
+
+    /**
+     * Executes the query and hands the rows to the consumer in pages, see {@link QueryExecutor#streamRawQuery}.
+     * Since the result is not kept in memory, the result is not limited if the limit is null and the executor can
+     * stream the query, otherwise the result is limited to {@link #MAX_QUERY_RESULT_LIMIT} rows.
+     */
+    public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, Integer limit, QueryResultConsumer consumer)
+    {
+        return executeQuery(project, sqlQuery, sample, defaultSchema,
+                sessionParameters -> limit == null && !executor.canStreamRawQuery(sessionParameters) ? MAX_QUERY_RESULT_LIMIT : limit,
+                (query, sessionParameters) -> executor.streamRawQuery(query, sessionParameters, consumer));
+    }
+
+    private QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, Function<Map<String, String>, Integer> limit, BiFunction<String, Map<String, String>, QueryExecution> rawExecutor)
     {
         if (!projectExists(project)) {
             throw new NotExistsException("Project");
@@ -83,7 +101,7 @@ public class QueryExecutorService
                 .collect(Collectors.toList());
 
         if (queryExecutions.isEmpty()) {
-            QueryExecution execution = executor.executeRawQuery(query, sessionParameters);
+            QueryExecution execution = rawExecutor.apply(query, sessionParameters);
             if (materializedViews.isEmpty()) {
                 return execution;
             }
@@ -116,7 +134,7 @@ public class QueryExecutorService
                     }
                 }
 
-                return executor.executeRawQuery(query, sessionParameters);
+                return rawExecutor.apply(query, sessionParameters);
             }), result -> {
                 if (!result.isFailed()) {
                     Map<String, Long> collect = materializedViews.entrySet().stream()
@@ -164,6 +182,14 @@ public class QueryExecutorService
     }
 
     public String buildQuery(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Integer maxLimit, Map<MaterializedView, MaterializedViewExecution> materializedViews, Map<String, String> sessionParameters)
+    {
+        return buildQuery(project, query, sample, defaultSchema, parameters -> maxLimit, materializedViews, sessionParameters);
+    }
+
+    /**
+     * The limit depends on the session parameters that are set while the table names are formatted.
+     */
+    private String buildQuery(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Function<Map<String, String>, Integer> limitFunction, Map<MaterializedView, MaterializedViewExecution> materializedViews, Map<String, String> sessionParameters)
     {
         Query statement;
         Function<QualifiedName, String> tableNameMapper = tableNameMapper(project, materializedViews, sample, defaultSchema, sessionParameters);
@@ -187,6 +213,7 @@ public class QueryExecutorService
         new RakamSqlFormatter.Formatter(builder, tableNameMapper, escapeIdentifier)
                 .process(statement, 1);
 
+        Integer maxLimit = limitFunction.apply(sessionParameters);
         if (maxLimit != null) {
             Integer limit = null;
             if (statement.getLimit().isPresent()) {
@@ -0,0 +1,16 @@
+package org.rakam.report;
+
+import org.rakam.collection.SchemaField;
+
+import java.util.List;
+
+/**
+ * Receives the rows of a query page by page so that the whole result doesn't need to be kept in memory.
+ * The methods are called from the thread that fetches the result and they may block in order to slow down the fetching.
+ */
+public interface QueryResultConsumer
+{
+    void metadata(List<SchemaField> columns);
+
+    void page(List<List<Object>> rows);
+}
@@ -0,0 +1,55 @@
+package org.rakam.report;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+public class SharedScanConfig
+{
+    private boolean enabled;
+    private Duration window = new Duration(25, MILLISECONDS);
+    private int maxQueries = 50;
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("query.shared-scan.enabled")
+    @ConfigDescription("Merge the compatible queries that are executed at the same time into a single query")
+    public SharedScanConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public Duration getWindow()
+    {
+        return window;
+    }
+
+    @Config("query.shared-scan.window")
+    @ConfigDescription("The time to wait for the compatible queries after the first query of a batch")
+    public SharedScanConfig setWindow(Duration window)
+    {
+        this.window = window;
+        return this;
+    }
+
+    @Min(2)
+    public int getMaxQueries()
+    {
+        return maxQueries;
+    }
+
+    @Config("query.shared-scan.max-queries")
+    public SharedScanConfig setMaxQueries(int maxQueries)
+    {
+        this.maxQueries = maxQueries;
+        return this;
+    }
+}
@@ -0,0 +1,695 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.RakamExpressionFormatter;
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.facebook.presto.sql.parser.ParsingException;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.GroupingElement;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SimpleGroupBy;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.SortItem;
+import com.facebook.presto.sql.tree.Statement;
+import com.facebook.presto.sql.tree.Table;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import io.airlift.log.Logger;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.RakamException;
+
+import javax.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.report.QueryResult.QUERY;
+
+/**
+ * Merges the aggregation queries that scan the same table with the same predicate and grouping keys into a single
+ * query when they're executed within a short window, such as the widgets of a dashboard. The merged query computes
+ * the select items of all the queries once and the result is split back to the callers, ORDER BY and LIMIT of the
+ * queries are applied in memory. The queries that can't be merged are executed as usual and if the merged query
+ * fails, the queries are executed one by one so that the callers get their own errors.
+ * <p>
+ * The grouping keys of the merged queries must be the same because there is no portable way to tell the rolled-up
+ * rows of GROUPING SETS from the NULL values of the keys in the storage engines.
+ * <p>
+ * The default null ordering and the collations differ between the databases, so the queries are merged only if their
+ * ORDER BY items have explicit NULLS FIRST or NULLS LAST and the queries that are sorted by text columns are executed
+ * separately.
+ */
+public class SharedScanQueryExecutor
+{
+    private static final Logger LOGGER = Logger.get(SharedScanQueryExecutor.class);
+    private static final char ESCAPE = '"';
+
+    private final QueryExecutorService executorService;
+    private final QueryExecutor executor;
+    private final SharedScanConfig config;
+    private final SqlParser parser = new SqlParser();
+    private final ScheduledExecutorService scheduler;
+    // guarded by this
+    private final Map<String, Batch> batches;
+
+    @Inject
+    public SharedScanQueryExecutor(QueryExecutorService executorService, QueryExecutor executor, SharedScanConfig config)
+    {
+        this.executorService = executorService;
+        this.executor = executor;
+        this.config = config;
+        this.batches = new HashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("shared-scan-scheduler")
+                .setDaemon(true)
+                .build());
+
+        if (config.isEnabled()) {
+            // the executors fetch the aggregation functions in the background, the queries are not merged until then
+            executor.isAggregationFunction("count");
+        }
+    }
+
+    public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, int limit)
+    {
+        ScanQuery query = config.isEnabled() && !sample.isPresent() ? analyze(sqlQuery, limit) : null;
+        if (query == null) {
+            return executorService.executeQuery(project, sqlQuery, sample, defaultSchema, limit);
+        }
+
+        String key = String.join("\0", project, defaultSchema, query.table, query.where, new TreeSet<>(query.groupingKeys).toString());
+        SharedQueryExecution execution = new SharedQueryExecution(sqlQuery, query, limit);
+
+        synchronized (this) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(project, defaultSchema, query);
+                batches.put(key, batch);
+                Batch newBatch = batch;
+                scheduler.schedule(() -> flush(key, newBatch), config.getWindow().toMillis(), MILLISECONDS);
+            }
+
+            batch.members.add(execution);
+            if (batch.members.size() >= config.getMaxQueries()) {
+                Batch fullBatch = batch;
+                scheduler.execute(() -> flush(key, fullBatch));
+            }
+        }
+
+        return execution;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    private void flush(String key, Batch batch)
+    {
+        synchronized (this) {
+            if (batches.get(key) == batch) {
+                batches.remove(key);
+            }
+            if (batch.flushed) {
+                return;
+            }
+            batch.flushed = true;
+        }
+
+        List<SharedQueryExecution> members = batch.members.stream()
+                .filter(member -> !member.killed)
+                .collect(Collectors.toList());
+
+        if (members.size() == 1) {
+            executeSeparately(batch, members);
+        }
+        else if (members.size() > 1) {
+            try {
+                executeShared(batch, members);
+            }
+            catch (RuntimeException e) {
+                LOGGER.debug(e, "Unable to execute the shared query");
+                executeSeparately(batch, members);
+            }
+        }
+    }
+
+    private void executeSeparately(Batch batch, List<SharedQueryExecution> members)
+    {
+        for (SharedQueryExecution member : members) {
+            try {
+                member.start(executorService.executeQuery(batch.project, member.sqlQuery, Optional.empty(), batch.defaultSchema, member.limit));
+            }
+            catch (RakamException e) {
+                // the callers can't catch the errors that are thrown before the query is executed such as the
+                // missing project since the execution is already returned
+                member.result.complete(QueryResult.errorResult(new QueryError(e.getMessage(), null, null, null, null), member.sqlQuery));
+            }
+            catch (RuntimeException e) {
+                member.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void executeShared(Batch batch, List<SharedQueryExecution> members)
+    {
+        List<String> columns = new ArrayList<>(batch.groupingKeys);
+        Map<String, Integer> columnIndexes = new HashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            columnIndexes.put(columns.get(i), i);
+        }
+
+        int limit = 0;
+        for (SharedQueryExecution member : members) {
+            List<String> expressions = member.query.expressions;
+            member.columnIndexes = new int[expressions.size()];
+            for (int i = 0; i < expressions.size(); i++) {
+                member.columnIndexes[i] = columnIndexes.computeIfAbsent(expressions.get(i), expression -> {
+                    columns.add(expression);
+                    return columns.size() - 1;
+                });
+            }
+            limit = Math.max(limit, member.limit);
+        }
+
+        StringBuilder query = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                query.append(", ");
+            }
+            query.append(columns.get(i)).append(" AS ").append(RakamExpressionFormatter.formatIdentifier("$shared" + i, ESCAPE));
+        }
+        query.append(" FROM ").append(batch.table);
+        if (!batch.where.isEmpty()) {
+            query.append(" WHERE ").append(batch.where);
+        }
+        if (!batch.groupingKeys.isEmpty()) {
+            query.append(" GROUP BY ");
+            for (int i = 0; i < batch.groupingKeys.size(); i++) {
+                if (i > 0) {
+                    query.append(", ");
+                }
+                query.append(i + 1);
+            }
+        }
+
+        QueryExecution execution = executorService.executeQuery(batch.project, query.toString(), Optional.empty(), batch.defaultSchema, limit);
+        SharedScan scan = new SharedScan(execution, members.size());
+        for (SharedQueryExecution member : members) {
+            member.start(scan);
+        }
+
+        int mergedLimit = limit;
+        execution.getResult().whenComplete((result, ex) -> {
+            // the rows that are truncated by the limit may be selected by ORDER BY of the queries
+            if (ex != null || result.isFailed() || result.getResult().size() >= mergedLimit) {
+                executeSeparately(batch, members.stream().filter(member -> !member.killed).collect(Collectors.toList()));
+                return;
+            }
+
+            for (SharedQueryExecution member : members) {
+                if (member.killed) {
+                    continue;
+                }
+                if (sortsByText(result, member)) {
+                    executeSeparately(batch, ImmutableList.of(member));
+                    continue;
+                }
+
+                try {
+                    member.result.complete(split(result, member, members.size()));
+                }
+                catch (RuntimeException e) {
+                    member.result.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    private static boolean sortsByText(QueryResult result, SharedQueryExecution member)
+    {
+        for (SortKey sortKey : member.query.sortKeys) {
+            FieldType type = result.getMetadata().get(member.columnIndexes[sortKey.column]).getType();
+            if (type == FieldType.STRING || type == FieldType.BINARY || type.isArray() || type.isMap()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static QueryResult split(QueryResult result, SharedQueryExecution member, int sharedQueries)
+    {
+        ScanQuery query = member.query;
+        int[] columnIndexes = member.columnIndexes;
+
+        List<SchemaField> metadata = new ArrayList<>(columnIndexes.length);
+        for (int i = 0; i < columnIndexes.length; i++) {
+            metadata.add(new SchemaField(query.names.get(i), result.getMetadata().get(columnIndexes[i]).getType()));
+        }
+
+        List<List<Object>> rows = new ArrayList<>(result.getResult().size());
+        for (List<Object> row : result.getResult()) {
+            List<Object> values = new ArrayList<>(columnIndexes.length);
+            for (int columnIndex : columnIndexes) {
+                values.add(row.get(columnIndex));
+            }
+            rows.add(values);
+        }
+
+        if (!query.sortKeys.isEmpty()) {
+            Comparator<List<Object>> comparator = null;
+            for (SortKey sortKey : query.sortKeys) {
+                Comparator<List<Object>> keyComparator = (first, second) ->
+                        sortKey.compare(first.get(sortKey.column), second.get(sortKey.column));
+                comparator = comparator == null ? keyComparator : comparator.thenComparing(keyComparator);
+            }
+            rows.sort(comparator);
+        }
+
+        int limit = Math.min(query.limit.orElse(member.limit), member.limit);
+        if (rows.size() > limit) {
+            rows = new ArrayList<>(rows.subList(0, limit));
+        }
+
+        Map<String, Object> properties = new HashMap<>(result.getProperties());
+        properties.put(QUERY, member.sqlQuery);
+        properties.put("sharedScanQueries", sharedQueries);
+        return new QueryResult(metadata, rows, properties);
+    }
+
+    /**
+     * Returns null if the query is not a simple aggregation query that can be merged with the others.
+     */
+    private ScanQuery analyze(String sqlQuery, int maxLimit)
+    {
+        try {
+            return analyzeQuery(sqlQuery, maxLimit);
+        }
+        catch (RuntimeException e) {
+            // the functions of the database may not be fetched
+            LOGGER.debug(e, "Unable to analyze the query for the shared scan");
+            return null;
+        }
+    }
+
+    private ScanQuery analyzeQuery(String sqlQuery, int maxLimit)
+    {
+        Statement statement;
+        try {
+            synchronized (parser) {
+                statement = parser.createStatement(sqlQuery);
+            }
+        }
+        catch (ParsingException e) {
+            return null;
+        }
+
+        if (!(statement instanceof Query)) {
+            return null;
+        }
+        Query query = (Query) statement;
+        if (query.getWith().isPresent() || !(query.getQueryBody() instanceof QuerySpecification)) {
+            return null;
+        }
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+
+        if (specification.getSelect().isDistinct() || specification.getHaving().isPresent()
+                || !specification.getFrom().isPresent() || !(specification.getFrom().get() instanceof Table)) {
+            return null;
+        }
+
+        List<String> expressions = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        boolean aggregation = true;
+        for (SelectItem selectItem : specification.getSelect().getSelectItems()) {
+            if (!(selectItem instanceof SingleColumn)) {
+                return null;
+            }
+            SingleColumn column = (SingleColumn) selectItem;
+            Expression expression = column.getExpression();
+
+            FunctionCallFinder finder = new FunctionCallFinder(executor);
+            finder.process(expression, null);
+            if (finder.window) {
+                return null;
+            }
+            aggregation &= finder.aggregation;
+
+            // the engines have different names for the expressions that don't have an alias
+            Optional<String> name = column.getAlias();
+            if (!name.isPresent() && expression instanceof QualifiedNameReference) {
+                name = Optional.of(((QualifiedNameReference) expression).getName().getSuffix());
+            }
+            if (!name.isPresent()) {
+                return null;
+            }
+
+            expressions.add(formatExpression(expression));
+            names.add(name.get());
+        }
+
+        Set<String> groupingKeys = new LinkedHashSet<>();
+        if (specification.getGroupBy().isPresent()) {
+            if (specification.getGroupBy().get().isDistinct()) {
+                return null;
+            }
+            for (GroupingElement element : specification.getGroupBy().get().getGroupingElements()) {
+                if (!(element instanceof SimpleGroupBy)) {
+                    return null;
+                }
+                for (Expression expression : ((SimpleGroupBy) element).getColumnExpressions()) {
+                    if (expression instanceof LongLiteral) {
+                        long ordinal = ((LongLiteral) expression).getValue();
+                        if (ordinal < 1 || ordinal > expressions.size()) {
+                            return null;
+                        }
+                        groupingKeys.add(expressions.get((int) ordinal - 1));
+                    }
+                    else {
+                        groupingKeys.add(formatExpression(expression));
+                    }
+                }
+            }
+        }
+        else if (!aggregation) {
+            return null;
+        }
+
+        List<SortItem> sortItems = query.getOrderBy();
+        Optional<String> limitValue = query.getLimit();
+        if (!specification.getOrderBy().isEmpty() || specification.getLimit().isPresent()) {
+            if (!sortItems.isEmpty() || limitValue.isPresent()) {
+                return null;
+            }
+            sortItems = specification.getOrderBy();
+            limitValue = specification.getLimit();
+        }
+
+        List<SortKey> sortKeys = new ArrayList<>();
+        for (SortItem sortItem : sortItems) {
+            int column = getOutputColumn(sortItem.getSortKey(), expressions, names);
+            // the databases place the NULL values differently by default
+            if (column == -1 || sortItem.getNullOrdering() == SortItem.NullOrdering.UNDEFINED) {
+                return null;
+            }
+            sortKeys.add(new SortKey(column,
+                    sortItem.getOrdering() == SortItem.Ordering.ASCENDING,
+                    sortItem.getNullOrdering() == SortItem.NullOrdering.FIRST));
+        }
+
+        Optional<Integer> limit = Optional.empty();
+        if (limitValue.isPresent() && !limitValue.get().equalsIgnoreCase("all")) {
+            try {
+                limit = Optional.of(Integer.parseInt(limitValue.get()));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+            // the query fails with the same error when it's executed
+            if (limit.get() > maxLimit) {
+                return null;
+            }
+        }
+
+        String where = specification.getWhere().map(SharedScanQueryExecutor::formatExpression).orElse("");
+        String table = formatName(((Table) specification.getFrom().get()).getName());
+
+        return new ScanQuery(table, where, new ArrayList<>(groupingKeys), expressions, names, sortKeys, limit);
+    }
+
+    private static int getOutputColumn(Expression sortKey, List<String> expressions, List<String> names)
+    {
+        if (sortKey instanceof LongLiteral) {
+            long ordinal = ((LongLiteral) sortKey).getValue();
+            return ordinal < 1 || ordinal > expressions.size() ? -1 : (int) ordinal - 1;
+        }
+
+        if (sortKey instanceof QualifiedNameReference) {
+            QualifiedName name = ((QualifiedNameReference) sortKey).getName();
+            if (!name.getPrefix().isPresent() && names.contains(name.getSuffix())) {
+                return names.indexOf(name.getSuffix());
+            }
+        }
+
+        return expressions.indexOf(formatExpression(sortKey));
+    }
+
+    private static String formatExpression(Expression expression)
+    {
+        return RakamSqlFormatter.formatExpression(expression, SharedScanQueryExecutor::formatName, ESCAPE);
+    }
+
+    private static String formatName(QualifiedName name)
+    {
+        return name.getParts().stream()
+                .map(part -> RakamExpressionFormatter.formatIdentifier(part, ESCAPE))
+                .collect(Collectors.joining("."));
+    }
+
+    private static class FunctionCallFinder
+            extends DefaultTraversalVisitor<Void, Void>
+    {
+        private final QueryExecutor executor;
+        private boolean aggregation;
+        private boolean window;
+
+        private FunctionCallFinder(QueryExecutor executor)
+        {
+            this.executor = executor;
+        }
+
+        @Override
+        protected Void visitFunctionCall(FunctionCall node, Void context)
+        {
+            window |= node.getWindow().isPresent();
+            if (!node.getName().getPrefix().isPresent()) {
+                aggregation |= executor.isAggregationFunction(node.getName().getSuffix());
+            }
+            return super.visitFunctionCall(node, context);
+        }
+    }
+
+    private static class ScanQuery
+    {
+        public final String table;
+        public final String where;
+        public final List<String> groupingKeys;
+        public final List<String> expressions;
+        public final List<String> names;
+        public final List<SortKey> sortKeys;
+        public final Optional<Integer> limit;
+
+        private ScanQuery(String table, String where, List<String> groupingKeys, List<String> expressions, List<String> names, List<SortKey> sortKeys, Optional<Integer> limit)
+        {
+            this.table = table;
+            this.where = where;
+            this.groupingKeys = groupingKeys;
+            this.expressions = expressions;
+            this.names = names;
+            this.sortKeys = sortKeys;
+            this.limit = limit;
+        }
+    }
+
+    private static class SortKey
+    {
+        public final int column;
+        public final boolean ascending;
+        public final boolean nullsFirst;
+
+        private SortKey(int column, boolean ascending, boolean nullsFirst)
+        {
+            this.column = column;
+            this.ascending = ascending;
+            this.nullsFirst = nullsFirst;
+        }
+
+        @SuppressWarnings("unchecked")
+        public int compare(Object first, Object second)
+        {
+            // the null ordering is explicit in the queries that are merged
+            if (first == null || second == null) {
+                if (first == second) {
+                    return 0;
+                }
+                return (first == null) == nullsFirst ? -1 : 1;
+            }
+
+            int compare;
+            if (first instanceof Comparable && first.getClass() == second.getClass()) {
+                compare = ((Comparable<Object>) first).compareTo(second);
+            }
+            else if (isIntegral(first) && isIntegral(second)) {
+                compare = Long.compare(((Number) first).longValue(), ((Number) second).longValue());
+            }
+            else if (first instanceof Number && second instanceof Number) {
+                compare = Double.compare(((Number) first).doubleValue(), ((Number) second).doubleValue());
+            }
+            else {
+                compare = first.toString().compareTo(second.toString());
+            }
+
+            return ascending ? compare : -compare;
+        }
+
+        private static boolean isIntegral(Object value)
+        {
+            return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+        }
+    }
+
+    private static class Batch
+    {
+        public final String project;
+        public final String defaultSchema;
+        public final String table;
+        public final String where;
+        public final List<String> groupingKeys;
+        public final List<SharedQueryExecution> members;
+        // guarded by SharedScanQueryExecutor.this
+        public boolean flushed;
+
+        private Batch(String project, String defaultSchema, ScanQuery query)
+        {
+            this.project = project;
+            this.defaultSchema = defaultSchema;
+            this.table = query.table;
+            this.where = query.where;
+            this.groupingKeys = query.groupingKeys;
+            this.members = new ArrayList<>();
+        }
+    }
+
+    private static class SharedScan
+    {
+        public final QueryExecution execution;
+        private final AtomicInteger activeQueries;
+
+        private SharedScan(QueryExecution execution, int queries)
+        {
+            this.execution = execution;
+            this.activeQueries = new AtomicInteger(queries);
+        }
+
+        public void release()
+        {
+            // the merged query is killed when all the queries that share it are killed
+            if (activeQueries.decrementAndGet() == 0) {
+                execution.kill();
+            }
+        }
+    }
+
+    private static class SharedQueryExecution
+            implements QueryExecution
+    {
+        public final String sqlQuery;
+        public final ScanQuery query;
+        public final int limit;
+        public final CompletableFuture<QueryResult> result;
+        public volatile boolean killed;
+        // the positions of the select items in the merged query
+        public int[] columnIndexes;
+        private volatile QueryExecution execution;
+        private volatile SharedScan scan;
+
+        private SharedQueryExecution(String sqlQuery, ScanQuery query, int limit)
+        {
+            this.sqlQuery = sqlQuery;
+            this.query = query;
+            this.limit = limit;
+            this.result = new CompletableFuture<>();
+        }
+
+        public synchronized void start(SharedScan scan)
+        {
+            this.scan = scan;
+            this.execution = scan.execution;
+            if (killed) {
+                scan.release();
+            }
+        }
+
+        public synchronized void start(QueryExecution execution)
+        {
+            this.scan = null;
+            this.execution = execution;
+            if (killed) {
+                execution.kill();
+                return;
+            }
+
+            execution.getResult().whenComplete((value, ex) -> {
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                }
+                else {
+                    result.complete(value);
+                }
+            });
+        }
+
+        @Override
+        public QueryStats currentStats()
+        {
+            QueryExecution execution = this.execution;
+            if (result.isDone() || execution == null) {
+                return new QueryStats(result.isDone() ? QueryStats.State.FINISHED : QueryStats.State.QUEUED);
+            }
+            return execution.currentStats();
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return result;
+        }
+
+        @Override
+        public synchronized void kill()
+        {
+            if (killed) {
+                return;
+            }
+            killed = true;
+
+            if (scan != null) {
+                scan.release();
+            }
+            else if (execution != null) {
+                execution.kill();
+            }
+
+            result.complete(QueryResult.errorResult(new QueryError("Query is killed", null, null, null, null), sqlQuery));
+        }
+    }
+}
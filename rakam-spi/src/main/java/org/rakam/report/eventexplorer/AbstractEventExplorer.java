@@ -8,20 +8,20 @@ import io.airlift.log.Logger;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.metadata.Metastore;
 import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.report.realtime.AggregationType;
-import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
-import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -42,6 +42,7 @@ import static org.rakam.collection.SchemaField.stripName;
 import static org.rakam.report.realtime.AggregationType.COUNT;
 import static org.rakam.util.DateTimeUtils.TIMESTAMP_FORMATTER;
 import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
 import static org.rakam.util.ValidationUtil.checkProject;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
@@ -57,18 +58,28 @@ public abstract class AbstractEventExplorer
     private final QueryExecutorService executor;
 
     private final Map<TimestampTransformation, String> timestampMapping;
-    private final MaterializedViewService materializedViewService;
-    private final ContinuousQueryService continuousQueryService;
+    private final OLAPCubeIndex cubeIndex;
 
     public AbstractEventExplorer(QueryExecutorService executor,
             MaterializedViewService materializedViewService,
             ContinuousQueryService continuousQueryService,
+            Metastore metastore,
+            Map<TimestampTransformation, String> timestampMapping)
+    {
+        this(executor, materializedViewService, continuousQueryService, metastore, new OLAPCubeConfig(), timestampMapping);
+    }
+
+    public AbstractEventExplorer(QueryExecutorService executor,
+            MaterializedViewService materializedViewService,
+            ContinuousQueryService continuousQueryService,
+            Metastore metastore,
+            OLAPCubeConfig cubeConfig,
             Map<TimestampTransformation, String> timestampMapping)
     {
         this.executor = executor;
         this.timestampMapping = timestampMapping;
-        this.materializedViewService = materializedViewService;
-        this.continuousQueryService = continuousQueryService;
+        this.cubeIndex = new OLAPCubeIndex(materializedViewService, continuousQueryService, metastore, cubeConfig,
+                this::getIntermediateForApproximateUniqueFunction);
     }
 
     public static void checkReference(Map<TimestampTransformation, String> timestampMapping, String refValue, Instant startDate, Instant endDate, int size)
@@ -162,20 +173,21 @@ public abstract class AbstractEventExplorer
             checkReference(timestampMapping, segment.value, startDate, endDate, collections.size());
         }
 
-        Predicate<OLAPTable> groupedMetricsPredicate = options -> {
-            Expression filterExp;
-            if (filterExpression != null) {
-                synchronized (sqlParser) {
-                    filterExp = sqlParser.createExpression(filterExpression);
-                }
-            }
-            else {
-                filterExp = null;
+        Expression filterExp;
+        if (filterExpression != null) {
+            synchronized (sqlParser) {
+                filterExp = sqlParser.createExpression(filterExpression);
             }
+        }
+        else {
+            filterExp = null;
+        }
 
+        Predicate<OLAPTable> groupedMetricsPredicate = options -> {
             if (options.collections.containsAll(collections)) {
-                if (options.aggregations.contains(measure.aggregation)
-                        && measure.column != null && options.measures.contains(measure.column)
+                // COUNT(*) is answered from the row counts of the table
+                if ((measure.column == null ? measure.aggregation == COUNT :
+                        options.aggregations.contains(measure.aggregation) && options.measures.contains(measure.column))
                         && (grouping == null || (grouping.type == REFERENCE || (grouping.type == COLUMN && options.dimensions.contains(grouping.value))))
                         && (segment == null || (segment.value.equals("_collection") && segment.type == COLUMN && options.collections.size() == 1) || (segment.type == REFERENCE || (segment.type == COLUMN && options.dimensions.contains(segment.value))))
                         && (filterExp == null || testFilterExpressionForPerComputedTable(filterExp, options))) {
@@ -186,18 +198,9 @@ public abstract class AbstractEventExplorer
             return false;
         };
 
-        Optional<Map.Entry<OLAPTable, String>> preComputedTable = materializedViewService.list(project).stream()
-                .filter(view -> view.options != null && view.options.containsKey("olap_table"))
-                .map(view -> JsonHelper.convert(view.options.get("olap_table"), OLAPTable.class))
-                .filter(table -> groupedMetricsPredicate.test(table)).findAny()
-                .map(view -> new AbstractMap.SimpleImmutableEntry<>(view, "materialized." + checkCollection(view.tableName)));
-
+        Optional<Map.Entry<OLAPTable, String>> preComputedTable = cubeIndex.find(project, groupedMetricsPredicate);
         if (!preComputedTable.isPresent()) {
-            preComputedTable = continuousQueryService.list(project).stream()
-                    .filter(view -> view.options != null && view.options.containsKey("olap_table"))
-                    .map(view -> JsonHelper.convert(view.options.get("olap_table"), OLAPTable.class))
-                    .filter(table -> groupedMetricsPredicate.test(table)).findAny()
-                    .map(view -> new AbstractMap.SimpleImmutableEntry<>(view, "continuous." + checkCollection(view.tableName)));
+            cubeIndex.record(project, collections, measure, grouping, segment, filterExp);
         }
 
         String timeFilter = format(" _time between timestamp '%s' and timestamp '%s' + interval '1' day",
@@ -217,19 +220,22 @@ public abstract class AbstractEventExplorer
 
         String computeQuery;
         if (preComputedTable.isPresent()) {
-            String filters = preComputedTable.get().getKey().dimensions.stream()
-                    .filter(dim -> (grouping == null || grouping.type == REFERENCE && !grouping.value.equals(dim) &&
-                            (segment == null || segment.type == REFERENCE && !segment.value.equals(dim))))
-                    .map(dim -> String.format("%s is null", dim))
-                    .collect(Collectors.joining(" and "));
+            // the table has the rows of all the grouping sets so the dimensions that are not used in the query must be rolled up
+            Set<String> usedDimensions = getReferencedColumns(filterExp);
+            Stream.of(grouping, segment)
+                    .filter(reference -> reference != null && reference.type == COLUMN)
+                    .forEach(reference -> usedDimensions.add(reference.value));
+            String filters = format("%s = %d", OLAPCubeIndex.GROUPING_COLUMN,
+                    OLAPCubeIndex.getGroupingMask(preComputedTable.get().getKey(), usedDimensions));
 
             computeQuery = format("SELECT %s %s %s as value FROM %s WHERE %s %s",
                     grouping != null ? (getColumnValue(timestampMapping, grouping, true) + " as " + checkTableColumn(getColumnReference(grouping) + "_group") + " ,") : "",
                     segment != null ? (getColumnValue(timestampMapping, segment, true) + " as " + checkTableColumn(getColumnReference(segment) + "_segment") + " ,") : "",
-                    format(getFinalForAggregationFunction(measure), measure.column + "_" + measure.aggregation.name().toLowerCase()),
+                    getFinalForAggregationFunction(measure),
                     preComputedTable.get().getValue(),
                     Stream.of(
-                            collections.size() > 1 ? format("collection IN (%s)", collections.stream().map(c -> "'" + c + "'").collect(Collectors.joining(","))) : "",
+                            // the table may have more collections than the query
+                            format("_collection IN (%s)", collections.stream().map(c -> "'" + checkLiteral(c) + "'").collect(Collectors.joining(","))),
                             filters,
                             filterExpression,
                             timeFilter
@@ -357,6 +363,23 @@ public abstract class AbstractEventExplorer
         return selectBuilder.toString();
     }
 
+    private static Set<String> getReferencedColumns(Expression filterExp)
+    {
+        Set<String> columns = new HashSet<>();
+        if (filterExp != null) {
+            new DefaultExpressionTraversalVisitor<Void, Void>()
+            {
+                @Override
+                protected Void visitQualifiedNameReference(QualifiedNameReference node, Void context)
+                {
+                    columns.add(node.getName().getParts().get(0));
+                    return null;
+                }
+            }.process(filterExp, null);
+        }
+        return columns;
+    }
+
     private boolean testFilterExpressionForPerComputedTable(Expression filterExp, OLAPTable options)
     {
         final boolean[] columnExists = {true};
@@ -383,21 +406,25 @@ public abstract class AbstractEventExplorer
 
     private String getFinalForAggregationFunction(Measure aggregation)
     {
+        String column = aggregation.column == null ? null : checkTableColumn(aggregation.column + "_" + aggregation.aggregation.name().toLowerCase());
         switch (aggregation.aggregation) {
             case AVERAGE:
-                return "cast(sum(%1$s) as double) / count(%1$s)";
+                // the average is calculated from the partial sums and counts
+                return format("cast(sum(%s) as double) / sum(%s)",
+                        checkTableColumn(aggregation.column + "_sum"), checkTableColumn(aggregation.column + "_count"));
             case MAXIMUM:
-                return "max(%s)";
+                return format("max(%s)", column);
             case MINIMUM:
-                return "min(%s)";
+                return format("min(%s)", column);
             case COUNT:
-                return "count(%s)";
+                // the table has the partial counts
+                return format("sum(%s)", aggregation.column == null ? OLAPCubeIndex.COUNT_COLUMN : column);
             case SUM:
-                return "sum(%s)";
+                return format("sum(%s)", column);
             case COUNT_UNIQUE:
                 throw new UnsupportedOperationException();
             case APPROXIMATE_UNIQUE:
-                return getFinalForApproximateUniqueFunction();
+                return format(getFinalForApproximateUniqueFunction(), column);
             default:
                 throw new IllegalArgumentException("aggregation type is not supported");
         }
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rakam.report.eventexplorer;
+
+import io.airlift.configuration.Config;
+
+import javax.validation.constraints.Min;
+
+public class OLAPCubeConfig
+{
+    private boolean autoCubeEnabled;
+    private int minimumHits = 20;
+    private int maximumCubesPerProject = 10;
+    private int maximumDimensions = 3;
+
+    @Config("event-explorer.auto-cube.enabled")
+    public OLAPCubeConfig setAutoCubeEnabled(boolean autoCubeEnabled)
+    {
+        this.autoCubeEnabled = autoCubeEnabled;
+        return this;
+    }
+
+    public boolean getAutoCubeEnabled()
+    {
+        return autoCubeEnabled;
+    }
+
+    @Config("event-explorer.auto-cube.min-hits")
+    public OLAPCubeConfig setMinimumHits(int minimumHits)
+    {
+        this.minimumHits = minimumHits;
+        return this;
+    }
+
+    @Min(1)
+    public int getMinimumHits()
+    {
+        return minimumHits;
+    }
+
+    @Config("event-explorer.auto-cube.max-cubes-per-project")
+    public OLAPCubeConfig setMaximumCubesPerProject(int maximumCubesPerProject)
+    {
+        this.maximumCubesPerProject = maximumCubesPerProject;
+        return this;
+    }
+
+    @Min(0)
+    public int getMaximumCubesPerProject()
+    {
+        return maximumCubesPerProject;
+    }
+
+    @Config("event-explorer.auto-cube.max-dimensions")
+    public OLAPCubeConfig setMaximumDimensions(int maximumDimensions)
+    {
+        this.maximumDimensions = maximumDimensions;
+        return this;
+    }
+
+    @Min(0)
+    public int getMaximumDimensions()
+    {
+        return maximumDimensions;
+    }
+}
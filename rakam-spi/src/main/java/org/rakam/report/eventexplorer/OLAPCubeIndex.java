@@ -0,0 +1,444 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rakam.report.eventexplorer;
+
+import com.facebook.presto.sql.tree.DefaultExpressionTraversalVisitor;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.EventExplorer.Reference;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
+import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.NotExistsException;
+import org.rakam.util.RakamException;
+import org.rakam.util.ValidationUtil;
+
+import java.time.Duration;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
+import static org.rakam.analysis.EventExplorer.ReferenceType.REFERENCE;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.fromString;
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkCollectionValid;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Keeps the OLAP tables of the projects in memory so that the event explorer doesn't need to read and
+ * deserialize the materialized views and continuous queries for every query.
+ * <p>
+ * When the automatic cubes are enabled, the query shapes that can't be answered by an OLAP table are counted
+ * and a daily rollup cube is created for a shape once it's popular enough. The number of automatic cubes of
+ * a project is limited; when the limit is reached the least used automatic cube is replaced only if the new
+ * shape is queried more often.
+ * <p>
+ * The rows of a cube are marked with the {@link #GROUPING_COLUMN} bitmask, the bit of a dimension is set when the
+ * dimension is rolled up so that the rollup rows are not confused with the rows of the events that have NULL values.
+ * The OLAP tables that are created before the marker column are not used.
+ * <p>
+ * The shapes are recorded from the queries of the read keys, so the collections and the columns of a shape are checked
+ * against the schema before it's counted and they're quoted in the query of the cube.
+ */
+public class OLAPCubeIndex
+{
+    private final static Logger LOGGER = Logger.get(OLAPCubeIndex.class);
+    private static final String AUTO_CUBE_PREFIX = "auto_cube_";
+    public static final String GROUPING_COLUMN = "\"$grouping\"";
+    // the number of rows in the group, it's used for COUNT(*) measure
+    public static final String COUNT_COLUMN = "\"$count\"";
+    private static final String GROUPING_OPTION = "olap_grouping";
+    private static final int MAXIMUM_TRACKED_SHAPES = 10000;
+    // the cubes are rolled up daily so the shapes that need a finer time granularity can't use them
+    private static final Set<TimestampTransformation> DAILY_TRANSFORMATIONS = ImmutableSet.of(
+            TimestampTransformation.DAY, TimestampTransformation.WEEK, TimestampTransformation.MONTH, TimestampTransformation.YEAR,
+            TimestampTransformation.DAY_OF_MONTH, TimestampTransformation.WEEK_OF_YEAR, TimestampTransformation.MONTH_OF_YEAR,
+            TimestampTransformation.QUARTER_OF_YEAR, TimestampTransformation.DAY_OF_WEEK);
+    private static final Set<AggregationType> AUTO_CUBE_AGGREGATIONS = ImmutableSet.of(
+            COUNT, SUM, AggregationType.MINIMUM, AggregationType.MAXIMUM);
+
+    private final MaterializedViewService materializedViewService;
+    private final Metastore metastore;
+    private final OLAPCubeConfig config;
+    private final Supplier<String> approximateUniqueIntermediate;
+    private final LoadingCache<String, List<Map.Entry<OLAPTable, String>>> tables;
+    private final Cache<Map.Entry<String, String>, AtomicLong> hits;
+    private final Set<String> pending;
+    private final ExecutorService executor;
+
+    public OLAPCubeIndex(MaterializedViewService materializedViewService, ContinuousQueryService continuousQueryService,
+            Metastore metastore, OLAPCubeConfig config, Supplier<String> approximateUniqueIntermediate)
+    {
+        this.materializedViewService = materializedViewService;
+        this.metastore = metastore;
+        this.config = config;
+        this.approximateUniqueIntermediate = approximateUniqueIntermediate;
+        // the shapes that are queried rarely are forgotten, they can't pass the minimum hits anyway
+        this.hits = CacheBuilder.newBuilder()
+                .maximumSize(MAXIMUM_TRACKED_SHAPES)
+                .expireAfterAccess(1, TimeUnit.DAYS)
+                .build();
+        this.pending = ConcurrentHashMap.newKeySet();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("olap-cube-index")
+                .setDaemon(true)
+                .build());
+
+        CacheLoader<String, List<Map.Entry<OLAPTable, String>>> loader = CacheLoader.asyncReloading(new CacheLoader<String, List<Map.Entry<OLAPTable, String>>>()
+        {
+            @Override
+            public List<Map.Entry<OLAPTable, String>> load(String project)
+                    throws Exception
+            {
+                ImmutableList.Builder<Map.Entry<OLAPTable, String>> builder = ImmutableList.builder();
+                materializedViewService.list(project).stream()
+                        .filter(view -> view.options != null && view.options.containsKey("olap_table")
+                                && Boolean.TRUE.equals(view.options.get(GROUPING_OPTION)))
+                        .map(view -> JsonHelper.convert(view.options.get("olap_table"), OLAPTable.class))
+                        .forEach(table -> builder.add(new SimpleImmutableEntry<>(table, "materialized." + checkCollection(table.tableName))));
+                continuousQueryService.list(project).stream()
+                        .filter(view -> view.options != null && view.options.containsKey("olap_table")
+                                && Boolean.TRUE.equals(view.options.get(GROUPING_OPTION)))
+                        .map(view -> JsonHelper.convert(view.options.get("olap_table"), OLAPTable.class))
+                        .forEach(table -> builder.add(new SimpleImmutableEntry<>(table, "continuous." + checkCollection(table.tableName))));
+                return builder.build();
+            }
+        }, executor);
+        this.tables = CacheBuilder.newBuilder()
+                .refreshAfterWrite(1, TimeUnit.MINUTES)
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(loader);
+
+        materializedViewService.addChangeListener(this::invalidate);
+    }
+
+    public Optional<Map.Entry<OLAPTable, String>> find(String project, Predicate<OLAPTable> predicate)
+    {
+        Optional<Map.Entry<OLAPTable, String>> table = tables.getUnchecked(project).stream()
+                .filter(entry -> predicate.test(entry.getKey()))
+                .findFirst();
+
+        table.filter(entry -> entry.getKey().tableName.startsWith(AUTO_CUBE_PREFIX))
+                .ifPresent(entry -> getHits(project, entry.getKey().tableName).incrementAndGet());
+        return table;
+    }
+
+    public void invalidate(String project)
+    {
+        tables.invalidate(project);
+    }
+
+    /**
+     * Counts a query that can't be answered by the OLAP tables and creates a cube for its shape in the background
+     * when it's queried frequently enough. The shapes that reference a collection or a column that doesn't exist are
+     * rejected.
+     */
+    public void record(String project, List<String> collections, Measure measure, Reference grouping, Reference segment, Expression filter)
+    {
+        if (!config.getAutoCubeEnabled()) {
+            return;
+        }
+
+        Optional<OLAPTable> cube = getCube(collections, measure, grouping, segment, filter);
+        if (!cube.isPresent()) {
+            return;
+        }
+        checkSchema(project, cube.get());
+
+        long count = getHits(project, cube.get().tableName).incrementAndGet();
+        if (count >= config.getMinimumHits() && pending.add(project + "." + cube.get().tableName)) {
+            executor.execute(() -> {
+                try {
+                    createCube(project, cube.get(), count);
+                }
+                catch (Exception e) {
+                    LOGGER.error(e, "Error while creating OLAP cube %s in project %s", cube.get().tableName, project);
+                }
+                finally {
+                    pending.remove(project + "." + cube.get().tableName);
+                }
+            });
+        }
+    }
+
+    private void createCube(String project, OLAPTable cube, long count)
+    {
+        List<OLAPTable> autoCubes = tables.getUnchecked(project).stream()
+                .map(Map.Entry::getKey)
+                .filter(table -> table.tableName.startsWith(AUTO_CUBE_PREFIX))
+                .collect(Collectors.toList());
+
+        if (autoCubes.stream().anyMatch(table -> table.tableName.equals(cube.tableName))) {
+            return;
+        }
+
+        if (autoCubes.size() >= config.getMaximumCubesPerProject()) {
+            Optional<OLAPTable> leastUsed = autoCubes.stream()
+                    .min(Comparator.comparingLong(table -> getHits(project, table.tableName).get()));
+            if (!leastUsed.isPresent() || getHits(project, leastUsed.get().tableName).get() >= count) {
+                return;
+            }
+
+            LOGGER.info("Replacing OLAP cube %s with %s in project %s", leastUsed.get().tableName, cube.tableName, project);
+            materializedViewService.delete(project, leastUsed.get().tableName).join();
+            hits.invalidate(new SimpleImmutableEntry<>(project, leastUsed.get().tableName));
+        }
+
+        materializedViewService.create(project, toMaterializedView(cube, "Automatic OLAP cube", approximateUniqueIntermediate)).join();
+        tables.invalidate(project);
+    }
+
+    private void checkSchema(String project, OLAPTable cube)
+    {
+        for (String collection : cube.collections) {
+            checkCollectionValid(collection);
+            Set<String> columns = metastore.getCollection(project, collection).stream()
+                    .map(SchemaField::getName)
+                    .collect(Collectors.toSet());
+            if (columns.isEmpty()) {
+                throw new NotExistsException("Collection");
+            }
+
+            for (String column : Iterables.concat(cube.dimensions, cube.measures)) {
+                // the name of a field is its stripped form, see checkTableColumn
+                if (!columns.contains(column) || !checkTableColumn(column).equals('"' + column + '"')) {
+                    throw new RakamException(String.format("Column %s does not exist in collection %s", column, collection), BAD_REQUEST);
+                }
+            }
+        }
+    }
+
+    private AtomicLong getHits(String project, String tableName)
+    {
+        try {
+            return hits.get(new SimpleImmutableEntry<>(project, tableName), AtomicLong::new);
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    @VisibleForTesting
+    Optional<OLAPTable> getCube(List<String> collections, Measure measure, Reference grouping, Reference segment, Expression filter)
+    {
+        // the multi-collection queries read the collection from the cube with a different column name
+        if (collections.size() != 1 || measure == null || !AUTO_CUBE_AGGREGATIONS.contains(measure.aggregation)
+                || (measure.column == null && measure.aggregation != COUNT)) {
+            return Optional.empty();
+        }
+
+        Set<String> dimensions = new TreeSet<>();
+        for (Reference reference : new Reference[] {grouping, segment}) {
+            if (reference == null) {
+                continue;
+            }
+            if (reference.type == REFERENCE) {
+                if (!DAILY_TRANSFORMATIONS.contains(fromString(reference.value.replace(" ", "_")))) {
+                    return Optional.empty();
+                }
+            }
+            else if (reference.type == COLUMN && !reference.value.equals("_collection")) {
+                dimensions.add(reference.value);
+            }
+        }
+
+        if (filter != null) {
+            boolean[] supported = {true};
+            new DefaultExpressionTraversalVisitor<Void, Void>()
+            {
+                @Override
+                protected Void visitQualifiedNameReference(QualifiedNameReference node, Void context)
+                {
+                    if (node.getName().getParts().size() != 1) {
+                        supported[0] = false;
+                    }
+                    else {
+                        dimensions.add(node.getName().getParts().get(0));
+                    }
+                    return null;
+                }
+            }.process(filter, null);
+            if (!supported[0]) {
+                return Optional.empty();
+            }
+        }
+
+        if (dimensions.size() > config.getMaximumDimensions() || dimensions.contains("_time")) {
+            return Optional.empty();
+        }
+
+        // the cubes always have the row count so COUNT(*) doesn't need a measure
+        String shape = collections.get(0) + "|" + Optional.ofNullable(measure.column).orElse("*") + "|"
+                + measure.aggregation + "|" + String.join(",", dimensions);
+        String tableName = AUTO_CUBE_PREFIX + Hashing.murmur3_32().hashString(shape, UTF_8).toString();
+
+        return Optional.of(new OLAPTable(ImmutableSet.of(collections.get(0)), dimensions,
+                new TreeSet<>(ImmutableSet.of(measure.aggregation)),
+                measure.column == null ? ImmutableSet.of() : ImmutableSet.of(measure.column), tableName));
+    }
+
+    /**
+     * Returns the value of {@link #GROUPING_COLUMN} of the rows that have the given dimensions grouped and the
+     * others rolled up. The collection and the day are always grouped.
+     */
+    public static long getGroupingMask(OLAPTable table, Set<String> groupedDimensions)
+    {
+        List<String> dimensions = getCubeDimensions(table);
+        long mask = 0;
+        for (int i = 0; i < dimensions.size(); i++) {
+            if (!groupedDimensions.contains(dimensions.get(i))) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    // the order of the dimensions must be stable since the OLAP tables are serialized as JSON
+    private static List<String> getCubeDimensions(OLAPTable table)
+    {
+        return ImmutableList.copyOf(new TreeSet<>(table.dimensions));
+    }
+
+    public static MaterializedView toMaterializedView(OLAPTable table, String name, Supplier<String> approximateUniqueIntermediate)
+    {
+        if (table.aggregations.contains(AVERAGE)) {
+            // the average is calculated from the partial sums and counts
+            table.aggregations.add(COUNT);
+            table.aggregations.add(SUM);
+        }
+
+        List<String> metricColumns = new ArrayList<>();
+        List<String> metrics = new ArrayList<>();
+        for (String column : table.measures) {
+            for (AggregationType agg : table.aggregations) {
+                getAggregationColumn(agg, approximateUniqueIntermediate).ifPresent(e -> {
+                    String alias = checkTableColumn(column + "_" + agg.name().toLowerCase());
+                    metricColumns.add(alias);
+                    metrics.add(String.format(e, checkTableColumn(column)) + " as " + alias);
+                });
+            }
+        }
+        metricColumns.add(COUNT_COLUMN);
+        metrics.add("count(*) as " + COUNT_COLUMN);
+
+        String dimensions = table.dimensions.stream().map(ValidationUtil::checkTableColumn).collect(Collectors.joining(", "));
+        String measures = table.measures.stream().map(ValidationUtil::checkTableColumn).collect(Collectors.joining(", "));
+        String subQuery = table.collections.stream().map(collection -> String.format("SELECT cast('%s' as varchar) as _collection, _time %s %s FROM %s",
+                checkLiteral(collection),
+                dimensions.isEmpty() ? "" : ", " + dimensions,
+                measures.isEmpty() ? "" : ", " + measures,
+                checkCollection(collection)))
+                .collect(Collectors.joining(" UNION ALL "));
+
+        // GROUP BY CUBE marks the rolled up dimensions with NULL values so the grouping sets are listed explicitly,
+        // the first set groups all the dimensions so that the types of the NULL columns are resolved from it
+        List<String> cubeDimensions = getCubeDimensions(table).stream()
+                .map(ValidationUtil::checkTableColumn)
+                .collect(Collectors.toList());
+        List<String> groupingSets = new ArrayList<>();
+        for (int mask = 0; mask < (1 << cubeDimensions.size()); mask++) {
+            List<String> columns = new ArrayList<>();
+            List<String> groupBy = new ArrayList<>();
+            for (int i = 0; i < cubeDimensions.size(); i++) {
+                String dimension = cubeDimensions.get(i);
+                if ((mask & (1 << i)) == 0) {
+                    columns.add(dimension);
+                    groupBy.add(dimension);
+                }
+                else {
+                    columns.add("NULL as " + dimension);
+                }
+            }
+            groupingSets.add(String.format("SELECT _collection, _time, %s %d as %s, %s FROM data GROUP BY _collection, _time %s",
+                    columns.isEmpty() ? "" : String.join(", ", columns) + ",",
+                    mask, GROUPING_COLUMN, String.join(", ", metrics),
+                    groupBy.isEmpty() ? "" : ", " + String.join(", ", groupBy)));
+        }
+
+        String query = String.format("WITH data AS (SELECT _collection, CAST(_time AS DATE) as _time %s %s FROM (%s) data) " +
+                        "SELECT _collection, _time, %s %s, %s FROM (%s) cube",
+                dimensions.isEmpty() ? "" : ", " + dimensions,
+                measures.isEmpty() ? "" : ", " + measures,
+                subQuery,
+                cubeDimensions.isEmpty() ? "" : String.join(", ", cubeDimensions) + ",",
+                GROUPING_COLUMN, String.join(", ", metricColumns),
+                String.join(" UNION ALL ", groupingSets));
+
+        return new MaterializedView(table.tableName, name, query,
+                Duration.ofHours(1), null, ImmutableMap.of("olap_table", table, GROUPING_OPTION, true));
+    }
+
+    private static Optional<String> getAggregationColumn(AggregationType agg, Supplier<String> approximateUniqueIntermediate)
+    {
+        switch (agg) {
+            case AVERAGE:
+                return Optional.empty();
+            case MAXIMUM:
+                return Optional.of("max(%s)");
+            case MINIMUM:
+                return Optional.of("min(%s)");
+            case COUNT:
+                return Optional.of("count(%s)");
+            case SUM:
+                return Optional.of("sum(%s)");
+            case COUNT_UNIQUE:
+                throw new UnsupportedOperationException("Not supported yet.");
+            case APPROXIMATE_UNIQUE:
+                return Optional.of(approximateUniqueIntermediate.get());
+            default:
+                throw new IllegalArgumentException("aggregation type is not supported");
+        }
+    }
+}
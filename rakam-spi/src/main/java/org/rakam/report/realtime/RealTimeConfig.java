@@ -4,11 +4,15 @@ import io.airlift.configuration.Config;
 import io.airlift.units.Duration;
 import io.airlift.units.MinDuration;
 
+import javax.validation.constraints.Min;
+
 
 public class RealTimeConfig {
     private boolean enabled;
     private Duration windowInterval = Duration.valueOf("120s");
     private Duration slideInterval = Duration.valueOf("5s");
+    private boolean inMemoryAggregation;
+    private int maxGroupsPerSlide = 10000;
 
     @Config("real-time.enabled")
     public RealTimeConfig setRealtimeModuleEnabled(boolean enabled) {
@@ -38,10 +42,35 @@ public class RealTimeConfig {
         return slideInterval;
     }
 
-    @Config("realtime.window.interval")
+    @Config("realtime.slide.interval")
     public RealTimeConfig setSlideInterval(String slideInterval)
     {
         this.slideInterval = Duration.valueOf(slideInterval);
         return this;
     }
+
+    public boolean getInMemoryAggregation()
+    {
+        return inMemoryAggregation;
+    }
+
+    @Config("realtime.in-memory-aggregation.enabled")
+    public RealTimeConfig setInMemoryAggregation(boolean inMemoryAggregation)
+    {
+        this.inMemoryAggregation = inMemoryAggregation;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxGroupsPerSlide()
+    {
+        return maxGroupsPerSlide;
+    }
+
+    @Config("realtime.in-memory-aggregation.max-groups-per-slide")
+    public RealTimeConfig setMaxGroupsPerSlide(int maxGroupsPerSlide)
+    {
+        this.maxGroupsPerSlide = maxGroupsPerSlide;
+        return this;
+    }
 }
@@ -14,9 +14,14 @@
 package org.rakam.util;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
 import org.codehaus.jackson.node.NullNode;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
@@ -25,12 +30,30 @@ import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.apache.avro.Schema.Type.NULL;
 
 public final class AvroUtil
 {
+    // The schemas are interned so that the callers share the same instance for the same field list and the Avro
+    // readers and writers that are keyed by the schema instance can be reused. The interned schemas must not be modified.
+    private static final Cache<SchemaKey, Schema> SCHEMA_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+    private static final Cache<String, Schema> PARSED_SCHEMA_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+    private static final Cache<ReaderKey, GenericDatumReader> READER_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
     static  {
         try {
             Field validateNames = Schema.class.getDeclaredField("validateNames");
@@ -67,28 +90,58 @@ public final class AvroUtil
 
     public static Schema convertAvroSchema(List<SchemaField> fields, Map<String, List<SchemaField>> conditionalMagicFields)
     {
-        List<Schema.Field> avroFields = fields.stream()
-                .map(AvroUtil::generateAvroField).collect(Collectors.toList());
+        SchemaKey key = new SchemaKey(ImmutableList.copyOf(fields), ImmutableSet.copyOf(conditionalMagicFields.keySet()));
+        return getCached(SCHEMA_CACHE, key, () -> createAvroSchema(key.fields, key.conditionalMagicFields));
+    }
 
-        Schema schema = Schema.createRecord("collection", null, null, false);
+    public static Schema convertAvroSchema(Collection<SchemaField> fields)
+    {
+        SchemaKey key = new SchemaKey(ImmutableList.copyOf(fields), ImmutableSet.of());
+        return getCached(SCHEMA_CACHE, key, () -> createAvroSchema(key.fields, key.conditionalMagicFields));
+    }
 
-        conditionalMagicFields.keySet().stream()
-                .filter(s -> !avroFields.stream().anyMatch(af -> af.name().equals(s)))
-                .map(n -> new Schema.Field(n, Schema.create(NULL), "", null))
-                .forEach(x -> avroFields.add(x));
+    /**
+     * Parses the schema definition and returns the same instance for the same definition.
+     */
+    public static Schema parseSchema(String json)
+    {
+        return getCached(PARSED_SCHEMA_CACHE, json, () -> new Schema.Parser().parse(json));
+    }
 
-        schema.setFields(avroFields);
-        return schema;
+    /**
+     * Returns a shared reader that resolves the records written with {@code writerSchema} to {@code readerSchema}.
+     * The readers are thread-safe and Avro caches the resolving decoders per reader and writer schema instance
+     * so the schemas should be interned ones.
+     */
+    public static <T> GenericDatumReader<T> getReader(Schema writerSchema, Schema readerSchema)
+    {
+        return getCached(READER_CACHE, new ReaderKey(writerSchema, readerSchema),
+                () -> new GenericDatumReader(writerSchema, readerSchema));
     }
 
-    public static Schema convertAvroSchema(Collection<SchemaField> fields)
+    private static <K, V> V getCached(Cache<K, V> cache, K key, Callable<? extends V> loader)
+    {
+        try {
+            return cache.get(key, loader);
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static Schema createAvroSchema(List<SchemaField> fields, Collection<String> conditionalMagicFields)
     {
         List<Schema.Field> avroFields = fields.stream()
                 .map(AvroUtil::generateAvroField).collect(Collectors.toList());
 
         Schema schema = Schema.createRecord("collection", null, null, false);
-        schema.setFields(avroFields);
 
+        conditionalMagicFields.stream()
+                .filter(s -> !avroFields.stream().anyMatch(af -> af.name().equals(s)))
+                .map(n -> new Schema.Field(n, Schema.create(NULL), "", null))
+                .forEach(x -> avroFields.add(x));
+
+        schema.setFields(avroFields);
         return schema;
     }
 
@@ -133,4 +186,68 @@ public final class AvroUtil
                 throw new IllegalStateException();
         }
     }
+
+    private static class SchemaKey
+    {
+        private final List<SchemaField> fields;
+        private final Collection<String> conditionalMagicFields;
+
+        private SchemaKey(List<SchemaField> fields, Collection<String> conditionalMagicFields)
+        {
+            this.fields = fields;
+            this.conditionalMagicFields = conditionalMagicFields;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SchemaKey)) {
+                return false;
+            }
+
+            SchemaKey schemaKey = (SchemaKey) o;
+            return fields.equals(schemaKey.fields) && conditionalMagicFields.equals(schemaKey.conditionalMagicFields);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * fields.hashCode() + conditionalMagicFields.hashCode();
+        }
+    }
+
+    private static class ReaderKey
+    {
+        private final Schema writerSchema;
+        private final Schema readerSchema;
+
+        private ReaderKey(Schema writerSchema, Schema readerSchema)
+        {
+            this.writerSchema = writerSchema;
+            this.readerSchema = readerSchema;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ReaderKey)) {
+                return false;
+            }
+
+            ReaderKey readerKey = (ReaderKey) o;
+            return writerSchema == readerKey.writerSchema && readerSchema == readerKey.readerSchema;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * System.identityHashCode(writerSchema) + System.identityHashCode(readerSchema);
+        }
+    }
 }
@@ -0,0 +1,210 @@
+package org.rakam.util.lock;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+import javax.annotation.PreDestroy;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The locks are stored as leases in a table that is keyed by the lock name. A lease is taken with an insert from any
+ * connection of the pool and renewed periodically while the lock is held, so the locks don't depend on a single
+ * connection and the lock of a node that is crashed expires after the lease duration. The expiration time is
+ * calculated with the clock of the database so that the clocks of the nodes don't need to be in sync.
+ * <p>
+ * A lease that fails to be renewed is considered lost and not renewed anymore since an other node may take it after
+ * it expires, the holders check {@link Lock#isHeld()} before they commit their work.
+ */
+public abstract class LeaseLockService
+        implements LockService
+{
+    private final static Logger LOGGER = Logger.get(LeaseLockService.class);
+    public static final Duration DEFAULT_LEASE_DURATION = Duration.ofMinutes(1);
+    // the primary key fits in the index limit of MySQL with utf8mb4
+    private static final int MAX_NAME_LENGTH = 128;
+
+    private final DBI dbi;
+    private final long leaseMillis;
+    // lock name -> lease of this node
+    private final Map<String, Lease> heldLocks;
+    private final ScheduledExecutorService renewExecutor;
+
+    protected LeaseLockService(JDBCPoolDataSource poolDataSource, Duration leaseDuration)
+    {
+        this.dbi = new DBI(poolDataSource);
+        this.leaseMillis = leaseDuration.toMillis();
+        this.heldLocks = new ConcurrentHashMap<>();
+
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("CREATE TABLE IF NOT EXISTS lock_leases (" +
+                    "  name VARCHAR(" + MAX_NAME_LENGTH + ") NOT NULL," +
+                    "  owner VARCHAR(36) NOT NULL," +
+                    "  expires_at BIGINT NOT NULL," +
+                    "  PRIMARY KEY (name)" +
+                    "  )")
+                    .execute();
+        }
+
+        this.renewExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("lock-lease-renewal")
+                .setDaemon(true)
+                .build());
+        long renewInterval = leaseMillis / 3;
+        renewExecutor.scheduleWithFixedDelay(this::renew, renewInterval, renewInterval, MILLISECONDS);
+    }
+
+    /**
+     * The SQL expression that returns the current time of the database in milliseconds.
+     */
+    protected abstract String currentTimeMillis();
+
+    @Override
+    public Lock tryLock(String name)
+    {
+        checkArgument(name.length() <= MAX_NAME_LENGTH, "lock name must have maximum %s characters", MAX_NAME_LENGTH);
+        Lease lease = new Lease(name, UUID.randomUUID().toString());
+
+        try (Handle handle = dbi.open()) {
+            handle.createStatement(format("DELETE FROM lock_leases WHERE name = :name AND expires_at < %s", currentTimeMillis()))
+                    .bind("name", name)
+                    .execute();
+
+            try {
+                handle.createStatement(format("INSERT INTO lock_leases (name, owner, expires_at) VALUES (:name, :owner, %s + :lease)", currentTimeMillis()))
+                        .bind("name", name)
+                        .bind("owner", lease.owner)
+                        .bind("lease", leaseMillis)
+                        .execute();
+            }
+            catch (UnableToExecuteStatementException e) {
+                if (isIntegrityViolation(e)) {
+                    // the lease is held by an other owner
+                    return null;
+                }
+                throw e;
+            }
+        }
+
+        heldLocks.put(name, lease);
+        return lease;
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        renewExecutor.shutdownNow();
+    }
+
+    private void release(Lease lease)
+    {
+        if (!heldLocks.remove(lease.name, lease)) {
+            return;
+        }
+
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("DELETE FROM lock_leases WHERE name = :name AND owner = :owner")
+                    .bind("name", lease.name)
+                    .bind("owner", lease.owner)
+                    .execute();
+        }
+    }
+
+    private void renew()
+    {
+        if (heldLocks.isEmpty()) {
+            return;
+        }
+
+        try (Handle handle = dbi.open()) {
+            for (Lease lease : heldLocks.values()) {
+                long now = System.nanoTime();
+                int updated;
+                try {
+                    updated = handle.createStatement(format("UPDATE lock_leases SET expires_at = %s + :lease WHERE name = :name AND owner = :owner", currentTimeMillis()))
+                            .bind("lease", leaseMillis)
+                            .bind("name", lease.name)
+                            .bind("owner", lease.owner)
+                            .execute();
+                }
+                catch (Exception e) {
+                    LOGGER.error(e, "Error while renewing the lease of the lock %s", lease.name);
+                    updated = 0;
+                }
+
+                if (updated == 0) {
+                    lose(lease);
+                }
+                else {
+                    lease.renewedAt = now;
+                }
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while renewing the lock leases");
+            heldLocks.values().forEach(this::lose);
+        }
+    }
+
+    private void lose(Lease lease)
+    {
+        // the lease may be expired and taken by an other node so it's not renewed again
+        if (heldLocks.remove(lease.name, lease)) {
+            lease.lost = true;
+            LOGGER.warn("The lease of the lock %s is lost", lease.name);
+        }
+    }
+
+    private class Lease
+            implements Lock
+    {
+        private final String name;
+        private final String owner;
+        private volatile long renewedAt;
+        private volatile boolean lost;
+
+        private Lease(String name, String owner)
+        {
+            this.name = name;
+            this.owner = owner;
+            this.renewedAt = System.nanoTime();
+        }
+
+        @Override
+        public void release()
+        {
+            LeaseLockService.this.release(this);
+        }
+
+        @Override
+        public boolean isHeld()
+        {
+            // the renewal may be delayed longer than the lease
+            return !lost && heldLocks.get(name) == this
+                    && System.nanoTime() - renewedAt < MILLISECONDS.toNanos(leaseMillis);
+        }
+    }
+
+    private static boolean isIntegrityViolation(UnableToExecuteStatementException e)
+    {
+        if (!(e.getCause() instanceof SQLException)) {
+            return false;
+        }
+        String sqlState = ((SQLException) e.getCause()).getSQLState();
+        return sqlState != null && sqlState.startsWith("23");
+    }
+}
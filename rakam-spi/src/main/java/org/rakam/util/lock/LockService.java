@@ -7,5 +7,13 @@ public interface LockService
     @FunctionalInterface
     interface Lock {
         void release();
+
+        /**
+         * Returns false if the lock is lost before it's released, the work that depends on the lock should not be
+         * committed after that.
+         */
+        default boolean isHeld() {
+            return true;
+        }
     }
 }
@@ -29,7 +29,8 @@ import static org.testng.Assert.assertFalse;
 
 public abstract class TestFunnelQueryExecutor {
     private static final int SCALE_FACTOR = 10;
-    private static final String PROJECT_NAME = TestFunnelQueryExecutor.class.getName().replace(".", "_").toLowerCase();
+    // each implementation has its own project so that the test suites of the implementations do not collide
+    private final String PROJECT_NAME = getClass().getName().replace(".", "_").toLowerCase();
 
     @BeforeSuite
     public void setup() throws Exception {
@@ -29,7 +29,8 @@ import static org.testng.Assert.assertFalse;
 
 public abstract class TestRetentionQueryExecutor {
     private static final int SCALE_FACTOR = 3;
-    private static final String PROJECT_NAME = TestRetentionQueryExecutor.class.getName().replace(".", "_").toLowerCase();
+    // each implementation has its own project so that the test suites of the implementations do not collide
+    private final String PROJECT_NAME = getClass().getName().replace(".", "_").toLowerCase();
 
     @BeforeSuite
     public void setup() throws Exception {
@@ -0,0 +1,136 @@
+package org.rakam.collection;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.report.QueryResult;
+import org.rakam.util.RakamException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestRemoteFileImport
+{
+    private Path directory;
+
+    @BeforeMethod
+    public void setUp()
+            throws IOException
+    {
+        directory = Files.createTempDirectory("remote-import");
+        Files.write(directory.resolve("events-1.json"), new byte[0]);
+        Files.write(directory.resolve("events-2.json"), new byte[0]);
+        Files.write(directory.resolve("other.csv"), new byte[0]);
+    }
+
+    @AfterMethod
+    public void tearDown()
+            throws IOException
+    {
+        for (File file : directory.toFile().listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory);
+    }
+
+    @Test(expectedExceptions = RakamException.class, expectedExceptionsMessageRegExp = "Local files are not allowed.*")
+    public void testLocalFilesAreRejected()
+            throws Exception
+    {
+        RemoteFileImport.resolve(ImmutableList.of(directory.resolve("events-1.json").toUri().toURL()), false);
+    }
+
+    @Test(expectedExceptions = RakamException.class, expectedExceptionsMessageRegExp = "Local files are not allowed.*")
+    public void testLocalGlobsAreRejected()
+            throws Exception
+    {
+        RemoteFileImport.resolve(ImmutableList.of(new URL(directory.toUri().toURL(), "events-*.json")), false);
+    }
+
+    @Test(expectedExceptions = RakamException.class, expectedExceptionsMessageRegExp = "Unsupported protocol: jar")
+    public void testUnsupportedProtocol()
+            throws Exception
+    {
+        RemoteFileImport.resolve(ImmutableList.of(new URL("jar:" + directory.resolve("events.jar").toUri() + "!/events.json")), true);
+    }
+
+    @Test
+    public void testGlob()
+            throws Exception
+    {
+        List<URL> urls = RemoteFileImport.resolve(ImmutableList.of(new URL(directory.toUri().toURL(), "events-*.json")), true);
+
+        assertEquals(urls, ImmutableList.of(
+                directory.resolve("events-1.json").toUri().toURL(),
+                directory.resolve("events-2.json").toUri().toURL()));
+    }
+
+    @Test
+    public void testManifest()
+            throws Exception
+    {
+        Files.write(directory.resolve("files.manifest"), "# the events\nevents-2.json\n\nother.csv\n".getBytes(StandardCharsets.UTF_8));
+
+        List<URL> urls = RemoteFileImport.resolve(ImmutableList.of(directory.resolve("files.manifest").toUri().toURL()), true);
+
+        assertEquals(urls, ImmutableList.of(
+                directory.resolve("events-2.json").toUri().toURL(),
+                directory.resolve("other.csv").toUri().toURL()));
+    }
+
+    @Test(expectedExceptions = RakamException.class, expectedExceptionsMessageRegExp = ".* must use the protocol of the manifest")
+    public void testManifestEntryWithOtherProtocol()
+            throws Exception
+    {
+        Files.write(directory.resolve("files.manifest"), "http://127.0.0.1/events.json\n".getBytes(StandardCharsets.UTF_8));
+
+        RemoteFileImport.resolve(ImmutableList.of(directory.resolve("files.manifest").toUri().toURL()), true);
+    }
+
+    @Test
+    public void testManifestIsFetchedByTheImport()
+            throws Exception
+    {
+        // the server accepts the connection but never responds
+        try (ServerSocket server = new ServerSocket(0)) {
+            URL manifest = new URL("http://127.0.0.1:" + server.getLocalPort() + "/files.manifest");
+            RemoteFileImport execution = new RemoteFileImport(ImmutableList.of(manifest), false, null,
+                    (url, stream, counter) -> {});
+
+            try (Socket socket = server.accept()) {
+                assertFalse(execution.isFinished());
+                assertEquals(execution.currentStats().percentage.intValue(), 0);
+            }
+            finally {
+                execution.kill();
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyManifest()
+            throws Exception
+    {
+        Files.write(directory.resolve("files.manifest"), "# no files\n".getBytes(StandardCharsets.UTF_8));
+
+        RemoteFileImport execution = new RemoteFileImport(ImmutableList.of(directory.resolve("files.manifest").toUri().toURL()), true,
+                null, (url, stream, counter) -> {});
+
+        QueryResult result = execution.getResult().get(5, TimeUnit.SECONDS);
+        assertTrue(result.isFailed());
+        assertEquals(result.getError().message, "No file matches the urls");
+    }
+}
@@ -0,0 +1,79 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestAggregationFunctionNames
+{
+    @Test
+    public void testNotLoadedYet()
+            throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        AggregationFunctionNames names = new AggregationFunctionNames(() -> {
+            calls.incrementAndGet();
+            try {
+                latch.await();
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return ImmutableSet.of("SUM", "count");
+        });
+
+        // the caller doesn't wait for the names
+        assertFalse(names.contains("sum"));
+        assertFalse(names.contains("count"));
+        latch.countDown();
+
+        waitUntilLoaded(names);
+        assertTrue(names.contains("sum"));
+        assertTrue(names.contains("COUNT"));
+        assertFalse(names.contains("lower"));
+        assertEquals(calls.get(), 1);
+    }
+
+    @Test
+    public void testFailedLoad()
+            throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        AggregationFunctionNames names = new AggregationFunctionNames(() -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("database is not available");
+        });
+
+        assertFalse(names.contains("sum"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (calls.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+
+        // the failed fetch is not retried on every call
+        for (int i = 0; i < 100; i++) {
+            assertFalse(names.contains("sum"));
+        }
+        Thread.sleep(100);
+        assertFalse(names.isLoaded());
+        assertEquals(calls.get(), 1);
+    }
+
+    private static void waitUntilLoaded(AggregationFunctionNames names)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!names.isLoaded()) {
+            assertTrue(System.currentTimeMillis() < deadline, "the names are not loaded");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.rakam.report.eventexplorer;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.EventExplorer.Reference;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.InMemoryQueryMetadataStore;
+import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.util.RakamException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
+import static org.rakam.analysis.EventExplorer.ReferenceType.REFERENCE;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestOLAPCubeIndex
+{
+    private static final String PROJECT = "test";
+
+    private TestMaterializedViewService materializedViewService;
+    private OLAPCubeIndex index;
+
+    @BeforeMethod
+    public void setup()
+    {
+        QueryMetadataStore metadataStore = new InMemoryQueryMetadataStore();
+        materializedViewService = new TestMaterializedViewService(metadataStore);
+        OLAPCubeConfig config = new OLAPCubeConfig()
+                .setAutoCubeEnabled(true)
+                .setMinimumHits(2);
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        metastore.createProject(PROJECT);
+        metastore.getOrCreateCollectionFields(PROJECT, "pageview", ImmutableSet.of(
+                new SchemaField("country", STRING), new SchemaField("browser", STRING), new SchemaField("duration", DOUBLE)));
+        index = new OLAPCubeIndex(materializedViewService, new TestContinuousQueryService(metadataStore), metastore, config, () -> "approx_set(%s)");
+    }
+
+    @Test
+    public void testGroupingSets()
+            throws Exception
+    {
+        OLAPTable table = new OLAPTable(ImmutableSet.of("pageview"), ImmutableSet.of("country", "browser"),
+                new TreeSet<>(ImmutableSet.of(SUM)), ImmutableSet.of("duration"), "cube");
+        MaterializedView view = OLAPCubeIndex.toMaterializedView(table, "cube", () -> "approx_set(%s)");
+
+        // the dimensions are sorted so browser is the first bit
+        assertEquals(count(view.query, "UNION ALL"), 3);
+        assertTrue(view.query.contains("SELECT _collection, _time, \"browser\", \"country\", 0 as \"$grouping\""));
+        assertTrue(view.query.contains("SELECT _collection, _time, NULL as \"browser\", \"country\", 1 as \"$grouping\""));
+        assertTrue(view.query.contains("SELECT _collection, _time, \"browser\", NULL as \"country\", 2 as \"$grouping\""));
+        assertTrue(view.query.contains("SELECT _collection, _time, NULL as \"browser\", NULL as \"country\", 3 as \"$grouping\""));
+        assertTrue(view.query.contains("count(*) as \"$count\""));
+        assertEquals(view.options.get("olap_grouping"), true);
+
+        new SqlParser().createStatement(view.query);
+    }
+
+    @Test
+    public void testGroupingMask()
+            throws Exception
+    {
+        OLAPTable table = new OLAPTable(ImmutableSet.of("pageview"), ImmutableSet.of("country", "browser"),
+                new TreeSet<>(ImmutableSet.of(SUM)), ImmutableSet.of("duration"), "cube");
+
+        assertEquals(OLAPCubeIndex.getGroupingMask(table, ImmutableSet.of("browser", "country")), 0);
+        assertEquals(OLAPCubeIndex.getGroupingMask(table, ImmutableSet.of("country")), 1);
+        assertEquals(OLAPCubeIndex.getGroupingMask(table, ImmutableSet.of("browser")), 2);
+        assertEquals(OLAPCubeIndex.getGroupingMask(table, ImmutableSet.of()), 3);
+        // the columns that are not in the table are not part of the mask
+        assertEquals(OLAPCubeIndex.getGroupingMask(table, ImmutableSet.of("_collection", "browser")), 2);
+    }
+
+    @Test
+    public void testCountAllShape()
+            throws Exception
+    {
+        Optional<OLAPTable> cube = index.getCube(ImmutableList.of("pageview"), new Measure(null, COUNT),
+                new Reference(COLUMN, "country"), new Reference(REFERENCE, "day"), null);
+
+        assertTrue(cube.isPresent());
+        assertTrue(cube.get().measures.isEmpty());
+        assertEquals(cube.get().dimensions, ImmutableSet.of("country"));
+    }
+
+    @Test
+    public void testUnsupportedShapes()
+            throws Exception
+    {
+        assertFalse(index.getCube(ImmutableList.of("pageview", "click"), new Measure(null, COUNT), null, null, null).isPresent());
+        assertFalse(index.getCube(ImmutableList.of("pageview"), new Measure(null, COUNT),
+                new Reference(REFERENCE, "hour"), null, null).isPresent());
+    }
+
+    @Test
+    public void testCreateCubeAfterMinimumHits()
+            throws Exception
+    {
+        Measure measure = new Measure(null, COUNT);
+        Reference grouping = new Reference(COLUMN, "country");
+
+        index.record(PROJECT, ImmutableList.of("pageview"), measure, grouping, null, null);
+        Thread.sleep(100);
+        assertTrue(materializedViewService.list(PROJECT).isEmpty());
+
+        index.record(PROJECT, ImmutableList.of("pageview"), measure, grouping, null, null);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (materializedViewService.list(PROJECT).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(materializedViewService.list(PROJECT).size(), 1);
+        assertTrue(index.find(PROJECT, table -> table.dimensions.contains("country")).isPresent());
+    }
+
+    @Test
+    public void testHostileGroupingIsRejected()
+            throws Exception
+    {
+        Measure measure = new Measure(null, COUNT);
+        Reference grouping = new Reference(COLUMN, "country\" FROM pageview; DROP TABLE pageview; --");
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                index.record(PROJECT, ImmutableList.of("pageview"), measure, grouping, null, null);
+                fail();
+            }
+            catch (RakamException e) {
+                assertEquals(e.getStatusCode(), BAD_REQUEST);
+            }
+        }
+
+        // the shapes of the collections that do not exist are also rejected
+        try {
+            index.record(PROJECT, ImmutableList.of("pageview\" UNION SELECT 1 --"), measure, new Reference(COLUMN, "country"), null, null);
+            fail();
+        }
+        catch (RakamException e) {
+            assertEquals(e.getStatusCode(), NOT_FOUND);
+        }
+
+        Thread.sleep(100);
+        assertTrue(materializedViewService.list(PROJECT).isEmpty());
+    }
+
+    @Test
+    public void testInvalidateOnChange()
+            throws Exception
+    {
+        assertFalse(index.find(PROJECT, table -> true).isPresent());
+
+        OLAPTable table = new OLAPTable(ImmutableSet.of("pageview"), ImmutableSet.of("country"),
+                new TreeSet<>(ImmutableSet.of(SUM)), ImmutableSet.of("duration"), "manual");
+        materializedViewService.create(PROJECT, OLAPCubeIndex.toMaterializedView(table, "manual", () -> "approx_set(%s)")).join();
+        assertTrue(index.find(PROJECT, e -> e.tableName.equals("manual")).isPresent());
+
+        materializedViewService.delete(PROJECT, "manual").join();
+        assertFalse(index.find(PROJECT, e -> e.tableName.equals("manual")).isPresent());
+    }
+
+    @Test
+    public void testLegacyTablesAreIgnored()
+            throws Exception
+    {
+        OLAPTable table = new OLAPTable(ImmutableSet.of("pageview"), ImmutableSet.of("country"),
+                new TreeSet<>(ImmutableSet.of(SUM)), ImmutableSet.of("duration"), "legacy");
+        MaterializedView view = OLAPCubeIndex.toMaterializedView(table, "legacy", () -> "approx_set(%s)");
+        materializedViewService.create(PROJECT, new MaterializedView(view.tableName, view.name, view.query,
+                view.updateInterval, null, ImmutableMap.of("olap_table", table))).join();
+
+        assertFalse(index.find(PROJECT, e -> true).isPresent());
+    }
+
+    private static int count(String value, String part)
+    {
+        int count = 0;
+        for (int i = value.indexOf(part); i != -1; i = value.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static class TestMaterializedViewService
+            extends MaterializedViewService
+    {
+        private final QueryMetadataStore database;
+
+        public TestMaterializedViewService(QueryMetadataStore database)
+        {
+            super(database, null, '"');
+            this.database = database;
+        }
+
+        @Override
+        public CompletableFuture<Void> create(String project, MaterializedView materializedView)
+        {
+            database.createMaterializedView(project, materializedView);
+            notifyChange(project);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> delete(String project, String name)
+        {
+            database.deleteMaterializedView(project, name);
+            notifyChange(project);
+            return CompletableFuture.completedFuture(QueryResult.empty());
+        }
+
+        @Override
+        public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class TestContinuousQueryService
+            extends ContinuousQueryService
+    {
+        public TestContinuousQueryService(QueryMetadataStore database)
+        {
+            super(database);
+        }
+
+        @Override
+        public QueryExecution create(String project, ContinuousQuery report, boolean replayHistoricalData)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> delete(String project, String tableName)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, List<SchemaField>> getSchemas(String project)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean test(String project, String query)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public QueryExecution refresh(String project, String tableName)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
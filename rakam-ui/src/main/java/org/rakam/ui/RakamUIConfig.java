@@ -31,6 +31,7 @@ public class RakamUIConfig {
     private String googleClientId;
     private String stripeKey;
     private URL screenCaptureService = new URL("http://46.101.145.48:8050");
+    private int screenCaptureConcurrency = 4;
 
     public RakamUIConfig()
             throws MalformedURLException
@@ -87,6 +88,18 @@ public class RakamUIConfig {
         return screenCaptureService;
     }
 
+    @Config("screen-capture-service.max-concurrent-renders")
+    @ConfigDescription("The maximum number of dashboards that are rendered at the same time for the scheduled emails")
+    public RakamUIConfig setScreenCaptureConcurrency(int screenCaptureConcurrency) {
+        this.screenCaptureConcurrency = screenCaptureConcurrency;
+        return this;
+    }
+
+    public int getScreenCaptureConcurrency()
+    {
+        return screenCaptureConcurrency;
+    }
+
     public File getUIDirectory() {
         return uiDirectory;
     }
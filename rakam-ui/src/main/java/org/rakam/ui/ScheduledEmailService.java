@@ -6,7 +6,10 @@ import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheFactory;
 import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
@@ -73,6 +76,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinWorkerThread;
@@ -101,6 +105,8 @@ public class ScheduledEmailService
     private final MailSender mailSender;
     private static final Mustache template;
     private final ListeningExecutorService executorService;
+    private final ListeningExecutorService renderExecutor;
+    private final Cache<DashboardKey, ListenableFuture<byte[]>> renderedDashboards;
     private final WebUserHttpService webUserHttpService;
     private final URL screenCaptureService;
 
@@ -140,6 +146,12 @@ public class ScheduledEmailService
                             return forkJoinWorkerThread;
                         },
                         null, true));
+        // the screen capture service renders the dashboards by running their queries so the renders are bounded
+        renderExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                rakamUIConfig.getScreenCaptureConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("scheduled-email-renderer-%d").build()));
+        // the screenshots are shared by the tasks that are run in the same hour
+        renderedDashboards = CacheBuilder.newBuilder().expireAfterWrite(30, TimeUnit.MINUTES).build();
     }
 
     @PostConstruct
@@ -194,48 +206,86 @@ public class ScheduledEmailService
 
         LOGGER.info("Running email summary tasks, %d emails will be sent.", tasks.size());
 
-        for (ScheduledEmailTask task : tasks) {
-            try {
-                LockService.Lock lock = lockService.tryLock("dashboard." + String.valueOf(task.id));
+        Map<DashboardKey, List<ScheduledEmailTask>> dashboards = groupByDashboard(tasks);
 
-                if (lock == null) {
-                    continue;
-                }
+        for (Map.Entry<DashboardKey, List<ScheduledEmailTask>> entry : dashboards.entrySet()) {
+            for (ScheduledEmailTask task : entry.getValue()) {
+                try {
+                    LockService.Lock lock = lockService.tryLock("dashboard." + String.valueOf(task.id));
 
-                long now = Instant.now().toEpochMilli();
+                    if (lock == null) {
+                        continue;
+                    }
 
-                send(task, new FutureCallback<Void>()
-                {
-                    @Override
-                    public void onSuccess(@Nullable Void result)
-                    {
-                        updateTask(task.id, lock, now, null);
+                    long now = Instant.now().toEpochMilli();
+
+                    ListenableFuture<byte[]> screenshot;
+                    try {
+                        screenshot = getScreenshot(entry.getKey(), task);
+                    }
+                    catch (ExecutionException e) {
+                        updateTask(task.id, lock, now, e.getCause());
+                        continue;
                     }
 
-                    @Override
-                    public void onFailure(Throwable t)
+                    send(task, screenshot, new FutureCallback<Void>()
                     {
-                        updateTask(task.id, lock, now, t);
-                    }
-                });
-            }
-            catch (Exception e) {
-                LOGGER.error(e);
+                        @Override
+                        public void onSuccess(@Nullable Void result)
+                        {
+                            updateTask(task.id, lock, now, null);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t)
+                        {
+                            updateTask(task.id, lock, now, t);
+                        }
+                    });
+                }
+                catch (Exception e) {
+                    LOGGER.error(e);
+                }
             }
         }
     }
 
-    private void send(ScheduledEmailTask task, FutureCallback<Void> callback)
-            throws MessagingException, UnsupportedEncodingException
+    /**
+     * The dashboard is rendered once for all the tasks of the same user, the session of the user is used
+     * for rendering so the screenshot may contain the data that only the user has access to.
+     */
+    static Map<DashboardKey, List<ScheduledEmailTask>> groupByDashboard(List<ScheduledEmailTask> tasks)
     {
-        MimeBodyPart screenPart = new MimeBodyPart();
-        String imageId = UUID.randomUUID().toString() + "@" +
-                UUID.randomUUID().toString() + ".mail";
-        screenPart.setHeader("Content-ID", "<" + imageId + ">");
+        return tasks.stream().collect(Collectors.groupingBy(DashboardKey::new));
+    }
 
-        StringWriter writer;
+    private ListenableFuture<byte[]> getScreenshot(DashboardKey key, ScheduledEmailTask task)
+            throws ExecutionException
+    {
+        return renderedDashboards.get(key, () -> {
+            ListenableFuture<byte[]> screenshot = render(task);
+            Futures.addCallback(screenshot, new FutureCallback<byte[]>()
+            {
+                @Override
+                public void onSuccess(@Nullable byte[] result)
+                {
+                }
 
-        writer = new StringWriter();
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    // the next task of the dashboard should try to render it again
+                    renderedDashboards.asMap().remove(key, screenshot);
+                }
+            });
+            return screenshot;
+        });
+    }
+
+    private ListenableFuture<byte[]> render(ScheduledEmailTask task)
+            throws UnsupportedEncodingException
+    {
+        StringWriter writer = new StringWriter();
         String path = "/" + task.project_id + "/dashboard/" + task.type_id;
         Map<String, Object> project;
         try (Handle handle = dbi.open()) {
@@ -249,30 +299,44 @@ public class ScheduledEmailService
                 "path", path));
         String txtContent = writer.toString();
 
-        ListenableFuture<Void> run = executorService.submit(() -> {
-            try {
-                URL u = new URL(screenCaptureService.toString() + "/execute");
-                HttpURLConnection conn = (HttpURLConnection) u.openConnection();
-                conn.setDoOutput(true);
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Content-Type", "application/json");
-                conn.setRequestProperty("Content-Length", String.valueOf(txtContent.length()));
-
-                try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
-                    wr.write(JsonHelper.encodeAsBytes(ImmutableMap.of("lua_source", txtContent, "timeout", 60)));
-                }
-                writer.flush();
+        return renderExecutor.submit(() -> {
+            URL u = new URL(screenCaptureService.toString() + "/execute");
+            HttpURLConnection conn = (HttpURLConnection) u.openConnection();
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setRequestProperty("Content-Length", String.valueOf(txtContent.length()));
 
-                byte[] bytes;
-                if (conn.getResponseCode() == 200) {
-                    bytes = ByteStreams.toByteArray(conn.getInputStream());
-                }
-                else {
-                    bytes = ByteStreams.toByteArray(conn.getErrorStream());
-                    throw new RuntimeException("Error while sending scheduled e-mail",
-                            new RuntimeException(new String(bytes)));
-                }
+            try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
+                wr.write(JsonHelper.encodeAsBytes(ImmutableMap.of("lua_source", txtContent, "timeout", 60)));
+            }
+
+            byte[] bytes;
+            if (conn.getResponseCode() == 200) {
+                bytes = ByteStreams.toByteArray(conn.getInputStream());
+            }
+            else {
+                bytes = ByteStreams.toByteArray(conn.getErrorStream());
+                throw new RuntimeException("Error while sending scheduled e-mail",
+                        new RuntimeException(new String(bytes)));
+            }
 
+            return bytes;
+        });
+    }
+
+    private void send(ScheduledEmailTask task, ListenableFuture<byte[]> screenshot, FutureCallback<Void> callback)
+            throws MessagingException
+    {
+        MimeBodyPart screenPart = new MimeBodyPart();
+        String imageId = UUID.randomUUID().toString() + "@" +
+                UUID.randomUUID().toString() + ".mail";
+        screenPart.setHeader("Content-ID", "<" + imageId + ">");
+
+        String path = "/" + task.project_id + "/dashboard/" + task.type_id;
+
+        ListenableFuture<Void> run = Futures.transform(screenshot, (Function<byte[], Void>) bytes -> {
+            try {
                 ZonedDateTime dateTime = Instant.now().atZone(ZoneOffset.UTC);
                 String month = dateTime.getMonth().getDisplayName(SHORT, US);
                 int day = dateTime.getDayOfMonth();
@@ -292,10 +356,10 @@ public class ScheduledEmailService
                         Stream.of(screenPart));
                 return null;
             }
-            catch (IOException | MessagingException e) {
+            catch (MessagingException e) {
                 throw Throwables.propagate(e);
             }
-        });
+        }, executorService);
 
         Futures.addCallback(run, callback);
     }
@@ -396,7 +460,8 @@ public class ScheduledEmailService
 
         try {
             task.emails = ImmutableList.of(email);
-            send(task, new FutureCallback<Void>()
+            // the dashboard is rendered again since it may be updated after the last scheduled run
+            send(task, render(task), new FutureCallback<Void>()
             {
                 @Override
                 public void onSuccess(@Nullable Void result)
@@ -545,6 +610,46 @@ public class ScheduledEmailService
                 }).list();
     }
 
+    static class DashboardKey
+    {
+        private final int project;
+        private final int user;
+        private final TaskType type;
+        private final int typeId;
+
+        public DashboardKey(ScheduledEmailTask task)
+        {
+            this.project = task.project_id;
+            this.user = task.user_id;
+            this.type = task.type;
+            this.typeId = task.type_id;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DashboardKey)) {
+                return false;
+            }
+
+            DashboardKey that = (DashboardKey) o;
+            return project == that.project && user == that.user && typeId == that.typeId && type == that.type;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = project;
+            result = 31 * result + user;
+            result = 31 * result + type.hashCode();
+            result = 31 * result + typeId;
+            return result;
+        }
+    }
+
     public static class ScheduledEmailTask
     {
         public final int id;
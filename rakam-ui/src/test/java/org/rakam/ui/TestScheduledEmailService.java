@@ -0,0 +1,46 @@
+package org.rakam.ui;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.ui.ScheduledEmailService.DashboardKey;
+import org.rakam.ui.ScheduledEmailService.ScheduledEmailTask;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.rakam.ui.ScheduledEmailService.ScheduledEmailTask.TaskType.DASHBOARD;
+import static org.testng.Assert.assertEquals;
+
+public class TestScheduledEmailService
+{
+    @Test
+    public void testTasksOfTheSameUserAreMerged()
+            throws Exception
+    {
+        Map<DashboardKey, List<ScheduledEmailTask>> dashboards = ScheduledEmailService.groupByDashboard(ImmutableList.of(
+                task(1, 10, 100), task(2, 10, 100), task(3, 10, 101)));
+
+        assertEquals(dashboards.size(), 2);
+        assertEquals(dashboards.get(new DashboardKey(task(4, 10, 100))).size(), 2);
+    }
+
+    @Test
+    public void testTasksOfDifferentUsersAreNotMerged()
+            throws Exception
+    {
+        // the dashboard is rendered with the session of the user so the users may see different data
+        Map<DashboardKey, List<ScheduledEmailTask>> dashboards = ScheduledEmailService.groupByDashboard(ImmutableList.of(
+                task(1, 10, 100), task(2, 11, 100)));
+
+        assertEquals(dashboards.size(), 2);
+        for (List<ScheduledEmailTask> tasks : dashboards.values()) {
+            assertEquals(tasks.size(), 1);
+        }
+    }
+
+    private static ScheduledEmailTask task(int id, int user, int dashboard)
+    {
+        return new ScheduledEmailTask(id, "report", "day.1", 9, DASHBOARD, dashboard,
+                ImmutableList.of("test@rakam.io"), true, null, user, 1);
+    }
+}
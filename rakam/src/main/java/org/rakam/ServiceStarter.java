@@ -46,6 +46,7 @@ import org.rakam.config.EncryptionConfig;
 import org.rakam.config.JDBCConfig;
 import org.rakam.config.MetadataConfig;
 import org.rakam.config.ProjectConfig;
+import org.rakam.config.RemoteImportConfig;
 import org.rakam.http.ForHttpServer;
 import org.rakam.http.HttpServerConfig;
 import org.rakam.http.OptionMethodHttpService;
@@ -59,6 +60,8 @@ import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.plugin.user.mailbox.UserMailboxStorage;
+import org.rakam.report.SharedScanConfig;
+import org.rakam.report.SharedScanQueryExecutor;
 import org.rakam.server.http.HttpRequestHandler;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.WebSocketService;
@@ -247,7 +250,10 @@ public final class ServiceStarter
 
             configBinder(binder).bindConfig(HttpServerConfig.class);
             configBinder(binder).bindConfig(ProjectConfig.class);
+            configBinder(binder).bindConfig(RemoteImportConfig.class);
             configBinder(binder).bindConfig(EncryptionConfig.class);
+            configBinder(binder).bindConfig(SharedScanConfig.class);
+            binder.bind(SharedScanQueryExecutor.class).in(Scopes.SINGLETON);
 
             binder.bind(SchemaChecker.class).asEagerSingleton();
 
@@ -0,0 +1,150 @@
+package org.rakam.analysis;
+
+import com.google.common.base.Throwables;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryResultConsumer;
+import org.rakam.server.http.HttpServer;
+import org.rakam.server.http.RakamHttpRequest;
+import org.rakam.util.ExportUtil;
+import org.rakam.util.ExportUtil.PageEncoder;
+import org.rakam.util.RakamException;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Writes the pages of a query result to the response as HTTP chunks while the query is running. The query thread
+ * waits while the channel is not writable so the rows are fetched only as fast as the client reads them, the pages
+ * that are handed on the event loop are written without waiting.
+ */
+public class ChunkedQueryExport
+        implements QueryResultConsumer
+{
+    private final ChannelHandlerContext context;
+    private final boolean keepAlive;
+    private final CopyType type;
+    private final Consumer<String> errorHandler;
+    private final PageEncoder encoder;
+    private final Channel channel;
+    private boolean started;
+
+    public ChunkedQueryExport(RakamHttpRequest request, CopyType type)
+    {
+        this(request.context(), HttpHeaders.isKeepAlive(request), type,
+                message -> HttpServer.returnError(request, message, BAD_REQUEST));
+    }
+
+    ChunkedQueryExport(ChannelHandlerContext context, boolean keepAlive, CopyType type, Consumer<String> errorHandler)
+    {
+        this.context = context;
+        this.keepAlive = keepAlive;
+        this.type = type;
+        this.errorHandler = errorHandler;
+        this.encoder = ExportUtil.getPageEncoder(type);
+        this.channel = context.channel();
+    }
+
+    @Override
+    public void metadata(List<SchemaField> columns)
+    {
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        HttpHeaders.setTransferEncodingChunked(response);
+        response.headers().set(CONTENT_TYPE, "application/octet-stream");
+        response.headers().set("Content-Disposition", "attachment;filename=\"export." + type.name().toLowerCase(Locale.ENGLISH) + "\"");
+        context.write(response);
+        started = true;
+
+        write(out -> encoder.start(columns, out));
+    }
+
+    @Override
+    public void page(List<List<Object>> rows)
+    {
+        ChannelFuture future = write(out -> encoder.page(rows, out));
+
+        // the event loop drains the outbound buffer so it can't wait for the write, the executors that call the consumer
+        // on the event loop have the whole result in memory anyway
+        if (!channel.isWritable() && !channel.eventLoop().inEventLoop()) {
+            // the outbound buffer is drained once the last chunk is written
+            future.awaitUninterruptibly();
+        }
+
+        if (!channel.isActive()) {
+            throw new IllegalStateException("The client closed the connection");
+        }
+    }
+
+    public void end(QueryResult result)
+    {
+        if (result.isFailed()) {
+            if (started) {
+                // the response is already started so the only way to report the error is to close the connection
+                channel.close();
+            }
+            else {
+                errorHandler.accept(result.getError().message);
+            }
+            return;
+        }
+
+        if (!started) {
+            metadata(result.getMetadata());
+        }
+
+        write(encoder::end);
+        ChannelFuture lastContentFuture = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!keepAlive) {
+            lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private ChannelFuture write(Encoder function)
+    {
+        ByteBuf buffer = context.alloc().buffer();
+        try {
+            function.encode(new ByteBufOutputStream(buffer));
+        }
+        catch (IOException e) {
+            buffer.release();
+            throw new RakamException("Unable to encode the result: " + e.getMessage(), INTERNAL_SERVER_ERROR);
+        }
+        catch (Throwable e) {
+            buffer.release();
+            throw Throwables.propagate(e);
+        }
+
+        if (buffer.readableBytes() == 0) {
+            buffer.release();
+            return channel.newSucceededFuture();
+        }
+
+        return context.writeAndFlush(new DefaultHttpContent(buffer));
+    }
+
+    private interface Encoder
+    {
+        void encode(ByteBufOutputStream out)
+                throws IOException;
+    }
+}
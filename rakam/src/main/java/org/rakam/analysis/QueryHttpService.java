@@ -30,6 +30,7 @@ import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.report.QueryStats;
 import org.rakam.report.QuerySampling;
+import org.rakam.report.SharedScanQueryExecutor;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
 import org.rakam.server.http.Response;
@@ -40,7 +41,6 @@ import org.rakam.server.http.annotations.Authorization;
 import org.rakam.server.http.annotations.BodyParam;
 import org.rakam.server.http.annotations.IgnoreApi;
 import org.rakam.server.http.annotations.JsonRequest;
-import org.rakam.util.ExportUtil;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 import org.rakam.util.LogUtil;
@@ -84,14 +84,16 @@ public class QueryHttpService
 {
     private static final Logger LOGGER = Logger.get(QueryHttpService.class);
     private final QueryExecutorService executorService;
+    private final SharedScanQueryExecutor sharedScanExecutor;
     private final ApiKeyService apiKeyService;
     private EventLoopGroup eventLoopGroup;
     private final SqlParser sqlParser = new SqlParser();
 
     @Inject
-    public QueryHttpService(ApiKeyService apiKeyService, QueryExecutorService executorService)
+    public QueryHttpService(ApiKeyService apiKeyService, QueryExecutorService executorService, SharedScanQueryExecutor sharedScanExecutor)
     {
         this.executorService = executorService;
+        this.sharedScanExecutor = sharedScanExecutor;
         this.apiKeyService = apiKeyService;
     }
 
@@ -104,10 +106,11 @@ public class QueryHttpService
             @Named("project") String project,
             @BodyParam QueryRequest query)
     {
-        QueryExecution queryExecution = executorService.executeQuery(project, query.query,
+        // the widgets of the dashboards are executed at the same time, their scans can be shared
+        QueryExecution queryExecution = sharedScanExecutor.executeQuery(project, query.query,
                 query.sample,
                 Optional.ofNullable(query.defaultSchema).orElse("collection"),
-                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit);
+                getResultLimit(query.limit));
         return queryExecution
                 .getResult().thenApply(result -> {
                     if (result.isFailed()) {
@@ -125,30 +128,42 @@ public class QueryHttpService
     @JsonRequest
     public void export(RakamHttpRequest request, @Named("project") String project, @BodyParam QueryRequest query)
     {
-        executorService.executeQuery(project, query.query,
+        // the rows are encoded and written to the response page by page while they're fetched so the result
+        // is not limited unless the query or the request has a limit or the executor can't stream the query
+        ChunkedQueryExport export = new ChunkedQueryExport(request,
+                Optional.ofNullable(query.exportType).orElse(CopyType.CSV));
+
+        QueryExecution execution = executorService.executeQuery(project, query.query,
                 query.sample, Optional.ofNullable(query.defaultSchema).orElse("collection"),
-                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit).getResult().thenAccept(result -> {
-            if (result.isFailed()) {
-                throw new RakamException(result.getError().toString(), BAD_REQUEST);
-            }
-            byte[] bytes;
-            switch (query.exportType) {
-                case CSV:
-                    bytes = ExportUtil.exportAsCSV(result);
-                    break;
-                case AVRO:
-                    bytes = ExportUtil.exportAsAvro(result);
-                    break;
-                case JSON:
-                    bytes = JsonHelper.encodeAsBytes(result.getResult());
-                default:
-                    throw new IllegalStateException();
+                query.limit, export);
+
+        request.context().channel().closeFuture().addListener(future -> {
+            if (!execution.isFinished()) {
+                execution.kill();
             }
+        });
 
-            request.response(bytes).end();
+        execution.getResult().whenComplete((result, ex) -> {
+            if (ex != null) {
+                LOGGER.error(ex, "Error while exporting query");
+                request.context().channel().close();
+                return;
+            }
+            export.end(result);
         });
     }
 
+    private static int getResultLimit(Integer limit)
+    {
+        if (limit == null) {
+            return DEFAULT_QUERY_RESULT_COUNT;
+        }
+        if (limit > MAX_QUERY_RESULT_LIMIT) {
+            throw new RakamException("Maximum value of limit is " + MAX_QUERY_RESULT_LIMIT, BAD_REQUEST);
+        }
+        return limit;
+    }
+
     @GET
     @Consumes("text/event-stream")
     @IgnoreApi
@@ -159,10 +174,10 @@ public class QueryHttpService
     public void execute(RakamHttpRequest request)
     {
         handleServerSentQueryExecution(request, QueryRequest.class, (project, query) ->
-                executorService.executeQuery(project, query.query,
+                sharedScanExecutor.executeQuery(project, query.query,
                         query.sample,
                         Optional.ofNullable(query.defaultSchema).orElse("collection"),
-                        query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit));
+                        getResultLimit(query.limit)));
     }
 
     public <T> void handleServerSentQueryExecution(RakamHttpRequest request, Class<T> clazz, BiFunction<String, T, QueryExecution> executorFunction)
@@ -333,9 +348,6 @@ public class QueryHttpService
                 @ApiParam(value = "limit", required = false, description = "The maximum rows that can be returned from a query is 500K") Integer limit)
         {
             this.query = requireNonNull(query, "query is empty").trim().replaceAll(";+$", "");
-            if (limit != null && limit > MAX_QUERY_RESULT_LIMIT) {
-                throw new IllegalArgumentException("Maximum value of limit is " + MAX_QUERY_RESULT_LIMIT);
-            }
             this.exportType = exportType;
             this.defaultSchema = defaultSchema;
             this.sample = Optional.ofNullable(sample);
@@ -14,15 +14,13 @@
 package org.rakam.analysis.eventexplorer;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.google.common.collect.ImmutableMap;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.EventExplorer.OLAPTable;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.QueryHttpService;
-import org.rakam.plugin.MaterializedView;
 import org.rakam.report.QueryResult;
-import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.eventexplorer.OLAPCubeIndex;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
 import org.rakam.server.http.annotations.Api;
@@ -32,14 +30,12 @@ import org.rakam.server.http.annotations.Authorization;
 import org.rakam.server.http.annotations.BodyParam;
 import org.rakam.server.http.annotations.IgnoreApi;
 import org.rakam.server.http.annotations.JsonRequest;
-import org.rakam.util.RakamException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 
-import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.util.List;
@@ -47,10 +43,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
 
-import static org.rakam.report.realtime.AggregationType.COUNT;
-import static org.rakam.report.realtime.AggregationType.SUM;
 import static org.rakam.util.ValidationUtil.checkArgument;
 
 @Path("/event-explorer")
@@ -138,56 +131,13 @@ public class EventExplorerHttpService
     @Path("/pre_calculate")
     public CompletableFuture<PrecalculatedTable> createPrecomputedTable(@Named("project") String project, @BodyParam OLAPTable table)
     {
-        String metrics = table.measures.stream().map(column -> table.aggregations.stream()
-                .map(agg -> getAggregationColumn(agg, table.aggregations).map(e -> String.format(e, column) + " as " + column + "_" + agg.name().toLowerCase()))
-                .filter(Optional::isPresent).map(Optional::get).collect(Collectors.joining(", ")))
-                .collect(Collectors.joining(", "));
-
-        String dimensions = table.dimensions.stream().collect(Collectors.joining(", "));
-        String subQuery = table.collections.stream().map(collection -> String.format("SELECT cast('%s' as varchar) as _collection, _time %s %s FROM %s",
-                collection,
-                dimensions.isEmpty() ? "" : ", " + dimensions,
-                table.measures.isEmpty() ? "" : ", " + table.measures.stream().collect(Collectors.joining(", ")), collection))
-                .collect(Collectors.joining(" UNION ALL "));
-
         String name = "Dimensions";
 
-        String dimensionColumns = !dimensions.isEmpty() ? (dimensions + ",") : "";
-        String query = String.format("SELECT %s _time, %s %s FROM (SELECT %s CAST(_time AS DATE) as _time, %s %s FROM (%s) data) data GROUP BY CUBE (_time %s %s) ORDER BY 1 ASC",
-                "_collection,", dimensionColumns, metrics,
-                "_collection,", dimensionColumns, table.measures.stream().collect(Collectors.joining(", ")),
-                subQuery,
-                ", _collection", dimensions.isEmpty() ? "" : "," + dimensions);
-
-        return materializedViewService.create(project, new MaterializedView(table.tableName, "Olap table", query,
-                Duration.ofHours(1), null, ImmutableMap.of("olap_table", table)))
+        return materializedViewService.create(project, OLAPCubeIndex.toMaterializedView(table, "Olap table",
+                eventExplorer::getIntermediateForApproximateUniqueFunction))
                 .thenApply(v -> new PrecalculatedTable(name, table.tableName));
     }
 
-    private Optional<String> getAggregationColumn(AggregationType agg, Set<AggregationType> aggregations)
-    {
-        switch (agg) {
-            case AVERAGE:
-                aggregations.add(COUNT);
-                aggregations.add(SUM);
-                return Optional.empty();
-            case MAXIMUM:
-                return Optional.of("max(%s)");
-            case MINIMUM:
-                return Optional.of("min(%s)");
-            case COUNT:
-                return Optional.of("count(%s)");
-            case SUM:
-                return Optional.of("sum(%s)");
-            case COUNT_UNIQUE:
-                throw new UnsupportedOperationException("Not supported yet.");
-            case APPROXIMATE_UNIQUE:
-                return Optional.of(eventExplorer.getIntermediateForApproximateUniqueFunction());
-            default:
-                throw new IllegalArgumentException("aggregation type is not supported");
-        }
-    }
-
     @ApiOperation(value = "Perform simple query on event data",
             request = AnalyzeRequest.class,
             consumes = "text/event-stream",
@@ -0,0 +1,208 @@
+package org.rakam.analysis.realtime;
+
+import io.airlift.slice.Slices;
+import io.airlift.stats.cardinality.HyperLogLog;
+import org.rakam.report.realtime.AggregationType;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The partial state of a measure in a slide of a real-time report. The accumulators are updated concurrently
+ * by the event collection threads and merged into fresh accumulators when the report is queried.
+ */
+public abstract class MeasureAccumulator
+{
+    // 2048 buckets gives ~2.3% standard error which is in line with approx_distinct in Presto.
+    private static final int HYPERLOGLOG_BUCKETS = 2048;
+
+    public static boolean isSupported(AggregationType type)
+    {
+        switch (type) {
+            case COUNT:
+            case SUM:
+            case MINIMUM:
+            case MAXIMUM:
+            case APPROXIMATE_UNIQUE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static MeasureAccumulator create(AggregationType type)
+    {
+        switch (type) {
+            case COUNT:
+                return new Count();
+            case SUM:
+                return new Sum();
+            case MINIMUM:
+                return new Extreme(true);
+            case MAXIMUM:
+                return new Extreme(false);
+            case APPROXIMATE_UNIQUE:
+                return new ApproximateUnique();
+            default:
+                throw new IllegalArgumentException("Unsupported aggregation type: " + type);
+        }
+    }
+
+    public abstract void add(Object value);
+
+    public abstract void mergeWith(MeasureAccumulator other);
+
+    public abstract Object value();
+
+    private static class Count
+            extends MeasureAccumulator
+    {
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void add(Object value)
+        {
+            if (value != null) {
+                count.increment();
+            }
+        }
+
+        @Override
+        public void mergeWith(MeasureAccumulator other)
+        {
+            count.add(((Count) other).count.sum());
+        }
+
+        @Override
+        public Object value()
+        {
+            return count.sum();
+        }
+    }
+
+    private static class Sum
+            extends MeasureAccumulator
+    {
+        private final DoubleAdder sum = new DoubleAdder();
+        private volatile boolean empty = true;
+
+        @Override
+        public void add(Object value)
+        {
+            if (value instanceof Number) {
+                sum.add(((Number) value).doubleValue());
+                empty = false;
+            }
+        }
+
+        @Override
+        public void mergeWith(MeasureAccumulator other)
+        {
+            Sum sum = (Sum) other;
+            if (!sum.empty) {
+                this.sum.add(sum.sum.sum());
+                empty = false;
+            }
+        }
+
+        @Override
+        public Object value()
+        {
+            return empty ? null : sum.sum();
+        }
+    }
+
+    private static class Extreme
+            extends MeasureAccumulator
+    {
+        private final boolean minimum;
+        private boolean empty = true;
+        private double value;
+
+        public Extreme(boolean minimum)
+        {
+            this.minimum = minimum;
+        }
+
+        @Override
+        public void add(Object value)
+        {
+            if (value instanceof Number) {
+                add(((Number) value).doubleValue());
+            }
+        }
+
+        private synchronized void add(double number)
+        {
+            if (empty || (minimum ? number < value : number > value)) {
+                value = number;
+                empty = false;
+            }
+        }
+
+        @Override
+        public void mergeWith(MeasureAccumulator other)
+        {
+            Extreme extreme = (Extreme) other;
+            double value;
+            synchronized (extreme) {
+                if (extreme.empty) {
+                    return;
+                }
+                value = extreme.value;
+            }
+            add(value);
+        }
+
+        @Override
+        public synchronized Object value()
+        {
+            return empty ? null : value;
+        }
+    }
+
+    private static class ApproximateUnique
+            extends MeasureAccumulator
+    {
+        private final HyperLogLog hll = HyperLogLog.newInstance(HYPERLOGLOG_BUCKETS);
+
+        @Override
+        public void add(Object value)
+        {
+            if (value == null) {
+                return;
+            }
+
+            synchronized (hll) {
+                if (value instanceof Long || value instanceof Integer) {
+                    hll.add(((Number) value).longValue());
+                }
+                else if (value instanceof Number) {
+                    hll.add(Double.doubleToLongBits(((Number) value).doubleValue()));
+                }
+                else {
+                    hll.add(Slices.utf8Slice(value.toString()));
+                }
+            }
+        }
+
+        @Override
+        public void mergeWith(MeasureAccumulator other)
+        {
+            HyperLogLog otherHll = ((ApproximateUnique) other).hll;
+            synchronized (otherHll) {
+                synchronized (hll) {
+                    hll.mergeWith(otherHll);
+                }
+            }
+        }
+
+        @Override
+        public Object value()
+        {
+            synchronized (hll) {
+                return hll.cardinality();
+            }
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package org.rakam.analysis.realtime;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import io.airlift.log.Logger;
+import org.rakam.analysis.RealtimeService;
+import org.rakam.analysis.RealtimeService.RealTimeQueryResult;
+import org.rakam.automation.ExpressionCompiler;
+import org.rakam.collection.Event;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.report.realtime.RealTimeConfig;
+import org.rakam.report.realtime.RealTimeReport;
+import org.rakam.util.JsonHelper;
+
+import javax.inject.Inject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static java.lang.Boolean.TRUE;
+
+/**
+ * Keeps the aggregates of the real-time reports in memory so that the reports can be served without
+ * querying the database. The events are fed by {@link RealTimeEventMapper} and each report has a ring of
+ * slide buckets that covers the window; a bucket holds the partial aggregates of each dimension group.
+ * <p>
+ * A report can only be served for the slides that were fully observed by this node, {@link #query} returns
+ * an empty result otherwise and the caller should fall back to {@link RealtimeService}. Since a node only sees
+ * the events it collects, the in-memory aggregation should be enabled only if a single node collects the events.
+ */
+@Singleton
+public class RealTimeAggregator
+{
+    private final static Logger LOGGER = Logger.get(RealTimeAggregator.class);
+    private static final int MAXIMUM_RESULT_SIZE = 5000;
+    // the slides that are not expired yet but still out of the window, for late events and the queries that
+    // skip the last two slides.
+    private static final int EXTRA_SLIDES = 4;
+
+    private final long slideMillis;
+    private final long windowMillis;
+    private final int ringSize;
+    private final int maxGroupsPerSlide;
+    private final Function<String, List<ContinuousQuery>> definitions;
+    private final LoadingCache<String, Map<String, Report>> reports;
+
+    @Inject
+    public RealTimeAggregator(RealtimeService realtimeService, RealTimeConfig config)
+    {
+        this(config, realtimeService::list);
+    }
+
+    public RealTimeAggregator(RealTimeConfig config, Function<String, List<ContinuousQuery>> definitions)
+    {
+        this.definitions = definitions;
+        this.slideMillis = config.getSlideInterval().toMillis();
+        this.windowMillis = config.getWindowInterval().toMillis();
+        this.ringSize = (int) (windowMillis / slideMillis) + EXTRA_SLIDES;
+        this.maxGroupsPerSlide = config.getMaxGroupsPerSlide();
+
+        // The reports are read in the event collection path so the periodic refresh should not block the caller.
+        CacheLoader<String, Map<String, Report>> loader = CacheLoader.asyncReloading(new CacheLoader<String, Map<String, Report>>()
+        {
+            @Override
+            public Map<String, Report> load(String project)
+                    throws Exception
+            {
+                return loadReports(project);
+            }
+        }, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("realtime-report-loader").setDaemon(true).build()));
+        this.reports = CacheBuilder.newBuilder().refreshAfterWrite(1, TimeUnit.MINUTES).build(loader);
+    }
+
+    public void process(Event event)
+    {
+        Map<String, Report> projectReports = reports.getUnchecked(event.project());
+        if (projectReports.isEmpty()) {
+            return;
+        }
+
+        long index = -1;
+        for (Report report : projectReports.values()) {
+            if (!report.collections.contains(event.collection())) {
+                continue;
+            }
+            if (report.filter != null && !report.filter.test(event)) {
+                continue;
+            }
+
+            if (index == -1) {
+                Object time = event.getAttribute("_time");
+                index = (time instanceof Number ? ((Number) time).longValue() : System.currentTimeMillis()) / slideMillis;
+            }
+            report.add(index, event);
+        }
+    }
+
+    public void invalidate(String project)
+    {
+        reports.invalidate(project);
+    }
+
+    /**
+     * Returns the result in the same format with {@link RealtimeService#query}. The result is empty if the
+     * report is not aggregated in memory or the requested interval is not fully covered.
+     */
+    public Optional<RealTimeQueryResult> query(String project,
+            String tableName,
+            String filter,
+            RealTimeReport.Measure measure,
+            List<String> dimensions,
+            Boolean aggregate,
+            Instant dateStart,
+            Instant dateEnd)
+    {
+        if (filter != null) {
+            return Optional.empty();
+        }
+
+        Report report = reports.getUnchecked(project).get(tableName);
+        if (report == null) {
+            return Optional.empty();
+        }
+
+        int measureIndex = report.measures.indexOf(measure);
+        List<String> requestedDimensions = dimensions == null ? Collections.emptyList() : dimensions;
+        int[] dimensionIndexes = requestedDimensions.stream().mapToInt(report.dimensions::indexOf).toArray();
+        if (measureIndex == -1 || Arrays.stream(dimensionIndexes).anyMatch(i -> i == -1)) {
+            return Optional.empty();
+        }
+
+        boolean finalAggregate = TRUE.equals(aggregate);
+
+        long now = System.currentTimeMillis();
+        long lastUpdate = now - (slideMillis * 2);
+        long previousWindow = (dateStart == null ? (lastUpdate - windowMillis) : dateStart.toEpochMilli()) / slideMillis;
+        long currentWindow = (dateEnd == null ? lastUpdate : dateEnd.toEpochMilli()) / slideMillis;
+        // the query without an end date includes the recent slides, similar to the SQL query.
+        long lastIndex = dateEnd == null ? (now / slideMillis) : currentWindow - 1;
+
+        if (previousWindow < report.since || previousWindow <= (now / slideMillis) - ringSize + 1) {
+            return Optional.empty();
+        }
+
+        // slide index -> dimension values -> merged accumulator
+        Map<Long, Map<List<Object>, MeasureAccumulator>> merged = new TreeMap<>();
+        for (long index = previousWindow; index <= lastIndex; index++) {
+            Slide slide = report.get(index);
+            if (slide == null) {
+                continue;
+            }
+            if (slide.overflow) {
+                return Optional.empty();
+            }
+
+            long group = finalAggregate ? currentWindow : index;
+            Map<List<Object>, MeasureAccumulator> groups = merged.computeIfAbsent(group, k -> new HashMap<>());
+
+            for (Map.Entry<List<Object>, MeasureAccumulator[]> entry : slide.groups.entrySet()) {
+                List<Object> key = project(entry.getKey(), dimensionIndexes);
+                if (key == null) {
+                    continue;
+                }
+                groups.computeIfAbsent(key, k -> MeasureAccumulator.create(measure.aggregation))
+                        .mergeWith(entry.getValue()[measureIndex]);
+            }
+        }
+
+        long previousTimestamp = previousWindow * slideMillis / 1000;
+        long currentTimestamp = currentWindow * slideMillis / 1000;
+
+        Object result;
+        if (requestedDimensions.isEmpty()) {
+            if (finalAggregate) {
+                Map<List<Object>, MeasureAccumulator> groups = merged.get(currentWindow);
+                MeasureAccumulator accumulator = groups == null ? null : groups.get(Collections.emptyList());
+                result = accumulator == null ? 0 : accumulator.value();
+            }
+            else {
+                List<List<Object>> data = new ArrayList<>();
+                for (long index = previousWindow; index < currentWindow; index++) {
+                    Map<List<Object>, MeasureAccumulator> groups = merged.get(index);
+                    MeasureAccumulator accumulator = groups == null ? null : groups.get(Collections.emptyList());
+                    Object value = accumulator == null ? null : accumulator.value();
+                    data.add(Arrays.asList(index * slideMillis, value == null ? 0 : value));
+                }
+                result = data;
+            }
+        }
+        else {
+            List<List<Object>> data = new ArrayList<>();
+            for (Map.Entry<Long, Map<List<Object>, MeasureAccumulator>> slide : merged.entrySet()) {
+                for (Map.Entry<List<Object>, MeasureAccumulator> entry : slide.getValue().entrySet()) {
+                    if (data.size() == MAXIMUM_RESULT_SIZE) {
+                        break;
+                    }
+                    List<Object> row = new ArrayList<>(entry.getKey().size() + 2);
+                    row.add(slide.getKey() * slideMillis);
+                    row.addAll(entry.getKey());
+                    row.add(entry.getValue().value());
+                    data.add(row);
+                }
+            }
+            result = data;
+        }
+
+        return Optional.of(new RealTimeQueryResult(previousTimestamp, currentTimestamp, result));
+    }
+
+    private static List<Object> project(List<Object> key, int[] dimensionIndexes)
+    {
+        if (dimensionIndexes.length == 0) {
+            return Collections.emptyList();
+        }
+
+        Object[] values = new Object[dimensionIndexes.length];
+        for (int i = 0; i < dimensionIndexes.length; i++) {
+            Object value = key.get(dimensionIndexes[i]);
+            if (value == null) {
+                return null;
+            }
+            values[i] = value;
+        }
+        return Arrays.asList(values);
+    }
+
+    private Map<String, Report> loadReports(String project)
+    {
+        Map<String, Report> existing = reports.getIfPresent(project);
+        ImmutableMap.Builder<String, Report> builder = ImmutableMap.builder();
+
+        for (ContinuousQuery query : definitions.apply(project)) {
+            if (!TRUE.equals(query.options.get("realtime")) || query.options.get("collections") == null) {
+                // the reports that are created by the earlier versions don't have the definition
+                continue;
+            }
+
+            Report report = existing == null ? null : existing.get(query.tableName);
+            if (report == null || !report.query.equals(query.query)) {
+                try {
+                    report = createReport(query);
+                }
+                catch (RuntimeException e) {
+                    LOGGER.warn(e, "Real-time report %s.%s can't be aggregated in memory", project, query.tableName);
+                    continue;
+                }
+                if (report == null) {
+                    continue;
+                }
+            }
+            builder.put(query.tableName, report);
+        }
+
+        return builder.build();
+    }
+
+    private Report createReport(ContinuousQuery query)
+    {
+        List<RealTimeReport.Measure> measures = JsonHelper.convert(query.options.get("aggregation"),
+                new TypeReference<List<RealTimeReport.Measure>>() {});
+        if (!measures.stream().allMatch(measure -> MeasureAccumulator.isSupported(measure.aggregation))) {
+            return null;
+        }
+
+        Set<String> collections = JsonHelper.convert(query.options.get("collections"), new TypeReference<Set<String>>() {});
+        List<String> dimensions = JsonHelper.convert(query.options.get("dimensions"), new TypeReference<List<String>>() {});
+        Object filter = query.options.get("filter");
+        Predicate<Event> predicate = filter == null ? null : ExpressionCompiler.compile(filter.toString());
+
+        // the slide that is being processed at the moment may have events that are not observed by this node.
+        long since = (System.currentTimeMillis() / slideMillis) + 1;
+        return new Report(query.query, collections, measures, dimensions, predicate, since);
+    }
+
+    private class Report
+    {
+        public final String query;
+        public final Set<String> collections;
+        public final List<RealTimeReport.Measure> measures;
+        public final List<String> dimensions;
+        public final Predicate<Event> filter;
+        public final long since;
+        private final AtomicReferenceArray<Slide> slides;
+
+        public Report(String query, Set<String> collections, List<RealTimeReport.Measure> measures, List<String> dimensions, Predicate<Event> filter, long since)
+        {
+            this.query = query;
+            this.collections = collections;
+            this.measures = measures;
+            this.dimensions = dimensions;
+            this.filter = filter;
+            this.since = since;
+            this.slides = new AtomicReferenceArray<>(ringSize);
+        }
+
+        public Slide get(long index)
+        {
+            Slide slide = slides.get((int) (index % ringSize));
+            return slide != null && slide.index == index ? slide : null;
+        }
+
+        public void add(long index, Event event)
+        {
+            Slide slide = getOrCreate(index);
+            if (slide == null) {
+                return;
+            }
+
+            Object[] values = new Object[dimensions.size()];
+            for (int i = 0; i < values.length; i++) {
+                Object value = event.getAttribute(dimensions.get(i));
+                values[i] = value instanceof CharSequence ? value.toString() : value;
+            }
+            List<Object> key = Arrays.asList(values);
+
+            MeasureAccumulator[] accumulators = slide.groups.get(key);
+            if (accumulators == null) {
+                if (slide.groups.size() >= maxGroupsPerSlide) {
+                    slide.overflow = true;
+                    return;
+                }
+                accumulators = slide.groups.computeIfAbsent(key, k -> measures.stream()
+                        .map(measure -> MeasureAccumulator.create(measure.aggregation))
+                        .toArray(MeasureAccumulator[]::new));
+            }
+
+            for (int i = 0; i < accumulators.length; i++) {
+                accumulators[i].add(event.getAttribute(measures.get(i).column));
+            }
+        }
+
+        private Slide getOrCreate(long index)
+        {
+            long current = System.currentTimeMillis() / slideMillis;
+            if (index <= current - ringSize + 1 || index > current + 1) {
+                // the event is either expired or too far in the future
+                return null;
+            }
+
+            int position = (int) (index % ringSize);
+            while (true) {
+                Slide slide = slides.get(position);
+                if (slide != null && slide.index == index) {
+                    return slide;
+                }
+                if (slide != null && slide.index > index) {
+                    return null;
+                }
+                Slide newSlide = new Slide(index);
+                if (slides.compareAndSet(position, slide, newSlide)) {
+                    return newSlide;
+                }
+            }
+        }
+    }
+
+    private static class Slide
+    {
+        public final long index;
+        public final Map<List<Object>, MeasureAccumulator[]> groups;
+        public volatile boolean overflow;
+
+        public Slide(long index)
+        {
+            this.index = index;
+            this.groups = new ConcurrentHashMap<>();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.rakam.analysis.realtime;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.cookie.Cookie;
+import org.rakam.Mapper;
+import org.rakam.collection.Event;
+import org.rakam.plugin.SyncEventMapper;
+
+import javax.inject.Inject;
+
+import java.net.InetAddress;
+import java.util.List;
+
+@Mapper(name = "Real-time aggregation listener", description = "An internal event mapper that feeds the in-memory aggregates of the real-time reports")
+public class RealTimeEventMapper
+        implements SyncEventMapper
+{
+    private final RealTimeAggregator aggregator;
+
+    @Inject
+    public RealTimeEventMapper(RealTimeAggregator aggregator)
+    {
+        this.aggregator = aggregator;
+    }
+
+    @Override
+    public List<Cookie> map(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        aggregator.process(event);
+        return null;
+    }
+}
@@ -4,6 +4,7 @@ import com.google.inject.Singleton;
 import org.rakam.analysis.RealtimeService;
 import org.rakam.analysis.RealtimeService.RealTimeQueryResult;
 import org.rakam.plugin.ContinuousQuery;
+import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.report.realtime.RealTimeReport;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.annotations.Api;
@@ -19,11 +20,13 @@ import org.rakam.util.RakamException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
 import static com.facebook.presto.sql.RakamSqlFormatter.formatExpression;
@@ -39,15 +42,19 @@ public class RealTimeHttpService
         extends HttpService
 {
     private final RealtimeService realtimeService;
+    private final Optional<RealTimeAggregator> aggregator;
 
     @Inject
-    public RealTimeHttpService(RealtimeService realtimeService)
+    public RealTimeHttpService(RealtimeService realtimeService, RealTimeConfig config, Provider<RealTimeAggregator> aggregator)
     {
         this.realtimeService = requireNonNull(realtimeService, "realtimeService is null");
+        this.aggregator = config.getInMemoryAggregation() ? Optional.of(aggregator.get()) : Optional.empty();
     }
 
     /**
      * Creates real-time report using continuous queries.
+     * If the in-memory aggregation is enabled, the report is also aggregated in memory by each node and served
+     * without querying the database once its window is fully observed.
      * This module adds a new attribute called 'time' to events, it's simply a unix epoch that represents the seconds the event is occurred.
      * Continuous query continuously aggregates 'time' column and
      * real-time module executes queries on continuous query table similar to 'select count from stream_count where time &gt; now() - interval 5 second'
@@ -62,7 +69,10 @@ public class RealTimeHttpService
     @Path("/create")
     public CompletableFuture<SuccessMessage> createTable(@Named("project") String project, @BodyParam RealTimeReport report)
     {
-        return realtimeService.create(project, report);
+        return realtimeService.create(project, report).thenApply(result -> {
+            aggregator.ifPresent(a -> a.invalidate(project));
+            return result;
+        });
     }
 
     @JsonRequest
@@ -89,6 +99,12 @@ public class RealTimeHttpService
             @ApiParam(value = "date_start", required = false) Instant dateStart,
             @ApiParam(value = "date_end", required = false) Instant dateEnd)
     {
+        Optional<RealTimeQueryResult> result = aggregator
+                .flatMap(a -> a.query(project, tableName, filter, measure, dimensions, aggregate, dateStart, dateEnd));
+        if (result.isPresent()) {
+            return CompletableFuture.completedFuture(result.get());
+        }
+
         return realtimeService.query(project, tableName, filter, measure, dimensions, aggregate, dateStart, dateEnd);
     }
 
@@ -100,6 +116,7 @@ public class RealTimeHttpService
     {
         // TODO: Check if it's a real-time report.
         return realtimeService.delete(project, tableName).thenApply(result -> {
+            aggregator.ifPresent(a -> a.invalidate(project));
             if (result) {
                 return SuccessMessage.success();
             }
@@ -2,6 +2,7 @@ package org.rakam.analysis.realtime;
 
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
+import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import io.swagger.models.Tag;
 import org.rakam.config.MetadataConfig;
@@ -28,6 +29,12 @@ public class RealTimeModule extends RakamModule {
         Multibinder<EventMapper> mappers = Multibinder.newSetBinder(binder, EventMapper.class);
         mappers.permitDuplicates().addBinding().to(TimestampEventMapper.class);
 
+        if (buildConfigObject(RealTimeConfig.class).getInMemoryAggregation()) {
+            // should be bound after the timestamp mapper since the events are bucketed by _time
+            binder.bind(RealTimeAggregator.class).in(Scopes.SINGLETON);
+            mappers.addBinding().to(RealTimeEventMapper.class);
+        }
+
         Multibinder.newSetBinder(binder, Tag.class).addBinding()
                 .toInstance( new Tag().name("realtime").description("Realtime")
                         .externalDocs(MetadataConfig.centralDocs));
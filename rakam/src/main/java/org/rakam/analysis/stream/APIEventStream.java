@@ -15,27 +15,25 @@ import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.type.ArrayType;
 import com.facebook.presto.type.MapType;
 import com.google.common.collect.ImmutableList;
-import org.apache.avro.generic.GenericRecord;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder.CollectionFilter;
-import org.rakam.collection.Event;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.stream.CollectionStreamQuery;
 import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.stream.StreamResponse;
-import org.rakam.util.JsonHelper;
+import org.rakam.presto.stream.ExpressionCompiler;
+import org.rakam.presto.stream.ExpressionCompiler.BatchFilter;
 
 import javax.inject.Inject;
 
 import java.util.AbstractMap.SimpleImmutableEntry;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static org.rakam.presto.analysis.PrestoMetastore.toType;
@@ -61,10 +59,10 @@ public class APIEventStream
         List<CollectionFilter> collect1;
         if(collections != null) {
             collect1 = collections.stream().map(item -> {
-                Predicate<GenericRecord> predicate;
+                BatchFilter predicate;
 
                 if(item.getCollection() == null) {
-                    predicate = (val) -> true;
+                    predicate = null;
                 } else {
                     List<Map.Entry<String, Type>> collect = metastore.getCollection(project, item.getCollection())
                             .stream()
@@ -74,7 +72,7 @@ public class APIEventStream
 
                     predicate = Optional.ofNullable(item.getFilter())
                             .map(value -> new SqlParser().createExpression(item.getFilter()))
-                            .map(expression -> expressionCompiler.generate(expression, collect))
+                            .map(expression -> expressionCompiler.generateBatch(expression, collect))
                             .orElse(null);
                 }
 
@@ -85,46 +83,40 @@ public class APIEventStream
         }
 
         CollectionStreamHolder streamHolder = new CollectionStreamHolder(collect1);
-        List<CollectionStreamHolder> holders = this.holder.computeIfAbsent(project, s -> new ArrayList<>());
-        synchronized (this) {
-            holders.add(streamHolder);
-        }
+        List<CollectionStreamHolder> holders = this.holder.computeIfAbsent(project, s -> new CopyOnWriteArrayList<>());
+        holders.add(streamHolder);
 
         return new EventStreamer()
         {
             @Override
             public void sync()
             {
-                Event message = streamHolder.messageQueue.poll();
+                String message = streamHolder.poll();
                 StringBuilder builder = new StringBuilder("[");
 
                 boolean isFirst = true;
                 while (message != null) {
-                    builder.append("{\"project\":")
-                            .append(JsonHelper.encode(message.project()))
-                            .append(", \"collection\":")
-                            .append(JsonHelper.encode(message.collection()))
-                            .append(", \"properties\": ")
-                            .append(message.properties().toString()).append("}");
-
                     if (!isFirst) {
                         builder.append(",");
                     }
+                    builder.append(message);
                     isFirst = false;
-                    message = streamHolder.messageQueue.poll();
+                    message = streamHolder.poll();
                 }
 
                 builder.append("]");
 
+                long dropped = streamHolder.getAndResetDropped();
+                if (dropped > 0) {
+                    response.send("dropped", Long.toString(dropped));
+                }
                 response.send("data", builder.toString());
             }
 
             @Override
             public void shutdown()
             {
-                synchronized (this) {
-                    holder.remove(holder);
-                }
+                holders.remove(streamHolder);
             }
         };
     }
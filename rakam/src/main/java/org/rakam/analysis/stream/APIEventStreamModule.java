@@ -7,19 +7,19 @@ import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
 import com.google.inject.TypeLiteral;
 import com.google.inject.multibindings.Multibinder;
-import org.apache.avro.generic.GenericRecord;
-import org.rakam.collection.Event;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.stream.EventStream;
+import org.rakam.presto.stream.ExpressionCompiler.BatchFilter;
 import org.rakam.util.ConditionalModule;
 
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @AutoService(RakamModule.class)
 @ConditionalModule(config = "event-stream", value = "server")
@@ -56,20 +56,51 @@ public class APIEventStreamModule
     public static class CollectionStreamHolder
     {
         public final List<CollectionFilter> collections;
-        public final Queue<Event> messageQueue;
+        // Multiple ingestion threads produce and the subscriber's sync task is the only consumer.
+        private final Queue<String> messageQueue;
+        private final AtomicInteger size;
+        private final AtomicLong dropped;
 
         public CollectionStreamHolder(List<CollectionFilter> collections)
         {
             this.collections = collections;
-            this.messageQueue = new ArrayBlockingQueue<>(MAXIMUM_QUEUE_CAPACITY);
+            this.messageQueue = new ConcurrentLinkedQueue<>();
+            this.size = new AtomicInteger();
+            this.dropped = new AtomicLong();
+        }
+
+        public boolean offer(String encodedEvent)
+        {
+            if (size.incrementAndGet() > MAXIMUM_QUEUE_CAPACITY) {
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+                return false;
+            }
+
+            messageQueue.offer(encodedEvent);
+            return true;
+        }
+
+        public String poll()
+        {
+            String message = messageQueue.poll();
+            if (message != null) {
+                size.decrementAndGet();
+            }
+            return message;
+        }
+
+        public long getAndResetDropped()
+        {
+            return dropped.getAndSet(0);
         }
 
         public static class CollectionFilter
         {
             public final String collection;
-            public final Predicate<GenericRecord> filter;
+            public final BatchFilter filter;
 
-            public CollectionFilter(String collection, Predicate<GenericRecord> filter)
+            public CollectionFilter(String collection, BatchFilter filter)
             {
                 this.collection = collection;
                 this.filter = filter;
@@ -1,18 +1,26 @@
 package org.rakam.analysis.stream;
 
+import com.google.common.collect.ImmutableList;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.cookie.Cookie;
+import org.apache.avro.generic.GenericRecord;
 import org.rakam.Mapper;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder.CollectionFilter;
 import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
 import org.rakam.plugin.SyncEventMapper;
+import org.rakam.plugin.stream.StreamEventEncoder;
+import org.rakam.presto.stream.AvroRecordBatch;
 
 import javax.inject.Inject;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Mapper(name = "Event stream module listener", description = "An internal event mapper that sends matching events to the API request")
 public class EventListenerMapper
@@ -35,31 +43,89 @@ public class EventListenerMapper
             return null;
         }
 
-        for (int i = 0; i < streamHolder.size(); i++) {
-            // Instead of iterating, we use indices and avoid any read locks in concurrent environment.
-            CollectionStreamHolder holderItem = streamHolder.get(i);
-            if (holderItem == null) {
-                continue;
-            }
+        dispatch(streamHolder, event.collection(), ImmutableList.of(event));
+        return null;
+    }
+
+    @Override
+    public List<Cookie> map(EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        List<CollectionStreamHolder> streamHolder = lists.get(events.project);
+
+        if (streamHolder == null) {
+            return null;
+        }
+
+        // The filters are evaluated on the events of each collection as a batch.
+        Map<String, List<Event>> collections = new LinkedHashMap<>();
+        for (Event event : events.events) {
+            collections.computeIfAbsent(event.collection(), k -> new ArrayList<>()).add(event);
+        }
+
+        for (Map.Entry<String, List<Event>> entry : collections.entrySet()) {
+            dispatch(streamHolder, entry.getKey(), entry.getValue());
+        }
 
+        return null;
+    }
+
+    @Override
+    public CompletableFuture<List<Cookie>> mapAsync(EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        map(events, requestParams, sourceAddress, responseHeaders);
+        return COMPLETED_EMPTY_FUTURE;
+    }
+
+    private void dispatch(List<CollectionStreamHolder> streamHolder, String collection, List<Event> events)
+    {
+        List<GenericRecord> records = new ArrayList<>(events.size());
+        for (Event event : events) {
+            records.add(event.properties());
+        }
+
+        // The fields are extracted from the records once and shared by the filters of all the subscribers.
+        AvroRecordBatch batch = new AvroRecordBatch(records);
+        int[] selectedPositions = new int[events.size()];
+        // The events are encoded lazily and only once, the fragments are shared by all the matching subscribers.
+        String[] encodedEvents = new String[events.size()];
+
+        // The list is copy-on-write so iterating over it doesn't need any locks in concurrent environment.
+        for (CollectionStreamHolder holderItem : streamHolder) {
+            boolean[] matched = null;
             for (CollectionFilter item : holderItem.collections) {
-                if (item.collection != null) {
-                    if (item.collection != null && !item.collection.equals(event.collection())) {
-                        continue;
-                    }
+                if (item.collection != null && !item.collection.equals(collection)) {
+                    continue;
                 }
 
-                if (item.filter != null) {
-                    if (!item.filter.test(event.properties())) {
-                        continue;
+                if (matched == null) {
+                    matched = new boolean[events.size()];
+                }
+
+                if (item.filter == null) {
+                    for (int i = 0; i < matched.length; i++) {
+                        matched[i] = true;
                     }
+                    break;
                 }
 
-                holderItem.messageQueue.offer(event);
-                break;
+                int selected = item.filter.filter(batch, selectedPositions);
+                for (int i = 0; i < selected; i++) {
+                    matched[selectedPositions[i]] = true;
+                }
             }
-        }
 
-        return null;
+            if (matched == null) {
+                continue;
+            }
+
+            for (int i = 0; i < matched.length; i++) {
+                if (matched[i]) {
+                    if (encodedEvents[i] == null) {
+                        encodedEvents[i] = StreamEventEncoder.encode(events.get(i));
+                    }
+                    holderItem.offer(encodedEvents[i]);
+                }
+            }
+        }
     }
 }
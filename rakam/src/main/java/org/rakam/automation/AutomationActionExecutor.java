@@ -0,0 +1,155 @@
+package org.rakam.automation;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import io.airlift.log.Logger;
+import org.rakam.plugin.user.User;
+import org.rakam.plugin.user.UserStorage;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs the actions of the completed automation rules on a dedicated thread so that the event collection
+ * path never waits for the user storage or the action implementations. The pending actions are processed
+ * in batches and the user of each distinct (project, user) pair in a batch is fetched only once.
+ */
+@Singleton
+public class AutomationActionExecutor
+{
+    private final static Logger LOGGER = Logger.get(AutomationActionExecutor.class);
+
+    private static final int MAXIMUM_QUEUE_CAPACITY = 10000;
+    private static final int BATCH_SIZE = 500;
+
+    private final Provider<UserStorage> userStorageProvider;
+    private final BlockingQueue<PendingAction> queue;
+    private final ExecutorService executor;
+    private final AtomicLong dropped;
+    private volatile boolean running;
+
+    @Inject
+    public AutomationActionExecutor(Provider<UserStorage> userStorageProvider)
+    {
+        this.userStorageProvider = userStorageProvider;
+        this.queue = new LinkedBlockingQueue<>(MAXIMUM_QUEUE_CAPACITY);
+        this.dropped = new AtomicLong();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("automation-action-executor")
+                .setUncaughtExceptionHandler((t, e) -> LOGGER.error(e))
+                .build());
+        this.running = true;
+        this.executor.execute(this::loop);
+    }
+
+    public void submit(String project, Object userId, List<AutomationRule.SerializableAction> actions)
+    {
+        if (!queue.offer(new PendingAction(project, userId, actions))) {
+            long count = dropped.incrementAndGet();
+            if (count % MAXIMUM_QUEUE_CAPACITY == 1) {
+                LOGGER.warn("Automation action queue is full, %d actions are dropped so far", count);
+            }
+        }
+    }
+
+    public long getDroppedActionCount()
+    {
+        return dropped.get();
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        running = false;
+        executor.shutdownNow();
+    }
+
+    private void loop()
+    {
+        List<PendingAction> batch = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                PendingAction first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                process(batch);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while processing automation actions");
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<PendingAction> batch)
+    {
+        UserStorage userStorage = userStorageProvider.get();
+        Map<Map.Entry<String, Object>, CompletableFuture<User>> users = new HashMap<>();
+
+        for (PendingAction pendingAction : batch) {
+            CompletableFuture<User> user;
+            if (pendingAction.userId == null) {
+                user = CompletableFuture.completedFuture(null);
+            }
+            else {
+                user = users.computeIfAbsent(new SimpleImmutableEntry<>(pendingAction.project, pendingAction.userId),
+                        key -> userStorage.getUser(key.getKey(), key.getValue()));
+            }
+
+            user.whenComplete((value, ex) -> {
+                if (ex != null) {
+                    LOGGER.error(ex, "Unable to fetch user %s for automation action", pendingAction.userId);
+                    return;
+                }
+
+                Supplier<User> supplier = () -> value;
+                for (AutomationRule.SerializableAction action : pendingAction.actions) {
+                    try {
+                        action.getAction().process(pendingAction.project, supplier, action.value);
+                    }
+                    catch (Exception e) {
+                        LOGGER.error(e, "Error while running automation action %s", action.type);
+                    }
+                }
+            });
+        }
+    }
+
+    private static class PendingAction
+    {
+        public final String project;
+        public final Object userId;
+        public final List<AutomationRule.SerializableAction> actions;
+
+        public PendingAction(String project, Object userId, List<AutomationRule.SerializableAction> actions)
+        {
+            this.project = project;
+            this.userId = userId;
+            this.actions = actions;
+        }
+    }
+}
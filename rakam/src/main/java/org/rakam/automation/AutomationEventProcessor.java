@@ -1,6 +1,5 @@
 package org.rakam.automation;
 
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -10,33 +9,26 @@ import io.netty.handler.codec.http.cookie.DefaultCookie;
 import org.rakam.Mapper;
 import org.rakam.collection.Event;
 import org.rakam.config.EncryptionConfig;
-import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.SyncEventMapper;
-import org.rakam.plugin.user.User;
-import org.rakam.plugin.user.UserStorage;
 import org.rakam.util.CryptUtil;
 
-import javax.annotation.PostConstruct;
 import javax.inject.Inject;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.function.Supplier;
+import java.util.Map;
 
 @Singleton
 @Mapper(name = "Automation Event Processor", description = "Processes automation rules and take action if the user is completed the steps")
 public class AutomationEventProcessor implements SyncEventMapper
 {
     private static final String PROPERTY_KEY = "_auto";
-    private static final String PROPERTY_ACTION_KEY = "_auto_action";
 
-    private final Provider<UserStorage> userStorageProvider;
     private final Provider<UserAutomationService> serviceProvider;
+    private final AutomationActionExecutor actionExecutor;
 
     private UserAutomationService service;
-    private UserStorage userStorage;
     private final EncryptionConfig encryptionConfig;
 
     private static final List<Cookie> clearData;
@@ -50,133 +42,80 @@ public class AutomationEventProcessor implements SyncEventMapper
     @Inject
     public AutomationEventProcessor(
             Provider<UserAutomationService> service,
-            Provider<UserStorage> storage,
+            AutomationActionExecutor actionExecutor,
             EncryptionConfig encryptionConfig) {
         this.encryptionConfig = encryptionConfig;
-        this.userStorageProvider = storage;
+        this.actionExecutor = actionExecutor;
         this.serviceProvider = service;
     }
 
     @Override
     public void init()
     {
-        this.userStorage = userStorageProvider.get();
         this.service = serviceProvider.get();
     }
 
     @Override
     public List<Cookie> map(Event event, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders) {
-        final List<AutomationRule> automationRules = service.list(event.project());
-        if (automationRules == null) {
+        // Only the rules that have a step on this collection can change the state.
+        final List<AutomationRule> automationRules = service.list(event.project(), event.collection());
+        if (automationRules.isEmpty()) {
             return null;
         }
 
-        ScenarioState[] value;
+        Map<Integer, ScenarioState> states;
         try {
-            value = extractState(extraProperties);
+            states = extractState(extraProperties);
         } catch (IllegalStateException e) {
             return clearData;
         }
 
         boolean stateChanged = false;
-        List<String> actions = null;
 
-        ScenarioState[] newStates = null;
-        int newIdx = 0;
         for (AutomationRule automationRule : automationRules) {
             if (!automationRule.isActive) {
                 continue;
             }
-            int ruleId = automationRule.id;
-            ScenarioState state = null;
-            if (value != null) {
-                for (ScenarioState scenarioState : value) {
-                    if (ruleId == scenarioState.ruleId) {
-                        state = scenarioState;
-                    }
-                }
-            }
 
+            ScenarioState state = states.get(automationRule.id);
             if (state == null) {
-                if (newStates == null) {
-                    newStates = new ScenarioState[automationRules.size()];
+                state = new ScenarioState(automationRule.id, 0, 0);
+            }
 
-                    if (value != null) {
-                        for (ScenarioState scenarioState : value) {
-                            newStates[newIdx++] = scenarioState;
-                        }
-                    }
-                }
-                state = new ScenarioState(ruleId, 0, 0);
-                newStates[newIdx++] = state;
+            if (state.state >= automationRule.scenarios.size()) {
+                // the rule is changed after the state is created
+                state.state = 0;
+                state.threshold = 0;
             }
 
             AutomationRule.ScenarioStep scenarioStep = automationRule.scenarios.get(state.state);
             if (event.collection().equals(scenarioStep.collection) && scenarioStep.filterPredicate.test(event)) {
+                if (!updateState(scenarioStep, state, event)) {
+                    continue;
+                }
 
-                stateChanged |= updateState(scenarioStep, state, event);
+                stateChanged = true;
+                states.put(automationRule.id, state);
 
                 if (state.state >= automationRule.scenarios.size()) {
                     state.state = 0;
                     state.threshold = 0;
-                    // state is already changed
-                    if (actions == null) {
-                        actions = new ArrayList<>();
-                    }
-
-                    for (AutomationRule.SerializableAction action : automationRule.actions) {
-                        Supplier<User> supplier = new Supplier<User>() {
-                            private User user;
-
-                            @Override
-                            public User get() {
-                                if (user == null) {
-                                    String userAttr = event.getAttribute("_user");
-                                    if (userAttr != null) {
-                                        user = userStorage.getUser(event.project(), userAttr).join();
-                                    }
-                                }
-                                return user;
-                            }
-                        };
-
-                        action.getAction().process(event.project(), supplier, action.value);
-                    }
-                }
-            }
-        }
 
-        if (actions != null) {
-            StringBuilder builder = new StringBuilder();
-            Base64.Encoder encoder = Base64.getEncoder();
-
-            for (String action : actions) {
-                if (builder.length() != 0) {
-                    builder.append(',');
-                }
-                try {
-                    builder.append(encoder.encodeToString(action.getBytes("UTF-8")));
-                } catch (UnsupportedEncodingException e) {
-                    throw Throwables.propagate(e);
+                    actionExecutor.submit(event.project(), event.getAttribute("_user"), automationRule.actions);
                 }
-
             }
-
-            responseHeaders.set(PROPERTY_ACTION_KEY, builder.toString());
         }
 
-        return stateChanged ? ImmutableList.of(new DefaultCookie(PROPERTY_KEY, encodeState(newStates == null ? value : newStates))) : null;
+        return stateChanged ? ImmutableList.of(new DefaultCookie(PROPERTY_KEY, encodeState(states.values()))) : null;
     }
 
-    private String encodeState(ScenarioState[] states) {
-        if (states == null) {
-            return null;
-        }
+    private String encodeState(Collection<ScenarioState> states) {
         StringBuilder builder = new StringBuilder();
         for (ScenarioState scenarioState : states) {
-            if (scenarioState != null) {
-                builder.append(scenarioState.ruleId).append(':').append(scenarioState.state).append(':').append(scenarioState.threshold);
+            if (builder.length() != 0) {
+                builder.append(',');
             }
+            builder.append(scenarioState.ruleId).append(':').append(scenarioState.state).append(':').append(scenarioState.threshold);
         }
 
         String secureKey = CryptUtil.encryptWithHMacSHA1(builder.toString(), encryptionConfig.getSecretKey());
@@ -216,13 +155,13 @@ public class AutomationEventProcessor implements SyncEventMapper
         return false;
     }
 
-    private ScenarioState[] extractState(RequestParams extraProperties) throws IllegalStateException {
-        ScenarioState[] value;
+    private Map<Integer, ScenarioState> extractState(RequestParams extraProperties) throws IllegalStateException {
+        Map<Integer, ScenarioState> value = new LinkedHashMap<>();
 
         String val = extraProperties.cookies().stream().filter(e -> e.name().equals(PROPERTY_KEY))
                 .findAny().map(e -> e.value()).orElse(null);
-        if (val == null) {
-            return null;
+        if (val == null || val.isEmpty()) {
+            return value;
         }
         String[] cookie = val.split("\\|", 2);
 
@@ -230,20 +169,21 @@ public class AutomationEventProcessor implements SyncEventMapper
             throw new IllegalStateException();
         }
 
-        String[] values = cookie[0].split(",");
-        value = new ScenarioState[values.length];
-        for (int i = 0; i < values.length; i++) {
-            final String[] split = values[i].split(":", 3);
+        for (String item : cookie[0].split(",")) {
+            final String[] split = item.split(":", 3);
+            if (split.length != 3) {
+                throw new IllegalStateException();
+            }
             final ScenarioState scenarioState;
             try {
                 scenarioState = new ScenarioState(Integer.parseInt(split[0]), Integer.parseInt(split[1]), Integer.parseInt(split[2]));
             } catch (NumberFormatException e) {
                 throw new IllegalStateException();
             }
-            value[i] = scenarioState;
+            value.put(scenarioState.ruleId, scenarioState);
         }
 
-        return null;
+        return value;
     }
 
     private static class ScenarioState {
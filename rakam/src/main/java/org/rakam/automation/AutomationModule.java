@@ -25,6 +25,7 @@ public class AutomationModule extends RakamModule {
         Multibinder.newSetBinder(binder, UserActionService.class);
 
         binder.bind(UserAutomationService.class);
+        binder.bind(AutomationActionExecutor.class).in(Scopes.SINGLETON);
 
         Multibinder<AutomationAction> automationActions = Multibinder.newSetBinder(binder, AutomationAction.class);
         for (AutomationActionType automationActionType : AutomationActionType.values()) {
@@ -13,18 +13,29 @@ import com.facebook.presto.sql.tree.LogicalBinaryExpression;
 import com.facebook.presto.sql.tree.Node;
 import com.facebook.presto.sql.tree.QualifiedNameReference;
 import com.facebook.presto.sql.tree.StringLiteral;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
-import net.openhft.compiler.CompilerUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import net.openhft.compiler.CachedCompiler;
 import org.rakam.collection.Event;
 
+import java.util.concurrent.ExecutionException;
 import java.util.function.Predicate;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
 public final class ExpressionCompiler
 {
 
     private static final SqlParser sqlParser = new SqlParser();
+    // The rules are reloaded periodically so the predicates are cached by their generated source. Each predicate is
+    // loaded by its own class loader and compiler in order to let the JVM unload the class when it's evicted from the
+    // cache, the shared compiler would keep a reference to the class loaders of all the predicates.
+    private static final Cache<String, Predicate<Event>> predicates = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, HOURS).build();
 
     private ExpressionCompiler()
             throws InstantiationException
@@ -40,6 +51,22 @@ public final class ExpressionCompiler
             expression = sqlParser.createExpression(expressionStr);
         }
         final String javaExp = new JavaSourceAstVisitor().process(expression, false);
+        try {
+            return predicates.get(javaExp, () -> load(javaExp));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    @VisibleForTesting
+    static void invalidateAll()
+    {
+        predicates.invalidateAll();
+    }
+
+    private static Predicate<Event> load(String javaExp)
+    {
         String className = "org.rakam.automation.compiled.Predicate1";
         String javaCode = String.format("package org.rakam.automation.compiled;\n" +
                 "import org.rakam.collection.Event;\n" +
@@ -53,8 +80,9 @@ public final class ExpressionCompiler
                 "    }\n" +
                 "}\n", javaExp);
 
+        ClassLoader classLoader = new ClassLoader(ExpressionCompiler.class.getClassLoader()) {};
         try {
-            Class aClass = CompilerUtils.CACHED_COMPILER.loadFromJava(className, javaCode);
+            Class aClass = new CachedCompiler(null, null).loadFromJava(classLoader, className, javaCode);
             return (Predicate) aClass.newInstance();
         }
         catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
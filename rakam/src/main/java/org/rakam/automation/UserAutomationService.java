@@ -3,6 +3,9 @@ package org.rakam.automation;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.name.Named;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.util.JsonHelper;
@@ -13,15 +16,19 @@ import javax.inject.Inject;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class UserAutomationService {
 
     private final DBI dbi;
-    private final LoadingCache<String, List<AutomationRule>> rules;
+    private final LoadingCache<String, ProjectRules> rules;
     private final Set<AutomationAction> automationActions;
 
     @Inject
@@ -29,11 +36,12 @@ public class UserAutomationService {
         dbi = new DBI(dataSource);
         this.automationActions = automationActions;
 
-        rules = CacheBuilder.newBuilder().refreshAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, List<AutomationRule>>() {
+        // The rules are read in the event collection path so the periodic refresh should not block the caller.
+        CacheLoader<String, ProjectRules> loader = CacheLoader.asyncReloading(new CacheLoader<String, ProjectRules>() {
             @Override
-            public List<AutomationRule> load(String project) throws Exception {
+            public ProjectRules load(String project) throws Exception {
                 try(Handle handle = dbi.open()) {
-                    return handle.createQuery("SELECT id, is_active, event_filters, actions, custom_data FROM automation_rules WHERE project = :project")
+                    return new ProjectRules(handle.createQuery("SELECT id, is_active, event_filters, actions, custom_data FROM automation_rules WHERE project = :project")
                             .bind("project", project)
                             .map((i, resultSet, statementContext) -> {
                                 List<AutomationRule.SerializableAction> actions = Arrays.asList(JsonHelper.read(resultSet.getString(4), AutomationRule.SerializableAction[].class));
@@ -49,10 +57,11 @@ public class UserAutomationService {
                                         actions,
                                         resultSet.getString(5));
                             })
-                            .list();
+                            .list());
                 }
             }
-        });
+        }, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("automation-rule-loader").setDaemon(true).build()));
+        rules = CacheBuilder.newBuilder().refreshAfterWrite(1, TimeUnit.MINUTES).build(loader);
 
         setup();
     }
@@ -79,7 +88,7 @@ public class UserAutomationService {
                     .bind("project", project)
                     .bind("id", id).execute();
         }
-        rules.refresh(project);
+        rules.invalidate(project);
     }
 
     public void deactivate(String project, int id) {
@@ -88,11 +97,11 @@ public class UserAutomationService {
                     .bind("project", project)
                     .bind("id", id).execute();
         }
-        Optional<AutomationRule> any = rules.getUnchecked(project).stream().filter(r -> r.id == id).findAny();
+        Optional<AutomationRule> any = rules.getUnchecked(project).rules.stream().filter(r -> r.id == id).findAny();
         if(any.isPresent()) {
             any.get().setActive(false);
         } else {
-            rules.refresh(project);
+            rules.invalidate(project);
         }
     }
 
@@ -102,11 +111,11 @@ public class UserAutomationService {
                     .bind("project", project)
                     .bind("id", id).execute();
         }
-        Optional<AutomationRule> any = rules.getUnchecked(project).stream().filter(r -> r.id == id).findAny();
+        Optional<AutomationRule> any = rules.getUnchecked(project).rules.stream().filter(r -> r.id == id).findAny();
         if(any.isPresent()) {
             any.get().setActive(true);
         } else {
-            rules.refresh(project);
+            rules.invalidate(project);
         }
     }
 
@@ -136,11 +145,35 @@ public class UserAutomationService {
                     .bind("custom_data", rule.customData)
                     .bind("actions", JsonHelper.encode(rule.actions)).execute();
         }
-        rules.refresh(project);
+        rules.invalidate(project);
     }
 
 
     public List<AutomationRule> list(String project) {
-        return rules.getUnchecked(project);
+        return rules.getUnchecked(project).rules;
+    }
+
+    public List<AutomationRule> list(String project, String collection) {
+        return rules.getUnchecked(project).byCollection.getOrDefault(collection, ImmutableList.of());
+    }
+
+    private static class ProjectRules {
+        public final List<AutomationRule> rules;
+        public final Map<String, List<AutomationRule>> byCollection;
+
+        public ProjectRules(List<AutomationRule> rules) {
+            this.rules = ImmutableList.copyOf(rules);
+
+            Map<String, Set<AutomationRule>> index = new HashMap<>();
+            for (AutomationRule rule : rules) {
+                for (AutomationRule.ScenarioStep scenario : rule.scenarios) {
+                    index.computeIfAbsent(scenario.collection, k -> new LinkedHashSet<>()).add(rule);
+                }
+            }
+
+            ImmutableMap.Builder<String, List<AutomationRule>> builder = ImmutableMap.builder();
+            index.forEach((collection, collectionRules) -> builder.put(collection, ImmutableList.copyOf(collectionRules)));
+            this.byCollection = builder.build();
+        }
     }
 }
@@ -15,6 +15,7 @@ import javax.inject.Inject;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class AvroEventDeserializer {
 
@@ -26,8 +27,18 @@ public class AvroEventDeserializer {
     }
 
     public EventList deserialize(String project, String collection, SliceInput slice) throws IOException {
+        List<Event> list = new ArrayList<>();
+        deserialize(project, collection, slice, Integer.MAX_VALUE, chunk -> list.addAll(chunk.events));
+        return new EventList(Event.EventContext.empty(), project, list);
+    }
+
+    /**
+     * Decodes the records in chunks of {@code chunkSize} events so that the callers don't need to keep
+     * all the events of the body in memory.
+     */
+    public void deserialize(String project, String collection, SliceInput slice, int chunkSize, Consumer<EventList> consumer) throws IOException {
         String json = slice.readSlice(slice.readInt()).toStringUtf8();
-        Schema schema = new Schema.Parser().parse(json);
+        Schema schema = AvroUtil.parseSchema(json);
         int records = slice.readInt();
 
         BinaryDecoder binaryDecoder = DecoderFactory.get().directBinaryDecoder(slice, null);
@@ -35,14 +46,21 @@ public class AvroEventDeserializer {
         List<SchemaField> fields = metastore.getCollection(project, collection);
         Schema avroSchema = AvroUtil.convertAvroSchema(fields);
 
-        GenericDatumReader<GenericRecord> reader = new GenericDatumReader(schema, avroSchema);
+        GenericDatumReader<GenericRecord> reader = AvroUtil.getReader(schema, avroSchema);
 
-        List<Event> list = new ArrayList<>(records);
+        List<Event> list = new ArrayList<>(Math.min(records, chunkSize));
         for (int i = 0; i < records; i++) {
             GenericRecord record = reader.read(null, binaryDecoder);
             list.add(new Event(project, collection, null, fields, record));
+
+            if (list.size() == chunkSize) {
+                consumer.accept(new EventList(Event.EventContext.empty(), project, list));
+                list = new ArrayList<>(Math.min(records - i - 1, chunkSize));
+            }
         }
 
-        return new EventList(Event.EventContext.empty(), project, list);
+        if (!list.isEmpty()) {
+            consumer.accept(new EventList(Event.EventContext.empty(), project, list));
+        }
     }
 }
@@ -0,0 +1,146 @@
+package org.rakam.collection;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Hands the chunks of a bulk request to the handler in parallel while the request body is still being decoded.
+ * The decoder blocks when too many chunks are in flight so the memory usage doesn't depend on the size of the request,
+ * therefore it runs in a separate thread, see {@link #load(Consumer, ChunkDecoder)}. The permits of the chunks in
+ * flight are shared by all the requests and the requests wait in the queue of the decoder when all the decoder threads
+ * are busy.
+ * The chunks that are handled before a failure are not rolled back.
+ */
+public class BulkEventLoader
+{
+    public static final int CHUNK_SIZE = 10000;
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(PARALLELISM,
+            new ThreadFactoryBuilder().setNameFormat("bulk-event-loader-%d").setDaemon(true).build());
+    private static final ExecutorService DECODER = Executors.newFixedThreadPool(PARALLELISM,
+            new ThreadFactoryBuilder().setNameFormat("bulk-event-decoder-%d").setDaemon(true).build());
+    // fair so that a large request doesn't starve the other requests
+    private static final Semaphore PERMITS = new Semaphore(PARALLELISM * 2, true);
+
+    private final Consumer<EventList> handler;
+    private final List<CompletableFuture<Void>> futures;
+    private volatile Throwable failure;
+    private volatile boolean cancelled;
+
+    private BulkEventLoader(Consumer<EventList> handler)
+    {
+        this.handler = handler;
+        this.futures = new ArrayList<>();
+    }
+
+    /**
+     * Runs the decoder in a decoder thread and completes the future when all the chunks are handled or with the
+     * first failure. The caller thread is never blocked so it can be called from the event loop.
+     */
+    public static CompletableFuture<Void> load(Consumer<EventList> handler, ChunkDecoder decoder)
+    {
+        BulkEventLoader loader = new BulkEventLoader(handler);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        try {
+            DECODER.execute(() -> {
+                try {
+                    decoder.decode(loader);
+                }
+                catch (Throwable e) {
+                    loader.cancel();
+                    result.completeExceptionally(e);
+                    return;
+                }
+
+                loader.finish().whenComplete((value, ex) -> {
+                    if (ex != null) {
+                        result.completeExceptionally(loader.failure != null ? loader.failure : ex);
+                    }
+                    else {
+                        result.complete(null);
+                    }
+                });
+            });
+        }
+        catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+
+        return result;
+    }
+
+    /**
+     * The supplier is called in the loader threads so the expensive part of the decoding can be deferred to it.
+     */
+    public void submit(Supplier<EventList> chunk)
+    {
+        checkFailure();
+        PERMITS.acquireUninterruptibly();
+
+        CompletableFuture<Void> future;
+        try {
+            future = CompletableFuture.runAsync(() -> {
+                if (!cancelled) {
+                    handler.accept(chunk.get());
+                }
+            }, EXECUTOR);
+        }
+        catch (RejectedExecutionException e) {
+            PERMITS.release();
+            throw e;
+        }
+
+        // the failure is set before the stored future is completed so that finish() can report it
+        futures.add(future.whenComplete((result, ex) -> {
+            if (ex != null && failure == null) {
+                failure = ex instanceof CompletionException ? ex.getCause() : ex;
+                cancelled = true;
+            }
+            PERMITS.release();
+        }));
+    }
+
+    /**
+     * Completes when the submitted chunks are handled, the remaining chunks are skipped after the first failure.
+     */
+    private CompletableFuture<Void> finish()
+    {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    /**
+     * Skips the chunks that are not handled yet, used when the request body couldn't be decoded.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public interface ChunkDecoder
+    {
+        void decode(BulkEventLoader loader)
+                throws IOException;
+    }
+
+    private void checkFailure()
+    {
+        Throwable throwable = failure;
+        if (throwable != null) {
+            throw Throwables.propagate(throwable);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.JsonTokenId;
+import com.fasterxml.jackson.core.io.NumberInput;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -33,7 +34,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 import static com.fasterxml.jackson.core.JsonToken.VALUE_STRING;
@@ -41,6 +43,7 @@ import static java.lang.String.format;
 import static java.util.stream.IntStream.range;
 import static org.rakam.analysis.InternalConfig.USER_TYPE;
 import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
 import static org.rakam.collection.JsonEventDeserializer.getValueOfMagicField;
 import static org.rakam.util.AvroUtil.convertAvroSchema;
 import static org.rakam.util.AvroUtil.generateAvroSchema;
@@ -80,9 +83,24 @@ public class CsvEventDeserializer
 
         boolean useheader = Boolean.FALSE != ctxt.getAttribute("useHeader");
 
+        List<Event> list = new ArrayList<>();
+        deserialize((CsvParser) jp, project, collection, apiKey, useheader, Integer.MAX_VALUE,
+                chunk -> list.addAll(chunk.get().events));
+
+        return new EventList(Event.EventContext.apiKey(apiKey), project, list);
+    }
+
+    /**
+     * Reads the rows in chunks of {@code chunkSize} rows. The parser must be positioned at the first row. Only the
+     * tokenization is done in the caller thread, the values are converted when the supplier of the chunk is called
+     * so that the chunks can be converted in parallel.
+     */
+    public void deserialize(CsvParser jp, String project, String collection, String apiKey, boolean useHeader, int chunkSize, Consumer<Supplier<EventList>> consumer)
+            throws IOException
+    {
         Map.Entry<List<SchemaField>, int[]> header;
-        if (useheader) {
-            header = readHeader((CsvParser) jp, project, collection);
+        if (useHeader) {
+            header = readHeader(jp, project, collection);
         }
         else {
             List<SchemaField> vall = metastore.getCollection(project, collection);
@@ -91,39 +109,60 @@ public class CsvEventDeserializer
 
         List<SchemaField> fields = header.getKey();
         int[] indexes = header.getValue();
-        List<FieldType> types = Arrays.stream(indexes)
-                .mapToObj(i -> header.getKey().get(i).getType()).collect(Collectors.toList());
+        FieldType[] types = Arrays.stream(indexes)
+                .mapToObj(i -> header.getKey().get(i).getType()).toArray(FieldType[]::new);
 
         Schema schema = convertAvroSchema(fields);
-        GenericData.Record record = new GenericData.Record(schema);
-        int idx = 0;
 
-        List<Event> list = new ArrayList<>();
-        while (true) {
-            JsonToken t = jp.nextToken();
-
-            if (t == null) {
-                break;
-            }
+        List<String[]> rows = new ArrayList<>();
+        String[] row = null;
+        int idx = 0;
 
+        // the current token is the start of the first row if the header is not consumed
+        JsonToken t = useHeader ? jp.nextToken() : jp.getCurrentToken();
+        for (; t != null; t = jp.nextToken()) {
             switch (t.id()) {
                 case JsonTokenId.ID_START_ARRAY:
                     idx = 0;
-                    record = new GenericData.Record(schema);
-                    list.add(new Event(project, collection, null, fields, record));
+                    row = new String[indexes.length];
+                    rows.add(row);
                     break;
                 case JsonTokenId.ID_END_ARRAY:
-                    continue;
+                    if (rows.size() >= chunkSize) {
+                        List<String[]> chunk = rows;
+                        consumer.accept(() -> convert(project, collection, apiKey, fields, schema, indexes, types, chunk));
+                        rows = new ArrayList<>();
+                    }
+                    break;
                 default:
                     if (idx >= indexes.length) {
                         throw new RakamException(String.format("Table has %d columns but csv file has more than %d columns", indexes.length, indexes.length), HttpResponseStatus.BAD_REQUEST);
                     }
-                    record.put(indexes[idx], getValue(types.get(idx), jp));
+                    row[idx] = jp.getValueAsString();
                     idx += 1;
                     break;
             }
         }
 
+        if (!rows.isEmpty()) {
+            List<String[]> chunk = rows;
+            consumer.accept(() -> convert(project, collection, apiKey, fields, schema, indexes, types, chunk));
+        }
+    }
+
+    private EventList convert(String project, String collection, String apiKey, List<SchemaField> fields, Schema schema, int[] indexes, FieldType[] types, List<String[]> rows)
+    {
+        List<Event> list = new ArrayList<>(rows.size());
+        for (String[] row : rows) {
+            GenericData.Record record = new GenericData.Record(schema);
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] != null) {
+                    record.put(indexes[i], getValue(types[i], row[i]));
+                }
+            }
+            list.add(new Event(project, collection, null, fields, record));
+        }
+
         return new EventList(Event.EventContext.apiKey(apiKey), project, list);
     }
 
@@ -171,57 +210,66 @@ public class CsvEventDeserializer
         return new AbstractMap.SimpleImmutableEntry<>(fields, indexes);
     }
 
+    /**
+     * The values inside map and array columns are JSON tokens, they're converted the same way the CSV cells are.
+     */
     public Object getValue(FieldType type, JsonParser jp)
             throws IOException
     {
         if (type == null) {
             return getValueOfMagicField(jp);
         }
+        if (type == TIMESTAMP && jp.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+            return jp.getValueAsLong();
+        }
 
-        switch (type) {
-            case STRING:
-                String valueAsString = jp.getValueAsString();
-                if (valueAsString.length() > 100) {
-                    valueAsString = valueAsString.substring(0, 100);
-                }
-                return valueAsString;
-            case BOOLEAN:
-                return jp.getValueAsBoolean();
-            case LONG:
-                return jp.getValueAsLong();
-            case INTEGER:
-                return jp.getValueAsInt();
-            case DECIMAL:
-                return jp.getValueAsDouble();
-            case TIME:
-                return (long) LocalTime.parse(jp.getValueAsString()).get(ChronoField.MILLI_OF_DAY);
-            case DOUBLE:
-                return jp.getValueAsDouble();
-            case TIMESTAMP:
-                if (jp.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
-                    return jp.getValueAsLong();
-                }
-                try {
-                    return DateTimeUtils.parseTimestamp(jp.getValueAsString());
-                }
-                catch (Exception e) {
-                    return null;
-                }
-            case DATE:
-                try {
-                    return DateTimeUtils.parseDate(jp.getValueAsString());
-                }
-                catch (Exception e) {
-                    return null;
-                }
-            default:
-                if (type.isMap()) {
-                    return getMap(type.getMapValueType(), jp.getValueAsString());
-                }
-                if (type.isArray()) {
-                    return getArray(type.getArrayElementType(), jp.getValueAsString());
-                }
-                throw new JsonMappingException(format("type is not supported."));
+        String value = jp.getValueAsString();
+        return value == null ? null : getValue(type, value);
+    }
+
+    private Object getValue(FieldType type, String value)
+    {
+        try {
+            switch (type) {
+                case STRING:
+                    return value.length() > 100 ? value.substring(0, 100) : value;
+                case BOOLEAN:
+                    return "true".equals(value.trim());
+                case LONG:
+                    return NumberInput.parseAsLong(value, 0);
+                case INTEGER:
+                    return NumberInput.parseAsInt(value, 0);
+                case DECIMAL:
+                case DOUBLE:
+                    return NumberInput.parseAsDouble(value, 0);
+                case TIME:
+                    return (long) LocalTime.parse(value).get(ChronoField.MILLI_OF_DAY);
+                case TIMESTAMP:
+                    try {
+                        return DateTimeUtils.parseTimestamp(value);
+                    }
+                    catch (Exception e) {
+                        return null;
+                    }
+                case DATE:
+                    try {
+                        return DateTimeUtils.parseDate(value);
+                    }
+                    catch (Exception e) {
+                        return null;
+                    }
+                default:
+                    if (type.isMap()) {
+                        return getMap(type.getMapValueType(), value);
+                    }
+                    if (type.isArray()) {
+                        return getArray(type.getArrayElementType(), value);
+                    }
+                    throw new RakamException(format("%s type is not supported.", type), HttpResponseStatus.BAD_REQUEST);
+            }
+        }
+        catch (IOException e) {
+            throw new RakamException(format("Unable to parse '%s' as %s: %s", value, type, e.getMessage()), HttpResponseStatus.BAD_REQUEST);
         }
     }
 
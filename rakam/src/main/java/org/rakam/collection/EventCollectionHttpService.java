@@ -4,13 +4,14 @@ import com.google.common.io.ByteStreams;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.cfg.ContextAttributes;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -30,10 +31,12 @@ import org.apache.avro.generic.GenericData;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.QueryHttpService;
 import org.rakam.collection.Event.EventContext;
+import org.rakam.config.RemoteImportConfig;
 import org.rakam.plugin.CopyEvent;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.report.QueryResult;
 import org.rakam.server.http.HttpRequestException;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
@@ -56,11 +59,11 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.xml.bind.DatatypeConverter;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -76,11 +79,14 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
 import static com.google.common.base.Charsets.UTF_8;
+import static io.netty.handler.codec.http.HttpHeaders.Names.ACCEPT;
 import static io.netty.handler.codec.http.HttpHeaders.Names.ACCESS_CONTROL_ALLOW_CREDENTIALS;
 import static io.netty.handler.codec.http.HttpHeaders.Names.ACCESS_CONTROL_ALLOW_ORIGIN;
 import static io.netty.handler.codec.http.HttpHeaders.Names.ACCESS_CONTROL_EXPOSE_HEADERS;
@@ -120,6 +126,9 @@ public class EventCollectionHttpService
     private final byte[] OK_MESSAGE = "1".getBytes(UTF_8);
     private final byte[] gif1x1 = Base64.getDecoder().decode("R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7");
     private static final int[] FAILED_SINGLE_EVENT = new int[] {0};
+    // the formats of the JSON files of the remote imports
+    private static final String EVENT_LIST_FORMAT = "event_list";
+    private static final String PROPERTIES_FORMAT = "properties";
 
     private final ObjectMapper jsonMapper;
     private final ObjectMapper csvMapper;
@@ -130,6 +139,8 @@ public class EventCollectionHttpService
     private final QueryHttpService queryHttpService;
     private final com.google.common.base.Optional<CopyEvent> copyEvent;
     private final JsonEventDeserializer jsonEventDeserializer;
+    private final CsvEventDeserializer csvEventDeserializer;
+    private final RemoteImportConfig importConfig;
 
     @Inject
     public EventCollectionHttpService(
@@ -141,9 +152,11 @@ public class EventCollectionHttpService
             AvroEventDeserializer avroEventDeserializer,
             EventListDeserializer eventListDeserializer,
             CsvEventDeserializer csvEventDeserializer,
+            RemoteImportConfig importConfig,
             Set<EventMapper> mappers)
     {
         this.eventStore = eventStore;
+        this.importConfig = importConfig;
         this.eventMappers = ImmutableList.copyOf(mappers);
         this.apiKeyService = apiKeyService;
         this.queryHttpService = queryHttpService;
@@ -166,6 +179,7 @@ public class EventCollectionHttpService
 
         this.avroEventDeserializer = avroEventDeserializer;
         this.jsonEventDeserializer = deserializer;
+        this.csvEventDeserializer = csvEventDeserializer;
         csvMapper = new CsvMapper();
         csvMapper.registerModule(new SimpleModule().addDeserializer(EventList.class, csvEventDeserializer));
     }
@@ -387,9 +401,44 @@ public class EventCollectionHttpService
 
     public void bulkEvents(RakamHttpRequest request, boolean mapEvents)
     {
+        String contentType = request.headers().get(CONTENT_TYPE);
+        if ("application/avro".equals(contentType) || "text/csv".equals(contentType)) {
+            // the events are mapped and stored in chunks while the body is decoded in a loader thread
+            request.bodyHandler(buff -> {
+                CompletableFuture<Void> result;
+                try {
+                    // the body is copied since the buffer is not guaranteed to be valid after the handler returns
+                    byte[] body = ByteStreams.toByteArray(buff);
+                    result = bulkEventsInChunks(request, contentType, new ByteArrayInputStream(body), mapEvents);
+                }
+                catch (Throwable e) {
+                    returnCollectionError(request, e);
+                    return;
+                }
+
+                result.whenComplete((value, ex) -> {
+                    if (ex != null) {
+                        returnCollectionError(request, ex instanceof CompletionException ? ex.getCause() : ex);
+                        return;
+                    }
+
+                    DefaultHttpHeaders responseHeaders = new DefaultHttpHeaders();
+                    responseHeaders.set(ACCESS_CONTROL_ALLOW_CREDENTIALS, "true");
+                    if (request.headers().contains(ORIGIN)) {
+                        responseHeaders.set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
+                    }
+                    responseHeaders.add(CONTENT_TYPE, "application/json");
+
+                    request.response(new HeaderDefaultFullHttpResponse(HTTP_1_1, OK,
+                            Unpooled.wrappedBuffer(encodeAsBytes(SuccessMessage.success())),
+                            responseHeaders)).end();
+                });
+            });
+            return;
+        }
+
         storeEventsSync(request,
                 buff -> {
-                    String contentType = request.headers().get(CONTENT_TYPE);
                     if (contentType == null || "application/json".equals(contentType)) {
                         String apiKey = getParam(request.params(), MASTER_KEY.getKey());
                         String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
@@ -420,42 +469,6 @@ public class EventCollectionHttpService
 
                         return new EventList(EventContext.apiKey(apiKey), project, events);
                     }
-                    else if ("application/avro".equals(contentType)) {
-                        String apiKey = getParam(request.params(), MASTER_KEY.getKey());
-                        String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
-                        String collection = getParam(request.params(), "collection");
-
-                        return avroEventDeserializer.deserialize(project, collection, new InputStreamSliceInput(buff));
-                    }
-                    else if ("text/csv".equals(contentType)) {
-                        String apiKey = getParam(request.params(), MASTER_KEY.getKey());
-                        String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
-                        String collection = getParam(request.params(), "collection");
-
-                        CsvSchema.Builder builder = CsvSchema.builder();
-                        if (request.params().get("column_separator") != null) {
-                            List<String> column_seperator = request.params().get("column_separator");
-                            if (column_seperator != null && column_seperator.get(0).length() != 1) {
-                                throw new RakamException("Invalid column separator", BAD_REQUEST);
-                            }
-                            builder.setColumnSeparator(column_seperator.get(0).charAt(0));
-                        }
-
-                        boolean useHeader = false;
-                        if (request.params().get("use_header") != null) {
-                            useHeader = Boolean.valueOf(request.params().get("use_header").get(0));
-                            // do not set CsvSchema setUseHeader, it has extra overhead and the deserializer cannot handle that.
-                        }
-
-                        return csvMapper.readerFor(EventList.class)
-                                .with(ContextAttributes.getEmpty()
-                                        .withSharedAttribute("project", project)
-                                        .withSharedAttribute("useHeader", useHeader)
-                                        .withSharedAttribute("collection", collection)
-                                        .withSharedAttribute("apiKey", apiKey))
-                                .with(builder.build()).readValue(buff);
-                    }
-
                     throw new RakamException("Unsupported content type: " + contentType, BAD_REQUEST);
                 },
                 (events, responseHeaders) -> {
@@ -481,6 +494,68 @@ public class EventCollectionHttpService
                 }, mapEvents);
     }
 
+    private CompletableFuture<Void> bulkEventsInChunks(RakamHttpRequest request, String contentType, InputStream buff, boolean mapEvents)
+    {
+        String apiKey = getParam(request.params(), MASTER_KEY.getKey());
+        String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
+        String collection = getParam(request.params(), "collection");
+
+        if ("application/avro".equals(contentType)) {
+            return BulkEventLoader.load(bulkChunkHandler(request, mapEvents), loader ->
+                    avroEventDeserializer.deserialize(project, collection, new InputStreamSliceInput(buff),
+                            BulkEventLoader.CHUNK_SIZE, chunk -> loader.submit(() -> chunk)));
+        }
+
+        CsvSchema.Builder builder = CsvSchema.builder();
+        if (request.params().get("column_separator") != null) {
+            List<String> column_seperator = request.params().get("column_separator");
+            if (column_seperator != null && column_seperator.get(0).length() != 1) {
+                throw new RakamException("Invalid column separator", BAD_REQUEST);
+            }
+            builder.setColumnSeparator(column_seperator.get(0).charAt(0));
+        }
+
+        boolean useHeader = false;
+        if (request.params().get("use_header") != null) {
+            useHeader = Boolean.valueOf(request.params().get("use_header").get(0));
+            // do not set CsvSchema setUseHeader, it has extra overhead and the deserializer cannot handle that.
+        }
+
+        CsvSchema schema = builder.build();
+        boolean finalUseHeader = useHeader;
+        return BulkEventLoader.load(bulkChunkHandler(request, mapEvents), loader -> {
+            CsvParser parser = (CsvParser) csvMapper.getFactory().createParser(buff);
+            parser.setSchema(schema);
+            parser.nextToken();
+
+            csvEventDeserializer.deserialize(parser, project, collection, apiKey, finalUseHeader,
+                    BulkEventLoader.CHUNK_SIZE, loader::submit);
+        });
+    }
+
+    private Consumer<EventList> bulkChunkHandler(RakamHttpRequest request, boolean mapEvents)
+    {
+        InetAddress remoteAddress = getRemoteAddress(request.getRemoteAddress());
+        HttpRequestParams params = new HttpRequestParams(request);
+
+        return events -> {
+            if (mapEvents) {
+                // the cookies and headers that are set by the mappers are not sent for bulk requests
+                mapEvent(eventMappers, (m) -> m.mapAsync(events, params, remoteAddress, new DefaultHttpHeaders())).join();
+            }
+            try {
+                eventStore.storeBulk(events.events);
+            }
+            catch (Throwable e) {
+                List<Event> sample = events.events.size() > 5 ? events.events.subList(0, 2) : events.events;
+                LOGGER.error(new RuntimeException("Error executing EventStore bulk method.",
+                                new RuntimeException(sample.toString().substring(0, 200), e)),
+                        "Error while storing event.");
+                throw e;
+            }
+        };
+    }
+
     @POST
     @Consumes("text/event-stream")
     @IgnoreApi
@@ -488,14 +563,15 @@ public class EventCollectionHttpService
     @Path("/copy/remote")
     public void copyEventsRemote(RakamHttpRequest request)
     {
-        if (!copyEvent.isPresent()) {
-            bulkEventsRemote(request, false);
-        }
-        else {
-            queryHttpService.handleServerSentQueryExecution(request, BulkEventRemote.class, (project, convert) ->
-                    copyEvent.get().copy(project, convert.collection, convert.urls, convert.type,
-                            convert.compression, convert.options), MASTER_KEY, false);
-        }
+        queryHttpService.handleServerSentQueryExecution(request, BulkEventRemote.class, (project, query) -> {
+            // the storage engine loads the files natively, the rows are converted to events only if they need to be mapped
+            boolean mapEvents = Boolean.parseBoolean(getOption(request, query, "map_events"));
+            if (!copyEvent.isPresent() || mapEvents) {
+                return importRemote(request, project, getParam(request.params(), MASTER_KEY.getKey()), query, mapEvents, PROPERTIES_FORMAT);
+            }
+            return copyEvent.get().copy(project, query.collection, query.urls, query.type,
+                    query.compression, query.options);
+        }, MASTER_KEY, false);
     }
 
     @POST
@@ -517,81 +593,186 @@ public class EventCollectionHttpService
 
     public void bulkEventsRemote(RakamHttpRequest request, boolean mapEvents)
     {
-        storeEventsSync(request,
-                buff -> {
-                    BulkEventRemote query = JsonHelper.read(buff, BulkEventRemote.class);
-                    String masterKey = Optional.ofNullable(request.params().get("master_key"))
-                            .map((v) -> v.get(0))
-                            .orElseGet(() -> request.headers().get("master_key"));
-                    String project = apiKeyService.getProjectOfApiKey(masterKey, MASTER_KEY);
+        if ("text/event-stream".equals(request.headers().get(ACCEPT))) {
+            // the progress of the files is sent to the client while the import is running
+            queryHttpService.handleServerSentQueryExecution(request, BulkEventRemote.class, (project, query) ->
+                    importRemote(request, project, getParam(request.params(), MASTER_KEY.getKey()), query, mapEvents, EVENT_LIST_FORMAT), MASTER_KEY, false);
+            return;
+        }
 
-                    checkCollection(query.collection);
+        request.bodyHandler(buff -> {
+            RemoteFileImport execution;
+            try {
+                BulkEventRemote query = JsonHelper.read(buff, BulkEventRemote.class);
+                String masterKey = Optional.ofNullable(request.params().get("master_key"))
+                        .map((v) -> v.get(0))
+                        .orElseGet(() -> request.headers().get("master_key"));
+                String project = apiKeyService.getProjectOfApiKey(masterKey, MASTER_KEY);
 
-                    if (query.urls.size() != 1) {
-                        throw new RakamException("Only one url is supported", BAD_REQUEST);
-                    }
-                    if (query.compression != null) {
-                        throw new RakamException("Compression is not supported yet", BAD_REQUEST);
-                    }
+                execution = importRemote(request, project, masterKey, query, mapEvents, EVENT_LIST_FORMAT);
+            }
+            catch (Throwable e) {
+                returnCollectionError(request, e);
+                return;
+            }
+
+            // the response is sent when the import is finished, the event loop is not blocked while the files are loaded
+            execution.getResult().whenComplete((result, ex) -> {
+                if (ex != null) {
+                    returnCollectionError(request, ex instanceof CompletionException ? ex.getCause() : ex);
+                    return;
+                }
+                if (result.isFailed()) {
+                    returnCollectionError(request, new RakamException(result.getError().message, BAD_REQUEST));
+                    return;
+                }
 
-                    URL url = query.urls.get(0);
-                    if (query.type == JSON) {
-                        return jsonMapper.readValue(url, EventList.class);
+                DefaultHttpHeaders responseHeaders = new DefaultHttpHeaders();
+                responseHeaders.set(ACCESS_CONTROL_ALLOW_CREDENTIALS, "true");
+                if (request.headers().contains(ORIGIN)) {
+                    responseHeaders.set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
+                }
+
+                request.response(new HeaderDefaultFullHttpResponse(HTTP_1_1, OK,
+                        Unpooled.wrappedBuffer(OK_MESSAGE), responseHeaders)).end();
+            });
+        });
+    }
+
+    private RemoteFileImport importRemote(RakamHttpRequest request, String project, String masterKey, BulkEventRemote query, boolean mapEvents, String defaultJsonFormat)
+    {
+        if (query.urls == null || query.urls.isEmpty()) {
+            throw new RakamException("urls is required", BAD_REQUEST);
+        }
+
+        ChunkDecoder decoder;
+        String jsonFormat = Optional.ofNullable(getOption(request, query, "format")).orElse(defaultJsonFormat);
+        if (query.type == JSON && jsonFormat.equals(EVENT_LIST_FORMAT)) {
+            // the format of the /event/batch endpoint, the events are decoded in chunks while the events array is read
+            decoder = (stream, chunkSize, consumer) -> {
+                JsonParser parser = jsonMapper.getFactory().createParser(stream);
+                if (parser.nextToken() != START_OBJECT) {
+                    throw new RakamException("The file must be an object that has api and events properties", BAD_REQUEST);
+                }
+
+                // the events are stored in the project of the master key, the api property of the file is used if it precedes the events
+                EventContext context = EventContext.apiKey(masterKey);
+                for (JsonToken t = parser.nextToken(); t == JsonToken.FIELD_NAME; t = parser.nextToken()) {
+                    String fieldName = parser.getCurrentName();
+                    t = parser.nextToken();
+
+                    if (fieldName.equals("api")) {
+                        context = parser.readValueAs(EventContext.class);
                     }
-                    else if (query.type == CSV) {
-                        CsvSchema.Builder builder = CsvSchema.builder();
-                        if (request.headers().get("column_separator") != null) {
-                            String column_seperator = request.headers().get("column_separator");
-                            if (column_seperator.length() != 1) {
-                                throw new RakamException("Invalid column separator", BAD_REQUEST);
-                            }
-                            builder.setColumnSeparator(column_seperator.charAt(0));
+                    else if (fieldName.equals("events")) {
+                        if (t != JsonToken.START_ARRAY) {
+                            throw new RakamException("events field must be array", BAD_REQUEST);
                         }
 
-                        boolean useHeader = true;
-                        if (request.headers().get("use_header") != null) {
-                            useHeader = Boolean.valueOf(request.headers().get("use_header"));
-                            // do not set CsvSchema setUseHeader, it has extra overhead and the deserializer cannot handle that.
+                        List<Event> events = new ArrayList<>();
+                        for (t = parser.nextToken(); t == START_OBJECT; t = parser.nextToken()) {
+                            events.add(jsonEventDeserializer.deserializeWithProject(parser, project, context, true));
+                            if (events.size() >= chunkSize) {
+                                consumer.accept(new EventList(context, project, events));
+                                events = new ArrayList<>();
+                            }
                         }
 
-                        return csvMapper.readerFor(EventList.class)
-                                .with(ContextAttributes.getEmpty()
-                                        .withSharedAttribute("project", project)
-                                        .withSharedAttribute("useHeader", useHeader)
-                                        .withSharedAttribute("collection", query.collection)
-                                        .withSharedAttribute("apiKey", masterKey))
-                                .with(builder.build()).readValue(url);
+                        if (!events.isEmpty()) {
+                            consumer.accept(new EventList(context, project, events));
+                        }
                     }
-                    else if (query.type == AVRO) {
-                        URLConnection conn = url.openConnection();
-                        conn.setConnectTimeout(5000);
-                        conn.setReadTimeout(5000);
-                        conn.connect();
-
-                        return avroEventDeserializer.deserialize(project, query.collection,
-                                new InputStreamSliceInput(conn.getInputStream()));
+                    else {
+                        throw new RakamException(String.format("Invalid property '%s'", fieldName), BAD_REQUEST);
                     }
+                }
+            };
+        }
+        else if (query.type == JSON) {
+            if (!jsonFormat.equals(PROPERTIES_FORMAT)) {
+                throw new RakamException(String.format("Invalid format, it must be %s or %s", EVENT_LIST_FORMAT, PROPERTIES_FORMAT), BAD_REQUEST);
+            }
+            // the properties of the events of the collection in an array or line-separated objects
+            checkCollection(query.collection);
+            decoder = (stream, chunkSize, consumer) -> {
+                JsonParser parser = jsonMapper.getFactory().createParser(stream);
+                List<Event> events = new ArrayList<>();
+
+                JsonToken t = parser.nextToken();
+                boolean array = t == JsonToken.START_ARRAY;
+                if (array) {
+                    t = parser.nextToken();
+                }
+                else if (t != null && t != START_OBJECT) {
+                    throw new RakamException("The file must be an array of properties or line-separated properties", BAD_REQUEST);
+                }
 
-                    throw new RakamException("Unsupported or missing type.", BAD_REQUEST);
-                },
-                (events, responseHeaders) -> {
-                    try {
-                        eventStore.storeBulk(events);
-                    }
-                    catch (Exception e) {
-                        List<Event> sample = events.size() > 5 ? events.subList(0, 5) : events;
-                        LOGGER.error(new RuntimeException("Error executing EventStore bulkRemote method.",
-                                        new RuntimeException(sample.toString().substring(0, 200), e)),
-                                "Error while storing event.");
-                        return new HeaderDefaultFullHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR,
-                                Unpooled.wrappedBuffer(encodeAsBytes(errorMessage("An error occurred", INTERNAL_SERVER_ERROR))),
-                                responseHeaders);
+                for (; t == START_OBJECT; t = parser.nextToken()) {
+                    Map.Entry<List<SchemaField>, GenericData.Record> entry = jsonEventDeserializer.parseProperties(project, query.collection, parser, true);
+                    events.add(new Event(project, query.collection, null, entry.getKey(), entry.getValue()));
+                    if (events.size() >= chunkSize) {
+                        consumer.accept(new EventList(EventContext.apiKey(masterKey), project, events));
+                        events = new ArrayList<>();
                     }
+                }
 
-                    return new HeaderDefaultFullHttpResponse(HTTP_1_1, OK,
-                            Unpooled.wrappedBuffer(OK_MESSAGE),
-                            responseHeaders);
-                }, mapEvents);
+                if (!events.isEmpty()) {
+                    consumer.accept(new EventList(EventContext.apiKey(masterKey), project, events));
+                }
+            };
+        }
+        else if (query.type == CSV) {
+            checkCollection(query.collection);
+            CsvSchema.Builder builder = CsvSchema.builder();
+            String columnSeparator = getOption(request, query, "column_separator");
+            if (columnSeparator != null) {
+                if (columnSeparator.length() != 1) {
+                    throw new RakamException("Invalid column separator", BAD_REQUEST);
+                }
+                builder.setColumnSeparator(columnSeparator.charAt(0));
+            }
+
+            String useHeaderOption = getOption(request, query, "use_header");
+            // do not set CsvSchema setUseHeader, it has extra overhead and the deserializer cannot handle that.
+            boolean useHeader = useHeaderOption == null || Boolean.valueOf(useHeaderOption);
+            CsvSchema schema = builder.build();
+
+            decoder = (stream, chunkSize, consumer) -> {
+                CsvParser parser = (CsvParser) csvMapper.getFactory().createParser(stream);
+                parser.setSchema(schema);
+                parser.nextToken();
+
+                csvEventDeserializer.deserialize(parser, project, query.collection, masterKey, useHeader,
+                        chunkSize, chunk -> consumer.accept(chunk.get()));
+            };
+        }
+        else if (query.type == AVRO) {
+            checkCollection(query.collection);
+            decoder = (stream, chunkSize, consumer) -> avroEventDeserializer.deserialize(project, query.collection,
+                    new InputStreamSliceInput(stream), chunkSize, consumer);
+        }
+        else {
+            throw new RakamException("Unsupported or missing type.", BAD_REQUEST);
+        }
+
+        Consumer<EventList> handler = bulkChunkHandler(request, mapEvents);
+        return new RemoteFileImport(query.urls, importConfig.isAllowLocalFiles(), query.compression, (url, stream, counter) ->
+                decoder.decode(stream, BulkEventLoader.CHUNK_SIZE, events -> {
+                    handler.accept(events);
+                    counter.accept(events.events.size());
+                }));
+    }
+
+    private interface ChunkDecoder
+    {
+        void decode(InputStream stream, int chunkSize, Consumer<EventList> consumer)
+                throws IOException;
+    }
+
+    private static String getOption(RakamHttpRequest request, BulkEventRemote query, String name)
+    {
+        String value = query.options.get(name);
+        return value != null ? value : request.headers().get(name);
     }
 
     private String getParam(Map<String, List<String>> params, String param)
@@ -694,32 +875,8 @@ public class EventCollectionHttpService
 
                 response = responseFunction.apply(events.events, responseHeaders);
             }
-            catch (JsonMappingException | JsonParseException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getOriginalMessage(), BAD_REQUEST);
-                return;
-            }
-            catch (IOException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
-                return;
-            }
-            catch (RakamException e) {
-                LogUtil.logException(request, e);
-                returnError(request, e.getMessage(), e.getStatusCode());
-                return;
-            }
-            catch (HttpRequestException e) {
-                returnError(request, e.getMessage(), e.getStatusCode());
-                return;
-            }
-            catch (IllegalArgumentException e) {
-                LogUtil.logException(request, e);
-                returnError(request, e.getMessage(), BAD_REQUEST);
-                return;
-            }
             catch (Throwable e) {
-                LOGGER.error(e, "Error while collecting event");
-
-                returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+                returnCollectionError(request, e);
                 return;
             }
 
@@ -751,6 +908,31 @@ public class EventCollectionHttpService
         });
     }
 
+    private static void returnCollectionError(RakamHttpRequest request, Throwable e)
+    {
+        if (e instanceof JsonMappingException || e instanceof JsonParseException) {
+            returnError(request, "JSON couldn't parsed: " + ((JsonProcessingException) e).getOriginalMessage(), BAD_REQUEST);
+        }
+        else if (e instanceof IOException) {
+            returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+        }
+        else if (e instanceof RakamException) {
+            LogUtil.logException(request, (RakamException) e);
+            returnError(request, e.getMessage(), ((RakamException) e).getStatusCode());
+        }
+        else if (e instanceof HttpRequestException) {
+            returnError(request, e.getMessage(), ((HttpRequestException) e).getStatusCode());
+        }
+        else if (e instanceof IllegalArgumentException) {
+            LogUtil.logException(request, (IllegalArgumentException) e);
+            returnError(request, e.getMessage(), BAD_REQUEST);
+        }
+        else {
+            LOGGER.error(e, "Error while collecting event");
+            returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+        }
+    }
+
     public static String getHeaderList(Iterator<Map.Entry<String, String>> it)
     {
         StringBuilder builder = new StringBuilder("cf-ray,server,status");
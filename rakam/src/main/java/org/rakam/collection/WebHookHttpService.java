@@ -13,20 +13,18 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.util.CharsetUtil;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
-import io.netty.util.concurrent.EventExecutorGroup;
-import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.FutureListener;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.util.javascript.JSCodeCompiler;
 import org.rakam.util.javascript.JSCodeLoggerService;
+import org.rakam.util.javascript.JSRuntimePool;
+import org.rakam.util.javascript.JSRuntimePool.QuotaExceededException;
+import org.rakam.util.javascript.JSRuntimePool.RuntimeKey;
 import org.rakam.plugin.EventStore;
 import org.rakam.server.http.HttpRequestException;
 import org.rakam.server.http.HttpService;
@@ -67,8 +65,10 @@ import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -90,12 +90,8 @@ public class WebHookHttpService
     private final static Logger LOGGER = Logger.get(WebHookHttpService.class);
 
     private final DBI dbi;
-    private final EventExecutorGroup executor = new DefaultEventExecutorGroup(
-            Runtime.getRuntime().availableProcessors(),
-            new ThreadFactoryBuilder()
-                    .setNameFormat("webhook-js-executor")
-                    .build());
-    private final LoadingCache<WebHookIdentifier, Invocable> functions;
+    private final JSRuntimePool runtimePool;
+    private final LoadingCache<WebHookIdentifier, WebHook> webHooks;
     private final ApiKeyService apiKeyService;
     private final EventStore eventStore;
     private final ObjectMapper jsonMapper;
@@ -108,38 +104,21 @@ public class WebHookHttpService
             JsonEventDeserializer deserializer,
             ApiKeyService apiKeyService,
             JSCodeCompiler jsCodeCompiler,
+            JSRuntimePool runtimePool,
             JSCodeLoggerService loggerService,
             EventStore eventStore)
     {
         this.apiKeyService = apiKeyService;
         this.jsCodeCompiler = jsCodeCompiler;
+        this.runtimePool = runtimePool;
         this.loggerService = loggerService;
-        functions = CacheBuilder.newBuilder().softValues().build(new CacheLoader<WebHookIdentifier, Invocable>()
+        webHooks = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<WebHookIdentifier, WebHook>()
         {
-
             @Override
-            public Invocable load(WebHookIdentifier key)
+            public WebHook load(WebHookIdentifier key)
                     throws Exception
             {
-                WebHook webHook = get(key.project, key.identifier);
-                String prefix = "webhook." + key.project + "." + key.identifier;
-                return jsCodeCompiler.createEngine(
-                        webHook.script,
-                        loggerService.createLogger(key.project, prefix),
-                        null,
-                        jsCodeCompiler.createConfigManager(key.project, prefix), (engine, bindings) -> {
-                            Map<String, Parameter> parameters = webHook.parameters;
-                            Map<String, Object> map = new HashMap<>();
-                            parameters.forEach((k,v) -> map.put(k, v.value));
-
-                            bindings.put("$$params", map);
-                            try {
-                                engine.eval("var $$module = function(queryParams, body, headers) { return module(queryParams, body, $$params, headers)}");
-                            }
-                            catch (ScriptException e) {
-                                throw Throwables.propagate(e);
-                            }
-                        });
+                return get(key.project, key.identifier);
             }
         });
         this.dbi = new DBI(dataSource);
@@ -202,109 +181,124 @@ public class WebHookHttpService
         });
     }
 
+    private Invocable createEngine(WebHookIdentifier key, WebHook webHook)
+            throws ScriptException
+    {
+        String prefix = "webhook." + key.project + "." + key.identifier;
+        return jsCodeCompiler.createEngine(
+                webHook.script,
+                loggerService.createLogger(key.project, prefix),
+                null,
+                jsCodeCompiler.createConfigManager(key.project, prefix), (engine, bindings) -> {
+                    Map<String, Parameter> parameters = webHook.parameters;
+                    Map<String, Object> map = new HashMap<>();
+                    parameters.forEach((k,v) -> map.put(k, v.value));
+
+                    bindings.put("$$params", map);
+                    try {
+                        engine.eval("var $$module = function(queryParams, body, headers) { return module(queryParams, body, $$params, headers)}");
+                    }
+                    catch (ScriptException e) {
+                        throw Throwables.propagate(e);
+                    }
+                });
+    }
+
     private void call(RakamHttpRequest request, String project, String identifier, Map<String, List<String>> queryParams, HttpHeaders headers, String data)
     {
         WebHookIdentifier key = new WebHookIdentifier(project, identifier, UUID.randomUUID().toString());
-        Invocable function;
+        WebHook webHook;
         try {
-            function = functions.getUnchecked(key);
+            webHook = webHooks.getUnchecked(key);
         }
         catch (UncheckedExecutionException e) {
             throw Throwables.propagate(e.getCause());
         }
 
-        Future<Object> f = executor.submit(() ->
-                function.invokeFunction("$$module", queryParams, data, headers));
+        // the parameters are bound to the engine so they are part of its version
+        RuntimeKey runtimeKey = new RuntimeKey(project, "webhook." + identifier,
+                Objects.hash(webHook.script, JsonHelper.encode(webHook.parameters)));
+        CompletableFuture<Object> f = runtimePool.invoke(runtimeKey, () -> createEngine(key, webHook),
+                "$$module", queryParams, data, headers);
 
-        f.addListener(new FutureListener<Object>()
-        {
+        f.whenComplete((body, ex) -> {
+            if (ex != null) {
+                if (ex instanceof QuotaExceededException) {
+                    byte[] bytes = JsonHelper.encodeAsBytes(errorMessage("Webhook code timeouts.",
+                            INTERNAL_SERVER_ERROR));
 
-            @Override
-            public void operationComplete(Future<Object> future)
-                    throws Exception
-            {
-                if (future.await(3, TimeUnit.SECONDS)) {
-                    Object body;
-                    try {
-                        body = future.get();
-                    }
-                    catch (Throwable e) {
-                        returnError(request, "Error executing callback code", INTERNAL_SERVER_ERROR);
-                        LOGGER.warn(e, "Error executing webhook callback");
-                        String prefix = "webhook." + key.project + "." + key.identifier;
-                        String collect = headers.entries().stream()
-                                .map(header -> header.getKey() + " : " + header.getValue())
-                                .collect(Collectors.joining("\n"));
-
-                        loggerService.createLogger(key.project, prefix, key.requestId)
-                                .error(e.getMessage() + "\n" + request.getUri() + "\n" + collect + "Body:\n" + data + "\n--------\n");
-                        return;
-                    }
+                    request.response(bytes, INTERNAL_SERVER_ERROR).end();
+                    return;
+                }
 
-                    boolean saved = false;
+                returnError(request, "Error executing callback code", INTERNAL_SERVER_ERROR);
+                LOGGER.warn(ex, "Error executing webhook callback");
+                String prefix = "webhook." + key.project + "." + key.identifier;
+                String collect = headers.entries().stream()
+                        .map(header -> header.getKey() + " : " + header.getValue())
+                        .collect(Collectors.joining("\n"));
 
-                    if (body == null || body.equals("null")) {
-                        saved = false;
-                    }
-                    else {
-                        if (!(body instanceof ScriptObjectMirror)) {
-                            returnError(request, "The script must return an object {collection: '', properties: {}}", BAD_REQUEST);
-                        }
+                loggerService.createLogger(key.project, prefix, key.requestId)
+                        .error(ex.getMessage() + "\n" + request.getUri() + "\n" + collect + "Body:\n" + data + "\n--------\n");
+                return;
+            }
 
-                        ScriptObjectMirror json = (ScriptObjectMirror) ((ScriptObjectMirror) body).eval("JSON");
-                        Object stringify = json.callMember("stringify", body);
+            boolean saved = false;
 
+            if (body == null || body.equals("null")) {
+                saved = false;
+            }
+            else {
+                if (!(body instanceof ScriptObjectMirror)) {
+                    returnError(request, "The script must return an object {collection: '', properties: {}}", BAD_REQUEST);
+                    return;
+                }
 
-                        try {
-                            Event event = jsonMapper.readerFor(Event.class)
-                                    .with(ContextAttributes.getEmpty()
-                                            .withSharedAttribute("project", key.project))
-                                    .readValue(stringify.toString());
-                            if (event != null) {
-                                saved = true;
-                                eventStore.store(event);
-                            }
-                        }
-                        catch (JsonMappingException e) {
-                            String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
-                            returnError(request, "JSON couldn't parsed: " + message, BAD_REQUEST);
-                            return;
-                        }
-                        catch (IOException e) {
-                            returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
-                            return;
-                        }
-                        catch (RakamException e) {
-                            LogUtil.logException(request, e);
-                            returnError(request, e.getMessage(), e.getStatusCode());
-                            return;
-                        }
-                        catch (HttpRequestException e) {
-                            returnError(request, e.getMessage(), e.getStatusCode());
-                            return;
-                        }
-                        catch (IllegalArgumentException e) {
-                            LogUtil.logException(request, e);
-                            returnError(request, e.getMessage(), BAD_REQUEST);
-                            return;
-                        }
-                        catch (Exception e) {
-                            LOGGER.error(e, "Error while collecting event");
+                ScriptObjectMirror json = (ScriptObjectMirror) ((ScriptObjectMirror) body).eval("JSON");
+                Object stringify = json.callMember("stringify", body);
 
-                            returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
-                            return;
-                        }
+                try {
+                    Event event = jsonMapper.readerFor(Event.class)
+                            .with(ContextAttributes.getEmpty()
+                                    .withSharedAttribute("project", key.project))
+                            .readValue(stringify.toString());
+                    if (event != null) {
+                        saved = true;
+                        eventStore.store(event);
                     }
-
-                    request.response(saved ? "1" : "0").end();
                 }
-                else {
-                    byte[] bytes = JsonHelper.encodeAsBytes(errorMessage("Webhook code timeouts.",
-                            INTERNAL_SERVER_ERROR));
+                catch (JsonMappingException e) {
+                    String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+                    returnError(request, "JSON couldn't parsed: " + message, BAD_REQUEST);
+                    return;
+                }
+                catch (IOException e) {
+                    returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+                    return;
+                }
+                catch (RakamException e) {
+                    LogUtil.logException(request, e);
+                    returnError(request, e.getMessage(), e.getStatusCode());
+                    return;
+                }
+                catch (HttpRequestException e) {
+                    returnError(request, e.getMessage(), e.getStatusCode());
+                    return;
+                }
+                catch (IllegalArgumentException e) {
+                    LogUtil.logException(request, e);
+                    returnError(request, e.getMessage(), BAD_REQUEST);
+                    return;
+                }
+                catch (Exception e) {
+                    LOGGER.error(e, "Error while collecting event");
 
-                    request.response(bytes, INTERNAL_SERVER_ERROR).end();
+                    returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+                    return;
                 }
             }
+
+            request.response(saved ? "1" : "0").end();
         });
     }
 
@@ -348,17 +342,21 @@ public class WebHookHttpService
                         .bind("image", hook.image)
                         .bind("parameters", JsonHelper.encode(hook.parameters))
                         .execute();
+                webHooks.invalidate(new WebHookIdentifier(project, hook.identifier, null));
+                runtimePool.invalidate(project, "webhook." + hook.identifier);
                 return SuccessMessage.success();
             }
             catch (Exception e) {
                 if (get(project, hook.identifier) != null) {
-                    handle.createStatement("UPDATE webhook SET code = :code WHERE project = :project AND identifier = :identifier")
+                    handle.createStatement("UPDATE webhook SET code = :code, parameters = :parameters WHERE project = :project AND identifier = :identifier")
                             .bind("project", project)
                             .bind("identifier", hook.identifier)
                             .bind("code", hook.script)
                             .bind("image", hook.image)
                             .bind("parameters", JsonHelper.encode(hook.parameters))
                             .execute();
+                    webHooks.invalidate(new WebHookIdentifier(project, hook.identifier, null));
+                    runtimePool.invalidate(project, "webhook." + hook.identifier);
                     return SuccessMessage.success();
                 }
                 throw e;
@@ -378,6 +376,8 @@ public class WebHookHttpService
             if (execute == 0) {
                 throw new RakamException(NOT_FOUND);
             }
+            webHooks.invalidate(new WebHookIdentifier(project, identifier, null));
+            runtimePool.invalidate(project, "webhook." + identifier);
             return SuccessMessage.success();
         }
     }
@@ -467,7 +467,7 @@ public class WebHookHttpService
             throw new RakamException("Unable to compile Javascript code: " + e.getMessage(), INTERNAL_SERVER_ERROR);
         }
 
-        Future<Object> f = executor.submit(() -> {
+        CompletableFuture<Object> f = runtimePool.submit(() -> {
             try {
                 Object scoped = engine.invokeFunction("$$module", request.params(), body, request.headers());
 
@@ -489,34 +489,27 @@ public class WebHookHttpService
             return null;
         });
 
-        f.addListener(new FutureListener<Object>()
-        {
+        f.whenComplete((result, ex) -> {
+            if (ex != null) {
+                byte[] bytes = JsonHelper.encodeAsBytes(errorMessage(ex instanceof QuotaExceededException ?
+                        "Webhook code timeouts." : "An error occurred.", INTERNAL_SERVER_ERROR));
 
-            @Override
-            public void operationComplete(Future<Object> future)
-                    throws Exception
-            {
-                if (future.await(1, TimeUnit.SECONDS)) {
-                    Object body = future.getNow();
-                    if (body == null) {
-                        return;
-                    }
-                    if (!(body instanceof ScriptObjectMirror)) {
-                        returnError(request, "The script must return an object or array {collection: '', properties: {}}", BAD_REQUEST);
-                    }
+                request.response(bytes, INTERNAL_SERVER_ERROR).end();
+                return;
+            }
 
-                    ScriptObjectMirror json = (ScriptObjectMirror) ((ScriptObjectMirror) body).eval("JSON");
-                    Object stringify = json.callMember("stringify", body);
+            if (result == null) {
+                return;
+            }
+            if (!(result instanceof ScriptObjectMirror)) {
+                returnError(request, "The script must return an object or array {collection: '', properties: {}}", BAD_REQUEST);
+                return;
+            }
 
-                    request.response(stringify.toString()).end();
-                }
-                else {
-                    byte[] bytes = JsonHelper.encodeAsBytes(errorMessage("Webhook code timeouts.",
-                            INTERNAL_SERVER_ERROR));
+            ScriptObjectMirror json = (ScriptObjectMirror) ((ScriptObjectMirror) result).eval("JSON");
+            Object stringify = json.callMember("stringify", result);
 
-                    request.response(bytes, INTERNAL_SERVER_ERROR).end();
-                }
-            }
+            request.response(stringify.toString()).end();
         });
     }
 
@@ -2,6 +2,11 @@ package org.rakam.http;
 
 import com.google.common.net.HostAndPort;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.Min;
 
 public class HttpServerConfig {
     private static final int RAKAM_DEFAULT_PORT = 9999;
@@ -11,6 +16,8 @@ public class HttpServerConfig {
     private boolean disabled;
     private boolean proxyProtocol;
     private boolean debug;
+    private int ioThreads;
+    private DataSize maxBodySize;
 
     @Config("http.server.address")
     public HttpServerConfig setAddress(String address) {
@@ -54,4 +61,28 @@ public class HttpServerConfig {
     public boolean getDebug() {
         return debug;
     }
+
+    @Config("http.server.io-threads")
+    @ConfigDescription("The number of event loop threads that serve the connections, 0 uses the default of Netty (twice the number of cores)")
+    public HttpServerConfig setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    @Min(0)
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    @Config("http.server.max-body-size")
+    @ConfigDescription("The maximum size of an aggregated request body, defaults to 10% of the heap")
+    public HttpServerConfig setMaxBodySize(String maxBodySize) {
+        this.maxBodySize = maxBodySize == null ? null : DataSize.valueOf(maxBodySize);
+        return this;
+    }
+
+    @Nullable
+    public DataSize getMaxBodySize() {
+        return maxBodySize;
+    }
 }
@@ -109,17 +109,20 @@ public class WebServiceModule
 
         EventLoopGroup eventExecutors;
         if (Epoll.isAvailable()) {
-            eventExecutors = new EpollEventLoopGroup();
+            eventExecutors = new EpollEventLoopGroup(config.getIoThreads());
         }
         else {
-            eventExecutors = new NioEventLoopGroup();
+            eventExecutors = new NioEventLoopGroup(config.getIoThreads());
         }
 
+        long maximumBody = config.getMaxBodySize() != null ?
+                config.getMaxBodySize().toBytes() : Runtime.getRuntime().maxMemory() / 10;
+
         HttpServerBuilder httpServer = new HttpServerBuilder()
                 .setHttpServices(httpServices)
                 .setWebsockerServices(webSocketServices)
                 .setSwagger(swagger)
-                .setMaximumBody(Runtime.getRuntime().maxMemory() / 10)
+                .setMaximumBody(maximumBody)
                 .setEventLoopGroup(eventExecutors)
                 .setSwaggerOperationProcessor((method, operation) -> {
                     ApiOperation annotation = method.getAnnotation(ApiOperation.class);
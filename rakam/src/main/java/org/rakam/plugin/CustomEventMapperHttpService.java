@@ -35,6 +35,9 @@ import org.rakam.collection.FieldType;
 import org.rakam.util.javascript.JSCodeLoggerService;
 import org.rakam.collection.SchemaField;
 import org.rakam.util.javascript.JSCodeCompiler;
+import org.rakam.util.javascript.JSRuntimePool;
+import org.rakam.util.javascript.JSRuntimePool.EngineFactory;
+import org.rakam.util.javascript.JSRuntimePool.RuntimeKey;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
 import org.rakam.server.http.annotations.Api;
@@ -57,6 +60,7 @@ import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.script.Invocable;
+import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -69,8 +73,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -80,7 +83,6 @@ import static java.lang.String.format;
 import static java.util.Optional.ofNullable;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
-import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.rakam.util.AvroUtil.generateAvroSchema;
 
 @Path("/custom-event-mapper")
@@ -89,10 +91,13 @@ public class CustomEventMapperHttpService
         extends HttpService
         implements EventMapper
 {
+    // If the script defines this function, it's called once per batch with an array-like view of the events.
+    private static final String BATCH_FUNCTION = "mapBatch";
+
     private final DBI dbi;
     private final Logger logger = Logger.get(CustomEventMapperHttpService.class);
     private final LoadingCache<String, List<JSEventMapperCompiledCode>> scripts;
-    private final ThreadPoolExecutor executor;
+    private final JSRuntimePool runtimePool;
     private final JSCodeCompiler jsCodeCompiler;
     private final Metastore metastore;
     private final JSCodeLoggerService loggerService;
@@ -102,17 +107,14 @@ public class CustomEventMapperHttpService
             @Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource,
             Metastore metastore,
             JSCodeCompiler jsCodeCompiler,
+            JSRuntimePool runtimePool,
             JSCodeLoggerService loggerService)
     {
         this.dbi = new DBI(dataSource);
         this.jsCodeCompiler = jsCodeCompiler;
+        this.runtimePool = runtimePool;
         this.loggerService = loggerService;
         this.metastore = metastore;
-        this.executor = new ThreadPoolExecutor(
-                0,
-                Runtime.getRuntime().availableProcessors() * 4,
-                60L, SECONDS,
-                new SynchronousQueue<>());
 
         this.scripts = CacheBuilder.newBuilder()
                 .expireAfterWrite(2, MINUTES)
@@ -171,6 +173,7 @@ public class CustomEventMapperHttpService
             if (execute == 0) {
                 throw new RakamException(NOT_FOUND);
             }
+            runtimePool.invalidate(project, "event-mapper." + mapper.id);
             return SuccessMessage.success();
         }
     }
@@ -207,6 +210,7 @@ public class CustomEventMapperHttpService
                     .bind("project", project)
                     .bind("id", id)
                     .execute();
+            runtimePool.invalidate(project, "event-mapper." + id);
             return SuccessMessage.success();
         }
     }
@@ -243,7 +247,7 @@ public class CustomEventMapperHttpService
             @ApiParam("body") String requestBody,
             @ApiParam(value = "parameters", required = false) Map<String, Object> parameters)
     {
-        return CompletableFuture.supplyAsync(() -> {
+        return runtimePool.submit(() -> {
             try {
                 Invocable engine = jsCodeCompiler.createEngine(project, script, null);
 
@@ -277,7 +281,7 @@ public class CustomEventMapperHttpService
             catch (NoSuchMethodException e) {
                 throw new RakamException("There must be a function called 'mapper'.", BAD_REQUEST);
             }
-        }, executor);
+        });
     }
 
     private Object getValue(Object o)
@@ -304,7 +308,7 @@ public class CustomEventMapperHttpService
     @Override
     public CompletableFuture<List<Cookie>> mapAsync(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
     {
-        return mapInternal(event.project(), new EventsProxy()
+        return mapInternal(event.project(), ImmutableList.of(event), new EventsProxy()
         {
             @Override
             public Event.EventContext api()
@@ -357,7 +361,7 @@ public class CustomEventMapperHttpService
                 });
             }
         };
-        return mapInternal(events.project, eventsProxy, requestParams, sourceAddress, responseHeaders);
+        return mapInternal(events.project, events.events, eventsProxy, requestParams, sourceAddress, responseHeaders);
     }
 
     private static class NewField
@@ -398,34 +402,49 @@ public class CustomEventMapperHttpService
         }
     }
 
-    public CompletableFuture<List<Cookie>> mapInternal(String project, EventsProxy events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    public CompletableFuture<List<Cookie>> mapInternal(String project, List<Event> eventList, EventsProxy events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
     {
         List<JSEventMapperCompiledCode> unchecked = scripts.getUnchecked(project);
         CompletableFuture<Object>[] futures = new CompletableFuture[unchecked.size()];
         for (int i = 0; i < unchecked.size(); i++) {
             JSEventMapperCompiledCode compiledCode = unchecked.get(i);
 
-            futures[i] = CompletableFuture.supplyAsync(() -> {
-                try {
-                    return compiledCode.code.invokeFunction("mapper",
-                            events,
-                            requestParams,
-                            sourceAddress,
-                            responseHeaders,
-                            compiledCode.parameters);
-                }
-                catch (ScriptException e) {
-                    logger.warn(e, "Error executing event mapper function.");
-                }
-                catch (NoSuchMethodException e) {
-                    logger.warn(e, "'mapper' function does not exist in event mapper function.");
-                }
-                catch (Throwable e) {
-                    logger.warn(e, "Unknown error executing the js mapper.");
-                }
+            CompletableFuture<Object> future;
+            if (compiledCode.batch) {
+                // The script sees the whole batch as a single array backed by the records.
+                future = runtimePool.invoke(compiledCode.key, compiledCode.factory, BATCH_FUNCTION,
+                        new JSEventListView(eventList, ListEventProxy::new),
+                        requestParams,
+                        sourceAddress,
+                        responseHeaders,
+                        compiledCode.parameters);
+            }
+            else {
+                future = runtimePool.invoke(compiledCode.key, compiledCode.factory, "mapper",
+                        events,
+                        requestParams,
+                        sourceAddress,
+                        responseHeaders,
+                        compiledCode.parameters);
+            }
 
-                return null;
-            }, executor);
+            futures[i] = future
+                    .exceptionally(e -> {
+                        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                        if (cause instanceof ScriptException) {
+                            logger.warn(cause, "Error executing event mapper function.");
+                        }
+                        else if (cause instanceof NoSuchMethodException) {
+                            logger.warn(cause, "'mapper' function does not exist in event mapper function.");
+                        }
+                        else if (cause instanceof JSRuntimePool.QuotaExceededException) {
+                            logger.warn("Event mapper %d of project %s: %s", compiledCode.id, project, cause.getMessage());
+                        }
+                        else {
+                            logger.warn(cause, "Unknown error executing the js mapper.");
+                        }
+                        return null;
+                    });
         }
 
         return CompletableFuture.allOf(futures)
@@ -476,14 +495,18 @@ public class CustomEventMapperHttpService
     public static class JSEventMapperCompiledCode
     {
         public final int id;
-        public final Invocable code;
+        public final RuntimeKey key;
+        public final EngineFactory factory;
+        public final boolean batch;
         public final Map<String, Object> parameters;
         public int codeHashCode;
 
-        public JSEventMapperCompiledCode(int id, Invocable code, Map<String, Object> parameters, int codeHashCode)
+        public JSEventMapperCompiledCode(int id, RuntimeKey key, EngineFactory factory, boolean batch, Map<String, Object> parameters, int codeHashCode)
         {
             this.id = id;
-            this.code = code;
+            this.key = key;
+            this.factory = factory;
+            this.batch = batch;
             this.parameters = parameters;
             this.codeHashCode = codeHashCode;
         }
@@ -725,16 +748,21 @@ public class CustomEventMapperHttpService
 
         private Stream<JSEventMapperCompiledCode> get(String project, JSEventMapperCode item)
         {
-            Invocable unchecked;
+            String prefix = "event-mapper." + item.id;
+            RuntimeKey key = new RuntimeKey(project, prefix, item.script.hashCode());
+            EngineFactory factory = () -> jsCodeCompiler.createEngine(project, item.script, prefix);
+            boolean batch;
             try {
-                unchecked = jsCodeCompiler.createEngine(project,
-                        item.script, "event-mapper." + item.id);
+                batch = runtimePool.inspect(key, factory, engine -> {
+                    Object function = ((ScriptEngine) engine).get(BATCH_FUNCTION);
+                    return function instanceof ScriptObjectMirror && ((ScriptObjectMirror) function).isFunction();
+                });
             }
             catch (Exception e) {
                 return Stream.of();
             }
 
-            return Stream.of(new JSEventMapperCompiledCode(item.id, unchecked,
+            return Stream.of(new JSEventMapperCompiledCode(item.id, key, factory, batch,
                     item.parameters.entrySet()
                             .stream()
                             .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue().value)),
@@ -0,0 +1,194 @@
+package org.rakam.plugin;
+
+import jdk.nashorn.api.scripting.AbstractJSObject;
+import org.apache.avro.Schema;
+import org.rakam.collection.Event;
+import org.rakam.plugin.CustomEventMapperHttpService.EventProxy;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * An array-like Javascript view of a list of events. The elements and their properties are created lazily
+ * and read from and written to the underlying Avro records directly, so a batch of events crosses the
+ * Java/Javascript boundary once instead of once per event.
+ * <p>
+ * Each element has a <code>collection</code> member and a <code>properties</code> member, the latter is
+ * backed by the record of the event.
+ */
+public class JSEventListView
+        extends AbstractJSObject
+{
+    private final List<Event> events;
+    private final Function<Event, EventProxy> proxyFactory;
+    private final EventView[] views;
+
+    public JSEventListView(List<Event> events, Function<Event, EventProxy> proxyFactory)
+    {
+        this.events = events;
+        this.proxyFactory = proxyFactory;
+        this.views = new EventView[events.size()];
+    }
+
+    @Override
+    public boolean isArray()
+    {
+        return true;
+    }
+
+    @Override
+    public Object getMember(String name)
+    {
+        if ("length".equals(name)) {
+            return events.size();
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasMember(String name)
+    {
+        return "length".equals(name);
+    }
+
+    @Override
+    public boolean hasSlot(int slot)
+    {
+        return slot >= 0 && slot < events.size();
+    }
+
+    @Override
+    public Object getSlot(int index)
+    {
+        if (!hasSlot(index)) {
+            return null;
+        }
+
+        EventView view = views[index];
+        if (view == null) {
+            view = new EventView(proxyFactory.apply(events.get(index)), events.get(index));
+            views[index] = view;
+        }
+        return view;
+    }
+
+    @Override
+    public Set<String> keySet()
+    {
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i = 0; i < events.size(); i++) {
+            keys.add(Integer.toString(i));
+        }
+        return keys;
+    }
+
+    @Override
+    public Collection<Object> values()
+    {
+        return new AbstractList<Object>()
+        {
+            @Override
+            public Object get(int index)
+            {
+                return getSlot(index);
+            }
+
+            @Override
+            public int size()
+            {
+                return events.size();
+            }
+        };
+    }
+
+    @Override
+    public String getClassName()
+    {
+        return "Array";
+    }
+
+    private static class EventView
+            extends AbstractJSObject
+    {
+        private final Event event;
+        private final PropertiesView properties;
+
+        public EventView(EventProxy proxy, Event event)
+        {
+            this.event = event;
+            this.properties = new PropertiesView(proxy, event);
+        }
+
+        @Override
+        public Object getMember(String name)
+        {
+            switch (name) {
+                case "collection":
+                    return event.collection();
+                case "properties":
+                    return properties;
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public boolean hasMember(String name)
+        {
+            return "collection".equals(name) || "properties".equals(name);
+        }
+    }
+
+    private static class PropertiesView
+            extends AbstractJSObject
+    {
+        private final EventProxy proxy;
+        private final Event event;
+
+        public PropertiesView(EventProxy proxy, Event event)
+        {
+            this.proxy = proxy;
+            this.event = event;
+        }
+
+        @Override
+        public Object getMember(String name)
+        {
+            return proxy.get(name);
+        }
+
+        @Override
+        public boolean hasMember(String name)
+        {
+            return event.properties().getSchema().getField(name) != null;
+        }
+
+        @Override
+        public void setMember(String name, Object value)
+        {
+            // the proxy creates the field if it doesn't exist in the schema
+            proxy.set(name, value);
+        }
+
+        @Override
+        public void removeMember(String name)
+        {
+            if (hasMember(name)) {
+                event.properties().put(name, null);
+            }
+        }
+
+        @Override
+        public Set<String> keySet()
+        {
+            return event.properties().getSchema().getFields().stream()
+                    .map(Schema.Field::name)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.auto.service.AutoService;
 import com.google.common.base.Throwables;
 import com.google.inject.Binder;
 import com.google.inject.Provider;
+import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
@@ -31,7 +32,7 @@ public class ScheduledTaskModule
         Multibinder<HttpService> httpServices = Multibinder.newSetBinder(binder, HttpService.class);
         httpServices.addBinding().to(ScheduledTaskHttpService.class);
 
-        binder.bind(LockService.class).toProvider(LockServiceProvider.class);
+        binder.bind(LockService.class).toProvider(LockServiceProvider.class).in(Scopes.SINGLETON);
         binder.bind(String.class).annotatedWith(Names.named("timestamp_function"))
                 .toProvider(DatabaseFunction.class);
     }
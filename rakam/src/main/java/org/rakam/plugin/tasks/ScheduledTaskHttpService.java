@@ -330,6 +330,10 @@ public class ScheduledTaskHttpService
 
     private void updateTask(String project, int id, LockService.Lock lock, ILogger logger, long now, Throwable ex)
     {
+        if (!lock.isHeld()) {
+            logger.warn("The lock of the task is lost while it's running, it may be run by an other node as well");
+        }
+
         if (ex == null) {
             try (Handle handle = dbi.open()) {
                 handle.createStatement(format("UPDATE custom_scheduled_tasks SET last_executed_at = %s WHERE project = :project AND id = :id", timestampToEpoch))
@@ -13,12 +13,15 @@ import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.QuoteMode;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
 import org.rakam.report.QueryResult;
 
 import javax.xml.bind.DatatypeConverter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.time.Instant;
 import java.time.LocalDate;
@@ -28,6 +31,8 @@ import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 public class ExportUtil
 {
     public static byte[] exportAsCSV(QueryResult result)
@@ -39,15 +44,7 @@ public class ExportUtil
             csvPrinter = new CSVPrinter(new PrintWriter(out), format);
             csvPrinter.printRecord(result.getMetadata().stream().map(SchemaField::getName)
                     .collect(Collectors.toList()));
-            csvPrinter.printRecords(Iterables.transform(result.getResult(), input -> Iterables.transform(input, input1 -> {
-                if (input1 instanceof List || input1 instanceof Map) {
-                    return JsonHelper.encode(input1);
-                }
-                if (input1 instanceof byte[]) {
-                    return DatatypeConverter.printBase64Binary((byte[]) input1);
-                }
-                return input1;
-            })));
+            csvPrinter.printRecords(Iterables.transform(result.getResult(), input -> Iterables.transform(input, ExportUtil::getCsvValue)));
             csvPrinter.flush();
         }
         catch (IOException e) {
@@ -85,6 +82,146 @@ public class ExportUtil
         return out.toByteArray();
     }
 
+    /**
+     * Returns an encoder that writes the result incrementally, the output is the same as the output of the methods
+     * that export the whole result.
+     */
+    public static PageEncoder getPageEncoder(CopyType type)
+    {
+        switch (type) {
+            case CSV:
+                return new CsvPageEncoder();
+            case AVRO:
+                return new AvroPageEncoder();
+            case JSON:
+                return new JsonPageEncoder();
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    public interface PageEncoder
+    {
+        void start(List<SchemaField> columns, OutputStream out)
+                throws IOException;
+
+        void page(List<List<Object>> rows, OutputStream out)
+                throws IOException;
+
+        void end(OutputStream out)
+                throws IOException;
+    }
+
+    private static class CsvPageEncoder
+            implements PageEncoder
+    {
+        private static final CSVFormat FORMAT = CSVFormat.DEFAULT.withQuoteMode(QuoteMode.NON_NUMERIC);
+
+        @Override
+        public void start(List<SchemaField> columns, OutputStream out)
+                throws IOException
+        {
+            CSVPrinter csvPrinter = new CSVPrinter(new OutputStreamWriter(out, UTF_8), FORMAT);
+            csvPrinter.printRecord(columns.stream().map(SchemaField::getName).collect(Collectors.toList()));
+            csvPrinter.flush();
+        }
+
+        @Override
+        public void page(List<List<Object>> rows, OutputStream out)
+                throws IOException
+        {
+            CSVPrinter csvPrinter = new CSVPrinter(new OutputStreamWriter(out, UTF_8), FORMAT);
+            csvPrinter.printRecords(Iterables.transform(rows, row -> Iterables.transform(row, ExportUtil::getCsvValue)));
+            csvPrinter.flush();
+        }
+
+        @Override
+        public void end(OutputStream out)
+        {
+        }
+    }
+
+    private static class AvroPageEncoder
+            implements PageEncoder
+    {
+        private List<SchemaField> columns;
+        private Schema avroSchema;
+        private DatumWriter writer;
+        private BinaryEncoder encoder;
+
+        @Override
+        public void start(List<SchemaField> columns, OutputStream out)
+        {
+            this.columns = columns;
+            this.avroSchema = AvroUtil.convertAvroSchema(columns);
+            this.writer = new FilteredRecordWriter(avroSchema, GenericData.get());
+        }
+
+        @Override
+        public void page(List<List<Object>> rows, OutputStream out)
+                throws IOException
+        {
+            encoder = EncoderFactory.get().directBinaryEncoder(out, encoder);
+            GenericData.Record record = new GenericData.Record(avroSchema);
+
+            for (List<Object> row : rows) {
+                for (int i = 0; i < row.size(); i++) {
+                    record.put(i, getAvroValue(row.get(i), columns.get(i).getType()));
+                }
+                writer.write(record, encoder);
+            }
+        }
+
+        @Override
+        public void end(OutputStream out)
+        {
+        }
+    }
+
+    private static class JsonPageEncoder
+            implements PageEncoder
+    {
+        private boolean first = true;
+
+        @Override
+        public void start(List<SchemaField> columns, OutputStream out)
+                throws IOException
+        {
+            out.write('[');
+        }
+
+        @Override
+        public void page(List<List<Object>> rows, OutputStream out)
+                throws IOException
+        {
+            for (List<Object> row : rows) {
+                if (!first) {
+                    out.write(',');
+                }
+                out.write(JsonHelper.encodeAsBytes(row));
+                first = false;
+            }
+        }
+
+        @Override
+        public void end(OutputStream out)
+                throws IOException
+        {
+            out.write(']');
+        }
+    }
+
+    private static Object getCsvValue(Object value)
+    {
+        if (value instanceof List || value instanceof Map) {
+            return JsonHelper.encode(value);
+        }
+        if (value instanceof byte[]) {
+            return DatatypeConverter.printBase64Binary((byte[]) value);
+        }
+        return value;
+    }
+
     private static Object getAvroValue(Object value, FieldType type)
     {
         if (value == null) {
@@ -123,7 +260,7 @@ public class ExportUtil
                                 {
                                     return (String) entry.getKey();
                                 }
-                            }, e -> getAvroValue(e, type.getMapValueType())));
+                            }, e -> getAvroValue(e.getValue(), type.getMapValueType())));
                 }
                 throw new IllegalStateException("unsupported type");
         }
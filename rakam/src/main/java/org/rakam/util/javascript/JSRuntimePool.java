@@ -0,0 +1,347 @@
+package org.rakam.util.javascript;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.script.Invocable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Executes the Javascript code of the webhooks and custom event mappers on a fixed number of threads.
+ * The compiled engines are pooled per (project, script, version) so that a script is evaluated only when
+ * the pool needs a new engine and an engine is never used by two threads at the same time.
+ * <p>
+ * Each invocation is watched by a single monitor thread that enforces the wall-clock time, CPU time and allocation
+ * quotas; the engine of an invocation that exceeds its quota is discarded. The wall-clock quota stops the scripts that
+ * are blocked on I/O, the CPU quota stops the busy ones before the wall-clock quota when the threads are not contended.
+ * The JVM can't measure the live heap of a single thread so the allocation quota limits the bytes the invocation
+ * allocates in total, including the garbage it creates.
+ */
+public class JSRuntimePool
+{
+    private final static Logger LOGGER = Logger.get(JSRuntimePool.class);
+    private static final int MAXIMUM_QUEUE_CAPACITY = 10000;
+    private static final long MONITOR_INTERVAL_MS = 10;
+    private static final long HARD_SHUTDOWN_GRACE_MS = 100;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService monitor;
+    private final int isolates;
+    private final long maxWallTimeMillis;
+    private final long maxCpuTimeNanos;
+    private final long maxAllocatedBytes;
+    private final ThreadMXBean threadBean;
+    private final Map<RuntimeKey, BlockingQueue<Invocable>> engines;
+    private final Map<Thread, Invocation> running;
+
+    @Inject
+    public JSRuntimePool(JavascriptConfig config)
+    {
+        this.isolates = Runtime.getRuntime().availableProcessors() * config.getIsolatesPerCore();
+        this.maxWallTimeMillis = config.getMaxWallTime().toMillis();
+        this.maxCpuTimeNanos = config.getMaxCpuTime().roundTo(TimeUnit.NANOSECONDS);
+        this.maxAllocatedBytes = config.getMaxAllocatedMemory().toBytes();
+        this.threadBean = ManagementFactory.getThreadMXBean();
+        this.engines = new ConcurrentHashMap<>();
+        this.running = new ConcurrentHashMap<>();
+        this.executor = new ThreadPoolExecutor(isolates, isolates,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(MAXIMUM_QUEUE_CAPACITY),
+                new ThreadFactoryBuilder().setNameFormat("js-runtime-%d").setDaemon(true).build());
+        this.monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("js-runtime-monitor")
+                .setDaemon(true)
+                .build());
+        this.monitor.scheduleWithFixedDelay(this::checkQuotas, MONITOR_INTERVAL_MS, MONITOR_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compiles an engine for the given script version if there is not any so that the compilation errors
+     * are caught early and the first invocation doesn't pay for the compilation.
+     * The engines of the older versions of the same script are discarded.
+     */
+    public void prepare(RuntimeKey key, EngineFactory factory)
+            throws Exception
+    {
+        inspect(key, factory, engine -> null);
+    }
+
+    /**
+     * Same as {@link #prepare(RuntimeKey, EngineFactory)} but also applies the given function to a pooled
+     * engine, it's useful for checking which functions the script defines.
+     */
+    public <T> T inspect(RuntimeKey key, EngineFactory factory, Function<Invocable, T> function)
+            throws Exception
+    {
+        engines.keySet().removeIf(k -> k.isPreviousVersionOf(key));
+
+        BlockingQueue<Invocable> pool = getPool(key);
+        Invocable engine = pool.poll();
+        if (engine == null) {
+            engine = factory.create();
+        }
+        try {
+            return function.apply(engine);
+        }
+        finally {
+            pool.offer(engine);
+        }
+    }
+
+    public void invalidate(String project, String name)
+    {
+        engines.keySet().removeIf(k -> k.project.equals(project) && k.name.equals(name));
+    }
+
+    public CompletableFuture<Object> invoke(RuntimeKey key, EngineFactory factory, String function, Object... args)
+    {
+        return submit(() -> {
+            BlockingQueue<Invocable> pool = getPool(key);
+            Invocable engine = pool.poll();
+            try {
+                if (engine == null) {
+                    engine = factory.create();
+                }
+
+                Object result = engine.invokeFunction(function, args);
+                Invocation invocation = running.get(Thread.currentThread());
+                if (invocation != null && !invocation.exceeded) {
+                    pool.offer(engine);
+                }
+                return result;
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> supplier)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                Thread thread = Thread.currentThread();
+                Invocation invocation = new Invocation(thread);
+                running.put(thread, invocation);
+                try {
+                    future.complete(supplier.get());
+                }
+                catch (CompletionException e) {
+                    future.completeExceptionally(invocation.exceeded ? invocation.exception() : e.getCause());
+                }
+                catch (Throwable e) {
+                    future.completeExceptionally(invocation.exceeded ? invocation.exception() : e);
+                }
+                finally {
+                    invocation.finish();
+                    // the monitor may have interrupted the thread
+                    Thread.interrupted();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            future.completeExceptionally(new QuotaExceededException("Javascript executor queue is full"));
+        }
+        return future;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        monitor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private BlockingQueue<Invocable> getPool(RuntimeKey key)
+    {
+        BlockingQueue<Invocable> pool = engines.get(key);
+        if (pool == null) {
+            // a new version of the script, the engines of the older versions are not used anymore
+            engines.keySet().removeIf(k -> k.isPreviousVersionOf(key));
+            pool = engines.computeIfAbsent(key, k -> new ArrayBlockingQueue<>(isolates));
+        }
+        return pool;
+    }
+
+    private void checkQuotas()
+    {
+        for (Invocation invocation : running.values()) {
+            try {
+                invocation.check();
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while checking Javascript quotas");
+            }
+        }
+    }
+
+    public interface EngineFactory
+    {
+        Invocable create()
+                throws Exception;
+    }
+
+    public static class QuotaExceededException
+            extends RuntimeException
+    {
+        public QuotaExceededException(String message)
+        {
+            super(message);
+        }
+    }
+
+    public static class RuntimeKey
+    {
+        public final String project;
+        public final String name;
+        public final int version;
+
+        public RuntimeKey(String project, String name, int version)
+        {
+            this.project = project;
+            this.name = name;
+            this.version = version;
+        }
+
+        private boolean isPreviousVersionOf(RuntimeKey key)
+        {
+            return project.equals(key.project) && name.equals(key.name) && version != key.version;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            RuntimeKey that = (RuntimeKey) o;
+
+            if (version != that.version) {
+                return false;
+            }
+            if (!project.equals(that.project)) {
+                return false;
+            }
+            return name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = project.hashCode();
+            result = 31 * result + name.hashCode();
+            result = 31 * result + version;
+            return result;
+        }
+    }
+
+    private class Invocation
+    {
+        private final Thread thread;
+        private final long startTime;
+        private final long startCpuTime;
+        private final long startAllocatedBytes;
+        private volatile boolean exceeded;
+        private volatile boolean done;
+        private String reason;
+        private long exceededAt;
+
+        public Invocation(Thread thread)
+        {
+            this.thread = thread;
+            this.startTime = System.currentTimeMillis();
+            this.startCpuTime = threadBean.getThreadCpuTime(thread.getId());
+            this.startAllocatedBytes = getAllocatedBytes(thread);
+        }
+
+        public void check()
+        {
+            if (done) {
+                return;
+            }
+
+            if (exceeded) {
+                if (System.currentTimeMillis() - exceededAt > HARD_SHUTDOWN_GRACE_MS) {
+                    synchronized (this) {
+                        if (done) {
+                            return;
+                        }
+                        LOGGER.warn("Javascript thread %s didn't respond to interruption, hard shutdown", thread.getName());
+                        // Nashorn doesn't check the interruption flag, this is the only way to stop a runaway script.
+                        thread.stop();
+                        finish();
+                    }
+                }
+                return;
+            }
+
+            if (System.currentTimeMillis() - startTime > maxWallTimeMillis) {
+                exceed(format("Javascript code exceeded the time quota of %d ms", maxWallTimeMillis));
+                return;
+            }
+
+            long cpuTime = threadBean.getThreadCpuTime(thread.getId()) - startCpuTime;
+            if (cpuTime > maxCpuTimeNanos) {
+                exceed(format("Javascript code exceeded the CPU time quota of %d ms", TimeUnit.NANOSECONDS.toMillis(maxCpuTimeNanos)));
+                return;
+            }
+
+            long allocated = getAllocatedBytes(thread) - startAllocatedBytes;
+            if (startAllocatedBytes >= 0 && allocated > maxAllocatedBytes) {
+                exceed(format("Javascript code exceeded the allocation quota of %d bytes", maxAllocatedBytes));
+            }
+        }
+
+        public synchronized void finish()
+        {
+            done = true;
+            running.remove(thread, this);
+        }
+
+        private void exceed(String reason)
+        {
+            this.reason = reason;
+            this.exceededAt = System.currentTimeMillis();
+            this.exceeded = true;
+            thread.interrupt();
+        }
+
+        public QuotaExceededException exception()
+        {
+            return new QuotaExceededException(reason);
+        }
+    }
+
+    private long getAllocatedBytes(Thread thread)
+    {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(thread.getId());
+        }
+        return -1;
+    }
+}
@@ -1,10 +1,20 @@
 package org.rakam.util.javascript;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+import io.airlift.units.MinDuration;
+
+import javax.validation.constraints.Min;
 
 public class JavascriptConfig
 {
     private boolean customEnabled = true;
+    private int isolatesPerCore = 1;
+    private Duration maxWallTime = Duration.valueOf("3s");
+    private Duration maxCpuTime = Duration.valueOf("2s");
+    private DataSize maxAllocatedMemory = new DataSize(256, DataSize.Unit.MEGABYTE);
 
     @Config("custom-javascript-enabled")
     public JavascriptConfig setCustomEnabled(boolean customEnabled)
@@ -17,4 +27,56 @@ public class JavascriptConfig
     {
         return customEnabled;
     }
+
+    @Min(1)
+    public int getIsolatesPerCore()
+    {
+        return isolatesPerCore;
+    }
+
+    @Config("javascript.isolates-per-core")
+    public JavascriptConfig setIsolatesPerCore(int isolatesPerCore)
+    {
+        this.isolatesPerCore = isolatesPerCore;
+        return this;
+    }
+
+    @MinDuration("10ms")
+    public Duration getMaxWallTime()
+    {
+        return maxWallTime;
+    }
+
+    @Config("javascript.max-wall-time")
+    public JavascriptConfig setMaxWallTime(String maxWallTime)
+    {
+        this.maxWallTime = Duration.valueOf(maxWallTime);
+        return this;
+    }
+
+    @MinDuration("10ms")
+    public Duration getMaxCpuTime()
+    {
+        return maxCpuTime;
+    }
+
+    @Config("javascript.max-cpu-time")
+    public JavascriptConfig setMaxCpuTime(String maxCpuTime)
+    {
+        this.maxCpuTime = Duration.valueOf(maxCpuTime);
+        return this;
+    }
+
+    public DataSize getMaxAllocatedMemory()
+    {
+        return maxAllocatedMemory;
+    }
+
+    @Config("javascript.max-allocated-memory")
+    @ConfigDescription("The total bytes a single invocation can allocate, the garbage created by the invocation is also counted")
+    public JavascriptConfig setMaxAllocatedMemory(String maxAllocatedMemory)
+    {
+        this.maxAllocatedMemory = DataSize.valueOf(maxAllocatedMemory);
+        return this;
+    }
 }
@@ -1,6 +1,7 @@
 import com.fasterxml.jackson.databind.cfg.ContextAttributes;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
@@ -19,6 +20,7 @@ import org.rakam.collection.SchemaField;
 import org.rakam.util.AvroUtil;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static com.google.common.collect.ImmutableSet.of;
@@ -74,4 +76,31 @@ public class TestCSVParser {
         assertEquals(actual, eventList);
     }
 
+    @Test
+    public void testChunks() throws Exception {
+        CsvMapper mapper = new CsvMapper();
+
+        FieldDependencyBuilder.FieldDependency build = new FieldDependencyBuilder().build();
+        Metastore metastore = new InMemoryMetastore(new InMemoryApiKeyService(), new EventBus());
+        CsvEventDeserializer deserializer = new CsvEventDeserializer(metastore, new TestingConfigManager(), new SchemaChecker(metastore, build), build);
+
+        metastore.createProject("project");
+
+        String csv = "product,price\n" +
+                "Product1,1200\n" +
+                "Product2,1500\n" +
+                "Product3,1800\n";
+
+        CsvParser parser = (CsvParser) mapper.getFactory().createParser(csv);
+        parser.nextToken();
+
+        List<EventList> chunks = new ArrayList<>();
+        deserializer.deserialize(parser, "project", "collection", "apiKey", true, 2, chunk -> chunks.add(chunk.get()));
+
+        assertEquals(chunks.size(), 2);
+        assertEquals(chunks.get(0).events.size(), 2);
+        assertEquals(chunks.get(1).events.size(), 1);
+        assertEquals(chunks.get(0).events.get(0).getAttribute("product"), "Product1");
+        assertEquals(chunks.get(1).events.get(0).getAttribute("price"), "1800");
+    }
 }
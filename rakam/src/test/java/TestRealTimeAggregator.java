@@ -0,0 +1,129 @@
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.avro.generic.GenericData;
+import org.rakam.analysis.RealtimeService.RealTimeQueryResult;
+import org.rakam.analysis.realtime.RealTimeAggregator;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.report.realtime.RealTimeConfig;
+import org.rakam.report.realtime.RealTimeReport.Measure;
+import org.rakam.util.AvroUtil;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.COUNT_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestRealTimeAggregator
+{
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("_time", TIMESTAMP),
+            new SchemaField("country", STRING),
+            new SchemaField("user", STRING),
+            new SchemaField("amount", DOUBLE));
+
+    private static final List<Measure> MEASURES = ImmutableList.of(
+            new Measure("amount", COUNT),
+            new Measure("amount", SUM),
+            new Measure("user", APPROXIMATE_UNIQUE));
+
+    private static RealTimeAggregator createAggregator(List<Measure> measures)
+    {
+        RealTimeConfig config = new RealTimeConfig()
+                .setSlideInterval("1s")
+                .setWindowInterval("10s");
+        ContinuousQuery query = new ContinuousQuery("purchases", "Purchases", "select 1", ImmutableList.of(),
+                ImmutableMap.of(
+                        "realtime", true,
+                        "aggregation", measures,
+                        "collections", ImmutableList.of("purchase"),
+                        "dimensions", ImmutableList.of("country")));
+
+        return new RealTimeAggregator(config, project -> ImmutableList.of(query));
+    }
+
+    private static Event event(String collection, long time, String country, String user, double amount)
+    {
+        GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(FIELDS));
+        record.put("_time", time);
+        record.put("country", country);
+        record.put("user", user);
+        record.put("amount", amount);
+        return new Event("project", collection, null, FIELDS, record);
+    }
+
+    @Test
+    public void testAggregation()
+            throws Exception
+    {
+        RealTimeAggregator aggregator = createAggregator(MEASURES);
+        // loads the report, the slide that is being processed while the report is loaded is not served from memory
+        aggregator.process(event("pageview", System.currentTimeMillis(), "us", "a", 5));
+        long slide = (System.currentTimeMillis() / 1000) + 1;
+        long time = slide * 1000;
+        aggregator.process(event("purchase", time, "tr", "a", 10));
+        aggregator.process(event("purchase", time + 1, "tr", "b", 20));
+        aggregator.process(event("purchase", time + 2, "us", "a", 5));
+        aggregator.process(event("pageview", time + 3, "us", "a", 5));
+
+        Instant start = Instant.ofEpochMilli(time);
+        Instant end = Instant.ofEpochMilli(time + 1000);
+
+        RealTimeQueryResult count = aggregator.query("project", "purchases", null, new Measure("amount", COUNT),
+                ImmutableList.of(), true, start, end).get();
+        assertEquals(count.result, 3L);
+
+        RealTimeQueryResult sum = aggregator.query("project", "purchases", null, new Measure("amount", SUM),
+                ImmutableList.of("country"), true, start, end).get();
+        List<List<Object>> rows = (List<List<Object>>) sum.result;
+        assertEquals(rows.size(), 2);
+        assertTrue(rows.contains(ImmutableList.of(time, "tr", 30.0)));
+        assertTrue(rows.contains(ImmutableList.of(time, "us", 5.0)));
+
+        RealTimeQueryResult unique = aggregator.query("project", "purchases", null, new Measure("user", APPROXIMATE_UNIQUE),
+                ImmutableList.of(), true, start, end).get();
+        assertEquals(unique.result, 2L);
+
+        RealTimeQueryResult series = aggregator.query("project", "purchases", null, new Measure("amount", COUNT),
+                ImmutableList.of(), false, start, end).get();
+        assertEquals(series.result, ImmutableList.of(ImmutableList.of(time, 3L)));
+    }
+
+    @Test
+    public void testFallback()
+            throws Exception
+    {
+        RealTimeAggregator aggregator = createAggregator(MEASURES);
+        aggregator.process(event("pageview", System.currentTimeMillis(), "us", "a", 5));
+        long time = ((System.currentTimeMillis() / 1000) + 1) * 1000;
+        Instant start = Instant.ofEpochMilli(time);
+        Instant end = Instant.ofEpochMilli(time + 1000);
+
+        // the filters are applied by the database
+        assertFalse(aggregator.query("project", "purchases", "country = 'tr'", new Measure("amount", COUNT),
+                ImmutableList.of(), true, start, end).isPresent());
+        // the measure is not aggregated by the report
+        assertFalse(aggregator.query("project", "purchases", null, new Measure("country", COUNT),
+                ImmutableList.of(), true, start, end).isPresent());
+        // the interval is older than the report
+        assertFalse(aggregator.query("project", "purchases", null, new Measure("amount", COUNT),
+                ImmutableList.of(), true, Instant.ofEpochMilli(time - 5000), end).isPresent());
+        assertTrue(aggregator.query("project", "purchases", null, new Measure("amount", COUNT),
+                ImmutableList.of(), true, start, end).isPresent());
+
+        RealTimeAggregator unsupported = createAggregator(ImmutableList.of(new Measure("user", COUNT_UNIQUE)));
+        assertFalse(unsupported.query("project", "purchases", null, new Measure("user", COUNT_UNIQUE),
+                ImmutableList.of(), true, start, end).isPresent());
+    }
+}
@@ -0,0 +1,73 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.apache.avro.generic.GenericData;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.rakam.plugin.stream.StreamEventEncoder.encode;
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.MAP_LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestStreamEventEncoder
+{
+    @Test
+    public void testEncode()
+            throws Exception
+    {
+        List<SchemaField> fields = ImmutableList.of(
+                new SchemaField("name", STRING),
+                new SchemaField("price", DOUBLE),
+                new SchemaField("tags", ARRAY_STRING),
+                new SchemaField("counts", MAP_LONG),
+                new SchemaField("empty", STRING));
+
+        GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(fields));
+        record.put("name", "test \"quoted\"");
+        record.put("price", 1.5);
+        record.put("tags", ImmutableList.of("a", "b"));
+        record.put("counts", ImmutableMap.of("a", 1L));
+
+        JsonNode node = JsonHelper.read(encode(new Event("project", "collection", null, fields, record)));
+
+        assertEquals(node.get("project").asText(), "project");
+        assertEquals(node.get("collection").asText(), "collection");
+        assertEquals(node.get("properties").get("name").asText(), "test \"quoted\"");
+        assertEquals(node.get("properties").get("price").asDouble(), 1.5);
+        assertEquals(node.get("properties").get("tags").size(), 2);
+        assertEquals(node.get("properties").get("counts").get("a").asLong(), 1L);
+        assertFalse(node.get("properties").has("empty"));
+    }
+
+    @Test
+    public void testEncodeFlat()
+            throws Exception
+    {
+        List<SchemaField> fields = ImmutableList.of(
+                new SchemaField("name", STRING),
+                new SchemaField("price", DOUBLE));
+
+        GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(fields));
+        record.put("name", "test");
+        record.put("price", 1.5);
+
+        JsonNode node = JsonHelper.read(encode("collection", record, null));
+        assertEquals(node.get("_collection").asText(), "collection");
+        assertEquals(node.get("name").asText(), "test");
+        assertEquals(node.get("price").asDouble(), 1.5);
+
+        JsonNode projected = JsonHelper.read(encode("collection", record, ImmutableSet.of("price")));
+        assertEquals(projected.get("price").asDouble(), 1.5);
+        assertFalse(projected.has("name"));
+    }
+}
@@ -0,0 +1,196 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryResult;
+import org.rakam.util.ExportUtil;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.util.CharsetUtil.UTF_8;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestChunkedQueryExport
+{
+    private static final List<SchemaField> COLUMNS = ImmutableList.of(
+            new SchemaField("name", STRING),
+            new SchemaField("value", LONG));
+
+    private EmbeddedChannel channel;
+    private List<String> errors;
+
+    @BeforeMethod
+    public void setup()
+    {
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        errors = new ArrayList<>();
+    }
+
+    @Test
+    public void testPagesAreWrittenAsChunks()
+            throws Exception
+    {
+        ChunkedQueryExport export = createExport(CopyType.CSV, true);
+
+        export.metadata(COLUMNS);
+        HttpResponse response = (HttpResponse) channel.readOutbound();
+        assertEquals(response.getStatus(), OK);
+        assertTrue(HttpHeaders.isTransferEncodingChunked(response));
+        assertEquals(response.headers().get("Content-Disposition"), "attachment;filename=\"export.csv\"");
+        assertEquals(readChunk(), "\"name\",\"value\"\r\n");
+
+        export.page(ImmutableList.of(Arrays.asList("a", 1L)));
+        assertEquals(readChunk(), "\"a\",1\r\n");
+
+        export.page(ImmutableList.of(Arrays.asList("b", 2L), Arrays.asList("c", 3L)));
+        assertEquals(readChunk(), "\"b\",2\r\n\"c\",3\r\n");
+
+        export.end(new QueryResult(COLUMNS, ImmutableList.of()));
+        assertTrue(channel.readOutbound() instanceof LastHttpContent);
+        assertNull(channel.readOutbound());
+        assertTrue(channel.isOpen());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testOutputMatchesTheEncoder()
+            throws Exception
+    {
+        List<List<Object>> rows = ImmutableList.of(Arrays.asList("a", 1L), Arrays.asList(null, 2L), Arrays.asList("c", null));
+
+        for (CopyType type : CopyType.values()) {
+            setup();
+            ChunkedQueryExport export = createExport(type, true);
+            export.metadata(COLUMNS);
+            export.page(rows.subList(0, 1));
+            export.page(rows.subList(1, 3));
+            export.end(new QueryResult(COLUMNS, ImmutableList.of()));
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            ExportUtil.PageEncoder encoder = ExportUtil.getPageEncoder(type);
+            encoder.start(COLUMNS, expected);
+            encoder.page(rows, expected);
+            encoder.end(expected);
+
+            assertEquals(readBody(), expected.toByteArray(), type.name());
+        }
+    }
+
+    @Test
+    public void testEmptyResultStartsTheResponse()
+            throws Exception
+    {
+        ChunkedQueryExport export = createExport(CopyType.JSON, true);
+        export.end(new QueryResult(COLUMNS, ImmutableList.of()));
+
+        assertEquals(new String(readBody()), "[]");
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testErrorBeforeTheFirstChunk()
+            throws Exception
+    {
+        ChunkedQueryExport export = createExport(CopyType.CSV, true);
+        export.end(QueryResult.errorResult(new QueryError("invalid query", null, null, null, null)));
+
+        assertEquals(errors, ImmutableList.of("invalid query"));
+        assertNull(channel.readOutbound());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void testErrorAfterTheFirstChunkClosesTheConnection()
+            throws Exception
+    {
+        ChunkedQueryExport export = createExport(CopyType.CSV, true);
+        export.metadata(COLUMNS);
+        export.page(ImmutableList.of(Arrays.asList("a", 1L)));
+
+        export.end(QueryResult.errorResult(new QueryError("query is killed", null, null, null, null)));
+
+        assertTrue(errors.isEmpty());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testConnectionIsClosedWithoutKeepAlive()
+            throws Exception
+    {
+        ChunkedQueryExport export = createExport(CopyType.CSV, false);
+        export.end(new QueryResult(COLUMNS, ImmutableList.of()));
+
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testPageFailsWhenTheClientIsGone()
+            throws Exception
+    {
+        ChunkedQueryExport export = createExport(CopyType.CSV, true);
+        export.metadata(COLUMNS);
+        channel.close();
+
+        try {
+            export.page(ImmutableList.of(Arrays.asList("a", 1L)));
+            fail("the export must stop when the connection is closed");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private ChunkedQueryExport createExport(CopyType type, boolean keepAlive)
+    {
+        ChannelHandlerContext context = channel.pipeline().firstContext();
+        return new ChunkedQueryExport(context, keepAlive, type, errors::add);
+    }
+
+    private String readChunk()
+    {
+        HttpContent content = (HttpContent) channel.readOutbound();
+        try {
+            return content.content().toString(UTF_8);
+        }
+        finally {
+            content.release();
+        }
+    }
+
+    private byte[] readBody()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object message = channel.readOutbound(); message != null; message = channel.readOutbound()) {
+            if (message instanceof HttpContent) {
+                ByteBuf content = ((HttpContent) message).content();
+                byte[] bytes = new byte[content.readableBytes()];
+                content.readBytes(bytes);
+                out.write(bytes, 0, bytes.length);
+                ((HttpContent) message).release();
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,69 @@
+package org.rakam.automation;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.generic.GenericData;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestExpressionCompiler
+{
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("name", STRING),
+            new SchemaField("price", DOUBLE));
+
+    @AfterMethod
+    public void tearDown()
+    {
+        ExpressionCompiler.invalidateAll();
+    }
+
+    @Test
+    public void testCompile()
+    {
+        Predicate<Event> predicate = ExpressionCompiler.compile("name IS NOT NULL AND price IS NULL");
+
+        assertTrue(predicate.test(event("test", null)));
+        assertFalse(predicate.test(event("test", 0.5)));
+        assertFalse(predicate.test(event(null, null)));
+        // the predicates are cached by their source
+        assertSame(ExpressionCompiler.compile("name IS NOT NULL AND price IS NULL"), predicate);
+    }
+
+    @Test
+    public void testRecompileAfterEviction()
+    {
+        Predicate<Event> predicate = ExpressionCompiler.compile("name IS NULL OR price IS NULL");
+        assertTrue(predicate.test(event(null, 2.0)));
+
+        ExpressionCompiler.invalidateAll();
+
+        Predicate<Event> recompiled = ExpressionCompiler.compile("name IS NULL OR price IS NULL");
+        // the class is defined again by a new class loader since the previous one is dropped with the cache entry
+        assertNotSame(recompiled, predicate);
+        assertNotSame(recompiled.getClass(), predicate.getClass());
+        assertNotSame(recompiled.getClass().getClassLoader(), predicate.getClass().getClassLoader());
+        assertTrue(recompiled.test(event(null, 2.0)));
+        assertFalse(recompiled.test(event("test", 2.0)));
+    }
+
+    private static Event event(String name, Double price)
+    {
+        GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(FIELDS));
+        record.put("name", name);
+        record.put("price", price);
+        return new Event("project", "collection", null, FIELDS, record);
+    }
+}
@@ -0,0 +1,107 @@
+package org.rakam.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.report.QueryResult;
+import org.rakam.util.ExportUtil.PageEncoder;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_STRING;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+
+public class TestExportUtil
+{
+    private static final List<SchemaField> COLUMNS = ImmutableList.of(
+            new SchemaField("name", STRING),
+            new SchemaField("count", LONG),
+            new SchemaField("ratio", DOUBLE),
+            new SchemaField("active", BOOLEAN),
+            new SchemaField("tags", ARRAY_STRING),
+            new SchemaField("properties", MAP_STRING));
+
+    private static final List<List<Object>> ROWS = ImmutableList.of(
+            Arrays.asList("first", 1L, 1.5, true, ImmutableList.of("a", "b"), ImmutableMap.of("key", "value")),
+            Arrays.asList("second, with \"quotes\"", 2L, null, false, ImmutableList.of(), ImmutableMap.of()),
+            Arrays.asList(null, null, 3.0, null, null, null),
+            Arrays.asList("fourth", 4L, 0.0, true, ImmutableList.of("c"), ImmutableMap.of("k1", "v1", "k2", "v2")),
+            Arrays.asList("fifth", 5L, -1.25, false, null, ImmutableMap.of("key", "")));
+
+    @Test
+    public void testCsv()
+            throws Exception
+    {
+        QueryResult result = new QueryResult(COLUMNS, ROWS);
+        assertEquals(encodeInPages(CopyType.CSV, 2), ExportUtil.exportAsCSV(result));
+    }
+
+    @Test
+    public void testAvro()
+            throws Exception
+    {
+        QueryResult result = new QueryResult(COLUMNS, ROWS);
+        assertEquals(encodeInPages(CopyType.AVRO, 2), ExportUtil.exportAsAvro(result));
+    }
+
+    @Test
+    public void testJson()
+            throws Exception
+    {
+        assertEquals(encodeInPages(CopyType.JSON, 2), JsonHelper.encodeAsBytes(ROWS));
+    }
+
+    @Test
+    public void testPageSizeDoesNotChangeTheOutput()
+            throws Exception
+    {
+        for (CopyType type : CopyType.values()) {
+            assertEquals(encodeInPages(type, 1), encodeInPages(type, ROWS.size()), type.name());
+        }
+    }
+
+    @Test
+    public void testEmptyResult()
+            throws Exception
+    {
+        QueryResult result = new QueryResult(COLUMNS, ImmutableList.of());
+        assertEquals(encode(CopyType.CSV, ImmutableList.of()), ExportUtil.exportAsCSV(result));
+        assertEquals(encode(CopyType.AVRO, ImmutableList.of()), ExportUtil.exportAsAvro(result));
+        assertEquals(encode(CopyType.JSON, ImmutableList.of()), JsonHelper.encodeAsBytes(ImmutableList.of()));
+    }
+
+    private static byte[] encodeInPages(CopyType type, int pageSize)
+            throws IOException
+    {
+        ImmutableList.Builder<List<List<Object>>> pages = ImmutableList.builder();
+        for (int i = 0; i < ROWS.size(); i += pageSize) {
+            pages.add(ROWS.subList(i, Math.min(ROWS.size(), i + pageSize)));
+        }
+        return encode(type, pages.build());
+    }
+
+    private static byte[] encode(CopyType type, List<List<List<Object>>> pages)
+            throws IOException
+    {
+        PageEncoder encoder = ExportUtil.getPageEncoder(type);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        encoder.start(COLUMNS, out);
+        for (List<List<Object>> page : pages) {
+            encoder.page(page, out);
+        }
+        encoder.end(out);
+
+        return out.toByteArray();
+    }
+}